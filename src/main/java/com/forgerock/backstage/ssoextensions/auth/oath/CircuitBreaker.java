@@ -0,0 +1,96 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Stops calls to a failing dependency. After a number of consecutive failures the breaker opens and rejects calls
+ * for a while; then it lets a single trial call through, which closes it on success and opens it again on failure.
+ */
+final class CircuitBreaker {
+
+    enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final int failureThreshold;
+    private final long openMillis;
+    private final LongSupplier clock;
+    private State state = State.CLOSED;
+    private int failures;
+    private long openUntil;
+
+    /**
+     * @param failureThreshold the number of consecutive failures that open the breaker
+     * @param openMillis       how long the breaker stays open before a trial call
+     * @param clock            the current time in milliseconds
+     */
+    CircuitBreaker(int failureThreshold, long openMillis, LongSupplier clock) {
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+        this.clock = clock;
+    }
+
+    /**
+     * @return whether a call may be made; the caller must report its outcome if so
+     */
+    synchronized boolean tryAcquire() {
+        switch (state) {
+        case CLOSED:
+            return true;
+        case OPEN:
+            if (clock.getAsLong() < openUntil) {
+                return false;
+            }
+            state = State.HALF_OPEN;
+            return true;
+        default:
+            // A trial call is in progress
+            return false;
+        }
+    }
+
+    synchronized void onSuccess() {
+        state = State.CLOSED;
+        failures = 0;
+    }
+
+    synchronized void onFailure() {
+        failures++;
+        if (state == State.HALF_OPEN || failures >= failureThreshold) {
+            state = State.OPEN;
+            openUntil = clock.getAsLong() + openMillis;
+        }
+    }
+
+    /**
+     * Reports a permitted call that was not made, e.g. because it was rejected by a bulkhead.
+     */
+    synchronized void onNotCalled() {
+        if (state == State.HALF_OPEN) {
+            state = State.OPEN;
+        }
+    }
+
+    synchronized State getState() {
+        return state;
+    }
+}
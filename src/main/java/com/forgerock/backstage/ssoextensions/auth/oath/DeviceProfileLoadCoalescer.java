@@ -0,0 +1,262 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath;
+
+import org.forgerock.json.JsonValue;
+import org.forgerock.openam.core.rest.devices.DeviceJsonUtils;
+import org.forgerock.openam.core.rest.devices.DevicePersistenceException;
+import org.forgerock.openam.core.rest.devices.oath.OathDeviceSettings;
+import org.forgerock.util.annotations.VisibleForTesting;
+
+import javax.inject.Singleton;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Coalesces concurrent device profile loads for the same user into a single store read.
+ * <p>
+ * The first caller for a key loads the profiles and returns them as they are. Callers arriving while that load
+ * is in flight wait for it and receive their own copies, deserialized from a JSON snapshot taken before the
+ * first caller gets to modify its profiles. A save of the user's profile detaches the load in flight, so callers
+ * arriving after the save read the store again. Keys are spread over the bins of a {@link ConcurrentHashMap}, so
+ * loads for unrelated users do not contend, and nothing is allocated for a key that is already in flight. A caller
+ * waits at most {@value #WAIT_PROPERTY} milliseconds (default 2000) for the load in flight, then reads the store
+ * itself, so a slow directory call does not hold every waiter for its whole duration.
+ * <p>
+ * Profiles can also be {@link #prefetch prefetched} by an earlier step of the tree, under a nonce the tree keeps in
+ * its shared state. A prefetched snapshot is only handed out once, by {@link #takePrefetched} with the same nonce
+ * within its time to live, and dropped when the user's profile is saved; {@link #load} never returns it, so the
+ * reads that validate or save a profile always see the store. Snapshots are kept in the memory of this server only,
+ * so a tree whose next request goes to another server reads the store there.
+ */
+@Singleton
+public class DeviceProfileLoadCoalescer {
+
+    /**
+     * Reads the device profiles of a user from the store.
+     */
+    public interface ProfileSource {
+        List<OathDeviceSettings> load() throws DevicePersistenceException;
+    }
+
+    static final String WAIT_PROPERTY = "com.forgerock.backstage.oath.coalescedLoadWait";
+    private static final int MAX_PREFETCHED_USERS = 10000;
+
+    private final ConcurrentMap<String, CompletableFuture<List<JsonValue>>> inFlight = new ConcurrentHashMap<>();
+    private final ExpiringCache<String, Prefetched> prefetched = new ExpiringCache<>(MAX_PREFETCHED_USERS);
+    // Prefetches in progress, flagged when the profile is saved meanwhile so a stale read is not kept
+    private final ConcurrentMap<String, AtomicBoolean> prefetching = new ConcurrentHashMap<>();
+    private final long waitMillis;
+
+    public DeviceProfileLoadCoalescer() {
+        this(Long.getLong(WAIT_PROPERTY, 2000));
+    }
+
+    @VisibleForTesting
+    DeviceProfileLoadCoalescer(long waitMillis) {
+        this.waitMillis = waitMillis;
+    }
+
+    /**
+     * Loads the device profiles of a user, sharing a load already in flight for the same key.
+     *
+     * @param key       the realm and username of the user
+     * @param source    the store read to perform if no load is in flight
+     * @param jsonUtils used to copy the profiles for waiting callers
+     * @return the device profiles of the user
+     * @throws DevicePersistenceException if the store read failed
+     */
+    public List<OathDeviceSettings> load(String key, ProfileSource source, DeviceJsonUtils<OathDeviceSettings> jsonUtils)
+            throws DevicePersistenceException {
+        CompletableFuture<List<JsonValue>> pending = inFlight.get(key);
+        if (pending == null) {
+            CompletableFuture<List<JsonValue>> created = new CompletableFuture<>();
+            pending = inFlight.putIfAbsent(key, created);
+            if (pending == null) {
+                return loadAndPublish(key, created, source, jsonUtils);
+            }
+        }
+
+        List<JsonValue> snapshot;
+        try {
+            snapshot = pending.get(waitMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            return source.load();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DevicePersistenceException("Interrupted while waiting for the device profile store", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof DevicePersistenceException) {
+                throw (DevicePersistenceException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new DevicePersistenceException(cause);
+        }
+        if (snapshot == null) {
+            return source.load();
+        }
+        List<OathDeviceSettings> copies = copy(snapshot, jsonUtils);
+        return copies != null ? copies : source.load();
+    }
+
+    /**
+     * Takes the device profiles prefetched for a user by the same tree.
+     *
+     * @param key       the realm and username of the user
+     * @param nonce     the nonce the profiles were prefetched under
+     * @param jsonUtils used to copy the snapshot
+     * @return copies of the prefetched profiles, or null if none were prefetched under the nonce, they were taken
+     * already or they could not be copied
+     */
+    public List<OathDeviceSettings> takePrefetched(String key, String nonce,
+                                                   DeviceJsonUtils<OathDeviceSettings> jsonUtils) {
+        Prefetched profiles = prefetched.getIfPresent(key);
+        if (profiles == null || !profiles.nonce.equals(nonce) || !profiles.taken.compareAndSet(false, true)) {
+            return null;
+        }
+        prefetched.invalidate(key);
+        return copy(profiles.snapshot, jsonUtils);
+    }
+
+    /**
+     * Loads the device profiles of a user ahead of the step that needs them, and keeps a snapshot for
+     * {@link #takePrefetched} with the same nonce. Does nothing if a snapshot is kept or a prefetch is in progress
+     * already.
+     *
+     * @param key       the realm and username of the user
+     * @param nonce     identifies the tree the snapshot is kept for
+     * @param source    the store read to perform
+     * @param jsonUtils used to take and copy the snapshot
+     * @param ttlMillis how long the snapshot is kept
+     * @throws DevicePersistenceException if the store read failed
+     */
+    public void prefetch(String key, String nonce, ProfileSource source,
+                         DeviceJsonUtils<OathDeviceSettings> jsonUtils, long ttlMillis) throws DevicePersistenceException {
+        if (prefetched.getIfPresent(key) != null) {
+            return;
+        }
+        AtomicBoolean saved = new AtomicBoolean();
+        if (prefetching.putIfAbsent(key, saved) != null) {
+            return;
+        }
+        try {
+            List<JsonValue> snapshot = snapshot(load(key, source, jsonUtils), jsonUtils);
+            if (snapshot == null || saved.get()) {
+                return;
+            }
+            prefetched.put(key, new Prefetched(nonce, snapshot), ttlMillis);
+            // invalidate() flags before it drops the snapshot, so a save racing with the put is caught here
+            if (saved.get()) {
+                prefetched.invalidate(key);
+            }
+        } finally {
+            prefetching.remove(key, saved);
+        }
+    }
+
+    /**
+     * Drops the prefetched snapshot of a user and detaches the load in flight, to be called when the user's profile
+     * is saved. Callers waiting already still get the result of that load, but later callers do not join a load that
+     * may have read the profile before the save.
+     *
+     * @param key the realm and username of the user
+     */
+    public void invalidate(String key) {
+        AtomicBoolean saved = prefetching.get(key);
+        if (saved != null) {
+            saved.set(true);
+        }
+        prefetched.invalidate(key);
+        inFlight.remove(key);
+    }
+
+    private List<OathDeviceSettings> loadAndPublish(String key, CompletableFuture<List<JsonValue>> pending,
+            ProfileSource source, DeviceJsonUtils<OathDeviceSettings> jsonUtils) throws DevicePersistenceException {
+        try {
+            List<OathDeviceSettings> profiles = source.load();
+            pending.complete(snapshot(profiles, jsonUtils));
+            return profiles;
+        } catch (DevicePersistenceException | RuntimeException e) {
+            pending.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, pending);
+        }
+    }
+
+    /**
+     * @return copies of the profiles, or null if they could not be deserialized
+     */
+    private List<OathDeviceSettings> copy(List<JsonValue> snapshot, DeviceJsonUtils<OathDeviceSettings> jsonUtils) {
+        try {
+            List<OathDeviceSettings> copies = new ArrayList<>(snapshot.size());
+            for (JsonValue json : snapshot) {
+                copies.add(jsonUtils.toDeviceSettingValue(json));
+            }
+            return copies;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the profiles as JSON, or null if they could not be serialized, in which case waiting callers read
+     * the store themselves
+     */
+    private List<JsonValue> snapshot(List<OathDeviceSettings> profiles, DeviceJsonUtils<OathDeviceSettings> jsonUtils) {
+        if (profiles == null) {
+            return null;
+        }
+        try {
+            List<JsonValue> snapshot = new ArrayList<>(profiles.size());
+            for (OathDeviceSettings profile : profiles) {
+                snapshot.add(jsonUtils.toJsonValue(profile));
+            }
+            return snapshot;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static final class Prefetched {
+        private final String nonce;
+        private final List<JsonValue> snapshot;
+        private final AtomicBoolean taken = new AtomicBoolean();
+
+        private Prefetched(String nonce, List<JsonValue> snapshot) {
+            this.nonce = nonce;
+            this.snapshot = snapshot;
+        }
+    }
+}
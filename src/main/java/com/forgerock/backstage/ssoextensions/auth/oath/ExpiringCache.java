@@ -0,0 +1,156 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+
+/**
+ * A bounded in-memory cache whose entries expire a given time after they were loaded or put.
+ * Expired entries are removed when the cache is full; if that does not free enough space, a tenth of the entries
+ * is dropped. Null values are not cached. Concurrent misses for the same key may load the value more than once.
+ *
+ * @param <K> the type of the keys
+ * @param <V> the type of the values
+ */
+public final class ExpiringCache<K, V> {
+    private final Map<K, Entry<V>> entries = new ConcurrentHashMap<>();
+    private final int maxEntries;
+    private final LongSupplier clock;
+
+    /**
+     * @param maxEntries the maximum number of entries
+     */
+    public ExpiringCache(int maxEntries) {
+        this(maxEntries, System::currentTimeMillis);
+    }
+
+    ExpiringCache(int maxEntries, LongSupplier clock) {
+        this.maxEntries = maxEntries;
+        this.clock = clock;
+    }
+
+    /**
+     * Returns the cached value of a key, loading and caching it if it is missing or expired.
+     *
+     * @param key       the key
+     * @param ttlMillis how long a loaded value is kept; 0 or less to bypass the cache
+     * @param loader    loads the value
+     * @param <E>       the type of exception thrown by the loader
+     * @return the value
+     * @throws E if the loader failed
+     */
+    public <E extends Exception> V get(K key, long ttlMillis, Loader<V, E> loader) throws E {
+        if (ttlMillis <= 0) {
+            return loader.load();
+        }
+        long now = clock.getAsLong();
+        Entry<V> entry = entries.get(key);
+        if (entry != null && entry.expiresAt > now) {
+            return entry.value;
+        }
+        V value = loader.load();
+        if (value != null) {
+            if (entries.size() >= maxEntries) {
+                evict(now);
+            }
+            entries.put(key, new Entry<>(value, now + ttlMillis));
+        } else if (entry != null) {
+            entries.remove(key, entry);
+        }
+        return value;
+    }
+
+    /**
+     * Returns the cached value of a key without loading it.
+     *
+     * @param key the key
+     * @return the value, or null if it is missing or expired
+     */
+    public V getIfPresent(K key) {
+        Entry<V> entry = entries.get(key);
+        return entry != null && entry.expiresAt > clock.getAsLong() ? entry.value : null;
+    }
+
+    /**
+     * Caches a value, replacing any cached value of the key.
+     *
+     * @param key       the key
+     * @param value     the value; null removes the entry
+     * @param ttlMillis how long the value is kept
+     */
+    public void put(K key, V value, long ttlMillis) {
+        if (value == null || ttlMillis <= 0) {
+            entries.remove(key);
+            return;
+        }
+        long now = clock.getAsLong();
+        if (entries.size() >= maxEntries) {
+            evict(now);
+        }
+        entries.put(key, new Entry<>(value, now + ttlMillis));
+    }
+
+    /**
+     * @param key the key whose entry to remove
+     */
+    public void invalidate(K key) {
+        entries.remove(key);
+    }
+
+    /**
+     * @return the number of entries, including expired ones not removed yet
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    private void evict(long now) {
+        entries.values().removeIf(entry -> entry.expiresAt <= now);
+        int excess = entries.size() - maxEntries * 9 / 10;
+        Iterator<K> keys = entries.keySet().iterator();
+        while (excess-- > 0 && keys.hasNext()) {
+            keys.next();
+            keys.remove();
+        }
+    }
+
+    /**
+     * Loads a value on a cache miss.
+     *
+     * @param <V> the type of the value
+     * @param <E> the type of exception thrown
+     */
+    public interface Loader<V, E extends Exception> {
+        V load() throws E;
+    }
+
+    private static final class Entry<V> {
+        private final V value;
+        private final long expiresAt;
+
+        private Entry(V value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
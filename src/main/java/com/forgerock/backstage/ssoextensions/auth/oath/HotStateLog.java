@@ -0,0 +1,240 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Memory-mapped file of fixed-size records holding the fields of a device profile which change on every login:
+ * counter, last login and clock drift. Every update is appended as a new record, and the latest record of a user
+ * wins when the file is loaded.
+ * Each record carries a CRC, so a record torn by a crash is detected on load and treated as the end of the log.
+ * When the file is full, the latest record of every user is written to a new file which atomically replaces the
+ * old one; the file doubles in size if more than half of it would be in use afterwards.
+ * Writes reach the file when the process exits, even by a crash; {@link #force()} also makes them survive a crash of
+ * the operating system.
+ */
+class HotStateLog implements Closeable {
+    private static final int MAGIC = 0x4F485331;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int RECORD_MARKER = 0x52454331;
+    static final int RECORD_SIZE = 40;
+
+    private final Path file;
+    private final Map<Long, Record> records = new HashMap<>();
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private int capacity;
+    private int position;
+
+    private HotStateLog(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * Opens a log, creating it if it does not exist.
+     *
+     * @param file     the file of the log
+     * @param capacity the number of records a new file has room for
+     * @return the log, with the latest record of every user loaded
+     * @throws IOException if the file could not be read or created, or is not a log
+     */
+    static HotStateLog open(Path file, int capacity) throws IOException {
+        HotStateLog log = new HotStateLog(file);
+        if (Files.exists(file) && Files.size(file) > 0) {
+            log.map(file, (int) ((Files.size(file) - HEADER_SIZE) / RECORD_SIZE));
+            log.load();
+        } else {
+            log.create(file, capacity);
+        }
+        return log;
+    }
+
+    /**
+     * Derives the key of a user or device from its identifying values.
+     *
+     * @param values the values, e.g. realm and username
+     * @return a 64 bit hash of the values
+     */
+    static long key(String... values) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (String value : values) {
+                digest.update(String.valueOf(value).getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0);
+            }
+            return ByteBuffer.wrap(digest.digest()).getLong();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * @param userKey the key of the user
+     * @return the latest record of the user, null if there is none
+     */
+    synchronized Record get(long userKey) {
+        return records.get(userKey);
+    }
+
+    /**
+     * Appends a record, compacting the file first if it is full.
+     *
+     * @param record the record
+     * @throws IOException if the file had to be compacted and that failed
+     */
+    synchronized void put(Record record) throws IOException {
+        if (position == capacity) {
+            compact();
+        }
+        write(buffer, position++, record);
+        records.put(record.userKey, record);
+    }
+
+    /**
+     * @return the number of users with a record
+     */
+    synchronized int size() {
+        return records.size();
+    }
+
+    /**
+     * Writes all records appended so far to the storage device.
+     */
+    synchronized void force() {
+        buffer.force();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        buffer.force();
+        channel.close();
+    }
+
+    private void load() throws IOException {
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new IOException(file + " is not a hot state log");
+        }
+        position = 0;
+        while (position < capacity) {
+            Record record = read(position);
+            if (record == null) {
+                break;
+            }
+            records.put(record.userKey, record);
+            position++;
+        }
+    }
+
+    private void create(Path target, int recordCapacity) throws IOException {
+        map(target, recordCapacity);
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, VERSION);
+        buffer.putInt(8, recordCapacity);
+        position = 0;
+    }
+
+    private void map(Path target, int recordCapacity) throws IOException {
+        channel = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) recordCapacity * RECORD_SIZE);
+        capacity = recordCapacity;
+    }
+
+    private void compact() throws IOException {
+        int newCapacity = records.size() * 2 > capacity ? capacity * 2 : capacity;
+        Path temp = file.resolveSibling(file.getFileName() + ".compact");
+        Files.deleteIfExists(temp);
+
+        close();
+        create(temp, newCapacity);
+        for (Record record : records.values()) {
+            write(buffer, position++, record);
+        }
+        int compacted = position;
+        close();
+
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        map(file, newCapacity);
+        position = compacted;
+    }
+
+    private Record read(int index) {
+        int offset = HEADER_SIZE + index * RECORD_SIZE;
+        if (buffer.getInt(offset) != RECORD_MARKER || buffer.getInt(offset + 4) != crc(buffer, offset)) {
+            return null;
+        }
+        return new Record(buffer.getLong(offset + 8), buffer.getLong(offset + 16), buffer.getLong(offset + 24),
+                buffer.getInt(offset + 32), buffer.getInt(offset + 36));
+    }
+
+    private static void write(ByteBuffer target, int index, Record record) {
+        int offset = HEADER_SIZE + index * RECORD_SIZE;
+        target.putLong(offset + 8, record.userKey);
+        target.putLong(offset + 16, record.deviceKey);
+        target.putLong(offset + 24, record.lastLogin);
+        target.putInt(offset + 32, record.counter);
+        target.putInt(offset + 36, record.clockDriftSeconds);
+        target.putInt(offset + 4, crc(target, offset));
+        target.putInt(offset, RECORD_MARKER);
+    }
+
+    private static int crc(ByteBuffer source, int offset) {
+        CRC32 crc = new CRC32();
+        for (int i = offset + 8; i < offset + RECORD_SIZE; i++) {
+            crc.update(source.get(i));
+        }
+        return (int) crc.getValue();
+    }
+
+    /**
+     * The hot fields of the device profile of one user.
+     */
+    static final class Record {
+        final long userKey;
+        final long deviceKey;
+        final long lastLogin;
+        final int counter;
+        final int clockDriftSeconds;
+
+        Record(long userKey, long deviceKey, long lastLogin, int counter, int clockDriftSeconds) {
+            this.userKey = userKey;
+            this.deviceKey = deviceKey;
+            this.lastLogin = lastLogin;
+            this.counter = counter;
+            this.clockDriftSeconds = clockDriftSeconds;
+        }
+    }
+}
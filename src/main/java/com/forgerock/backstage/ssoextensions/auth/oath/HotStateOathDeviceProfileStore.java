@@ -0,0 +1,237 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath;
+
+import org.forgerock.openam.core.rest.devices.DevicePersistenceException;
+import org.forgerock.openam.core.rest.devices.oath.OathDeviceSettings;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link OathDeviceProfileStore} keeping the fields which change on every login (counter, last login and clock
+ * drift) in a local {@link HotStateLog}, so a login that only changes those does not write to the directory.
+ * Profiles read from the directory are overlaid with the hot state of the same device unless it is behind them,
+ * so a counter or last login never moves backwards. A save which changes
+ * any other field, such as a used recovery code or a new registration, is written through at once; other saves are
+ * written to the directory by a periodic reconciliation.
+ * Meant for deployments with a single AM server, as other servers do not see the hot state until it is reconciled.
+ */
+public class HotStateOathDeviceProfileStore implements OathDeviceProfileStore, Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(HotStateOathDeviceProfileStore.class);
+
+    private final OathDeviceProfileStore delegate;
+    private final HotStateLog log;
+    private final Map<Long, Long> storedFingerprints = new ConcurrentHashMap<>();
+    private final Map<Long, PendingProfile> pending = new ConcurrentHashMap<>();
+    private final Object[] writeLocks = new Object[64];
+    private final ScheduledExecutorService reconciler;
+
+    /**
+     * @param delegate                 the store holding the full profiles
+     * @param file                     the file of the hot state log
+     * @param capacity                 the number of records a new hot state log has room for
+     * @param reconcileIntervalSeconds how often hot state is written to the delegate, 0 to only do so on
+     *                                 {@link #reconcile()}
+     * @throws IOException if the hot state log could not be opened
+     */
+    public HotStateOathDeviceProfileStore(OathDeviceProfileStore delegate, Path file, int capacity,
+                                          int reconcileIntervalSeconds) throws IOException {
+        this.delegate = delegate;
+        this.log = HotStateLog.open(file, capacity);
+        for (int i = 0; i < writeLocks.length; i++) {
+            writeLocks[i] = new Object();
+        }
+        if (reconcileIntervalSeconds > 0) {
+            this.reconciler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "oath-hot-state-reconciler");
+                thread.setDaemon(true);
+                return thread;
+            });
+            reconciler.scheduleWithFixedDelay(this::reconcile, reconcileIntervalSeconds, reconcileIntervalSeconds,
+                    TimeUnit.SECONDS);
+        } else {
+            this.reconciler = null;
+        }
+    }
+
+    @Override
+    public List<OathDeviceSettings> getDeviceProfiles(String username, String realm) throws DevicePersistenceException {
+        long userKey = HotStateLog.key(realm, username);
+        List<OathDeviceSettings> profiles = delegate.getDeviceProfiles(username, realm);
+        HotStateLog.Record record = log.get(userKey);
+        for (OathDeviceSettings profile : profiles) {
+            storedFingerprints.put(userKey, fingerprint(profile));
+            if (record != null && record.deviceKey == deviceKey(profile)
+                    && isNotBehind(record.counter, record.lastLogin, profile)) {
+                profile.setCounter(record.counter);
+                profile.setLastLogin(record.lastLogin, TimeUnit.SECONDS);
+                profile.setClockDriftSeconds(record.clockDriftSeconds);
+            }
+        }
+        return profiles;
+    }
+
+    @Override
+    public void saveDeviceProfile(String username, String realm, OathDeviceSettings settings)
+            throws DevicePersistenceException {
+        long userKey = HotStateLog.key(realm, username);
+        long fingerprint = fingerprint(settings);
+        try {
+            log.put(new HotStateLog.Record(userKey, deviceKey(settings), settings.getLastLogin(),
+                    settings.getCounter(), settings.getClockDriftSeconds()));
+        } catch (IOException e) {
+            logger.warn("Cannot write hot state, writing the device profile through", e);
+            storedFingerprints.remove(userKey);
+        }
+
+        // Writes of one user are serialized, so a reconciliation cannot overwrite a newer profile written through
+        synchronized (writeLock(userKey)) {
+            Long stored = storedFingerprints.get(userKey);
+            if (stored != null && stored == fingerprint) {
+                pending.put(userKey, new PendingProfile(username, realm, settings));
+                return;
+            }
+            pending.remove(userKey);
+            delegate.saveDeviceProfile(username, realm, settings);
+            storedFingerprints.put(userKey, fingerprint);
+        }
+    }
+
+    /**
+     * Writes the hot state of the profiles whose hot state changed since they were last written to the delegate, and
+     * forces the hot state log to the storage device. The profile is read from the delegate again and only its
+     * counter, last login and clock drift are replaced, so changes made elsewhere in the meantime are kept; hot state
+     * of a device that no longer exists or that is behind the stored profile is dropped. Profiles that cannot be
+     * written are retried by the next reconciliation.
+     */
+    public void reconcile() {
+        for (Map.Entry<Long, PendingProfile> entry : pending.entrySet()) {
+            PendingProfile profile = entry.getValue();
+            synchronized (writeLock(entry.getKey())) {
+                if (!pending.remove(entry.getKey(), profile)) {
+                    continue;
+                }
+                try {
+                    OathDeviceSettings stored = getStoredDevice(profile);
+                    if (stored == null) {
+                        logger.debug("Device profile of {} changed or was removed, dropping its hot state",
+                                profile.username);
+                        storedFingerprints.remove(entry.getKey());
+                        continue;
+                    }
+                    if (!isNotBehind(profile.settings.getCounter(), profile.settings.getLastLogin(), stored)) {
+                        storedFingerprints.put(entry.getKey(), fingerprint(stored));
+                        continue;
+                    }
+                    stored.setCounter(profile.settings.getCounter());
+                    stored.setLastLogin(profile.settings.getLastLogin(), TimeUnit.SECONDS);
+                    stored.setClockDriftSeconds(profile.settings.getClockDriftSeconds());
+                    delegate.saveDeviceProfile(profile.username, profile.realm, stored);
+                    storedFingerprints.put(entry.getKey(), fingerprint(stored));
+                } catch (DevicePersistenceException | RuntimeException e) {
+                    logger.warn("Cannot reconcile device profile of " + profile.username + ", retrying later", e);
+                    pending.putIfAbsent(entry.getKey(), profile);
+                }
+            }
+        }
+        log.force();
+    }
+
+    /**
+     * @return the number of profiles whose hot state has not been written to the delegate yet
+     */
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Reconciles all pending profiles, then closes the hot state log.
+     *
+     * @throws IOException if the hot state log could not be closed
+     */
+    @Override
+    public void close() throws IOException {
+        if (reconciler != null) {
+            reconciler.shutdown();
+        }
+        reconcile();
+        log.close();
+    }
+
+    /**
+     * @return the profile of the same device as the pending one as stored in the delegate, null if there is none
+     */
+    private OathDeviceSettings getStoredDevice(PendingProfile profile) throws DevicePersistenceException {
+        long deviceKey = deviceKey(profile.settings);
+        for (OathDeviceSettings stored : delegate.getDeviceProfiles(profile.username, profile.realm)) {
+            if (deviceKey(stored) == deviceKey) {
+                return stored;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return whether hot state with the given counter and last login is at least as recent as the stored profile
+     * in both, as HOTP only advances the counter and TOTP only the last login
+     */
+    private static boolean isNotBehind(long counter, long lastLogin, OathDeviceSettings stored) {
+        return counter >= stored.getCounter() && lastLogin >= stored.getLastLogin();
+    }
+
+    private Object writeLock(long userKey) {
+        return writeLocks[(int) (userKey & (writeLocks.length - 1))];
+    }
+
+    private static long deviceKey(OathDeviceSettings settings) {
+        return HotStateLog.key(settings.getUUID(), settings.getSharedSecret());
+    }
+
+    /**
+     * Hashes every field of a profile apart from the hot ones, to tell whether a save changed anything else.
+     */
+    private static long fingerprint(OathDeviceSettings settings) {
+        return HotStateLog.key(settings.getUUID(), settings.getDeviceName(), settings.getSharedSecret(),
+                String.valueOf(settings.isChecksumDigit()), String.valueOf(settings.getTruncationOffset()),
+                String.valueOf(settings.getRecoveryCodes()));
+    }
+
+    private static final class PendingProfile {
+        private final String username;
+        private final String realm;
+        private final OathDeviceSettings settings;
+
+        private PendingProfile(String username, String realm, OathDeviceSettings settings) {
+            this.username = username;
+            this.realm = realm;
+            this.settings = settings;
+        }
+    }
+}
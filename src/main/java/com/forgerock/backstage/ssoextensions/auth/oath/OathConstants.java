@@ -21,4 +21,7 @@ package com.forgerock.backstage.ssoextensions.auth.oath;
 
 public class OathConstants {
     public static final String OATH_DEVICE_PROFILE_KEY = "oathDeviceProfile";
+    public static final String OATH_DEVICE_PROFILE_SNAPSHOT_KEY = "oathDeviceProfileSnapshot";
+    public static final String OATH_PENDING_ENROLLMENT_KEY = "oathPendingEnrollment";
+    public static final String OATH_PREFETCH_KEY = "oathPrefetch";
 }
@@ -0,0 +1,55 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath;
+
+import com.google.inject.ProvidedBy;
+import org.forgerock.openam.core.rest.devices.DevicePersistenceException;
+import org.forgerock.openam.core.rest.devices.oath.OathDeviceSettings;
+
+import java.util.List;
+
+/**
+ * Persistence of OATH device profiles. The default implementation stores them through AM's
+ * {@link org.forgerock.openam.core.rest.devices.oath.UserOathDeviceProfileManager}; see
+ * {@link OathDeviceProfileStoreProvider} for keeping login state in a local file instead.
+ */
+@ProvidedBy(OathDeviceProfileStoreProvider.class)
+public interface OathDeviceProfileStore {
+
+    /**
+     * Reads the device profiles of a user.
+     *
+     * @param username the name of the user
+     * @param realm    the realm of the user
+     * @return the device profiles, empty if the user has not registered a device
+     * @throws DevicePersistenceException if the profiles could not be read
+     */
+    List<OathDeviceSettings> getDeviceProfiles(String username, String realm) throws DevicePersistenceException;
+
+    /**
+     * Stores the device profile of a user, replacing any existing one.
+     *
+     * @param username the name of the user
+     * @param realm    the realm of the user
+     * @param settings the device profile
+     * @throws DevicePersistenceException if the profile could not be stored
+     */
+    void saveDeviceProfile(String username, String realm, OathDeviceSettings settings) throws DevicePersistenceException;
+}
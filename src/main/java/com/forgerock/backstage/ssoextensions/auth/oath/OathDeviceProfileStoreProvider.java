@@ -0,0 +1,117 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath;
+
+import org.forgerock.openam.core.rest.devices.DeviceJsonUtils;
+import org.forgerock.openam.core.rest.devices.oath.OathDeviceSettings;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Provides the {@link OathDeviceProfileStore} of the OATH nodes. This is the {@link UserOathDeviceProfileStore}, or,
+ * if the system property {@value #HOT_STATE_FILE_PROPERTY} names a file, a {@link HotStateOathDeviceProfileStore}
+ * in front of it keeping its hot state in that file. The system properties {@value #HOT_STATE_CAPACITY_PROPERTY}
+ * (records, default 65536) and {@value #HOT_STATE_RECONCILE_INTERVAL_PROPERTY} (seconds, default 300) tune it.
+ * <p>
+ * If the system property {@value #STORE_DEADLINE_PROPERTY} is set to a number of milliseconds, the store is wrapped
+ * in a {@link ResilientOathDeviceProfileStore} with that deadline, tuned by {@value #STORE_CONCURRENCY_PROPERTY}
+ * (calls per realm, default 32), {@value #STORE_FAILURE_THRESHOLD_PROPERTY} (default 5),
+ * {@value #STORE_OPEN_DURATION_PROPERTY} (milliseconds, default 10000), {@value #STORE_DEGRADED_POLICY_PROPERTY}
+ * ({@code FAIL_FAST} or {@code SERVE_CACHED}, default {@code FAIL_FAST}) and {@value #STORE_CACHE_TTL_PROPERTY}
+ * (seconds, default 300).
+ */
+@Singleton
+public class OathDeviceProfileStoreProvider implements Provider<OathDeviceProfileStore> {
+    static final String HOT_STATE_FILE_PROPERTY = "com.forgerock.backstage.oath.hotStateFile";
+    static final String HOT_STATE_CAPACITY_PROPERTY = "com.forgerock.backstage.oath.hotStateCapacity";
+    static final String HOT_STATE_RECONCILE_INTERVAL_PROPERTY = "com.forgerock.backstage.oath.hotStateReconcileInterval";
+    static final String STORE_DEADLINE_PROPERTY = "com.forgerock.backstage.oath.storeDeadline";
+    static final String STORE_CONCURRENCY_PROPERTY = "com.forgerock.backstage.oath.storeConcurrency";
+    static final String STORE_FAILURE_THRESHOLD_PROPERTY = "com.forgerock.backstage.oath.storeFailureThreshold";
+    static final String STORE_OPEN_DURATION_PROPERTY = "com.forgerock.backstage.oath.storeOpenDuration";
+    static final String STORE_DEGRADED_POLICY_PROPERTY = "com.forgerock.backstage.oath.storeDegradedPolicy";
+    static final String STORE_CACHE_TTL_PROPERTY = "com.forgerock.backstage.oath.storeCacheTtl";
+    private static final Logger logger = LoggerFactory.getLogger(OathDeviceProfileStoreProvider.class);
+
+    private final OathDeviceProfileStore store;
+
+    @Inject
+    public OathDeviceProfileStoreProvider(UserOathDeviceProfileStore userStore,
+            DeviceJsonUtils<OathDeviceSettings> jsonUtils) {
+        this.store = createResilientStore(createStore(userStore), jsonUtils);
+    }
+
+    @Override
+    public OathDeviceProfileStore get() {
+        return store;
+    }
+
+    private static OathDeviceProfileStore createResilientStore(OathDeviceProfileStore store,
+            DeviceJsonUtils<OathDeviceSettings> jsonUtils) {
+        Long deadline = Long.getLong(STORE_DEADLINE_PROPERTY);
+        if (deadline == null || deadline <= 0) {
+            return store;
+        }
+        ResilientOathDeviceProfileStore.DegradedPolicy policy = ResilientOathDeviceProfileStore.DegradedPolicy.FAIL_FAST;
+        String configuredPolicy = System.getProperty(STORE_DEGRADED_POLICY_PROPERTY);
+        if (configuredPolicy != null) {
+            try {
+                policy = ResilientOathDeviceProfileStore.DegradedPolicy.valueOf(configuredPolicy.trim());
+            } catch (IllegalArgumentException e) {
+                logger.warn("Unknown degraded policy " + configuredPolicy + ", failing fast");
+            }
+        }
+        return new ResilientOathDeviceProfileStore(store, jsonUtils, deadline,
+                Integer.getInteger(STORE_CONCURRENCY_PROPERTY, 32),
+                Integer.getInteger(STORE_FAILURE_THRESHOLD_PROPERTY, 5),
+                Long.getLong(STORE_OPEN_DURATION_PROPERTY, 10000), policy,
+                TimeUnit.SECONDS.toMillis(Long.getLong(STORE_CACHE_TTL_PROPERTY, 300)));
+    }
+
+    private static OathDeviceProfileStore createStore(UserOathDeviceProfileStore userStore) {
+        String file = System.getProperty(HOT_STATE_FILE_PROPERTY);
+        if (file == null || file.trim().isEmpty()) {
+            return userStore;
+        }
+        try {
+            HotStateOathDeviceProfileStore hotStateStore = new HotStateOathDeviceProfileStore(userStore,
+                    Paths.get(file.trim()), Integer.getInteger(HOT_STATE_CAPACITY_PROPERTY, 65536),
+                    Integer.getInteger(HOT_STATE_RECONCILE_INTERVAL_PROPERTY, 300));
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    hotStateStore.close();
+                } catch (IOException e) {
+                    logger.warn("Cannot close hot state log", e);
+                }
+            }, "oath-hot-state-shutdown"));
+            return hotStateStore;
+        } catch (IOException e) {
+            logger.error("Cannot open hot state log " + file + ", storing device profiles in the directory only", e);
+            return userStore;
+        }
+    }
+}
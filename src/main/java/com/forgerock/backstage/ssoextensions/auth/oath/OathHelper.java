@@ -20,12 +20,13 @@
 package com.forgerock.backstage.ssoextensions.auth.oath;
 
 
+import com.forgerock.backstage.ssoextensions.auth.oath.jfr.OathPhase;
+import com.forgerock.backstage.ssoextensions.auth.oath.jfr.OathPhaseTimer;
 import com.google.inject.assistedinject.Assisted;
 import com.sun.identity.idm.AMIdentity;
 import org.forgerock.json.JsonValue;
 import org.forgerock.json.jose.builders.JwtBuilderFactory;
 import org.forgerock.json.jose.jwe.EncryptedJwt;
-import org.forgerock.json.jose.jwe.EncryptionMethod;
 import org.forgerock.json.jose.jwe.JweAlgorithm;
 import org.forgerock.json.jose.jwt.JwtClaimsSet;
 import org.forgerock.openam.auth.node.api.TreeContext;
@@ -46,6 +47,12 @@ import org.forgerock.secrets.keys.KeyFormatRaw;
 
 import javax.inject.Inject;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.Key;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Base64;
 import java.util.List;
 
 import static org.forgerock.json.JsonValue.*;
@@ -55,12 +62,18 @@ import static org.forgerock.secrets.Purpose.purpose;
 
 public class OathHelper {
     public static final String LIST_CLAIM_NAME = "list";
+    private static final String SNAPSHOT_FORMAT_CLAIM_NAME = "v";
+    private static final String SNAPSHOT_USER_CLAIM_NAME = "user";
+    private static final String SNAPSHOT_PROFILE_CLAIM_NAME = "profile";
+    private static final int SNAPSHOT_FORMAT = 1;
     private final UserOathDeviceProfileManager userOathDeviceProfileManager;
+    private final OathDeviceProfileStore deviceProfileStore;
     private final CoreWrapper coreWrapper;
     private final Realm realm;
     private final JwtBuilderFactory jwtBuilderFactory;
     private final Secrets secrets;
     private final DeviceJsonUtils<OathDeviceSettings> deviceJsonUtils;
+    private final DeviceProfileLoadCoalescer profileLoads;
 
     private static final Purpose<DataEncryptionKey> AUTH_TREE_ENCRYPTION =
             purpose(Labels.STATELESS_TOKEN_ENCRYPTION, DataEncryptionKey.class);
@@ -69,24 +82,37 @@ public class OathHelper {
     @Inject
     public OathHelper(@Assisted Realm realm,
                       UserOathDeviceProfileManager userOathDeviceProfileManager,
+                      OathDeviceProfileStore deviceProfileStore,
                       CoreWrapper coreWrapper,
                       JwtBuilderFactory jwtBuilderFactory,
                       Secrets secrets,
-                      DeviceJsonUtils<OathDeviceSettings> deviceJsonUtils) {
+                      DeviceJsonUtils<OathDeviceSettings> deviceJsonUtils,
+                      DeviceProfileLoadCoalescer profileLoads) {
         this.realm = realm;
         this.userOathDeviceProfileManager = userOathDeviceProfileManager;
+        this.deviceProfileStore = deviceProfileStore;
         this.coreWrapper = coreWrapper;
         this.jwtBuilderFactory = jwtBuilderFactory;
         this.secrets = secrets;
         this.deviceJsonUtils = deviceJsonUtils;
+        this.profileLoads = profileLoads;
     }
 
     public String encryptOathDeviceSettings(OathDeviceSettings settings) throws IOException {
-        return encrypt(deviceJsonUtils.toJsonValue(settings));
+        return encryptOathDeviceSettings(settings, SharedStateEncryption.A128CBC_HS256);
+    }
+
+    public String encryptOathDeviceSettings(OathDeviceSettings settings, SharedStateEncryption encryption)
+            throws IOException {
+        return encrypt(deviceJsonUtils.toJsonValue(settings), encryption);
     }
 
     public String encryptList(List list) {
-        return encrypt(json(object(field(LIST_CLAIM_NAME, list))));
+        return encryptList(list, SharedStateEncryption.A128CBC_HS256);
+    }
+
+    public String encryptList(List list, SharedStateEncryption encryption) {
+        return encrypt(json(object(field(LIST_CLAIM_NAME, list))), encryption);
     }
 
     /**
@@ -96,23 +122,52 @@ public class OathHelper {
      * @return the encrypted payload
      */
     public String encrypt(JsonValue payload) {
+        return encrypt(payload, SharedStateEncryption.A128CBC_HS256);
+    }
+
+    /**
+     * Encrypt a payload for inclusion in a shared state.
+     *
+     * @param payload    the payload to be encrypted
+     * @param encryption the content encryption to use
+     * @return the encrypted payload
+     */
+    public String encrypt(JsonValue payload, SharedStateEncryption encryption) {
+        OathPhaseTimer timer = OathPhaseTimer.start(OathPhase.JWE_ENCRYPT);
         SecretsProvider provider = secrets.getRealmSecrets(realm);
         DataEncryptionKey key;
         try {
             key = provider.getActiveSecret(AUTH_TREE_ENCRYPTION).getOrThrowUninterruptibly();
-            return jwtBuilderFactory.jwe(key.export(KeyFormatRaw.INSTANCE))
-                    .headers()
-                    .alg(JweAlgorithm.DIRECT)
-                    .enc(EncryptionMethod.A128CBC_HS256)
-                    .done()
-                    .claims(new JwtClaimsSet(payload.asMap()))
-                    .asJwt()
-                    .build();
+            return encrypt(jwtBuilderFactory, key.export(KeyFormatRaw.INSTANCE), payload, encryption);
         } catch (NoSuchSecretException e) {
             throw new IllegalStateException("No encryption found for AuthTrees", e);
+        } finally {
+            timer.end();
         }
     }
 
+    /**
+     * Encrypts a payload with the given key, as {@link #encrypt(JsonValue, SharedStateEncryption)} does with the
+     * stateless token key of the realm.
+     *
+     * @param jwtBuilderFactory the factory to build the JWE with
+     * @param key               the stateless token encryption key
+     * @param payload           the payload to be encrypted
+     * @param encryption        the content encryption to use
+     * @return the encrypted payload
+     */
+    public static String encrypt(JwtBuilderFactory jwtBuilderFactory, Key key, JsonValue payload,
+                                 SharedStateEncryption encryption) {
+        return jwtBuilderFactory.jwe(encryption.getKey(key))
+                .headers()
+                .alg(JweAlgorithm.DIRECT)
+                .enc(encryption.getMethod())
+                .done()
+                .claims(new JwtClaimsSet(payload.asMap()))
+                .asJwt()
+                .build();
+    }
+
     public OathDeviceSettings decryptOathDeviceSettings(String payload) throws IOException {
         return deviceJsonUtils.toDeviceSettingValue(decrypt(payload));
     }
@@ -122,31 +177,183 @@ public class OathHelper {
     }
 
     /**
-     * Decrypt an encrypted payload from a shared state.
+     * Decrypt an encrypted payload from a shared state. The content encryption is taken from the JWE header, so
+     * payloads encrypted with any {@link SharedStateEncryption} can be decrypted.
      *
      * @param payload the payload to be decrypted
      * @return the decrypted payload
      */
     public JsonValue decrypt(String payload) {
+        OathPhaseTimer timer = OathPhaseTimer.start(OathPhase.SHARED_STATE_DECRYPT);
         SecretsProvider provider = secrets.getRealmSecrets(realm);
         DataEncryptionKey key;
         try {
             key = provider.getActiveSecret(AUTH_TREE_ENCRYPTION).getOrThrowUninterruptibly();
-            EncryptedJwt jwt = jwtBuilderFactory.reconstruct(payload, EncryptedJwt.class);
-            jwt.decrypt(key.export(KeyFormatRaw.INSTANCE));
-            return jwt.getClaimsSet().toJsonValue();
+            return decrypt(jwtBuilderFactory, key.export(KeyFormatRaw.INSTANCE), payload);
         } catch (NoSuchSecretException e) {
             throw new IllegalStateException("No encryption found for AuthTrees", e);
+        } finally {
+            timer.end();
         }
     }
 
+    /**
+     * Decrypts a payload with the given key, as {@link #decrypt(String)} does with the stateless token key of the
+     * realm.
+     *
+     * @param jwtBuilderFactory the factory to reconstruct the JWE with
+     * @param key               the stateless token encryption key
+     * @param payload           the payload to be decrypted
+     * @return the decrypted payload
+     */
+    public static JsonValue decrypt(JwtBuilderFactory jwtBuilderFactory, Key key, String payload) {
+        EncryptedJwt jwt = jwtBuilderFactory.reconstruct(payload, EncryptedJwt.class);
+        SharedStateEncryption encryption = SharedStateEncryption.forMethod(jwt.getHeader().getEncryptionMethod());
+        jwt.decrypt(encryption.getKey(key));
+        return jwt.getClaimsSet().toJsonValue();
+    }
+
+    /**
+     * Loads the device profile of the user of the tree. Concurrent loads for the same user share one store read.
+     *
+     * @param context the tree context containing realm and username in its shared state
+     * @return the device profile, or null if the user has not registered a device
+     * @throws DevicePersistenceException if the profile could not be read
+     */
     public OathDeviceSettings getOathDeviceSettings(TreeContext context) throws DevicePersistenceException {
-        List<OathDeviceSettings> deviceProfiles = userOathDeviceProfileManager.getDeviceProfiles(getUsername(context), getRealm(context));
-        return CollectionUtils.getFirstItem(deviceProfiles, null);
+        String username = getUsername(context);
+        String realm = getRealm(context);
+        OathPhaseTimer timer = OathPhaseTimer.start(OathPhase.PROFILE_LOAD);
+        try {
+            List<OathDeviceSettings> deviceProfiles = profileLoads.load(getUserKey(context),
+                    () -> deviceProfileStore.getDeviceProfiles(username, realm), deviceJsonUtils);
+            return CollectionUtils.getFirstItem(deviceProfiles, null);
+        } finally {
+            timer.end();
+        }
+    }
+
+    /**
+     * Loads the device profile of the user of the tree, taking the one prefetched for this tree if there is one on
+     * this server. Only to be used where the profile is not saved, as a prefetched profile may be stale.
+     *
+     * @param context the tree context containing realm and username in its shared state
+     * @param nonce   the nonce the tree's profile was prefetched under
+     * @return the device profile, or null if the user has not registered a device
+     * @throws DevicePersistenceException if the profile could not be read
+     */
+    public OathDeviceSettings getOathDeviceSettings(TreeContext context, String nonce)
+            throws DevicePersistenceException {
+        List<OathDeviceSettings> prefetched = profileLoads.takePrefetched(getUserKey(context), nonce,
+                deviceJsonUtils);
+        if (prefetched == null) {
+            return getOathDeviceSettings(context);
+        }
+        return CollectionUtils.getFirstItem(prefetched, null);
+    }
+
+    /**
+     * Loads the device profile of the user of the tree ahead of time, so a
+     * {@link #getOathDeviceSettings(TreeContext, String)} with the same nonce on this server within the time to
+     * live does not read the store.
+     *
+     * @param context   the tree context containing realm and username in its shared state
+     * @param nonce     identifies the tree, kept in its shared state
+     * @param ttlMillis how long the loaded profile is kept
+     * @throws DevicePersistenceException if the profile could not be read
+     */
+    public void prefetchOathDeviceSettings(TreeContext context, String nonce, long ttlMillis)
+            throws DevicePersistenceException {
+        String username = getUsername(context);
+        String realm = getRealm(context);
+        profileLoads.prefetch(getUserKey(context), nonce,
+                () -> deviceProfileStore.getDeviceProfiles(username, realm), deviceJsonUtils, ttlMillis);
+    }
+
+    /**
+     * Encrypts a device profile loaded from the store, so it can be kept in shared state and reused by later
+     * passes through the tree instead of reading the store again.
+     *
+     * @param context  the tree context of the user the profile belongs to
+     * @param settings the device profile as loaded from the store
+     * @return the encrypted snapshot
+     * @throws IOException if the profile could not be serialized
+     */
+    public String encryptProfileSnapshot(TreeContext context, OathDeviceSettings settings) throws IOException {
+        return encryptProfileSnapshot(context, settings, SharedStateEncryption.A128CBC_HS256);
+    }
+
+    /**
+     * Encrypts a device profile loaded from the store, as {@link #encryptProfileSnapshot(TreeContext,
+     * OathDeviceSettings)} does, with the given content encryption.
+     *
+     * @param context    the tree context of the user the profile belongs to
+     * @param settings   the device profile as loaded from the store
+     * @param encryption the content encryption to use
+     * @return the encrypted snapshot
+     * @throws IOException if the profile could not be serialized
+     */
+    public String encryptProfileSnapshot(TreeContext context, OathDeviceSettings settings,
+                                         SharedStateEncryption encryption) throws IOException {
+        return encrypt(json(object(
+                field(SNAPSHOT_FORMAT_CLAIM_NAME, SNAPSHOT_FORMAT),
+                field(SNAPSHOT_USER_CLAIM_NAME, getUserKey(context)),
+                field(SNAPSHOT_PROFILE_CLAIM_NAME, deviceJsonUtils.toJsonValue(settings).getObject()))), encryption);
+    }
+
+    /**
+     * Decrypts a snapshot created by {@link #encryptProfileSnapshot(TreeContext, OathDeviceSettings)}.
+     *
+     * @param context the tree context of the current request
+     * @param payload the encrypted snapshot
+     * @return the device profile, or null if the snapshot was taken for another user or in an unknown format
+     * @throws IOException if the profile could not be deserialized
+     */
+    public OathDeviceSettings decryptProfileSnapshot(TreeContext context, String payload) throws IOException {
+        JsonValue snapshot = decrypt(payload);
+        if (!Integer.valueOf(SNAPSHOT_FORMAT).equals(snapshot.get(SNAPSHOT_FORMAT_CLAIM_NAME).asInteger())
+                || !getUserKey(context).equals(snapshot.get(SNAPSHOT_USER_CLAIM_NAME).asString())) {
+            return null;
+        }
+        return deviceJsonUtils.toDeviceSettingValue(snapshot.get(SNAPSHOT_PROFILE_CLAIM_NAME));
+    }
+
+    /**
+     * Computes a version of a device profile from all the fields a verification reads or writes. Two profiles
+     * with the same version are interchangeable for verifying an OTP or a recovery code.
+     *
+     * @param settings the device profile
+     * @return the version of the profile
+     */
+    public static String getProfileVersion(OathDeviceSettings settings) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            StringBuilder fields = new StringBuilder()
+                    .append(settings.getUUID()).append('\n')
+                    .append(settings.getSharedSecret()).append('\n')
+                    .append(settings.getCounter()).append('\n')
+                    .append(settings.getLastLogin()).append('\n')
+                    .append(settings.getClockDriftSeconds()).append('\n')
+                    .append(settings.isChecksumDigit()).append('\n')
+                    .append(settings.getRecoveryCodes());
+            byte[] hash = digest.digest(fields.toString().getBytes(StandardCharsets.UTF_8));
+            return Base64.getEncoder().encodeToString(Arrays.copyOf(hash, 16));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
     }
 
     public void saveOathDeviceSettings(TreeContext context, OathDeviceSettings deviceSettings) throws DevicePersistenceException {
-        userOathDeviceProfileManager.saveDeviceProfile(getUsername(context), getRealm(context), deviceSettings);
+        String userKey = getUserKey(context);
+        profileLoads.invalidate(userKey);
+        OathPhaseTimer timer = OathPhaseTimer.start(OathPhase.PROFILE_SAVE);
+        try {
+            deviceProfileStore.saveDeviceProfile(getUsername(context), getRealm(context), deviceSettings);
+        } finally {
+            // Again once saved, as a load started during the save may have read the old profile
+            profileLoads.invalidate(userKey);
+            timer.end();
+        }
     }
 
     public OathDeviceSettings createDeviceProfile(int minSharedSecretLength) {
@@ -157,6 +364,16 @@ public class OathHelper {
         return coreWrapper.getIdentity(getUsername(context), getRealm(context));
     }
 
+    /**
+     * Builds a key identifying the user of the tree, e.g. for throttling or caching.
+     *
+     * @param context the tree context containing realm and username in its shared state
+     * @return the realm and username of the tree, separated by a colon
+     */
+    public static String getUserKey(TreeContext context) {
+        return context.sharedState.get(REALM).asString() + ":" + context.sharedState.get(USERNAME).asString();
+    }
+
     private String getUsername(TreeContext context) {
         return context.sharedState.get(USERNAME).asString();
     }
@@ -0,0 +1,50 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath;
+
+import com.sun.identity.idm.AMIdentity;
+import org.forgerock.openam.auth.node.api.TreeContext;
+
+import javax.inject.Singleton;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caches the identities looked up for building registration URIs, so that a user passing through registration
+ * again shortly after, e.g. after reloading the page, does not cause another directory search.
+ */
+@Singleton
+public class OathIdentityCache {
+    private static final int MAX_ENTRIES = 10_000;
+
+    private final ExpiringCache<String, AMIdentity> identities = new ExpiringCache<>(MAX_ENTRIES);
+
+    /**
+     * Returns the identity of the user of the tree.
+     *
+     * @param context    the tree context containing realm and username in its shared state
+     * @param helper     the helper used to look the identity up on a miss
+     * @param ttlSeconds how long a looked up identity is kept; 0 to always look it up
+     * @return the identity
+     */
+    public AMIdentity getIdentity(TreeContext context, OathHelper helper, int ttlSeconds) {
+        return identities.get(OathHelper.getUserKey(context), TimeUnit.SECONDS.toMillis(ttlSeconds),
+                () -> helper.getIdentity(context));
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Singleton;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs store reads and writes and shared state decryption of the OATH nodes off the request thread, so that
+ * independent steps of one request can overlap.
+ * Tasks run on virtual threads when the JVM supports them and on a pool of daemon threads otherwise. At most
+ * {@code 2 * availableProcessors} tasks (at least 8) run at once; a task submitted beyond that runs on the calling
+ * thread, so a saturated executor degrades to sequential processing instead of queueing.
+ */
+@Singleton
+public class OathIoExecutor {
+    private static final Logger logger = LoggerFactory.getLogger(OathIoExecutor.class);
+
+    private final ExecutorService executor;
+    private final Semaphore permits;
+
+    public OathIoExecutor() {
+        this(Math.max(8, 2 * Runtime.getRuntime().availableProcessors()));
+    }
+
+    OathIoExecutor(int maxConcurrency) {
+        this.permits = new Semaphore(maxConcurrency);
+        this.executor = createExecutor(maxConcurrency);
+    }
+
+    /**
+     * Starts a task.
+     *
+     * @param task the task
+     * @param <T>  the type of the result
+     * @return the future result; completed exceptionally with the exception thrown by the task
+     */
+    public <T> CompletableFuture<T> submit(Callable<T> task) {
+        if (!permits.tryAcquire()) {
+            return run(task);
+        }
+        CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
+                try {
+                    future.complete(task.call());
+                } catch (Throwable e) {
+                    future.completeExceptionally(e);
+                } finally {
+                    permits.release();
+                }
+            });
+        } catch (RuntimeException e) {
+            permits.release();
+            return run(task);
+        }
+        return future;
+    }
+
+    /**
+     * Starts a task only if it can run off the calling thread, for work that is not worth doing otherwise.
+     * Exceptions thrown by the task are logged.
+     *
+     * @param task the task
+     * @return whether the task was started
+     */
+    public boolean tryExecute(Runnable task) {
+        if (!permits.tryAcquire()) {
+            return false;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    logger.debug("Background OATH task failed", e);
+                } finally {
+                    permits.release();
+                }
+            });
+            return true;
+        } catch (RuntimeException e) {
+            permits.release();
+            return false;
+        }
+    }
+
+    private static <T> CompletableFuture<T> run(Callable<T> task) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            future.complete(task.call());
+        } catch (Throwable e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    private static ExecutorService createExecutor(int maxConcurrency) {
+        try {
+            ExecutorService virtual = (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            logger.debug("Using virtual threads for OATH I/O");
+            return virtual;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            logger.debug("Virtual threads not available, using a pool of {} threads for OATH I/O", maxConcurrency);
+        }
+        AtomicInteger threadNumber = new AtomicInteger();
+        ThreadFactory threadFactory = runnable -> {
+            Thread thread = new Thread(runnable, "oath-io-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        return Executors.newFixedThreadPool(maxConcurrency, threadFactory);
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Registers the MBeans through which the OATH nodes expose their runtime metrics.
+ */
+public final class OathMBeans {
+    private static final Logger logger = LoggerFactory.getLogger(OathMBeans.class);
+    private static final String DOMAIN = "com.forgerock.backstage.ssoextensions.auth.oath";
+
+    private OathMBeans() {
+    }
+
+    /**
+     * Registers an MBean under the given type on the platform MBean server, replacing any MBean previously
+     * registered under that type. Failures are logged and otherwise ignored, as metrics must never stop a node
+     * from working.
+     *
+     * @param type  the value of the type key of the object name
+     * @param mbean the MBean to register
+     */
+    public static void register(String type, Object mbean) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(DOMAIN + ":type=" + type);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(mbean, name);
+        } catch (JMException | RuntimeException e) {
+            logger.warn("Could not register MBean " + type, e);
+        }
+    }
+}
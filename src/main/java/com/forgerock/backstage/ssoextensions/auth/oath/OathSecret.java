@@ -0,0 +1,180 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath;
+
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * The shared secret of an OATH device, held as raw bytes. Device profiles store the secret hex encoded; it is
+ * decoded once into an instance of this class, which then provides the HMAC key and the base32 form used by
+ * authenticator apps without any further text conversion.
+ */
+public final class OathSecret {
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final char[] BASE32 = "ABCDEFGHIJKLMNOPQRSTUVWXYZ234567".toCharArray();
+
+    private final byte[] bytes;
+
+    private OathSecret(byte[] bytes) {
+        this.bytes = bytes;
+    }
+
+    /**
+     * @param bytes the raw secret, copied
+     * @return the secret
+     */
+    public static OathSecret fromBytes(byte[] bytes) {
+        return new OathSecret(bytes.clone());
+    }
+
+    /**
+     * Decodes a hex encoded secret the way the OATH nodes always have: white space is ignored, case does not matter
+     * and a secret of odd length is read as if it had a leading zero.
+     *
+     * @param hex the hex encoded secret
+     * @return the secret
+     * @throws IllegalArgumentException if the text contains anything but hex digits and white space
+     */
+    public static OathSecret fromHex(CharSequence hex) {
+        int digits = 0;
+        for (int i = 0; i < hex.length(); i++) {
+            char c = hex.charAt(i);
+            if (Character.digit(c, 16) >= 0) {
+                digits++;
+            } else if (!Character.isWhitespace(c)) {
+                throw new IllegalArgumentException("Secret is not hex encoded");
+            }
+        }
+        byte[] bytes = new byte[(digits + 1) / 2];
+        // With an odd number of digits the first byte only gets a low nibble
+        int position = (digits % 2 == 0) ? 0 : 1;
+        for (int i = 0; i < hex.length(); i++) {
+            int value = Character.digit(hex.charAt(i), 16);
+            if (value < 0) {
+                continue;
+            }
+            bytes[position / 2] |= (position % 2 == 0) ? value << 4 : value;
+            position++;
+        }
+        return new OathSecret(bytes);
+    }
+
+    /**
+     * Decodes a base32 (RFC 4648) encoded secret. Padding, white space and case are ignored.
+     *
+     * @param base32 the base32 encoded secret
+     * @return the secret
+     * @throws IllegalArgumentException if the text is not valid base32
+     */
+    public static OathSecret fromBase32(CharSequence base32) {
+        byte[] bytes = new byte[base32.length() * 5 / 8];
+        int length = 0;
+        int buffer = 0;
+        int bits = 0;
+        for (int i = 0; i < base32.length(); i++) {
+            char c = base32.charAt(i);
+            int value;
+            if (c >= 'A' && c <= 'Z') {
+                value = c - 'A';
+            } else if (c >= 'a' && c <= 'z') {
+                value = c - 'a';
+            } else if (c >= '2' && c <= '7') {
+                value = c - '2' + 26;
+            } else if (c == '=' || Character.isWhitespace(c)) {
+                continue;
+            } else {
+                throw new IllegalArgumentException("Secret is not base32 encoded");
+            }
+            buffer = (buffer << 5) | value;
+            bits += 5;
+            if (bits >= 8) {
+                bits -= 8;
+                bytes[length++] = (byte) (buffer >> bits);
+            }
+        }
+        return new OathSecret(length == bytes.length ? bytes : Arrays.copyOf(bytes, length));
+    }
+
+    /**
+     * @return a copy of the raw secret
+     */
+    public byte[] getBytes() {
+        return bytes.clone();
+    }
+
+    /**
+     * @return the length of the secret in bytes
+     */
+    public int length() {
+        return bytes.length;
+    }
+
+    /**
+     * @return the secret as lower case hex, the form stored on device profiles
+     */
+    public String toHex() {
+        char[] result = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            result[2 * i] = HEX[(bytes[i] >> 4) & 0xf];
+            result[2 * i + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(result);
+    }
+
+    /**
+     * @return the secret as base32 padded to a multiple of eight characters, as AM's registration URIs carry it
+     */
+    public String toBase32() {
+        char[] result = new char[(bytes.length + 4) / 5 * 8];
+        int length = 0;
+        int buffer = 0;
+        int bits = 0;
+        for (byte b : bytes) {
+            buffer = (buffer << 8) | (b & 0xff);
+            bits += 8;
+            while (bits >= 5) {
+                bits -= 5;
+                result[length++] = BASE32[(buffer >> bits) & 0x1f];
+            }
+        }
+        if (bits > 0) {
+            result[length++] = BASE32[(buffer << (5 - bits)) & 0x1f];
+        }
+        Arrays.fill(result, length, result.length, '=');
+        return new String(result);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof OathSecret && MessageDigest.isEqual(bytes, ((OathSecret) o).bytes);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(bytes);
+    }
+
+    @Override
+    public String toString() {
+        // Never expose the secret in logs
+        return "OathSecret[" + bytes.length + " bytes]";
+    }
+}
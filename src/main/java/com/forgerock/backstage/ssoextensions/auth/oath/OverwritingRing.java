@@ -0,0 +1,80 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded ring holding the most recently added elements. Adding never blocks nor takes a lock: once the ring is
+ * full, every element overwrites the oldest one.
+ *
+ * @param <T> the type of the elements
+ */
+public final class OverwritingRing<T> {
+    private final AtomicReferenceArray<T> elements;
+    private final int mask;
+    private final AtomicLong added = new AtomicLong();
+
+    /**
+     * @param capacity the number of elements held, rounded up to a power of two
+     */
+    public OverwritingRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.elements = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+    }
+
+    /**
+     * Adds an element, overwriting the oldest one if the ring is full.
+     *
+     * @param element the element
+     */
+    public void add(T element) {
+        elements.set((int) added.getAndIncrement() & mask, element);
+    }
+
+    /**
+     * Reads the elements currently held. Elements added while reading may or may not be included.
+     *
+     * @return the elements, oldest first
+     */
+    public List<T> snapshot() {
+        long end = added.get();
+        long start = Math.max(0, end - elements.length());
+        List<T> snapshot = new ArrayList<>((int) (end - start));
+        for (long position = start; position < end; position++) {
+            T element = elements.get((int) position & mask);
+            if (element != null) {
+                snapshot.add(element);
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * @return the number of elements overwritten by newer ones
+     */
+    public long getOverwritten() {
+        return Math.max(0, added.get() - elements.length());
+    }
+}
@@ -0,0 +1,34 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath;
+
+import org.forgerock.openam.core.rest.devices.DevicePersistenceException;
+
+/**
+ * Thrown by {@link ResilientOathDeviceProfileStore} when a call was not made or not completed in time because the
+ * store is degraded: its deadline passed, the circuit breaker of the realm is open, or the realm has too many calls
+ * in progress.
+ */
+public class ProfileStoreUnavailableException extends DevicePersistenceException {
+
+    public ProfileStoreUnavailableException(String message) {
+        super(message);
+    }
+}
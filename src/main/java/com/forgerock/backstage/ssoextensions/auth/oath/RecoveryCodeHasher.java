@@ -0,0 +1,127 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Stores recovery codes of a device profile as salted SHA-256 hashes.
+ * All codes of one profile share a salt, so a candidate code is hashed once and looked up in a hash index
+ * instead of being compared against every stored code.
+ * Stored entries have the form {@code sha256:<base64 salt>:<base64 digest>}; entries without that prefix are
+ * treated as legacy plain text codes.
+ */
+public final class RecoveryCodeHasher {
+    static final String PREFIX = "sha256:";
+    private static final int SALT_LENGTH = 16;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private RecoveryCodeHasher() {
+    }
+
+    /**
+     * Hashes the given plain text recovery codes with a freshly generated salt.
+     *
+     * @param codes the plain text codes
+     * @return the hashed codes, in the same order
+     */
+    public static List<String> hash(List<String> codes) {
+        if (codes == null || codes.isEmpty()) {
+            return Collections.emptyList();
+        }
+        byte[] salt = new byte[SALT_LENGTH];
+        RANDOM.nextBytes(salt);
+        String encodedSalt = Base64.getEncoder().encodeToString(salt);
+
+        List<String> hashed = new ArrayList<>(codes.size());
+        for (String code : codes) {
+            hashed.add(PREFIX + encodedSalt + ":" + digest(salt, code));
+        }
+        return hashed;
+    }
+
+    /**
+     * Finds the position of a recovery code in the stored list.
+     *
+     * @param storedCodes the codes as stored on the device profile, hashed or plain text
+     * @param candidate   the code entered by the user
+     * @return the index of the matching stored code, or -1 if none matches
+     */
+    public static int indexOf(List<String> storedCodes, String candidate) {
+        if (storedCodes == null || storedCodes.isEmpty() || candidate == null || candidate.isEmpty()) {
+            return -1;
+        }
+
+        Map<String, Integer> index = new HashMap<>(storedCodes.size() * 2);
+        Map<String, String> digests = new HashMap<>(2);
+        int legacyMatch = -1;
+        for (int i = 0; i < storedCodes.size(); i++) {
+            String stored = storedCodes.get(i);
+            if (stored == null) {
+                continue;
+            }
+            if (!stored.startsWith(PREFIX)) {
+                if (MessageDigest.isEqual(stored.getBytes(StandardCharsets.UTF_8),
+                        candidate.getBytes(StandardCharsets.UTF_8))) {
+                    legacyMatch = i;
+                }
+                continue;
+            }
+            int separator = stored.indexOf(':', PREFIX.length());
+            if (separator < 0) {
+                continue;
+            }
+            String salt = stored.substring(PREFIX.length(), separator);
+            // Profiles created by hash() use a single salt, so this is computed once per call
+            digests.computeIfAbsent(salt, s -> digest(Base64.getDecoder().decode(s), candidate));
+            index.put(salt + ":" + stored.substring(separator + 1), i);
+        }
+        if (legacyMatch >= 0) {
+            return legacyMatch;
+        }
+
+        for (Map.Entry<String, String> digest : digests.entrySet()) {
+            Integer match = index.get(digest.getKey() + ":" + digest.getValue());
+            if (match != null) {
+                return match;
+            }
+        }
+        return -1;
+    }
+
+    private static String digest(byte[] salt, String code) {
+        try {
+            MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+            sha256.update(salt);
+            return Base64.getEncoder().encodeToString(sha256.digest(code.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
@@ -0,0 +1,356 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath;
+
+import org.forgerock.json.JsonValue;
+import org.forgerock.openam.core.rest.devices.DeviceJsonUtils;
+import org.forgerock.openam.core.rest.devices.DevicePersistenceException;
+import org.forgerock.openam.core.rest.devices.oath.OathDeviceSettings;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link OathDeviceProfileStore} bounding the time a node waits for the store. Each realm has its own bulkhead, a
+ * small thread pool making the calls to the delegate, and its own {@link CircuitBreaker}, so a degraded store in one
+ * realm cannot exhaust the request threads serving the trees of other realms. A call that is rejected by a full
+ * bulkhead or an open breaker, or that does not complete within the deadline, fails with
+ * {@link ProfileStoreUnavailableException}.
+ * <p>
+ * With {@link DegradedPolicy#SERVE_CACHED} a failed read is answered from the latest queued save of the user, or else
+ * from the profiles last read or saved within the cache time to live. A failed save is queued and retried in the
+ * background until the store accepts it. A profile read from the store is always returned as read. Before a queued
+ * save is retried, the profiles are read again, and the save is dropped if its device is no longer stored. A save
+ * that timed out may still complete later, so the queued save is written again.
+ */
+public class ResilientOathDeviceProfileStore implements OathDeviceProfileStore, Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(ResilientOathDeviceProfileStore.class);
+    private static final int BULKHEAD_QUEUE_SIZE = 16;
+    private static final int MAX_CACHED_USERS = 100000;
+
+    /**
+     * What to do when the store is unavailable.
+     */
+    public enum DegradedPolicy {
+        /**
+         * Fail the read or save.
+         */
+        FAIL_FAST,
+        /**
+         * Serve reads from recently cached profiles and queue saves.
+         */
+        SERVE_CACHED
+    }
+
+    private final OathDeviceProfileStore delegate;
+    private final DeviceJsonUtils<OathDeviceSettings> jsonUtils;
+    private final long deadlineMillis;
+    private final int maxConcurrentCalls;
+    private final int failureThreshold;
+    private final long openMillis;
+    private final DegradedPolicy policy;
+    private final long cacheTtlMillis;
+    private final Map<String, Realm> realms = new ConcurrentHashMap<>();
+    private final ExpiringCache<String, List<JsonValue>> cachedProfiles = new ExpiringCache<>(MAX_CACHED_USERS);
+    private final Map<String, PendingSave> pendingSaves = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService retrier;
+
+    /**
+     * @param delegate                   the store to call
+     * @param jsonUtils                  copies cached and queued profiles
+     * @param deadlineMillis             how long a caller waits for a call to complete
+     * @param maxConcurrentCallsPerRealm the number of calls to the delegate in progress at once per realm
+     * @param failureThreshold           the number of consecutive failures in a realm that open its breaker
+     * @param openMillis                 how long an open breaker rejects calls before letting a trial call through;
+     *                                   also the interval at which queued saves are retried
+     * @param policy                     what to do when the store is unavailable
+     * @param cacheTtlMillis             how long read and saved profiles may be served while the store is unavailable
+     */
+    public ResilientOathDeviceProfileStore(OathDeviceProfileStore delegate,
+            DeviceJsonUtils<OathDeviceSettings> jsonUtils, long deadlineMillis, int maxConcurrentCallsPerRealm,
+            int failureThreshold, long openMillis, DegradedPolicy policy, long cacheTtlMillis) {
+        this.delegate = delegate;
+        this.jsonUtils = jsonUtils;
+        this.deadlineMillis = deadlineMillis;
+        this.maxConcurrentCalls = maxConcurrentCallsPerRealm;
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+        this.policy = policy;
+        this.cacheTtlMillis = cacheTtlMillis;
+        if (policy == DegradedPolicy.SERVE_CACHED) {
+            this.retrier = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "oath-store-save-retrier");
+                thread.setDaemon(true);
+                return thread;
+            });
+            retrier.scheduleWithFixedDelay(this::retryPendingSaves, openMillis, openMillis, TimeUnit.MILLISECONDS);
+        } else {
+            this.retrier = null;
+        }
+    }
+
+    @Override
+    public List<OathDeviceSettings> getDeviceProfiles(String username, String realm) throws DevicePersistenceException {
+        String key = key(username, realm);
+        List<OathDeviceSettings> profiles;
+        try {
+            profiles = call(realm, () -> delegate.getDeviceProfiles(username, realm));
+        } catch (DevicePersistenceException e) {
+            if (policy == DegradedPolicy.SERVE_CACHED) {
+                PendingSave pending = pendingSaves.get(key);
+                if (pending != null) {
+                    logger.warn("Cannot read device profiles of " + username + ", serving queued profile", e);
+                    return copy(pending.profiles);
+                }
+                List<JsonValue> cached = cachedProfiles.getIfPresent(key);
+                if (cached != null) {
+                    logger.warn("Cannot read device profiles of " + username + ", serving cached profiles", e);
+                    return copy(cached);
+                }
+            }
+            throw e;
+        }
+        if (policy == DegradedPolicy.SERVE_CACHED) {
+            List<JsonValue> snapshot = snapshot(profiles);
+            if (snapshot != null) {
+                cachedProfiles.put(key, snapshot, cacheTtlMillis);
+            }
+        }
+        return profiles;
+    }
+
+    @Override
+    public void saveDeviceProfile(String username, String realm, OathDeviceSettings settings)
+            throws DevicePersistenceException {
+        if (policy == DegradedPolicy.FAIL_FAST) {
+            call(realm, () -> {
+                delegate.saveDeviceProfile(username, realm, settings);
+                return null;
+            });
+            return;
+        }
+
+        String key = key(username, realm);
+        List<JsonValue> snapshot = snapshot(Collections.singletonList(settings));
+        if (snapshot == null) {
+            throw new DevicePersistenceException("Cannot copy device profile of " + username);
+        }
+        PendingSave save = new PendingSave(username, realm, snapshot);
+        cachedProfiles.put(key, snapshot, cacheTtlMillis);
+        try {
+            call(realm, () -> {
+                delegate.saveDeviceProfile(username, realm, settings);
+                return null;
+            });
+            // A successful save supersedes any older queued save of the user
+            pendingSaves.remove(key);
+        } catch (DevicePersistenceException e) {
+            logger.warn("Cannot save device profile of " + username + ", queuing the save", e);
+            pendingSaves.put(key, save);
+        }
+    }
+
+    /**
+     * Writes the queued saves to the delegate. A save is dropped if its device is no longer stored, e.g. because it
+     * was removed or registered again in the meantime, if the stored profile is ahead of it in counter or last login,
+     * as another server verified a later code, or if the stored profile equals it already. Saves that fail stay
+     * queued.
+     */
+    void retryPendingSaves() {
+        for (Map.Entry<String, PendingSave> entry : pendingSaves.entrySet()) {
+            PendingSave save = entry.getValue();
+            try {
+                OathDeviceSettings settings = copy(save.profiles).get(0);
+                List<OathDeviceSettings> stored = call(save.realm,
+                        () -> delegate.getDeviceProfiles(save.username, save.realm));
+                OathDeviceSettings current = stored.stream()
+                        .filter(profile -> Objects.equals(profile.getUUID(), settings.getUUID()))
+                        .findFirst().orElse(null);
+                if (current == null || isSupersededBy(settings, current)) {
+                    logger.debug("Device profile of " + save.username + " changed since the save was queued, "
+                            + "dropping it");
+                    pendingSaves.remove(entry.getKey(), save);
+                    continue;
+                }
+                call(save.realm, () -> {
+                    delegate.saveDeviceProfile(save.username, save.realm, settings);
+                    return null;
+                });
+                pendingSaves.remove(entry.getKey(), save);
+            } catch (DevicePersistenceException | RuntimeException e) {
+                logger.debug("Cannot save queued device profile of " + save.username + ", retrying later", e);
+            }
+        }
+    }
+
+    /**
+     * @return the number of saves waiting to be written to the delegate
+     */
+    public int getPendingCount() {
+        return pendingSaves.size();
+    }
+
+    /**
+     * Stops the bulkheads and the retrying of queued saves; saves still queued are lost.
+     */
+    @Override
+    public void close() {
+        if (retrier != null) {
+            retrier.shutdownNow();
+        }
+        for (Realm realm : realms.values()) {
+            realm.bulkhead.shutdownNow();
+        }
+        if (!pendingSaves.isEmpty()) {
+            logger.warn(pendingSaves.size() + " queued device profile saves were not written");
+        }
+    }
+
+    CircuitBreaker.State getBreakerState(String realm) {
+        return realm(realm).breaker.getState();
+    }
+
+    private <T> T call(String realmName, Callable<T> call) throws DevicePersistenceException {
+        Realm realm = realm(realmName);
+        if (!realm.breaker.tryAcquire()) {
+            throw new ProfileStoreUnavailableException("Device profile store of realm " + realmName
+                    + " is unavailable");
+        }
+        Future<T> future;
+        try {
+            future = realm.bulkhead.submit(call);
+        } catch (RejectedExecutionException e) {
+            realm.breaker.onNotCalled();
+            throw new ProfileStoreUnavailableException("Too many device profile store calls in progress in realm "
+                    + realmName);
+        }
+        try {
+            T result = future.get(deadlineMillis, TimeUnit.MILLISECONDS);
+            realm.breaker.onSuccess();
+            return result;
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            realm.breaker.onFailure();
+            throw new ProfileStoreUnavailableException("Device profile store of realm " + realmName
+                    + " did not respond within " + deadlineMillis + " ms");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.cancel(true);
+            realm.breaker.onNotCalled();
+            throw new ProfileStoreUnavailableException("Interrupted while waiting for the device profile store");
+        } catch (ExecutionException e) {
+            realm.breaker.onFailure();
+            if (e.getCause() instanceof DevicePersistenceException) {
+                throw (DevicePersistenceException) e.getCause();
+            }
+            throw new DevicePersistenceException(e.getCause());
+        }
+    }
+
+    /**
+     * @return whether a queued save must not be written over the stored profile, so a counter or last login never
+     * moves backwards
+     */
+    private static boolean isSupersededBy(OathDeviceSettings queued, OathDeviceSettings stored) {
+        return stored.getCounter() > queued.getCounter() || stored.getLastLogin() > queued.getLastLogin()
+                || OathHelper.getProfileVersion(stored).equals(OathHelper.getProfileVersion(queued));
+    }
+
+    private Realm realm(String realm) {
+        return realms.computeIfAbsent(realm, Realm::new);
+    }
+
+    private List<JsonValue> snapshot(List<OathDeviceSettings> profiles) {
+        try {
+            List<JsonValue> snapshot = new ArrayList<>(profiles.size());
+            for (OathDeviceSettings profile : profiles) {
+                snapshot.add(jsonUtils.toJsonValue(profile));
+            }
+            return snapshot;
+        } catch (IOException e) {
+            logger.warn("Cannot copy device profiles", e);
+            return null;
+        }
+    }
+
+    private List<OathDeviceSettings> copy(List<JsonValue> snapshot) throws DevicePersistenceException {
+        try {
+            List<OathDeviceSettings> profiles = new ArrayList<>(snapshot.size());
+            for (JsonValue profile : snapshot) {
+                profiles.add(jsonUtils.toDeviceSettingValue(profile));
+            }
+            return profiles;
+        } catch (IOException e) {
+            throw new DevicePersistenceException("Cannot copy device profiles", e);
+        }
+    }
+
+    private static String key(String username, String realm) {
+        return realm + ":" + username;
+    }
+
+    private final class Realm {
+        private final ThreadPoolExecutor bulkhead;
+        private final CircuitBreaker breaker;
+
+        private Realm(String name) {
+            AtomicInteger threads = new AtomicInteger();
+            this.bulkhead = new ThreadPoolExecutor(maxConcurrentCalls, maxConcurrentCalls, 60, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<>(BULKHEAD_QUEUE_SIZE), runnable -> {
+                        Thread thread = new Thread(runnable, "oath-store-" + name + "-" + threads.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+            bulkhead.allowCoreThreadTimeOut(true);
+            this.breaker = new CircuitBreaker(failureThreshold, openMillis, System::currentTimeMillis);
+        }
+    }
+
+    private static final class PendingSave {
+        private final String username;
+        private final String realm;
+        private final List<JsonValue> profiles;
+
+        private PendingSave(String username, String realm, List<JsonValue> profiles) {
+            this.username = username;
+            this.realm = realm;
+            this.profiles = profiles;
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath;
+
+import org.forgerock.json.jose.jwe.EncryptionMethod;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.MessageDigest;
+
+/**
+ * Content encryption used for the JWEs the OATH nodes put into shared state. All of them use AM's stateless token
+ * encryption key with direct encryption. The GCM modes derive a key of their size from it, separate per mode, so
+ * the same key material is never used with two algorithms. The derived key is kept until the stateless token key
+ * changes.
+ */
+public enum SharedStateEncryption {
+    A128CBC_HS256(EncryptionMethod.A128CBC_HS256, 0),
+    A128GCM(EncryptionMethod.A128GCM, 16),
+    A256GCM(EncryptionMethod.A256GCM, 32);
+
+    private final EncryptionMethod method;
+    private final int derivedKeyLength;
+    private volatile DerivedKey derivedKey;
+
+    SharedStateEncryption(EncryptionMethod method, int derivedKeyLength) {
+        this.method = method;
+        this.derivedKeyLength = derivedKeyLength;
+    }
+
+    /**
+     * @return the JWE encryption method
+     */
+    public EncryptionMethod getMethod() {
+        return method;
+    }
+
+    /**
+     * Finds the encryption of a JWE from the method in its header.
+     *
+     * @param method the encryption method of the JWE
+     * @return the matching encryption, {@link #A128CBC_HS256} if the method is unknown
+     */
+    public static SharedStateEncryption forMethod(EncryptionMethod method) {
+        for (SharedStateEncryption encryption : values()) {
+            if (encryption.method == method) {
+                return encryption;
+            }
+        }
+        return A128CBC_HS256;
+    }
+
+    /**
+     * @param key the stateless token encryption key
+     * @return the content encryption key to use with this encryption
+     */
+    Key getKey(Key key) {
+        if (derivedKeyLength == 0) {
+            return key;
+        }
+        DerivedKey cached = derivedKey;
+        if (cached != null && cached.isDerivedFrom(key)) {
+            return cached.key;
+        }
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key.getEncoded(), "HmacSHA256"));
+            byte[] derived = mac.doFinal(("OATH shared state " + name()).getBytes(StandardCharsets.UTF_8));
+            cached = new DerivedKey(key, new SecretKeySpec(derived, 0, derivedKeyLength, "AES"));
+            derivedKey = cached;
+            return cached.key;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Unable to derive shared state encryption key", e);
+        }
+    }
+
+    /**
+     * A derived key together with the key it was derived from.
+     */
+    private static final class DerivedKey {
+        private final Key source;
+        private final byte[] sourceEncoded;
+        private final Key key;
+
+        DerivedKey(Key source, Key key) {
+            this.source = source;
+            this.sourceEncoded = source.getEncoded();
+            this.key = key;
+        }
+
+        boolean isDerivedFrom(Key key) {
+            return key == source || MessageDigest.isEqual(sourceEncoded, key.getEncoded());
+        }
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath;
+
+import org.forgerock.openam.core.rest.devices.DevicePersistenceException;
+import org.forgerock.openam.core.rest.devices.oath.OathDeviceSettings;
+import org.forgerock.openam.core.rest.devices.oath.UserOathDeviceProfileManager;
+
+import javax.inject.Inject;
+import java.util.List;
+
+/**
+ * {@link OathDeviceProfileStore} writing to the user's identity through AM's {@link UserOathDeviceProfileManager}.
+ */
+public class UserOathDeviceProfileStore implements OathDeviceProfileStore {
+    private final UserOathDeviceProfileManager userOathDeviceProfileManager;
+
+    @Inject
+    public UserOathDeviceProfileStore(UserOathDeviceProfileManager userOathDeviceProfileManager) {
+        this.userOathDeviceProfileManager = userOathDeviceProfileManager;
+    }
+
+    @Override
+    public List<OathDeviceSettings> getDeviceProfiles(String username, String realm) throws DevicePersistenceException {
+        return userOathDeviceProfileManager.getDeviceProfiles(username, realm);
+    }
+
+    @Override
+    public void saveDeviceProfile(String username, String realm, OathDeviceSettings settings)
+            throws DevicePersistenceException {
+        userOathDeviceProfileManager.saveDeviceProfile(username, realm, settings);
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.audit;
+
+import org.forgerock.json.JsonValue;
+
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+
+/**
+ * An audit record of one OATH verification or registration attempt.
+ */
+public final class OathAuditEvent {
+
+    /**
+     * What was attempted.
+     */
+    public enum Type {
+        VERIFICATION, RECOVERY_CODE, REGISTRATION
+    }
+
+    private final long timestamp;
+    private final Type type;
+    private final String realm;
+    private final String user;
+    private final String outcome;
+    private final String failureReason;
+    private final Integer windowOffset;
+    private final Integer clockDriftSeconds;
+
+    /**
+     * @param timestamp         when the attempt was made, in milliseconds since the epoch
+     * @param type              what was attempted
+     * @param realm             the realm of the user
+     * @param user              the name of the user
+     * @param outcome           the outcome the node took
+     * @param failureReason     why the attempt failed, or null
+     * @param windowOffset      the offset of the matching code in the verification window, or null
+     * @param clockDriftSeconds the clock drift of the device after the attempt, or null
+     */
+    public OathAuditEvent(long timestamp, Type type, String realm, String user, String outcome, String failureReason,
+                          Integer windowOffset, Integer clockDriftSeconds) {
+        this.timestamp = timestamp;
+        this.type = type;
+        this.realm = realm;
+        this.user = user;
+        this.outcome = outcome;
+        this.failureReason = failureReason;
+        this.windowOffset = windowOffset;
+        this.clockDriftSeconds = clockDriftSeconds;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public String getRealm() {
+        return realm;
+    }
+
+    public String getUser() {
+        return user;
+    }
+
+    public String getOutcome() {
+        return outcome;
+    }
+
+    public String getFailureReason() {
+        return failureReason;
+    }
+
+    public Integer getWindowOffset() {
+        return windowOffset;
+    }
+
+    public Integer getClockDriftSeconds() {
+        return clockDriftSeconds;
+    }
+
+    /**
+     * @return the event as JSON; fields without a value are left out
+     */
+    public JsonValue toJsonValue() {
+        JsonValue json = json(object(
+                field("timestamp", timestamp),
+                field("type", type.name()),
+                field("realm", realm),
+                field("user", user),
+                field("outcome", outcome)));
+        if (failureReason != null) {
+            json.put("failureReason", failureReason);
+        }
+        if (windowOffset != null) {
+            json.put("windowOffset", windowOffset);
+        }
+        if (clockDriftSeconds != null) {
+            json.put("clockDriftSeconds", clockDriftSeconds);
+        }
+        return json;
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.audit;
+
+/**
+ * Metrics of the {@link OathAuditPipeline}.
+ */
+public interface OathAuditMXBean {
+
+    /**
+     * @return the number of events accepted into the buffer
+     */
+    long getPublishedEvents();
+
+    /**
+     * @return the number of events dropped because the buffer was full
+     */
+    long getDroppedEvents();
+
+    /**
+     * @return the number of events written to the sink
+     */
+    long getWrittenEvents();
+
+    /**
+     * @return the number of events lost because the sink failed to write them
+     */
+    long getFailedEvents();
+
+    /**
+     * @return the number of events in the buffer waiting to be written
+     */
+    long getPendingEvents();
+}
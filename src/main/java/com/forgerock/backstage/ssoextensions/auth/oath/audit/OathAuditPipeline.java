@@ -0,0 +1,262 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.audit;
+
+import com.google.inject.ProvidedBy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Takes audit events from the OATH nodes without blocking them on I/O. Events are published into a bounded ring
+ * buffer without locks, and a background thread writes them to an {@link OathAuditSink} in batches.
+ * <p>
+ * When the buffer is full, {@link OverflowPolicy#DROP} drops the event at once, while {@link OverflowPolicy#BLOCK}
+ * makes the publishing node wait for space for up to {@value #BLOCK_TIMEOUT_MILLIS} ms before dropping it.
+ * Dropped events and events the sink failed to write are counted, see {@link OathAuditMXBean}. A
+ * {@link #disabled() disabled} pipeline, the default unless {@link OathAuditPipelineProvider} is configured, accepts
+ * no events.
+ */
+@ProvidedBy(OathAuditPipelineProvider.class)
+public class OathAuditPipeline implements OathAuditMXBean, Closeable {
+    static final long BLOCK_TIMEOUT_MILLIS = 100;
+    private static final long BLOCK_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+    private static final long POLL_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final Logger logger = LoggerFactory.getLogger(OathAuditPipeline.class);
+
+    /**
+     * What to do with an event when the buffer is full.
+     */
+    public enum OverflowPolicy {
+        DROP, BLOCK
+    }
+
+    private final OathAuditSink sink;
+    private final int batchSize;
+    private final OverflowPolicy policy;
+    private final int mask;
+    private final AtomicReferenceArray<OathAuditEvent> slots;
+    // The position a slot is ready to be published at, or that position + 1 once it holds an event
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long head;
+    private final LongAdder published = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder written = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final Thread batcher;
+    private volatile boolean closed;
+
+    private OathAuditPipeline() {
+        this.sink = null;
+        this.batchSize = 0;
+        this.policy = OverflowPolicy.DROP;
+        this.mask = 0;
+        this.slots = null;
+        this.sequences = null;
+        this.batcher = null;
+    }
+
+    /**
+     * @param sink      where events are written to
+     * @param capacity  the number of events the buffer holds, rounded up to a power of two
+     * @param batchSize the maximum number of events written to the sink at once
+     * @param policy    what to do with an event when the buffer is full
+     */
+    public OathAuditPipeline(OathAuditSink sink, int capacity, int batchSize, OverflowPolicy policy) {
+        this.sink = sink;
+        this.batchSize = Math.max(1, batchSize);
+        this.policy = policy;
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.mask = size - 1;
+        this.slots = new AtomicReferenceArray<>(size);
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        this.batcher = new Thread(this::run, "oath-audit-batcher");
+        batcher.setDaemon(true);
+        batcher.start();
+    }
+
+    /**
+     * @return a pipeline accepting no events
+     */
+    public static OathAuditPipeline disabled() {
+        return new OathAuditPipeline();
+    }
+
+    /**
+     * @return whether events are accepted; callers may skip building events otherwise
+     */
+    public boolean isEnabled() {
+        return sink != null;
+    }
+
+    /**
+     * Publishes an event without waiting for it to be written.
+     *
+     * @param event the event
+     * @return whether the event was accepted, as opposed to dropped or the pipeline being disabled
+     */
+    public boolean publish(OathAuditEvent event) {
+        if (sink == null) {
+            return false;
+        }
+        if (offer(event)) {
+            published.increment();
+            return true;
+        }
+        if (policy == OverflowPolicy.BLOCK) {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(BLOCK_TIMEOUT_MILLIS);
+            while (!closed && System.nanoTime() - deadline < 0) {
+                LockSupport.parkNanos(BLOCK_PARK_NANOS);
+                if (offer(event)) {
+                    published.increment();
+                    return true;
+                }
+            }
+        }
+        dropped.increment();
+        return false;
+    }
+
+    @Override
+    public long getPublishedEvents() {
+        return published.sum();
+    }
+
+    @Override
+    public long getDroppedEvents() {
+        return dropped.sum();
+    }
+
+    @Override
+    public long getWrittenEvents() {
+        return written.sum();
+    }
+
+    @Override
+    public long getFailedEvents() {
+        return failed.sum();
+    }
+
+    @Override
+    public long getPendingEvents() {
+        return sink == null ? 0 : Math.max(0, tail.get() - head);
+    }
+
+    /**
+     * Writes the events still in the buffer and closes the sink. Events published afterwards are dropped.
+     */
+    @Override
+    public void close() throws IOException {
+        if (sink == null || closed) {
+            return;
+        }
+        closed = true;
+        LockSupport.unpark(batcher);
+        try {
+            batcher.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        sink.close();
+    }
+
+    private boolean offer(OathAuditEvent event) {
+        if (closed) {
+            return false;
+        }
+        long position = tail.get();
+        while (true) {
+            int index = (int) position & mask;
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    slots.lazySet(index, event);
+                    sequences.lazySet(index, position + 1);
+                    return true;
+                }
+                position = tail.get();
+            } else if (difference < 0) {
+                // The slot still holds the event published one lap ago
+                return false;
+            } else {
+                position = tail.get();
+            }
+        }
+    }
+
+    private void drain(List<OathAuditEvent> batch) {
+        long position = head;
+        while (batch.size() < batchSize) {
+            int index = (int) position & mask;
+            if (sequences.get(index) != position + 1) {
+                break;
+            }
+            batch.add(slots.get(index));
+            slots.lazySet(index, null);
+            sequences.lazySet(index, position + mask + 1);
+            position++;
+        }
+        head = position;
+    }
+
+    private void run() {
+        List<OathAuditEvent> batch = new ArrayList<>(batchSize);
+        while (!closed) {
+            drain(batch);
+            if (batch.isEmpty()) {
+                LockSupport.parkNanos(this, POLL_INTERVAL_NANOS);
+                continue;
+            }
+            write(batch);
+        }
+        do {
+            drain(batch);
+            write(batch);
+        } while (head != tail.get());
+    }
+
+    private void write(List<OathAuditEvent> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        try {
+            sink.write(batch);
+            written.add(batch.size());
+        } catch (IOException | RuntimeException e) {
+            failed.add(batch.size());
+            logger.warn("Cannot write " + batch.size() + " audit events", e);
+        }
+        batch.clear();
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.audit;
+
+import com.forgerock.backstage.ssoextensions.auth.oath.OathMBeans;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Provider;
+import javax.inject.Singleton;
+import java.io.IOException;
+import java.nio.file.Paths;
+
+/**
+ * Provides the {@link OathAuditPipeline} of the OATH nodes. Auditing is disabled unless the system property
+ * {@value #AUDIT_FILE_PROPERTY} names a file, which events are then written to by a {@link RotatingFileAuditSink}.
+ * The system properties {@value #AUDIT_BUFFER_SIZE_PROPERTY} (events, default 8192),
+ * {@value #AUDIT_BATCH_SIZE_PROPERTY} (events, default 256), {@value #AUDIT_OVERFLOW_POLICY_PROPERTY}
+ * ({@code DROP} or {@code BLOCK}, default {@code DROP}), {@value #AUDIT_MAX_FILE_SIZE_PROPERTY} (bytes, default
+ * 100 MB) and {@value #AUDIT_MAX_FILES_PROPERTY} (rotated files, default 10) tune it.
+ */
+@Singleton
+public class OathAuditPipelineProvider implements Provider<OathAuditPipeline> {
+    static final String AUDIT_FILE_PROPERTY = "com.forgerock.backstage.oath.auditFile";
+    static final String AUDIT_BUFFER_SIZE_PROPERTY = "com.forgerock.backstage.oath.auditBufferSize";
+    static final String AUDIT_BATCH_SIZE_PROPERTY = "com.forgerock.backstage.oath.auditBatchSize";
+    static final String AUDIT_OVERFLOW_POLICY_PROPERTY = "com.forgerock.backstage.oath.auditOverflowPolicy";
+    static final String AUDIT_MAX_FILE_SIZE_PROPERTY = "com.forgerock.backstage.oath.auditMaxFileSize";
+    static final String AUDIT_MAX_FILES_PROPERTY = "com.forgerock.backstage.oath.auditMaxFiles";
+    private static final Logger logger = LoggerFactory.getLogger(OathAuditPipelineProvider.class);
+
+    private final OathAuditPipeline pipeline = createPipeline();
+
+    @Override
+    public OathAuditPipeline get() {
+        return pipeline;
+    }
+
+    private static OathAuditPipeline createPipeline() {
+        String file = System.getProperty(AUDIT_FILE_PROPERTY);
+        if (file == null || file.trim().isEmpty()) {
+            return OathAuditPipeline.disabled();
+        }
+        OathAuditPipeline.OverflowPolicy policy = OathAuditPipeline.OverflowPolicy.DROP;
+        String configuredPolicy = System.getProperty(AUDIT_OVERFLOW_POLICY_PROPERTY);
+        if (configuredPolicy != null) {
+            try {
+                policy = OathAuditPipeline.OverflowPolicy.valueOf(configuredPolicy.trim());
+            } catch (IllegalArgumentException e) {
+                logger.warn("Unknown audit overflow policy " + configuredPolicy + ", dropping events");
+            }
+        }
+        try {
+            RotatingFileAuditSink sink = new RotatingFileAuditSink(Paths.get(file.trim()),
+                    Long.getLong(AUDIT_MAX_FILE_SIZE_PROPERTY, 100L * 1024 * 1024),
+                    Integer.getInteger(AUDIT_MAX_FILES_PROPERTY, 10));
+            OathAuditPipeline pipeline = new OathAuditPipeline(sink, Integer.getInteger(AUDIT_BUFFER_SIZE_PROPERTY, 8192),
+                    Integer.getInteger(AUDIT_BATCH_SIZE_PROPERTY, 256), policy);
+            OathMBeans.register("Audit", pipeline);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    pipeline.close();
+                } catch (IOException e) {
+                    logger.warn("Cannot close audit file", e);
+                }
+            }, "oath-audit-shutdown"));
+            return pipeline;
+        } catch (IOException e) {
+            logger.error("Cannot open audit file " + file + ", auditing is disabled", e);
+            return OathAuditPipeline.disabled();
+        }
+    }
+}
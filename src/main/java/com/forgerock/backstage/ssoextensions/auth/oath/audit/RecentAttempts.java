@@ -0,0 +1,205 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.audit;
+
+import com.forgerock.backstage.ssoextensions.auth.oath.OathMBeans;
+import com.forgerock.backstage.ssoextensions.auth.oath.OverwritingRing;
+import org.forgerock.util.annotations.VisibleForTesting;
+
+import javax.inject.Singleton;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the last few verification attempts of every user in memory, so support can look at why a user's codes were
+ * rejected without turning on debug logging. Attempts are the {@link OathAuditEvent}s of the verifier node, which
+ * never hold the code entered.
+ * <p>
+ * Off by default; set {@value #ATTEMPTS_PER_USER_PROPERTY} to the number of attempts to keep per user to enable it.
+ * Each user then has an {@link OverwritingRing} of that many attempts, which is dropped {@value #TTL_PROPERTY}
+ * seconds (default a day) after it was created. At most {@value #MAX_USERS_PROPERTY} users (default 10000) are
+ * held; beyond that, of a sample of {@value #EVICTION_SAMPLE} users, the ring of the one whose attempts were least
+ * recently recorded or queried is evicted, so eviction is only approximately least recently used. Attempts are
+ * queried by {@link #get(String, String)} or through the {@link RecentAttemptsMXBean}.
+ */
+@Singleton
+public class RecentAttempts implements RecentAttemptsMXBean {
+    static final String ATTEMPTS_PER_USER_PROPERTY = "com.forgerock.backstage.oath.recentAttempts";
+    static final String MAX_USERS_PROPERTY = "com.forgerock.backstage.oath.recentAttemptsMaxUsers";
+    static final String TTL_PROPERTY = "com.forgerock.backstage.oath.recentAttemptsTtl";
+    static final int EVICTION_SAMPLE = 8;
+
+    private final int attemptsPerUser;
+    private final int maxUsers;
+    private final long ttlMillis;
+    private final ConcurrentHashMap<String, UserRing> rings = new ConcurrentHashMap<>();
+    private final Object evictionLock = new Object();
+    // Walks the rings across evictions so every ring gets sampled, guarded by evictionLock
+    private Iterator<Map.Entry<String, UserRing>> evictionHand = Collections.emptyIterator();
+
+    public RecentAttempts() {
+        this(Integer.getInteger(ATTEMPTS_PER_USER_PROPERTY, 0), Integer.getInteger(MAX_USERS_PROPERTY, 10000),
+                TimeUnit.SECONDS.toMillis(Long.getLong(TTL_PROPERTY, TimeUnit.DAYS.toSeconds(1))));
+        if (isEnabled()) {
+            OathMBeans.register("RecentAttempts", this);
+        }
+    }
+
+    @VisibleForTesting
+    public RecentAttempts(int attemptsPerUser, int maxUsers, long ttlMillis) {
+        this.attemptsPerUser = attemptsPerUser;
+        this.maxUsers = Math.max(1, maxUsers);
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * @return whether attempts are kept; callers may skip building attempts otherwise
+     */
+    public boolean isEnabled() {
+        return attemptsPerUser > 0 && ttlMillis > 0;
+    }
+
+    /**
+     * Keeps an attempt of the user of the event, overwriting the user's oldest attempt if their ring is full.
+     *
+     * @param attempt the attempt
+     */
+    public void record(OathAuditEvent attempt) {
+        if (!isEnabled()) {
+            return;
+        }
+        String key = key(attempt.getRealm(), attempt.getUser());
+        long now = System.currentTimeMillis();
+        UserRing ring = rings.get(key);
+        while (ring == null || ring.isExpired(now)) {
+            UserRing created = new UserRing(new OverwritingRing<>(attemptsPerUser), now + ttlMillis);
+            if (ring == null ? rings.putIfAbsent(key, created) == null : rings.replace(key, ring, created)) {
+                if (rings.size() > maxUsers) {
+                    evict(created, now);
+                }
+                ring = created;
+            } else {
+                ring = rings.get(key);
+            }
+        }
+        ring.touch();
+        ring.attempts.add(attempt);
+    }
+
+    /**
+     * @param realm    the realm of the user
+     * @param username the name of the user
+     * @return the recent attempts of the user, oldest first
+     */
+    public List<OathAuditEvent> get(String realm, String username) {
+        String key = key(realm, username);
+        UserRing ring = rings.get(key);
+        if (ring == null) {
+            return Collections.emptyList();
+        }
+        if (ring.isExpired(System.currentTimeMillis())) {
+            rings.remove(key, ring);
+            return Collections.emptyList();
+        }
+        ring.touch();
+        return ring.attempts.snapshot();
+    }
+
+    @Override
+    public int getTrackedUsers() {
+        long now = System.currentTimeMillis();
+        rings.values().removeIf(ring -> ring.isExpired(now));
+        return rings.size();
+    }
+
+    @Override
+    public List<String> recentAttempts(String realm, String username) {
+        List<String> attempts = new ArrayList<>();
+        for (OathAuditEvent attempt : get(realm, username)) {
+            attempts.add(attempt.toJsonValue().toString());
+        }
+        return attempts;
+    }
+
+    /**
+     * Removes rings until at most the maximum number of users is held. Each removal takes an expired ring or the
+     * least recently used of the next {@value #EVICTION_SAMPLE} rings, never the ring just created.
+     */
+    private void evict(UserRing created, long now) {
+        synchronized (evictionLock) {
+            while (rings.size() > maxUsers) {
+                Map.Entry<String, UserRing> victim = null;
+                for (int i = 0; i < EVICTION_SAMPLE; i++) {
+                    if (!evictionHand.hasNext()) {
+                        evictionHand = rings.entrySet().iterator();
+                        if (!evictionHand.hasNext()) {
+                            return;
+                        }
+                    }
+                    Map.Entry<String, UserRing> candidate = evictionHand.next();
+                    UserRing ring = candidate.getValue();
+                    if (ring == created) {
+                        continue;
+                    }
+                    if (ring.isExpired(now)) {
+                        victim = candidate;
+                        break;
+                    }
+                    if (victim == null || ring.lastUsed < victim.getValue().lastUsed) {
+                        victim = candidate;
+                    }
+                }
+                if (victim == null) {
+                    return;
+                }
+                rings.remove(victim.getKey(), victim.getValue());
+            }
+        }
+    }
+
+    private static String key(String realm, String username) {
+        return realm + ":" + username;
+    }
+
+    private static final class UserRing {
+        private final OverwritingRing<OathAuditEvent> attempts;
+        private final long expiresAt;
+        private volatile long lastUsed;
+
+        private UserRing(OverwritingRing<OathAuditEvent> attempts, long expiresAt) {
+            this.attempts = attempts;
+            this.expiresAt = expiresAt;
+            touch();
+        }
+
+        private void touch() {
+            lastUsed = System.nanoTime();
+        }
+
+        private boolean isExpired(long now) {
+            return now >= expiresAt;
+        }
+    }
+}
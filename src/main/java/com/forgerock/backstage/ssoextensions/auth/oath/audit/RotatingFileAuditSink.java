@@ -0,0 +1,102 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.audit;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * {@link OathAuditSink} appending events as JSON lines to a local file. When the file reaches its maximum size it is
+ * renamed to {@code <file>.1}, older files move up by one and the oldest beyond the maximum number is deleted.
+ */
+public class RotatingFileAuditSink implements OathAuditSink {
+    private final Path file;
+    private final long maxFileBytes;
+    private final int maxFiles;
+    private Writer writer;
+    private long size;
+
+    /**
+     * @param file         the file to write to
+     * @param maxFileBytes the size after which the file is rotated
+     * @param maxFiles     the number of rotated files to keep
+     * @throws IOException if the file could not be opened
+     */
+    public RotatingFileAuditSink(Path file, long maxFileBytes, int maxFiles) throws IOException {
+        this.file = file;
+        this.maxFileBytes = maxFileBytes;
+        this.maxFiles = maxFiles;
+        open();
+    }
+
+    @Override
+    public void write(List<OathAuditEvent> events) throws IOException {
+        for (OathAuditEvent event : events) {
+            String line = event.toJsonValue().toString() + "\n";
+            int length = line.getBytes(StandardCharsets.UTF_8).length;
+            if (size > 0 && size + length > maxFileBytes) {
+                rotate();
+            }
+            writer.write(line);
+            size += length;
+        }
+        writer.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.close();
+    }
+
+    private void rotate() throws IOException {
+        writer.close();
+        Files.deleteIfExists(rotated(maxFiles));
+        for (int i = maxFiles - 1; i >= 1; i--) {
+            if (Files.exists(rotated(i))) {
+                Files.move(rotated(i), rotated(i + 1), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        if (maxFiles > 0) {
+            Files.move(file, rotated(1), StandardCopyOption.REPLACE_EXISTING);
+        } else {
+            Files.delete(file);
+        }
+        open();
+    }
+
+    private void open() throws IOException {
+        if (file.getParent() != null) {
+            Files.createDirectories(file.getParent());
+        }
+        writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                StandardOpenOption.APPEND);
+        size = Files.size(file);
+    }
+
+    private Path rotated(int index) {
+        return file.resolveSibling(file.getFileName() + "." + index);
+    }
+}
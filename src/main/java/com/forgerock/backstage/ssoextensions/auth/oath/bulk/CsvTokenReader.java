@@ -0,0 +1,69 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.bulk;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Reads tokens from a CSV file with the columns {@code username,secret[,counter]}, where the secret is hex encoded.
+ * Blank lines, lines starting with {@code #} and a header line starting with {@code username} are skipped.
+ */
+public class CsvTokenReader implements TokenReader {
+    private final BufferedReader reader;
+    private long lineNumber;
+
+    public CsvTokenReader(Reader reader) {
+        this.reader = reader instanceof BufferedReader ? (BufferedReader) reader : new BufferedReader(reader);
+    }
+
+    @Override
+    public ImportedToken next() throws IOException {
+        String line;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            String trimmed = line.trim();
+            if (trimmed.isEmpty() || trimmed.startsWith("#")
+                    || (lineNumber == 1 && trimmed.regionMatches(true, 0, "username", 0, 8))) {
+                continue;
+            }
+            String[] columns = trimmed.split(",", -1);
+            String username = column(columns, 0);
+            String secret = column(columns, 1);
+            String counter = column(columns, 2);
+            return new ImportedToken(lineNumber, username, secret, counter);
+        }
+        return null;
+    }
+
+    private static String column(String[] columns, int index) {
+        if (index >= columns.length) {
+            return null;
+        }
+        String value = columns[index].trim();
+        return value.isEmpty() ? null : value;
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+}
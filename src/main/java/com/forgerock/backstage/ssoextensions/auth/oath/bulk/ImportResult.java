@@ -0,0 +1,61 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.bulk;
+
+/**
+ * Counts of an import run.
+ */
+public final class ImportResult {
+    private final long imported;
+    private final long rejected;
+    private final long failed;
+
+    ImportResult(long imported, long rejected, long failed) {
+        this.imported = imported;
+        this.rejected = rejected;
+        this.failed = failed;
+    }
+
+    /**
+     * @return the number of device profiles that were stored
+     */
+    public long getImported() {
+        return imported;
+    }
+
+    /**
+     * @return the number of tokens that did not pass validation
+     */
+    public long getRejected() {
+        return rejected;
+    }
+
+    /**
+     * @return the number of valid tokens the store failed to persist
+     */
+    public long getFailed() {
+        return failed;
+    }
+
+    @Override
+    public String toString() {
+        return "imported=" + imported + ", rejected=" + rejected + ", failed=" + failed;
+    }
+}
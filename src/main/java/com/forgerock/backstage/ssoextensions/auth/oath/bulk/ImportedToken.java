@@ -0,0 +1,85 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.bulk;
+
+/**
+ * A token read from a seed file, before validation.
+ */
+public final class ImportedToken {
+    private final long recordNumber;
+    private final String username;
+    private final String sharedSecret;
+    private final String counter;
+    private final String algorithm;
+    private final String digits;
+
+    /**
+     * @param recordNumber the position of the token in the seed file, used for reporting
+     * @param username     the user the token is assigned to
+     * @param sharedSecret the hex encoded secret, null if it could not be decoded
+     * @param counter      the moving factor as found in the file, null if absent
+     */
+    public ImportedToken(long recordNumber, String username, String sharedSecret, String counter) {
+        this(recordNumber, username, sharedSecret, counter, null, null);
+    }
+
+    /**
+     * @param recordNumber the position of the token in the seed file, used for reporting
+     * @param username     the user the token is assigned to
+     * @param sharedSecret the hex encoded secret, null if it could not be decoded
+     * @param counter      the moving factor as found in the file, null if absent
+     * @param algorithm    the name of the {@link com.forgerock.backstage.ssoextensions.auth.oath.OathAlgorithm} the
+     *                     token uses, or the algorithm as found in the file if it is neither; null if absent
+     * @param digits       the length of the OTP as found in the file, null if absent
+     */
+    public ImportedToken(long recordNumber, String username, String sharedSecret, String counter, String algorithm,
+            String digits) {
+        this.recordNumber = recordNumber;
+        this.username = username;
+        this.sharedSecret = sharedSecret;
+        this.counter = counter;
+        this.algorithm = algorithm;
+        this.digits = digits;
+    }
+
+    public long getRecordNumber() {
+        return recordNumber;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public String getSharedSecret() {
+        return sharedSecret;
+    }
+
+    public String getCounter() {
+        return counter;
+    }
+
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    public String getDigits() {
+        return digits;
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.bulk;
+
+import org.forgerock.json.JsonValue;
+import org.forgerock.openam.core.rest.devices.DeviceJsonUtils;
+import org.forgerock.openam.core.rest.devices.oath.OathDeviceSettings;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import static org.forgerock.json.JsonValue.*;
+
+/**
+ * {@link ProfileTransform} writing every profile as one JSON line {@code {"user": ..., "profile": ...}} without
+ * modifying it. The output contains the shared secrets and must be protected accordingly. On resume, the users
+ * after the last checkpoint are written again.
+ */
+public class JsonLinesProfileExporter implements ProfileTransform {
+    private final Writer writer;
+    private final DeviceJsonUtils<OathDeviceSettings> deviceJsonUtils;
+
+    public JsonLinesProfileExporter(Writer writer, DeviceJsonUtils<OathDeviceSettings> deviceJsonUtils) {
+        this.writer = writer;
+        this.deviceJsonUtils = deviceJsonUtils;
+    }
+
+    @Override
+    public boolean apply(String username, OathDeviceSettings settings) throws IOException {
+        JsonValue line = json(object(
+                field("user", username),
+                field("profile", deviceJsonUtils.toJsonValue(settings).getObject())));
+        String text = line.toString();
+        synchronized (writer) {
+            writer.write(text);
+            writer.write('\n');
+        }
+        return false;
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.bulk;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Persists the position in the {@link UserSource} up to which a {@link ProfileMigrationJob} has processed every user.
+ * The file holds a single number and is replaced atomically, so an interrupted write never loses the previous
+ * checkpoint.
+ * <p>
+ * Users that could not be processed are listed, one per line, in a second file next to the checkpoint, named after
+ * it with a {@code .failed} suffix, so the next run retries them although they lie before the checkpoint.
+ */
+public class MigrationCheckpoint {
+    private final Path file;
+    private final Path failedFile;
+
+    public MigrationCheckpoint(Path file) {
+        this.file = file;
+        this.failedFile = file.resolveSibling(file.getFileName() + ".failed");
+    }
+
+    /**
+     * @return the number of users processed by the previous run, 0 if there was none
+     * @throws IOException if the checkpoint exists but could not be read
+     */
+    public long load() throws IOException {
+        if (!Files.exists(file)) {
+            return 0;
+        }
+        String content = new String(Files.readAllBytes(file), StandardCharsets.UTF_8).trim();
+        try {
+            return Long.parseLong(content);
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid checkpoint in " + file, e);
+        }
+    }
+
+    /**
+     * @param position the number of users processed so far
+     * @throws IOException if the checkpoint could not be written
+     */
+    public void save(long position) throws IOException {
+        replace(file, Collections.singletonList(Long.toString(position)));
+    }
+
+    /**
+     * @return the users the previous run could not process, in no particular order
+     * @throws IOException if the list exists but could not be read
+     */
+    public List<String> loadFailed() throws IOException {
+        if (!Files.exists(failedFile)) {
+            return Collections.emptyList();
+        }
+        List<String> users = new ArrayList<>();
+        for (String line : Files.readAllLines(failedFile, StandardCharsets.UTF_8)) {
+            if (!line.trim().isEmpty()) {
+                users.add(line.trim());
+            }
+        }
+        return users;
+    }
+
+    /**
+     * @param users the users that could not be processed so far; the list is removed if there are none
+     * @throws IOException if the list could not be written
+     */
+    public void saveFailed(Collection<String> users) throws IOException {
+        if (users.isEmpty()) {
+            Files.deleteIfExists(failedFile);
+        } else {
+            replace(failedFile, users);
+        }
+    }
+
+    private static void replace(Path target, Iterable<String> lines) throws IOException {
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+        Files.write(temp, lines, StandardCharsets.UTF_8);
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.bulk;
+
+import com.forgerock.backstage.ssoextensions.auth.oath.OathAlgorithm;
+import com.forgerock.backstage.ssoextensions.auth.oath.OathDeviceProfileStore;
+import com.forgerock.backstage.ssoextensions.auth.oath.OathSecret;
+import org.forgerock.openam.core.rest.devices.DevicePersistenceException;
+import org.forgerock.openam.core.rest.devices.oath.OathDeviceSettings;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Imports hardware tokens from a seed file into OATH device profiles.
+ * Tokens are validated the same way the verifier node validates a stored secret, and the profiles are built with the
+ * counter and checksum settings of the registration node. Tokens the seed file declares with another algorithm or
+ * OTP length than the nodes use are rejected, as the verifier node would never accept their codes. Valid profiles are written to the
+ * {@link OathDeviceProfileStore} in batches on a fixed number of threads; reading blocks while all threads are busy
+ * and one further batch per thread is queued, so memory use does not depend on the size of the file.
+ * An existing device profile of a user is replaced.
+ */
+public class OathTokenImporter {
+    private static final Logger logger = LoggerFactory.getLogger(OathTokenImporter.class);
+    private static final String DEVICE_NAME = "OATH Device";
+
+    private final OathDeviceProfileStore store;
+    private final String realm;
+    private final int minSharedSecretLength;
+    private final OathAlgorithm algorithm;
+    private final int passwordLength;
+    private final boolean checksum;
+    private final int parallelism;
+    private final int batchSize;
+
+    /**
+     * @param store                 the store the device profiles are written to
+     * @param realm                 the realm of the users
+     * @param minSharedSecretLength the minimum length of a hex encoded secret, as configured on the nodes
+     * @param algorithm             the OTP algorithm, as configured on the nodes
+     * @param passwordLength        the length of the OTP, as configured on the nodes
+     * @param checksum              whether the tokens append a checksum digit to the OTP
+     * @param parallelism           the number of threads writing to the store
+     * @param batchSize             the number of profiles written by a thread in one go
+     */
+    public OathTokenImporter(OathDeviceProfileStore store, String realm, int minSharedSecretLength,
+            OathAlgorithm algorithm, int passwordLength, boolean checksum, int parallelism, int batchSize) {
+        if (minSharedSecretLength <= 0) {
+            throw new IllegalArgumentException("Min Secret Key Length is not a valid value");
+        }
+        if (algorithm == null || passwordLength <= 0) {
+            throw new IllegalArgumentException("Algorithm and password length must be set");
+        }
+        if (parallelism <= 0 || batchSize <= 0) {
+            throw new IllegalArgumentException("Parallelism and batch size must be positive");
+        }
+        this.store = store;
+        this.realm = realm;
+        this.minSharedSecretLength = minSharedSecretLength;
+        this.algorithm = algorithm;
+        this.passwordLength = passwordLength;
+        this.checksum = checksum;
+        this.parallelism = parallelism;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Imports all tokens of the reader. The reader is not closed.
+     *
+     * @param reader the seed file
+     * @return the counts of the run
+     * @throws IOException          if the seed file could not be read; profiles of earlier batches remain stored
+     * @throws InterruptedException if the thread was interrupted while waiting for the store
+     */
+    public ImportResult importTokens(TokenReader reader) throws IOException, InterruptedException {
+        AtomicLong imported = new AtomicLong();
+        AtomicLong failed = new AtomicLong();
+        long rejected = 0;
+        Semaphore queuedBatches = new Semaphore(parallelism * 2);
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        try {
+            List<Profile> batch = new ArrayList<>(batchSize);
+            ImportedToken token;
+            while ((token = reader.next()) != null) {
+                OathDeviceSettings settings = toDeviceSettings(token);
+                if (settings == null) {
+                    rejected++;
+                    continue;
+                }
+                batch.add(new Profile(token, settings));
+                if (batch.size() == batchSize) {
+                    submit(executor, queuedBatches, batch, imported, failed);
+                    batch = new ArrayList<>(batchSize);
+                }
+            }
+            if (!batch.isEmpty()) {
+                submit(executor, queuedBatches, batch, imported, failed);
+            }
+            queuedBatches.acquire(parallelism * 2);
+        } finally {
+            executor.shutdownNow();
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        }
+        ImportResult result = new ImportResult(imported.get(), rejected, failed.get());
+        logger.info("Token import into realm {} finished: {}", realm, result);
+        return result;
+    }
+
+    private void submit(ExecutorService executor, Semaphore queuedBatches, List<Profile> batch, AtomicLong imported,
+            AtomicLong failed) throws InterruptedException {
+        queuedBatches.acquire();
+        executor.execute(() -> {
+            try {
+                for (Profile profile : batch) {
+                    try {
+                        store.saveDeviceProfile(profile.token.getUsername(), realm, profile.settings);
+                        imported.incrementAndGet();
+                    } catch (DevicePersistenceException | RuntimeException e) {
+                        failed.incrementAndGet();
+                        logger.warn("Record {}: unable to store device profile of user {}",
+                                profile.token.getRecordNumber(), profile.token.getUsername(), e);
+                    }
+                }
+            } finally {
+                queuedBatches.release();
+            }
+        });
+    }
+
+    /**
+     * Validates a token and builds its device profile.
+     *
+     * @param token the token
+     * @return the device profile, or null if the token is not valid
+     */
+    OathDeviceSettings toDeviceSettings(ImportedToken token) {
+        String username = token.getUsername();
+        if (username == null || username.isEmpty()) {
+            return reject(token, "no username");
+        }
+        String secret = token.getSharedSecret();
+        if (secret == null || secret.isEmpty()) {
+            return reject(token, "no plain text secret");
+        }
+        try {
+            secret = OathSecret.fromHex(secret).toHex();
+        } catch (IllegalArgumentException e) {
+            return reject(token, "secret is not hex encoded");
+        }
+        if (secret.length() < minSharedSecretLength) {
+            return reject(token, "secret is shorter than the minimum secret key length");
+        }
+        if (token.getAlgorithm() != null && !algorithm.name().equals(token.getAlgorithm())) {
+            return reject(token, "algorithm " + token.getAlgorithm() + " does not match the configured " + algorithm);
+        }
+        if (token.getDigits() != null && !String.valueOf(passwordLength).equals(token.getDigits().trim())) {
+            return reject(token, "OTP length " + token.getDigits() + " does not match the configured "
+                    + passwordLength);
+        }
+        int counter = 0;
+        if (token.getCounter() != null) {
+            try {
+                counter = Integer.parseInt(token.getCounter());
+            } catch (NumberFormatException e) {
+                counter = -1;
+            }
+            if (counter < 0) {
+                return reject(token, "counter is not a non-negative integer");
+            }
+        }
+
+        OathDeviceSettings settings = new OathDeviceSettings();
+        settings.setUUID(UUID.randomUUID().toString());
+        settings.setDeviceName(DEVICE_NAME);
+        settings.setSharedSecret(secret);
+        settings.setCounter(counter);
+        settings.setChecksumDigit(checksum);
+        settings.setLastLogin(0, TimeUnit.SECONDS);
+        settings.setRecoveryCodes(Collections.emptyList());
+        return settings;
+    }
+
+    private static OathDeviceSettings reject(ImportedToken token, String reason) {
+        // The secret is never logged
+        logger.warn("Record {}: token of user {} rejected, {}", token.getRecordNumber(), token.getUsername(), reason);
+        return null;
+    }
+
+    private static final class Profile {
+        private final ImportedToken token;
+        private final OathDeviceSettings settings;
+
+        private Profile(ImportedToken token, OathDeviceSettings settings) {
+            this.token = token;
+            this.settings = settings;
+        }
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.bulk;
+
+import com.forgerock.backstage.ssoextensions.auth.oath.OathDeviceProfileStore;
+import com.forgerock.backstage.ssoextensions.auth.oath.OathMBeans;
+import org.forgerock.openam.core.rest.devices.DevicePersistenceException;
+import org.forgerock.openam.core.rest.devices.oath.OathDeviceSettings;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Streams the device profiles of the users of a {@link UserSource} through a list of {@link ProfileTransform}s and
+ * stores the modified ones, for example to normalise secrets or to follow a change of the checksum setting.
+ * Saving a profile also encrypts it with the key currently configured in AM, so {@code rewriteAll} can be used to
+ * re-encrypt every profile after a key rotation.
+ * <p>
+ * Users are processed on a fixed number of threads, and reading the source blocks while twice that number of users
+ * are in progress. The position up to which all users have been processed is saved to a {@link MigrationCheckpoint}
+ * every {@code checkpointInterval} users and at the end, and a later run resumes from it. Users that failed are saved
+ * with the checkpoint, before it moves past them, and a later run retries them before resuming.
+ * Progress is exposed as the {@code ProfileMigration} MBean.
+ */
+public class ProfileMigrationJob implements ProfileMigrationMXBean {
+    private static final Logger logger = LoggerFactory.getLogger(ProfileMigrationJob.class);
+
+    private final OathDeviceProfileStore store;
+    private final String realm;
+    private final List<ProfileTransform> transforms;
+    private final boolean rewriteAll;
+    private final int parallelism;
+    private final MigrationCheckpoint checkpoint;
+    private final int checkpointInterval;
+
+    private final AtomicLong processed = new AtomicLong();
+    private final AtomicLong updated = new AtomicLong();
+    private final AtomicLong withoutProfile = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final TreeSet<Long> completedAhead = new TreeSet<>();
+    private final Set<String> failedUsers = ConcurrentHashMap.newKeySet();
+    private volatile long lowWaterMark;
+    private volatile long startNanos;
+
+    /**
+     * @param store              the store the profiles are read from and written to
+     * @param realm              the realm of the users
+     * @param transforms         the steps applied to every profile, in order
+     * @param rewriteAll         whether to store every profile, even if no transform modified it
+     * @param parallelism        the number of users processed concurrently
+     * @param checkpoint         the checkpoint to resume from and to update
+     * @param checkpointInterval the number of processed users between two checkpoint writes
+     */
+    public ProfileMigrationJob(OathDeviceProfileStore store, String realm, List<ProfileTransform> transforms,
+            boolean rewriteAll, int parallelism, MigrationCheckpoint checkpoint, int checkpointInterval) {
+        if (parallelism <= 0 || checkpointInterval <= 0) {
+            throw new IllegalArgumentException("Parallelism and checkpoint interval must be positive");
+        }
+        this.store = store;
+        this.realm = realm;
+        this.transforms = transforms;
+        this.rewriteAll = rewriteAll;
+        this.parallelism = parallelism;
+        this.checkpoint = checkpoint;
+        this.checkpointInterval = checkpointInterval;
+    }
+
+    /**
+     * Processes all users of the source after the checkpoint. The source is not closed.
+     *
+     * @param users the users, in the same order as in previous runs
+     * @throws IOException          if the source or the checkpoint could not be read or written
+     * @throws InterruptedException if the thread was interrupted; the checkpoint reflects the users completed so far
+     */
+    public void run(UserSource users) throws IOException, InterruptedException {
+        long position = checkpoint.load();
+        List<String> retries = checkpoint.loadFailed();
+        failedUsers.addAll(retries);
+        lowWaterMark = position;
+        boolean exhausted = false;
+        for (long skipped = 0; skipped < position && !exhausted; skipped++) {
+            exhausted = users.next() == null;
+        }
+        if (exhausted && retries.isEmpty()) {
+            logger.info("Profile migration in realm {} already completed at {}", realm, position);
+            return;
+        }
+        OathMBeans.register("ProfileMigration", this);
+        logger.info("Profile migration in realm {} starting at {}, retrying {} failed users", realm, position,
+                retries.size());
+
+        startNanos = System.nanoTime();
+        Semaphore inProgress = new Semaphore(parallelism * 2);
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        try {
+            for (String user : retries) {
+                inProgress.acquire();
+                executor.execute(() -> {
+                    try {
+                        if (process(user)) {
+                            failedUsers.remove(user);
+                        }
+                    } finally {
+                        inProgress.release();
+                    }
+                });
+            }
+            String username;
+            while (!exhausted && (username = users.next()) != null) {
+                long userPosition = position++;
+                String user = username;
+                inProgress.acquire();
+                executor.execute(() -> {
+                    try {
+                        if (!process(user)) {
+                            failedUsers.add(user);
+                        }
+                    } finally {
+                        complete(userPosition);
+                        inProgress.release();
+                    }
+                });
+            }
+            inProgress.acquire(parallelism * 2);
+        } finally {
+            executor.shutdownNow();
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+            synchronized (completedAhead) {
+                save(lowWaterMark);
+            }
+        }
+        logger.info("Profile migration in realm {} finished: processed={}, updated={}, withoutProfile={}, failed={}",
+                realm, processed.get(), updated.get(), withoutProfile.get(), failed.get());
+    }
+
+    /**
+     * @return false if the user failed and must be retried
+     */
+    private boolean process(String username) {
+        try {
+            List<OathDeviceSettings> profiles = store.getDeviceProfiles(username, realm);
+            if (profiles == null || profiles.isEmpty()) {
+                withoutProfile.incrementAndGet();
+                return true;
+            }
+            OathDeviceSettings settings = profiles.get(0);
+            boolean modified = rewriteAll;
+            for (ProfileTransform transform : transforms) {
+                modified |= transform.apply(username, settings);
+            }
+            if (modified) {
+                store.saveDeviceProfile(username, realm, settings);
+                updated.incrementAndGet();
+            }
+            return true;
+        } catch (DevicePersistenceException | IOException | RuntimeException e) {
+            failed.incrementAndGet();
+            logger.warn("Unable to migrate the device profile of user {}, it is retried by the next run", username,
+                    e);
+            return false;
+        } finally {
+            processed.incrementAndGet();
+        }
+    }
+
+    private void complete(long position) {
+        long mark;
+        synchronized (completedAhead) {
+            completedAhead.add(position);
+            mark = lowWaterMark;
+            while (completedAhead.remove(mark)) {
+                mark++;
+            }
+            if (mark / checkpointInterval == lowWaterMark / checkpointInterval) {
+                lowWaterMark = mark;
+                return;
+            }
+            lowWaterMark = mark;
+            try {
+                save(mark);
+            } catch (IOException e) {
+                logger.warn("Unable to save the profile migration checkpoint at {}", mark, e);
+            }
+        }
+    }
+
+    /**
+     * Saves the failed users, then the checkpoint, so the checkpoint never moves past a failed user that is not
+     * listed. Called with the lock on {@link #completedAhead} held.
+     */
+    private void save(long mark) throws IOException {
+        checkpoint.saveFailed(new TreeSet<>(failedUsers));
+        checkpoint.save(mark);
+    }
+
+    @Override
+    public long getProcessedUsers() {
+        return processed.get();
+    }
+
+    @Override
+    public long getUpdatedProfiles() {
+        return updated.get();
+    }
+
+    @Override
+    public long getUsersWithoutProfile() {
+        return withoutProfile.get();
+    }
+
+    @Override
+    public long getFailedUsers() {
+        return failed.get();
+    }
+
+    @Override
+    public long getCheckpoint() {
+        return lowWaterMark;
+    }
+
+    @Override
+    public double getUsersPerSecond() {
+        long elapsed = System.nanoTime() - startNanos;
+        return startNanos == 0 || elapsed <= 0 ? 0 : processed.get() * 1e9 / elapsed;
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.bulk;
+
+/**
+ * Progress of the running {@link ProfileMigrationJob}.
+ */
+public interface ProfileMigrationMXBean {
+
+    /**
+     * @return the number of users processed by this run
+     */
+    long getProcessedUsers();
+
+    /**
+     * @return the number of device profiles stored because a transform modified them or rewriting was requested
+     */
+    long getUpdatedProfiles();
+
+    /**
+     * @return the number of users without a device profile
+     */
+    long getUsersWithoutProfile();
+
+    /**
+     * @return the number of users whose profile could not be read, transformed or stored
+     */
+    long getFailedUsers();
+
+    /**
+     * @return the number of users, counted from the start of the source, up to which all have been processed
+     */
+    long getCheckpoint();
+
+    /**
+     * @return the average number of users processed per second since the run started
+     */
+    double getUsersPerSecond();
+}
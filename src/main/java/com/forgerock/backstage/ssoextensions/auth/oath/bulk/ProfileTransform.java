@@ -0,0 +1,41 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.bulk;
+
+import org.forgerock.openam.core.rest.devices.oath.OathDeviceSettings;
+
+import java.io.IOException;
+
+/**
+ * A step applied to every device profile by a {@link ProfileMigrationJob}. Transforms are called concurrently for
+ * different users and must be idempotent, as users after the last checkpoint are processed again on resume.
+ */
+public interface ProfileTransform {
+
+    /**
+     * Applies the step to a device profile.
+     *
+     * @param username the owner of the profile
+     * @param settings the profile, which may be modified in place
+     * @return true if the profile was modified and has to be stored
+     * @throws IOException if the step failed; the profile of that user is then left unchanged
+     */
+    boolean apply(String username, OathDeviceSettings settings) throws IOException;
+}
@@ -0,0 +1,90 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.bulk;
+
+import com.forgerock.backstage.ssoextensions.auth.oath.OathSecret;
+
+import java.io.IOException;
+
+/**
+ * Common {@link ProfileTransform}s.
+ */
+public final class ProfileTransforms {
+
+    private ProfileTransforms() {
+    }
+
+    /**
+     * Rewrites the shared secret in the form the verifier node converts it to before every verification: without
+     * white space, lower case and of even length.
+     *
+     * @return the transform
+     */
+    public static ProfileTransform normaliseSecret() {
+        return (username, settings) -> {
+            String secret = settings.getSharedSecret();
+            if (secret == null) {
+                return false;
+            }
+            String normalised;
+            try {
+                normalised = OathSecret.fromHex(secret).toHex();
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Secret of user " + username + " is not hex encoded", e);
+            }
+            if (normalised.equals(secret)) {
+                return false;
+            }
+            settings.setSharedSecret(normalised);
+            return true;
+        };
+    }
+
+    /**
+     * Resets the recorded TOTP clock drift, for example after the time step interval was changed.
+     *
+     * @return the transform
+     */
+    public static ProfileTransform resetClockDrift() {
+        return (username, settings) -> {
+            if (settings.getClockDriftSeconds() == 0) {
+                return false;
+            }
+            settings.setClockDriftSeconds(0);
+            return true;
+        };
+    }
+
+    /**
+     * Sets whether the device appends a checksum digit, to follow a change of the node configuration.
+     *
+     * @param checksum the new setting
+     * @return the transform
+     */
+    public static ProfileTransform checksum(boolean checksum) {
+        return (username, settings) -> {
+            if (settings.isChecksumDigit() == checksum) {
+                return false;
+            }
+            settings.setChecksumDigit(checksum);
+            return true;
+        };
+    }
+}
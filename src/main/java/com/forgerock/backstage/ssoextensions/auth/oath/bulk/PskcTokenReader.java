@@ -0,0 +1,161 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.bulk;
+
+import com.forgerock.backstage.ssoextensions.auth.oath.OathAlgorithm;
+import com.forgerock.backstage.ssoextensions.auth.oath.OathSecret;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Base64;
+import java.util.Deque;
+
+/**
+ * Reads tokens from a PSKC (RFC 6030) key container. The file is parsed as a stream, one {@code KeyPackage} at a
+ * time. Only plain text secrets are supported; key packages with encrypted secrets are returned without a secret
+ * and rejected by the importer. The {@code Algorithm} of the key and the {@code Length} of its response format are
+ * returned, so the importer can reject tokens that do not match the nodes.
+ */
+public class PskcTokenReader implements TokenReader {
+    private static final String KEY_PACKAGE = "KeyPackage";
+    private static final String KEY = "Key";
+    private static final String SECRET = "Secret";
+    private static final String COUNTER = "Counter";
+    private static final String PLAIN_VALUE = "PlainValue";
+    private static final String USER_ID = "UserId";
+    private static final String RESPONSE_FORMAT = "ResponseFormat";
+    private static final String ALGORITHM_ATTRIBUTE = "Algorithm";
+    private static final String LENGTH_ATTRIBUTE = "Length";
+    private static final String ALGORITHM_PREFIX = "urn:ietf:params:xml:ns:keyprov:pskc";
+
+    private final InputStream in;
+    private final XMLStreamReader reader;
+    private final Deque<String> elements = new ArrayDeque<>();
+    private long packageNumber;
+
+    public PskcTokenReader(InputStream in) throws IOException {
+        this.in = in;
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        try {
+            this.reader = factory.createXMLStreamReader(in);
+        } catch (XMLStreamException e) {
+            throw new IOException("Unable to read PSKC file", e);
+        }
+    }
+
+    @Override
+    public ImportedToken next() throws IOException {
+        try {
+            String keyUserId = null;
+            String deviceUserId = null;
+            String secret = null;
+            String counter = null;
+            String algorithm = null;
+            String digits = null;
+            boolean inPackage = false;
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    String name = reader.getLocalName();
+                    if (KEY_PACKAGE.equals(name)) {
+                        inPackage = true;
+                        packageNumber++;
+                    } else if (inPackage && KEY.equals(name)) {
+                        algorithm = toAlgorithm(reader.getAttributeValue(null, ALGORITHM_ATTRIBUTE));
+                    } else if (inPackage && RESPONSE_FORMAT.equals(name)) {
+                        digits = reader.getAttributeValue(null, LENGTH_ATTRIBUTE);
+                    } else if (inPackage && PLAIN_VALUE.equals(name)) {
+                        String value = reader.getElementText().trim();
+                        if (SECRET.equals(elements.peek())) {
+                            secret = toHex(value);
+                        } else if (COUNTER.equals(elements.peek())) {
+                            counter = value;
+                        }
+                        continue;
+                    } else if (inPackage && USER_ID.equals(name)) {
+                        String value = reader.getElementText().trim();
+                        if (elements.contains(KEY)) {
+                            keyUserId = value;
+                        } else {
+                            deviceUserId = value;
+                        }
+                        continue;
+                    }
+                    elements.push(name);
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    elements.poll();
+                    if (KEY_PACKAGE.equals(reader.getLocalName())) {
+                        return new ImportedToken(packageNumber, keyUserId != null ? keyUserId : deviceUserId,
+                                secret, counter, algorithm, digits);
+                    }
+                }
+            }
+            return null;
+        } catch (XMLStreamException e) {
+            throw new IOException("Malformed PSKC file after key package " + packageNumber, e);
+        }
+    }
+
+    /**
+     * Maps the HOTP and TOTP algorithm URIs, with {@code :} or {@code #} before the name as issuers write them, to
+     * the name of the {@link OathAlgorithm}; any other algorithm is returned as is.
+     */
+    private static String toAlgorithm(String uri) {
+        if (uri == null || !uri.startsWith(ALGORITHM_PREFIX) || uri.length() <= ALGORITHM_PREFIX.length() + 1) {
+            return uri;
+        }
+        char separator = uri.charAt(ALGORITHM_PREFIX.length());
+        String name = uri.substring(ALGORITHM_PREFIX.length() + 1);
+        if (separator == ':' || separator == '#') {
+            for (OathAlgorithm algorithm : OathAlgorithm.values()) {
+                if (algorithm.name().equalsIgnoreCase(name)) {
+                    return algorithm.name();
+                }
+            }
+        }
+        return uri;
+    }
+
+    private static String toHex(String base64) {
+        try {
+            return OathSecret.fromBytes(Base64.getMimeDecoder().decode(base64)).toHex();
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            reader.close();
+        } catch (XMLStreamException e) {
+            throw new IOException(e);
+        } finally {
+            in.close();
+        }
+    }
+}
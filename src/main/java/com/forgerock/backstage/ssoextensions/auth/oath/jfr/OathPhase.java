@@ -0,0 +1,57 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.jfr;
+
+/**
+ * The phases of the OATH nodes recorded as Java Flight Recorder events. Each phase is its own event type, named
+ * {@code com.forgerock.backstage.oath.<event name>}, so phases can be enabled and given thresholds separately in a
+ * JFR settings file.
+ */
+public enum OathPhase {
+    /** Decrypting a JWE from shared state, e.g. a device profile or its snapshot. */
+    SHARED_STATE_DECRYPT("SharedStateDecrypt"),
+    /** Reading the device profile of the user. */
+    PROFILE_LOAD("ProfileLoad"),
+    /** Scanning the HOTP or TOTP window for a matching code. */
+    WINDOW_SCAN("WindowScan"),
+    /** Writing the device profile of the user. */
+    PROFILE_SAVE("ProfileSave"),
+    /** Encrypting a payload into a JWE for shared state. */
+    JWE_ENCRYPT("JweEncrypt"),
+    /** Generating the shared secret of a new device profile. */
+    SECRET_GENERATION("SecretGeneration"),
+    /** Building the registration URI and the script rendering it as a QR code. */
+    QR_SCRIPT("QrScript");
+
+    static final String EVENT_NAME_PREFIX = "com.forgerock.backstage.oath.";
+
+    private final String eventName;
+
+    OathPhase(String eventName) {
+        this.eventName = eventName;
+    }
+
+    /**
+     * @return the name of the JFR event type of this phase
+     */
+    public String getEventName() {
+        return EVENT_NAME_PREFIX + eventName;
+    }
+}
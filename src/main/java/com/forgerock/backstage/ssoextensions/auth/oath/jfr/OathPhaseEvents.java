@@ -0,0 +1,166 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.jfr;
+
+import com.forgerock.backstage.ssoextensions.auth.oath.OathAlgorithm;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * The JFR event types of the {@link OathPhase}s. Only loaded once {@link OathPhaseTimer} has found JFR to be
+ * available, as the event types cannot be loaded without it.
+ */
+final class OathPhaseEvents {
+
+    private OathPhaseEvents() {
+    }
+
+    /**
+     * @return a timer committing an event of the phase, or null if no recording has the event enabled
+     */
+    static OathPhaseTimer start(OathPhase phase) {
+        Event event = create(phase);
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        return new EventTimer(event);
+    }
+
+    private static Event create(OathPhase phase) {
+        switch (phase) {
+            case SHARED_STATE_DECRYPT:
+                return new SharedStateDecryptEvent();
+            case PROFILE_LOAD:
+                return new ProfileLoadEvent();
+            case WINDOW_SCAN:
+                return new WindowScanEvent();
+            case PROFILE_SAVE:
+                return new ProfileSaveEvent();
+            case JWE_ENCRYPT:
+                return new JweEncryptEvent();
+            case SECRET_GENERATION:
+                return new SecretGenerationEvent();
+            case QR_SCRIPT:
+                return new QrScriptEvent();
+            default:
+                throw new IllegalArgumentException("Unknown phase " + phase);
+        }
+    }
+
+    private static final class EventTimer extends OathPhaseTimer {
+        private final Event event;
+
+        private EventTimer(Event event) {
+            this.event = event;
+        }
+
+        @Override
+        public void end() {
+            event.commit();
+        }
+
+        @Override
+        public void endWindowScan(OathAlgorithm algorithm, int stepsScanned, Integer matchedOffset) {
+            event.end();
+            if (event instanceof WindowScanEvent && event.shouldCommit()) {
+                WindowScanEvent scan = (WindowScanEvent) event;
+                scan.algorithm = algorithm == null ? null : algorithm.name();
+                scan.stepsScanned = stepsScanned;
+                scan.matched = matchedOffset != null;
+                scan.matchedOffset = matchedOffset == null ? 0 : matchedOffset;
+            }
+            event.commit();
+        }
+    }
+
+    @Name(OathPhase.EVENT_NAME_PREFIX + "SharedStateDecrypt")
+    @Label("OATH Shared State Decrypt")
+    @Description("Decryption of a JWE from shared state")
+    @Category({"ForgeRock", "OATH"})
+    @StackTrace(false)
+    static final class SharedStateDecryptEvent extends Event {
+    }
+
+    @Name(OathPhase.EVENT_NAME_PREFIX + "ProfileLoad")
+    @Label("OATH Profile Load")
+    @Description("Read of the device profile of a user")
+    @Category({"ForgeRock", "OATH"})
+    @StackTrace(false)
+    static final class ProfileLoadEvent extends Event {
+    }
+
+    @Name(OathPhase.EVENT_NAME_PREFIX + "WindowScan")
+    @Label("OATH Window Scan")
+    @Description("Scan of the HOTP or TOTP window for a code matching the one entered")
+    @Category({"ForgeRock", "OATH"})
+    @StackTrace(false)
+    static final class WindowScanEvent extends Event {
+        @Label("Algorithm")
+        String algorithm;
+
+        @Label("Steps Scanned")
+        @Description("Number of counter values or time steps a code was computed for")
+        int stepsScanned;
+
+        @Label("Matched")
+        boolean matched;
+
+        @Label("Matched Offset")
+        @Description("Counter values or time steps between the expected and the matching code")
+        int matchedOffset;
+    }
+
+    @Name(OathPhase.EVENT_NAME_PREFIX + "ProfileSave")
+    @Label("OATH Profile Save")
+    @Description("Write of the device profile of a user")
+    @Category({"ForgeRock", "OATH"})
+    @StackTrace(false)
+    static final class ProfileSaveEvent extends Event {
+    }
+
+    @Name(OathPhase.EVENT_NAME_PREFIX + "JweEncrypt")
+    @Label("OATH JWE Encrypt")
+    @Description("Encryption of a payload into a JWE for shared state")
+    @Category({"ForgeRock", "OATH"})
+    @StackTrace(false)
+    static final class JweEncryptEvent extends Event {
+    }
+
+    @Name(OathPhase.EVENT_NAME_PREFIX + "SecretGeneration")
+    @Label("OATH Secret Generation")
+    @Description("Generation of the shared secret of a new device profile")
+    @Category({"ForgeRock", "OATH"})
+    @StackTrace(false)
+    static final class SecretGenerationEvent extends Event {
+    }
+
+    @Name(OathPhase.EVENT_NAME_PREFIX + "QrScript")
+    @Label("OATH QR Script")
+    @Description("Building of the registration URI and the script rendering it as a QR code")
+    @Category({"ForgeRock", "OATH"})
+    @StackTrace(false)
+    static final class QrScriptEvent extends Event {
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.jfr;
+
+import com.forgerock.backstage.ssoextensions.auth.oath.OathAlgorithm;
+
+/**
+ * Times one {@link OathPhase} as a Java Flight Recorder event:
+ * <pre>
+ * OathPhaseTimer timer = OathPhaseTimer.start(OathPhase.PROFILE_LOAD);
+ * try {
+ *     ...
+ * } finally {
+ *     timer.end();
+ * }
+ * </pre>
+ * Unless a recording has the event of the phase enabled, or on a JVM without JFR, {@link #start(OathPhase)} returns
+ * a shared timer that does nothing, so an instrumented phase costs little more than the check.
+ */
+public abstract class OathPhaseTimer {
+    private static final boolean JFR_AVAILABLE = isJfrAvailable();
+    private static final OathPhaseTimer DISABLED = new OathPhaseTimer() {
+        @Override
+        public void end() {
+        }
+
+        @Override
+        public void endWindowScan(OathAlgorithm algorithm, int stepsScanned, Integer matchedOffset) {
+        }
+    };
+
+    OathPhaseTimer() {
+    }
+
+    /**
+     * Starts timing a phase.
+     *
+     * @param phase the phase
+     * @return the timer to end once the phase is over
+     */
+    public static OathPhaseTimer start(OathPhase phase) {
+        if (!JFR_AVAILABLE) {
+            return DISABLED;
+        }
+        OathPhaseTimer timer = OathPhaseEvents.start(phase);
+        return timer != null ? timer : DISABLED;
+    }
+
+    /**
+     * @return whether this JVM supports JFR events, regardless of whether a recording is running
+     */
+    public static boolean isAvailable() {
+        return JFR_AVAILABLE;
+    }
+
+    /**
+     * Ends the phase and commits its event.
+     */
+    public abstract void end();
+
+    /**
+     * Ends a {@link OathPhase#WINDOW_SCAN} and commits its event with the details of the scan.
+     *
+     * @param algorithm     the algorithm of the scanned window
+     * @param stepsScanned  the number of counter values or time steps a code was computed for
+     * @param matchedOffset the offset of the matching code, or null if no code matched
+     */
+    public abstract void endWindowScan(OathAlgorithm algorithm, int stepsScanned, Integer matchedOffset);
+
+    private static boolean isJfrAvailable() {
+        try {
+            Class.forName("jdk.jfr.Event", false, OathPhaseTimer.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+}
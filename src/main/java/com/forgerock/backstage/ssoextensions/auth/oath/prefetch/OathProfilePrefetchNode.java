@@ -0,0 +1,87 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.prefetch;
+
+import com.forgerock.backstage.ssoextensions.auth.oath.OathHelper;
+import com.forgerock.backstage.ssoextensions.auth.oath.OathIoExecutor;
+import com.google.inject.assistedinject.Assisted;
+import org.forgerock.openam.auth.node.api.Action;
+import org.forgerock.openam.auth.node.api.Node;
+import org.forgerock.openam.auth.node.api.SingleOutcomeNode;
+import org.forgerock.openam.auth.node.api.TreeContext;
+import org.forgerock.openam.core.rest.devices.DevicePersistenceException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static com.forgerock.backstage.ssoextensions.auth.oath.OathConstants.OATH_PREFETCH_KEY;
+import static org.forgerock.openam.auth.node.api.SharedStateConstants.REALM;
+import static org.forgerock.openam.auth.node.api.SharedStateConstants.USERNAME;
+
+/**
+ * Starts loading the OATH device profile of the user in the background and goes on at once. Placed after the
+ * username is collected, it lets a later OATH Verifier node of the same tree find the profile loaded already, as long
+ * as it runs on the same server. The profile is bound to the tree by a nonce put into shared state, and is only used
+ * to send the verifier's callbacks; the submitted code is verified against the store. The prefetch is skipped when
+ * no background thread is free, in which case the verifier reads the store itself.
+ */
+@Node.Metadata(outcomeProvider = SingleOutcomeNode.OutcomeProvider.class,
+        configClass = OathProfilePrefetchNodeConfig.class)
+public class OathProfilePrefetchNode extends SingleOutcomeNode {
+
+    private final Logger logger = LoggerFactory.getLogger(OathProfilePrefetchNode.class);
+
+    private final OathProfilePrefetchNodeConfig config;
+    private final OathHelper helper;
+    private final OathIoExecutor ioExecutor;
+
+    @Inject
+    public OathProfilePrefetchNode(@Assisted OathProfilePrefetchNodeConfig config, OathHelper helper,
+                                   OathIoExecutor ioExecutor) {
+        this.config = config;
+        this.helper = helper;
+        this.ioExecutor = ioExecutor;
+    }
+
+    @Override
+    public Action process(TreeContext context) {
+        if (config.prefetchTtl() > 0 && context.sharedState.isDefined(USERNAME)
+                && context.sharedState.isDefined(REALM)) {
+            long ttlMillis = TimeUnit.SECONDS.toMillis(config.prefetchTtl());
+            String nonce = UUID.randomUUID().toString();
+            if (ioExecutor.tryExecute(() -> prefetch(context, nonce, ttlMillis))) {
+                return goToNext().replaceSharedState(context.sharedState.copy().put(OATH_PREFETCH_KEY, nonce)).build();
+            }
+            logger.debug("No thread free to prefetch the device profile");
+        }
+        return goToNext().build();
+    }
+
+    private void prefetch(TreeContext context, String nonce, long ttlMillis) {
+        try {
+            helper.prefetchOathDeviceSettings(context, nonce, ttlMillis);
+        } catch (DevicePersistenceException e) {
+            logger.debug("Cannot prefetch the device profile", e);
+        }
+    }
+}
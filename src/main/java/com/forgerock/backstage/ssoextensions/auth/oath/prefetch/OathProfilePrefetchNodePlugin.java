@@ -0,0 +1,52 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.prefetch;
+
+import org.forgerock.openam.auth.node.api.AbstractNodeAmPlugin;
+import org.forgerock.openam.auth.node.api.Node;
+import org.forgerock.openam.plugins.PluginException;
+import org.forgerock.openam.plugins.VersionComparison;
+
+import java.util.Collections;
+import java.util.Map;
+
+
+public class OathProfilePrefetchNodePlugin extends AbstractNodeAmPlugin {
+
+    static private String currentVersion = OathProfilePrefetchNodePlugin.class.getPackage().getImplementationVersion();
+
+    @Override
+    protected Map<String, Iterable<? extends Class<? extends Node>>> getNodesByVersion() {
+        return Collections.singletonMap(OathProfilePrefetchNodePlugin.currentVersion,
+                Collections.singletonList(OathProfilePrefetchNode.class));
+    }
+
+    @Override
+    public void upgrade(String fromVersion) throws PluginException {
+        if(VersionComparison.compareVersionStrings(fromVersion, getPluginVersion()) > 0) {
+            pluginTools.upgradeAuthNode(OathProfilePrefetchNode.class);
+        }
+    }
+
+    @Override
+    public String getPluginVersion() {
+        return OathProfilePrefetchNodePlugin.currentVersion;
+    }
+}
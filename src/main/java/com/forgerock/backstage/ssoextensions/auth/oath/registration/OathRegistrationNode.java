@@ -22,20 +22,29 @@ package com.forgerock.backstage.ssoextensions.auth.oath.registration;
 
 import com.forgerock.backstage.ssoextensions.auth.oath.OathAlgorithm;
 import com.forgerock.backstage.ssoextensions.auth.oath.OathHelper;
+import com.forgerock.backstage.ssoextensions.auth.oath.OathIdentityCache;
+import com.forgerock.backstage.ssoextensions.auth.oath.OathIoExecutor;
+import com.forgerock.backstage.ssoextensions.auth.oath.OathSecret;
+import com.forgerock.backstage.ssoextensions.auth.oath.RecoveryCodeHasher;
+import com.forgerock.backstage.ssoextensions.auth.oath.SharedStateEncryption;
+import com.forgerock.backstage.ssoextensions.auth.oath.audit.OathAuditEvent;
+import com.forgerock.backstage.ssoextensions.auth.oath.audit.OathAuditPipeline;
+import com.forgerock.backstage.ssoextensions.auth.oath.jfr.OathPhase;
+import com.forgerock.backstage.ssoextensions.auth.oath.jfr.OathPhaseTimer;
 import com.google.common.collect.ImmutableList;
 import com.google.inject.assistedinject.Assisted;
 import com.sun.identity.authentication.callbacks.HiddenValueCallback;
 import com.sun.identity.authentication.callbacks.ScriptTextOutputCallback;
 import com.sun.identity.idm.AMIdentity;
-import org.apache.commons.codec.DecoderException;
 import org.forgerock.json.JsonValue;
 import org.forgerock.openam.auth.node.api.*;
-import org.forgerock.openam.authentication.modules.fr.oath.AuthenticatorAppRegistrationURIBuilder;
 import org.forgerock.openam.core.rest.devices.oath.OathDeviceSettings;
 import org.forgerock.openam.utils.Alphabet;
 import org.forgerock.openam.utils.CodeException;
 import org.forgerock.openam.utils.RecoveryCodeGenerator;
 import org.forgerock.openam.utils.qr.GenerationUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import javax.inject.Inject;
 import javax.security.auth.callback.Callback;
@@ -43,19 +52,34 @@ import javax.security.auth.callback.ConfirmationCallback;
 import java.io.IOException;
 import java.util.Collections;
 import java.util.List;
+import java.util.Optional;
 import java.util.ResourceBundle;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import static com.forgerock.backstage.ssoextensions.auth.oath.OathConstants.OATH_DEVICE_PROFILE_KEY;
+import static com.forgerock.backstage.ssoextensions.auth.oath.OathConstants.OATH_PENDING_ENROLLMENT_KEY;
+import static org.forgerock.json.JsonValue.*;
+import static org.forgerock.openam.auth.node.api.SharedStateConstants.REALM;
+import static org.forgerock.openam.auth.node.api.SharedStateConstants.USERNAME;
 import static org.forgerock.openam.auth.nodes.RecoveryCodeDisplayNode.RECOVERY_CODE_DEVICE_NAME;
 import static org.forgerock.openam.auth.nodes.RecoveryCodeDisplayNode.RECOVERY_CODE_KEY;
+import static org.forgerock.openam.utils.Time.currentTimeMillis;
 
 @Node.Metadata(outcomeProvider = SingleOutcomeNode.OutcomeProvider.class,
         configClass = OathRegistrationNodeConfig.class)
 public class OathRegistrationNode extends SingleOutcomeNode {
 
+    private final Logger logger = LoggerFactory.getLogger(OathRegistrationNode.class);
+
     private final OathRegistrationNodeConfig config;
     private final OathHelper helper;
     private final RecoveryCodeGenerator recoveryCodeGenerator;
+    private final OathIoExecutor ioExecutor;
+    private final OathIdentityCache identityCache;
+    private final OathAuditPipeline auditPipeline;
 
     private static final int NUM_CODES = 10;
     private static final String CALLBACK_ELEMENT_ID = "callback_0";
@@ -69,43 +93,131 @@ public class OathRegistrationNode extends SingleOutcomeNode {
     @Inject
     public OathRegistrationNode(@Assisted OathRegistrationNodeConfig config,
                                 OathHelper helper,
-                                RecoveryCodeGenerator recoveryCodeGenerator) {
+                                RecoveryCodeGenerator recoveryCodeGenerator,
+                                OathIoExecutor ioExecutor,
+                                OathIdentityCache identityCache,
+                                OathAuditPipeline auditPipeline) {
         this.config = config;
         this.helper = helper;
         this.recoveryCodeGenerator = recoveryCodeGenerator;
+        this.ioExecutor = ioExecutor;
+        this.identityCache = identityCache;
+        this.auditPipeline = auditPipeline;
     }
 
     @Override
     public Action process(TreeContext context) throws NodeProcessException {
         if (context.getCallback(ConfirmationCallback.class).isPresent()) {
-            return goToNext().build();
+            Action.ActionBuilder actionBuilder = goToNext();
+            if (context.sharedState.isDefined(OATH_PENDING_ENROLLMENT_KEY)) {
+                JsonValue sharedState = context.sharedState.copy();
+                sharedState.remove(OATH_PENDING_ENROLLMENT_KEY);
+                actionBuilder.replaceSharedState(sharedState);
+            }
+            audit(context, "CONFIRMED");
+            return actionBuilder.build();
         }
 
-        return createDeviceProfileAndFinishWithCallbacks(context);
+        Optional<Action> pendingEnrollment = resendPendingEnrollment(context);
+        if (pendingEnrollment.isPresent()) {
+            audit(context, "RESENT");
+            return pendingEnrollment.get();
+        }
+        Action action = createDeviceProfileAndFinishWithCallbacks(context);
+        audit(context, "STARTED");
+        return action;
     }
 
-    private Action createDeviceProfileAndFinishWithCallbacks(TreeContext context) throws NodeProcessException {
-        List<String> recoveryCodes = config.generateRecoveryCodes() ? generateRecoveryCodes() : Collections.emptyList();
-        OathDeviceSettings settings = createDeviceSettings(recoveryCodes);
+    private void audit(TreeContext context, String outcome) {
+        if (auditPipeline.isEnabled()) {
+            auditPipeline.publish(new OathAuditEvent(currentTimeMillis(), OathAuditEvent.Type.REGISTRATION,
+                    context.sharedState.get(REALM).asString(), context.sharedState.get(USERNAME).asString(),
+                    outcome, null, null, null));
+        }
+    }
 
-        JsonValue sharedState;
-        try {
-            sharedState = context.sharedState.copy().put(OATH_DEVICE_PROFILE_KEY, helper.encryptOathDeviceSettings(settings));
+    /**
+     * Sends the callbacks of a device profile created by an earlier pass through this node that was not confirmed,
+     * e.g. because the page was refreshed, so a QR code the user already scanned stays valid.
+     *
+     * @param context Treecontext of the current request
+     * @return the action sending the callbacks again, or empty if there is no unexpired pending registration
+     * @throws NodeProcessException if the registration URI could not be built
+     */
+    private Optional<Action> resendPendingEnrollment(TreeContext context) throws NodeProcessException {
+        JsonValue pending = context.sharedState.get(OATH_PENDING_ENROLLMENT_KEY);
+        String encryptedSettings = context.sharedState.get(OATH_DEVICE_PROFILE_KEY).asString();
+        if (config.pendingEnrollmentExpiry() <= 0 || pending.isNull() || encryptedSettings == null) {
+            return Optional.empty();
+        }
 
-        } catch (IOException e) {
-            throw new NodeProcessException(e);
+        Long created = pending.get("created").asLong();
+        long age = created == null ? -1 : currentTimeMillis() - created;
+        if (!OathHelper.getUserKey(context).equals(pending.get("user").asString())
+                || age < 0 || age > TimeUnit.SECONDS.toMillis(config.pendingEnrollmentExpiry())) {
+            logger.debug("Pending registration in shared state is expired or belongs to another user");
+            return Optional.empty();
+        }
+
+        OathDeviceSettings settings;
+        try {
+            settings = helper.decryptOathDeviceSettings(encryptedSettings);
+        } catch (IOException | RuntimeException e) {
+            logger.debug("Cannot restore pending registration from shared state", e);
+            return Optional.empty();
         }
+        logger.debug("Sending callbacks of pending registration again");
+        AMIdentity identity = identityCache.getIdentity(context, helper, config.identityCacheTtl());
+        return Optional.of(sendCallbacks(context, settings, identity, context.sharedState.copy()));
+    }
+
+    private Action createDeviceProfileAndFinishWithCallbacks(TreeContext context) throws NodeProcessException {
+        // When overlapping, the directory lookup and the recovery code generation run while the secret is generated
+        CompletableFuture<AMIdentity> identity = start(
+                () -> identityCache.getIdentity(context, helper, config.identityCacheTtl()));
+        CompletableFuture<List<String>> generatedCodes = config.generateRecoveryCodes()
+                ? start(this::generateRecoveryCodes)
+                : CompletableFuture.completedFuture(Collections.emptyList());
+        OathDeviceSettings settings = createDeviceSettings();
+        List<String> recoveryCodes = await(generatedCodes);
+        settings.setRecoveryCodes(config.hashRecoveryCodes() ? RecoveryCodeHasher.hash(recoveryCodes) : recoveryCodes);
+
+        // When overlapping, both encryptions run in parallel, and the identity is joined last
+        SharedStateEncryption encryption = config.sharedStateEncryption();
+        CompletableFuture<String> encryptedSettings =
+                start(() -> helper.encryptOathDeviceSettings(settings, encryption));
+        String encryptedRecoveryCodes =
+                config.generateRecoveryCodes() ? helper.encryptList(recoveryCodes, encryption) : null;
+
+        JsonValue sharedState = context.sharedState.copy().put(OATH_DEVICE_PROFILE_KEY, await(encryptedSettings));
 
         if (config.generateRecoveryCodes()) {
             sharedState
-                    .put(RECOVERY_CODE_KEY, helper.encryptList(recoveryCodes))
+                    .put(RECOVERY_CODE_KEY, encryptedRecoveryCodes)
                     .put(RECOVERY_CODE_DEVICE_NAME, settings.getDeviceName());
         }
 
-        final String registrationUrl = getRegistrationUri(settings, helper.getIdentity(context));
+        if (config.pendingEnrollmentExpiry() > 0) {
+            sharedState.put(OATH_PENDING_ENROLLMENT_KEY, object(
+                    field("user", OathHelper.getUserKey(context)),
+                    field("created", currentTimeMillis())));
+        }
+
+        return sendCallbacks(context, settings, await(identity), sharedState);
+    }
 
-        final String script = GenerationUtils.getQRCodeGenerationJavascriptForAuthenticatorAppRegistration(
-                CALLBACK_ELEMENT_ID, registrationUrl);
+    private Action sendCallbacks(TreeContext context, OathDeviceSettings settings, AMIdentity identity,
+                                 JsonValue sharedState) throws NodeProcessException {
+        final String registrationUrl;
+        final String script;
+        OathPhaseTimer timer = OathPhaseTimer.start(OathPhase.QR_SCRIPT);
+        try {
+            registrationUrl = getRegistrationUri(settings, identity);
+            script = GenerationUtils.getQRCodeGenerationJavascriptForAuthenticatorAppRegistration(
+                    CALLBACK_ELEMENT_ID, registrationUrl);
+        } finally {
+            timer.end();
+        }
 
 
         ResourceBundle bundle = context.request.locales.getBundleInPreferredLocale(BUNDLEPATH, getClass().getClassLoader());
@@ -129,39 +241,83 @@ public class OathRegistrationNode extends SingleOutcomeNode {
         }
     }
 
-    private OathDeviceSettings createDeviceSettings(List<String> recoveryCodes) {
-        OathDeviceSettings settings = helper.createDeviceProfile(config.minSharedSecretLength());
+    private OathDeviceSettings createDeviceSettings() {
+        OathDeviceSettings settings;
+        OathPhaseTimer timer = OathPhaseTimer.start(OathPhase.SECRET_GENERATION);
+        try {
+            settings = helper.createDeviceProfile(config.minSharedSecretLength());
+        } finally {
+            timer.end();
+        }
         settings.setChecksumDigit(config.checksum());
-        settings.setRecoveryCodes(recoveryCodes);
         return settings;
     }
 
+    /**
+     * Starts a step on the {@link OathIoExecutor} if overlapping is enabled, otherwise runs it on the request thread.
+     */
+    private <T> CompletableFuture<T> start(Callable<T> step) {
+        if (config.overlapIo()) {
+            return ioExecutor.submit(step);
+        }
+        CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            future.complete(step.call());
+        } catch (Exception e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * Waits for a step started by {@link #start(Callable)}, failing the same way as if it had run on the request
+     * thread.
+     */
+    private static <T> T await(CompletableFuture<T> future) throws NodeProcessException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new NodeProcessException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof NodeProcessException) {
+                throw (NodeProcessException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new NodeProcessException(cause);
+        }
+    }
+
 
     private String getRegistrationUri(OathDeviceSettings settings, AMIdentity id) throws NodeProcessException {
-        if (settings == null) {
+        if (settings == null || settings.getSharedSecret() == null) {
             throw new NodeProcessException("Invalid settings");
         }
 
-        final AuthenticatorAppRegistrationURIBuilder builder = new AuthenticatorAppRegistrationURIBuilder(
-                id,
-                settings.getSharedSecret(),
-                config.passwordLength(),
-                config.issuerName()
-        );
+        OathSecret secret;
+        try {
+            secret = OathSecret.fromHex(settings.getSharedSecret());
+        } catch (IllegalArgumentException e) {
+            throw new NodeProcessException("Could not decode secret key from hex", e);
+        }
+        String accountName = id == null ? null : id.getName();
 
         OathAlgorithm algorithm = this.config.algorithm();
 
-        try {
-            if (OathAlgorithm.HOTP.equals(algorithm)) {
-                int counter = settings.getCounter();
-                return builder.getAuthenticatorAppRegistrationUriForHOTP(counter);
-            } else if (OathAlgorithm.TOTP.equals(algorithm)) {
-                return builder.getAuthenticatorAppRegistrationUriForTOTP(config.totpTimeStepInterval());
-            } else {
-                throw new NodeProcessException("No OTP algorithm selected");
-            }
-        } catch (DecoderException e) {
-            throw new NodeProcessException("Could not decode secret key from hex to plain text", e);
+        if (OathAlgorithm.HOTP.equals(algorithm)) {
+            int counter = settings.getCounter();
+            return OtpAuthUri.hotp(secret, accountName, config.issuerName(), config.passwordLength(), counter);
+        } else if (OathAlgorithm.TOTP.equals(algorithm)) {
+            return OtpAuthUri.totp(secret, accountName, config.issuerName(), config.passwordLength(),
+                    config.totpTimeStepInterval());
+        } else {
+            throw new NodeProcessException("No OTP algorithm selected");
         }
     }
 
@@ -20,7 +20,9 @@
 package com.forgerock.backstage.ssoextensions.auth.oath.registration;
 
 import com.forgerock.backstage.ssoextensions.auth.oath.OathAlgorithm;
+import com.forgerock.backstage.ssoextensions.auth.oath.SharedStateEncryption;
 import com.forgerock.backstage.ssoextensions.auth.oath.verifier.OathAlgorithmAttribute;
+import com.forgerock.backstage.ssoextensions.auth.oath.verifier.SharedStateEncryptionAttribute;
 import org.forgerock.openam.annotations.sm.Attribute;
 
 public interface OathRegistrationNodeConfig {
@@ -59,4 +61,30 @@ public interface OathRegistrationNodeConfig {
     default boolean generateRecoveryCodes() {
         return false;
     }
+
+    @Attribute(order = 800)
+    default boolean hashRecoveryCodes() {
+        return false;
+    }
+
+    @Attribute(order = 900)
+    default int identityCacheTtl() {
+        return 60;
+    }
+
+    @Attribute(order = 1000)
+    default int pendingEnrollmentExpiry() {
+        return 0;
+    }
+
+    @Attribute(order = 1100)
+    @SharedStateEncryptionAttribute
+    default SharedStateEncryption sharedStateEncryption() {
+        return SharedStateEncryption.A128CBC_HS256;
+    }
+
+    @Attribute(order = 1200)
+    default boolean overlapIo() {
+        return false;
+    }
 }
@@ -19,6 +19,7 @@
 
 package com.forgerock.backstage.ssoextensions.auth.oath.registration;
 
+import com.forgerock.backstage.ssoextensions.auth.oath.verifier.OathWarmUp;
 import org.forgerock.openam.auth.node.api.AbstractNodeAmPlugin;
 import org.forgerock.openam.auth.node.api.Node;
 import org.forgerock.openam.plugins.PluginException;
@@ -38,6 +39,12 @@ public class OathRegistrationNodePlugin extends AbstractNodeAmPlugin {
                 Collections.singletonList(OathRegistrationNode.class));
     }
 
+    @Override
+    public void onStartup() throws PluginException {
+        super.onStartup();
+        OathWarmUp.start(OathRegistrationNode.BUNDLEPATH, OathRegistrationNode.class.getClassLoader());
+    }
+
     @Override
     public void upgrade(String fromVersion) throws PluginException {
         if(VersionComparison.compareVersionStrings(fromVersion, getPluginVersion()) > 0) {
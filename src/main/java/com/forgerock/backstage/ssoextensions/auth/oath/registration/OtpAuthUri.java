@@ -0,0 +1,65 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.registration;
+
+import com.forgerock.backstage.ssoextensions.auth.oath.OathSecret;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+
+/**
+ * Builds the {@code otpauth://} URIs that authenticator apps scan to register a device, in the same format as
+ * AM's {@code AuthenticatorAppRegistrationURIBuilder}, including the base32 padding of the secret.
+ */
+final class OtpAuthUri {
+
+    private OtpAuthUri() {
+    }
+
+    static String hotp(OathSecret secret, String accountName, String issuer, int digits, int counter) {
+        return build("hotp", secret, accountName, issuer, digits).append("&counter=").append(counter).toString();
+    }
+
+    static String totp(OathSecret secret, String accountName, String issuer, int digits, int period) {
+        return build("totp", secret, accountName, issuer, digits).append("&period=").append(period).toString();
+    }
+
+    private static StringBuilder build(String type, OathSecret secret, String accountName, String issuer,
+                                       int digits) {
+        String encodedIssuer = encode(issuer);
+        return new StringBuilder(128)
+                .append("otpauth://").append(type).append('/')
+                .append(encodedIssuer).append(':').append(encode(accountName))
+                .append("?secret=").append(secret.toBase32())
+                .append("&issuer=").append(encodedIssuer)
+                .append("&digits=").append(digits);
+    }
+
+    private static String encode(String value) {
+        if (value == null) {
+            return "";
+        }
+        try {
+            return URLEncoder.encode(value, "UTF-8").replace("+", "%20");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -19,6 +19,7 @@
 
 package com.forgerock.backstage.ssoextensions.auth.oath.verifier;
 
+import com.forgerock.backstage.ssoextensions.auth.oath.OathSecret;
 import org.forgerock.openam.core.rest.devices.oath.OathDeviceSettings;
 
 import java.security.MessageDigest;
@@ -26,15 +27,72 @@ import java.security.MessageDigest;
 abstract class AbstractOathVerifier {
     final OathVerifierNodeConfig config;
     final OathDeviceSettings settings;
+    private final GeneratorSource generators;
+    private boolean narrowed;
+    private int stepsScanned;
+    private Integer matchedOffset;
 
     AbstractOathVerifier(OathVerifierNodeConfig config, OathDeviceSettings settings) {
+        this(config, settings, OathCodeGenerator::new);
+    }
+
+    AbstractOathVerifier(OathVerifierNodeConfig config, OathDeviceSettings settings, GeneratorSource generators) {
         this.config = config;
         this.settings = settings;
+        this.generators = generators;
+    }
+
+    /**
+     * Verifies the OTP and updates the device settings on success.
+     *
+     * @param otp the OTP entered by the user
+     * @return the number of counter values or time steps between the expected and the matching code
+     * @throws OathVerificationException if the OTP is not valid
+     */
+    abstract int verify(String otp) throws OathVerificationException;
+
+    /**
+     * Restricts the window scanned by {@link #verify(String)} to the current counter or time step.
+     */
+    void narrowWindow() {
+        this.narrowed = true;
+    }
+
+    boolean isNarrowed() {
+        return narrowed;
+    }
+
+    /**
+     * Counts a counter value or time step a code was computed for.
+     */
+    void stepScanned() {
+        stepsScanned++;
     }
 
-    abstract void verify(String otp) throws OathVerificationException;
+    /**
+     * @return the number of counter values or time steps {@link #verify(String)} computed a code for
+     */
+    int getStepsScanned() {
+        return stepsScanned;
+    }
+
+    /**
+     * Notes the offset of the counter value or time step whose code matched, before the match is checked further.
+     *
+     * @param offset the offset from the expected counter value or time step
+     */
+    void matched(int offset) {
+        matchedOffset = offset;
+    }
+
+    /**
+     * @return the offset of the code that matched, also if it was rejected afterwards, or null if none matched
+     */
+    Integer getMatchedOffset() {
+        return matchedOffset;
+    }
 
-    String getSharedSecret() throws OathVerificationException {
+    OathSecret getSecret() throws OathVerificationException {
         String sharedSecret = settings.getSharedSecret();
         if (config.minSharedSecretLength() <= 0) {
             throw new OathVerificationException("Min Secret Key Length is not a valid value");
@@ -49,20 +107,26 @@ abstract class AbstractOathVerifier {
                     + " is less than the minimum secret key length");
         }
 
-        // get rid of white space in string (messes with the data converter)
-        sharedSecret = sharedSecret.replaceAll("\\s+", "");
-        // convert sharedSecret to lowercase
-        sharedSecret = sharedSecret.toLowerCase();
-        // make sure sharedSecret is even length
-        if ((sharedSecret.length() % 2) != 0) {
-            sharedSecret = "0" + sharedSecret;
+        // white space is ignored and an odd length is read as if the secret had a leading zero
+        try {
+            return OathSecret.fromHex(sharedSecret);
+        } catch (IllegalArgumentException e) {
+            throw new OathVerificationException("Secret key is not a valid value", e);
         }
+    }
 
-
-        return sharedSecret;
+    OathCodeGenerator getGenerator() throws OathVerificationException {
+        return generators.get(getSecret());
     }
 
     boolean isEqual(String str1, String str2) {
         return MessageDigest.isEqual(str1.getBytes(), str2.getBytes());
     }
+
+    /**
+     * Provides the code generator for a shared secret.
+     */
+    interface GeneratorSource {
+        OathCodeGenerator get(OathSecret secret) throws OathVerificationException;
+    }
 }
@@ -0,0 +1,40 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.verifier;
+
+import com.google.inject.ImplementedBy;
+
+/**
+ * Limits the number of verification attempts per key (usually realm and username) before any profile is loaded
+ * or any OTP is computed.
+ */
+@ImplementedBy(InMemoryAttemptThrottle.class)
+public interface AttemptThrottle {
+
+    /**
+     * Takes one attempt from the token bucket of the given key.
+     *
+     * @param key            the throttling key
+     * @param capacity       the maximum number of attempts that can be made in a burst
+     * @param refillInterval the number of milliseconds after which one attempt is given back
+     * @return true if the attempt is allowed, false if it should be rejected
+     */
+    boolean tryAcquire(String key, int capacity, long refillInterval);
+}
@@ -19,36 +19,34 @@
 
 package com.forgerock.backstage.ssoextensions.auth.oath.verifier;
 
-import com.sun.identity.authentication.modules.hotp.HOTPAlgorithm;
-import com.sun.identity.authentication.modules.hotp.OTPGenerator;
 import org.forgerock.openam.core.rest.devices.oath.OathDeviceSettings;
 
-import javax.xml.bind.DatatypeConverter;
-
 public final class HotpVerifier extends AbstractOathVerifier {
-    private final OTPGenerator hotpGenerator = new HOTPAlgorithm();
 
     HotpVerifier(OathVerifierNodeConfig config, OathDeviceSettings settings) {
         super(config, settings);
     }
 
+    HotpVerifier(OathVerifierNodeConfig config, OathDeviceSettings settings, GeneratorSource generators) {
+        super(config, settings, generators);
+    }
+
     @Override
-    void verify(String otp) throws OathVerificationException {
+    int verify(String otp) throws OathVerificationException {
         int counter = settings.getCounter();
-        byte[] sharedSecretBytes = DatatypeConverter.parseHexBinary(getSharedSecret());
+        OathCodeGenerator generator = getGenerator();
+
+        int windowSize = isNarrowed() ? 0 : config.hotpWindowSize();
 
         //test the counter in the lookahead window
-        for (int i = 0; i <= config.hotpWindowSize(); i++) {
-            String otpGen;
-            try {
-                otpGen = hotpGenerator.generateOTP(sharedSecretBytes, counter + i, config.passwordLength(), config.checksum(),
-                        config.truncationOffset());
-            } catch (Exception e) {
-                throw new OathVerificationException(e.getMessage(), e);
-            }
+        for (int i = 0; i <= windowSize; i++) {
+            stepScanned();
+            String otpGen = generator.hotp(counter + i, config.passwordLength(), config.checksum(),
+                    config.truncationOffset());
             if (isEqual(otpGen, otp)) {
+                matched(i);
                 settings.setCounter(counter + i);
-                return;
+                return i;
             }
         }
         throw new OathVerificationException();
@@ -0,0 +1,172 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.verifier;
+
+import org.forgerock.util.annotations.VisibleForTesting;
+
+import javax.inject.Singleton;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+import static org.forgerock.openam.utils.Time.currentTimeMillis;
+
+/**
+ * In-process {@link AttemptThrottle} backed by a {@link ConcurrentHashMap} of token buckets.
+ * <p>
+ * Each bucket is a single {@link AtomicLong} holding the time of the last refill and the number of remaining
+ * tokens, so attempts are taken with a compare-and-set loop and never block. Buckets that have been idle long
+ * enough to be full again carry no information and are evicted periodically, or when the map reaches its maximum
+ * size. A bucket is marked dead with the same compare-and-set before it is removed, so an attempt taken concurrently
+ * is either seen by the sweep or retried on a new bucket. Buckets that are not full are never evicted: when the map is
+ * full of them, attempts of users without a bucket are rejected until buckets are full again, so creating buckets
+ * for many other users cannot reset the budget of a throttled user.
+ */
+@Singleton
+public class InMemoryAttemptThrottle implements AttemptThrottle {
+    static final int DEFAULT_MAX_ENTRIES = 100_000;
+    private static final long SWEEP_INTERVAL = 60_000L;
+    private static final long FULL_SWEEP_INTERVAL = 1_000L;
+    private static final long DEAD = -1L;
+    private static final int TOKEN_BITS = 20;
+    private static final long TOKEN_MASK = (1L << TOKEN_BITS) - 1;
+
+    private final Map<String, AtomicLong> buckets = new ConcurrentHashMap<>();
+    private final AtomicLong nextSweep = new AtomicLong();
+    private final AtomicLong nextFullSweep = new AtomicLong();
+    private final int maxEntries;
+    private final LongSupplier clock;
+
+    public InMemoryAttemptThrottle() {
+        this(DEFAULT_MAX_ENTRIES, () -> currentTimeMillis());
+    }
+
+    @VisibleForTesting
+    InMemoryAttemptThrottle(int maxEntries, LongSupplier clock) {
+        this.maxEntries = maxEntries;
+        this.clock = clock;
+    }
+
+    @Override
+    public boolean tryAcquire(String key, int capacity, long refillInterval) {
+        if (capacity <= 0 || refillInterval <= 0) {
+            return true;
+        }
+        long max = Math.min(capacity, TOKEN_MASK);
+        long now = clock.getAsLong();
+        sweepIfDue(now, max, refillInterval);
+
+        while (true) {
+            AtomicLong bucket = buckets.get(key);
+            if (bucket == null) {
+                if (buckets.size() >= maxEntries) {
+                    sweepIfFull(now, max, refillInterval);
+                    if (buckets.size() >= maxEntries) {
+                        return false;
+                    }
+                }
+                AtomicLong created = new AtomicLong(pack(now, max));
+                bucket = buckets.putIfAbsent(key, created);
+                if (bucket == null) {
+                    bucket = created;
+                }
+            }
+            Boolean acquired = tryAcquire(bucket, now, max, refillInterval);
+            if (acquired != null) {
+                return acquired;
+            }
+            buckets.remove(key, bucket);
+        }
+    }
+
+    /**
+     * @return whether a token was taken, null if the bucket was evicted
+     */
+    private static Boolean tryAcquire(AtomicLong bucket, long now, long max, long refillInterval) {
+        while (true) {
+            long state = bucket.get();
+            if (state == DEAD) {
+                return null;
+            }
+            long last = lastRefill(state);
+            long tokens = tokens(state);
+            long refills = (now - last) / refillInterval;
+            if (refills > 0) {
+                tokens = Math.min(max, tokens + refills);
+                last = tokens == max ? now : last + refills * refillInterval;
+            }
+            if (tokens == 0) {
+                return false;
+            }
+            if (bucket.compareAndSet(state, pack(last, tokens - 1))) {
+                return true;
+            }
+        }
+    }
+
+    @VisibleForTesting
+    int size() {
+        return buckets.size();
+    }
+
+    private void sweepIfDue(long now, long max, long refillInterval) {
+        long due = nextSweep.get();
+        if (now >= due && nextSweep.compareAndSet(due, now + SWEEP_INTERVAL)) {
+            sweep(now, max, refillInterval);
+        }
+    }
+
+    /**
+     * Sweeps a full map, at most once per {@value #FULL_SWEEP_INTERVAL} ms so rejected attempts do not each scan it.
+     */
+    private void sweepIfFull(long now, long max, long refillInterval) {
+        long due = nextFullSweep.get();
+        if (now >= due && nextFullSweep.compareAndSet(due, now + FULL_SWEEP_INTERVAL)) {
+            sweep(now, max, refillInterval);
+        }
+    }
+
+    /**
+     * Removes buckets that have been refilled completely.
+     */
+    private void sweep(long now, long max, long refillInterval) {
+        for (Map.Entry<String, AtomicLong> entry : buckets.entrySet()) {
+            AtomicLong bucket = entry.getValue();
+            long state = bucket.get();
+            if (state == DEAD || tokens(state) + (now - lastRefill(state)) / refillInterval >= max
+                    && bucket.compareAndSet(state, DEAD)) {
+                buckets.remove(entry.getKey(), bucket);
+            }
+        }
+    }
+
+    private static long pack(long lastRefill, long tokens) {
+        return (lastRefill << TOKEN_BITS) | tokens;
+    }
+
+    private static long lastRefill(long state) {
+        return state >>> TOKEN_BITS;
+    }
+
+    private static long tokens(long state) {
+        return state & TOKEN_MASK;
+    }
+}
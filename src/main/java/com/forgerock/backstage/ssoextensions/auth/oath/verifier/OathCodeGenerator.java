@@ -0,0 +1,151 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.verifier;
+
+import com.forgerock.backstage.ssoextensions.auth.oath.OathSecret;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Generates HOTP (RFC 4226) and TOTP (RFC 6238) codes for one shared secret.
+ * The keyed MAC is initialised once and the HMAC of every moving factor is kept, so scanning overlapping windows
+ * for several codes of the same secret computes each HMAC only once. Instances are not thread-safe.
+ */
+final class OathCodeGenerator {
+    private static final String ALGORITHM = "HmacSHA1";
+    private static final int[] DOUBLE_DIGITS = {0, 2, 4, 6, 8, 1, 3, 5, 7, 9};
+
+    private final Mac mac;
+    private final Map<Long, byte[]> hashes = new HashMap<>();
+
+    /**
+     * @param secret the shared secret
+     * @throws OathVerificationException if the secret cannot be used as HMAC key
+     */
+    OathCodeGenerator(OathSecret secret) throws OathVerificationException {
+        try {
+            mac = Mac.getInstance(ALGORITHM);
+            mac.init(new SecretKeySpec(secret.getBytes(), "RAW"));
+        } catch (GeneralSecurityException | IllegalArgumentException e) {
+            throw new OathVerificationException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @param counter          the moving factor
+     * @param digits           the number of digits, without the checksum digit
+     * @param checksum         whether to append a checksum digit
+     * @param truncationOffset the offset into the HMAC to truncate at, or a value outside of it for dynamic truncation
+     * @return the HOTP code
+     */
+    String hotp(long counter, int digits, boolean checksum, int truncationOffset) {
+        byte[] hash = hash(counter);
+        int offset = hash[hash.length - 1] & 0xf;
+        if (truncationOffset >= 0 && truncationOffset < hash.length - 4) {
+            offset = truncationOffset;
+        }
+        long otp = truncate(hash, offset) % pow10(digits);
+        if (checksum) {
+            otp = otp * 10 + checksum(otp, digits);
+            digits++;
+        }
+        return pad(otp, digits);
+    }
+
+    /**
+     * @param timeStep the time step
+     * @param digits   the number of digits
+     * @return the TOTP code
+     */
+    String totp(long timeStep, int digits) {
+        byte[] hash = hash(timeStep);
+        return pad(truncate(hash, hash[hash.length - 1] & 0xf) % pow10(digits), digits);
+    }
+
+    /**
+     * Computes the HMACs of a range of moving factors ahead of the codes being asked for.
+     *
+     * @param from the first moving factor
+     * @param to   the last moving factor
+     */
+    void precompute(long from, long to) {
+        for (long movingFactor = from; movingFactor <= to; movingFactor++) {
+            hash(movingFactor);
+        }
+    }
+
+    private byte[] hash(long movingFactor) {
+        byte[] hash = hashes.get(movingFactor);
+        if (hash == null) {
+            byte[] message = new byte[8];
+            long value = movingFactor;
+            for (int i = message.length - 1; i >= 0; i--) {
+                message[i] = (byte) value;
+                value >>>= 8;
+            }
+            hash = mac.doFinal(message);
+            hashes.put(movingFactor, hash);
+        }
+        return hash;
+    }
+
+    private static long truncate(byte[] hash, int offset) {
+        return ((hash[offset] & 0x7f) << 24)
+                | ((hash[offset + 1] & 0xff) << 16)
+                | ((hash[offset + 2] & 0xff) << 8)
+                | (hash[offset + 3] & 0xff);
+    }
+
+    private static long pow10(int digits) {
+        long power = 1;
+        for (int i = 0; i < digits; i++) {
+            power *= 10;
+        }
+        return power;
+    }
+
+    private static int checksum(long num, int digits) {
+        boolean doubleDigit = true;
+        int total = 0;
+        while (0 < digits--) {
+            int digit = (int) (num % 10);
+            num /= 10;
+            if (doubleDigit) {
+                digit = DOUBLE_DIGITS[digit];
+            }
+            total += digit;
+            doubleDigit = !doubleDigit;
+        }
+        int result = total % 10;
+        return result > 0 ? 10 - result : 0;
+    }
+
+    private static String pad(long otp, int digits) {
+        StringBuilder result = new StringBuilder(Long.toString(otp));
+        while (result.length() < digits) {
+            result.insert(0, '0');
+        }
+        return result.toString();
+    }
+}
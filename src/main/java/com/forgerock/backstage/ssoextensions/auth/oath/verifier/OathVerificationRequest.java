@@ -0,0 +1,47 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.verifier;
+
+import org.forgerock.openam.core.rest.devices.oath.OathDeviceSettings;
+
+/**
+ * One OTP to verify as part of a batch.
+ */
+public final class OathVerificationRequest {
+    private final OathDeviceSettings settings;
+    private final String otp;
+
+    /**
+     * @param settings the device profile of the user, updated in place on success
+     * @param otp      the OTP entered by the user
+     */
+    public OathVerificationRequest(OathDeviceSettings settings, String otp) {
+        this.settings = settings;
+        this.otp = otp;
+    }
+
+    public OathDeviceSettings getSettings() {
+        return settings;
+    }
+
+    public String getOtp() {
+        return otp;
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.verifier;
+
+/**
+ * The outcome of verifying one OTP.
+ */
+public final class OathVerificationResult {
+    private final boolean valid;
+    private final int offset;
+    private final String failureReason;
+    private final int stepsScanned;
+
+    private OathVerificationResult(boolean valid, int offset, String failureReason, int stepsScanned) {
+        this.valid = valid;
+        this.offset = offset;
+        this.failureReason = failureReason;
+        this.stepsScanned = stepsScanned;
+    }
+
+    static OathVerificationResult success(int offset, int stepsScanned) {
+        return new OathVerificationResult(true, offset, null, stepsScanned);
+    }
+
+    static OathVerificationResult failure(String reason) {
+        return failure(reason, 0);
+    }
+
+    static OathVerificationResult failure(String reason, int stepsScanned) {
+        return new OathVerificationResult(false, 0, reason == null ? "Invalid OTP" : reason, stepsScanned);
+    }
+
+    /**
+     * @return whether the OTP was valid
+     */
+    public boolean isValid() {
+        return valid;
+    }
+
+    /**
+     * @return for a valid OTP, the number of counter values (HOTP) or time steps (TOTP) between the expected code
+     * and the matching one; negative for a TOTP code of an earlier time step
+     */
+    public int getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return for an invalid OTP, why it was rejected; not meant to be shown to the user
+     */
+    public String getFailureReason() {
+        return failureReason;
+    }
+
+    /**
+     * @return the number of counter values or time steps a code was computed for
+     */
+    public int getStepsScanned() {
+        return stepsScanned;
+    }
+
+    @Override
+    public String toString() {
+        return valid ? "valid, offset " + offset : "invalid: " + failureReason;
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.verifier;
+
+import com.forgerock.backstage.ssoextensions.auth.oath.OathAlgorithm;
+import com.forgerock.backstage.ssoextensions.auth.oath.OathSecret;
+import com.forgerock.backstage.ssoextensions.auth.oath.jfr.OathPhase;
+import com.forgerock.backstage.ssoextensions.auth.oath.jfr.OathPhaseTimer;
+import org.forgerock.openam.core.rest.devices.oath.OathDeviceSettings;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.forgerock.openam.utils.Time.currentTimeMillis;
+
+/**
+ * Verifies HOTP and TOTP codes against OATH device profiles, for the verifier node and for any other component that
+ * needs to check a code. The settings are taken from an {@link OathVerifierNodeConfig}; as all of its methods have
+ * defaults, callers outside of a tree can pass an anonymous implementation overriding only what they need.
+ * <p>
+ * On success the counter, last login time and clock drift of the device profile are updated in place, and it is up
+ * to the caller to store the profile. The service holds no state and can be used from any number of threads, as long
+ * as a device profile is not verified concurrently.
+ * <p>
+ * When the {@link VerificationTraceRecorder} captures traces, every verification of a well formed request leaves one.
+ */
+@Singleton
+public class OathVerificationService {
+    private final VerificationTraceRecorder traces;
+
+    /**
+     * Creates a service that captures no traces, for callers outside of a tree.
+     */
+    public OathVerificationService() {
+        this(new VerificationTraceRecorder(0));
+    }
+
+    /**
+     * @param traces captures what every verification saw of the device
+     */
+    @Inject
+    public OathVerificationService(VerificationTraceRecorder traces) {
+        this.traces = traces;
+    }
+
+    /**
+     * Verifies an OTP, scanning the configured window.
+     *
+     * @param settings the device profile
+     * @param otp      the OTP entered by the user
+     * @param config   the verification settings
+     * @return the result
+     */
+    public OathVerificationResult verify(OathDeviceSettings settings, String otp, OathVerifierNodeConfig config) {
+        return verify(settings, otp, config, false);
+    }
+
+    /**
+     * Verifies an OTP.
+     *
+     * @param settings     the device profile
+     * @param otp          the OTP entered by the user
+     * @param config       the verification settings
+     * @param narrowWindow whether only the current counter or time step should be checked
+     * @return the result
+     */
+    public OathVerificationResult verify(OathDeviceSettings settings, String otp, OathVerifierNodeConfig config,
+            boolean narrowWindow) {
+        return verify(settings, otp, config, narrowWindow, OathCodeGenerator::new,
+                currentTimeMillis() / 1000L);
+    }
+
+    /**
+     * Verifies an OTP with code generators from the given source, e.g. ones whose HMACs were computed ahead of time.
+     *
+     * @param settings     the device profile
+     * @param otp          the OTP entered by the user
+     * @param config       the verification settings
+     * @param narrowWindow whether only the current counter or time step should be checked
+     * @param generators   provides the code generator for the secret of the profile
+     * @return the result
+     */
+    OathVerificationResult verify(OathDeviceSettings settings, String otp, OathVerifierNodeConfig config,
+            boolean narrowWindow, AbstractOathVerifier.GeneratorSource generators) {
+        return verify(settings, otp, config, narrowWindow, generators, currentTimeMillis() / 1000L);
+    }
+
+    /**
+     * Verifies a batch of OTPs. Requests for the same shared secret are verified one after the other with one keyed
+     * MAC, so overlapping windows are computed once; requests for the same device profile see the updates made by
+     * the earlier ones.
+     *
+     * @param requests the OTPs to verify
+     * @param config   the verification settings
+     * @return the results, in the order of the requests
+     */
+    public List<OathVerificationResult> verifyAll(List<OathVerificationRequest> requests,
+            OathVerifierNodeConfig config) {
+        long time = currentTimeMillis() / 1000L;
+        Map<String, List<Integer>> bySecret = new LinkedHashMap<>();
+        for (int i = 0; i < requests.size(); i++) {
+            OathDeviceSettings settings = requests.get(i).getSettings();
+            String secret = settings == null ? null : settings.getSharedSecret();
+            bySecret.computeIfAbsent(secret, s -> new ArrayList<>()).add(i);
+        }
+
+        OathVerificationResult[] results = new OathVerificationResult[requests.size()];
+        for (List<Integer> group : bySecret.values()) {
+            Map<OathSecret, OathCodeGenerator> generators = new HashMap<>(2);
+            AbstractOathVerifier.GeneratorSource shared = secret -> {
+                OathCodeGenerator generator = generators.get(secret);
+                if (generator == null) {
+                    generator = new OathCodeGenerator(secret);
+                    generators.put(secret, generator);
+                }
+                return generator;
+            };
+            for (int index : group) {
+                OathVerificationRequest request = requests.get(index);
+                results[index] = verify(request.getSettings(), request.getOtp(), config, false, shared, time);
+            }
+        }
+        return Arrays.asList(results);
+    }
+
+    private OathVerificationResult verify(OathDeviceSettings settings, String otp, OathVerifierNodeConfig config,
+            boolean narrowWindow, AbstractOathVerifier.GeneratorSource generators, long time) {
+        if (settings == null) {
+            return OathVerificationResult.failure("Invalid stored settings");
+        }
+
+        if (config.minSharedSecretLength() <= 0) {
+            return OathVerificationResult.failure("Min Secret Key Length is not a valid value");
+        }
+
+        // check password length MUST be 6 or higher according to RFC
+        if (config.passwordLength() < 6) {
+            return OathVerificationResult.failure("Password length is smaller than 6");
+        }
+
+        if (otp == null) {
+            return OathVerificationResult.failure("No OTP provided");
+        }
+
+        AbstractOathVerifier verifier;
+        if (OathAlgorithm.HOTP.equals(config.algorithm())) {
+            verifier = new HotpVerifier(config, settings, generators);
+        } else if (OathAlgorithm.TOTP.equals(config.algorithm())) {
+            verifier = new TotpVerifier(config, settings, time, generators);
+        } else {
+            return OathVerificationResult.failure("Invalid OTP algorithm");
+        }
+
+        if (narrowWindow) {
+            verifier.narrowWindow();
+        }
+        long lastLogin = settings.getLastLogin();
+        int clockDrift = settings.getClockDriftSeconds();
+        OathPhaseTimer timer = OathPhaseTimer.start(OathPhase.WINDOW_SCAN);
+        try {
+            int offset = verifier.verify(otp);
+            timer.endWindowScan(config.algorithm(), verifier.getStepsScanned(), offset);
+            trace(settings, config, narrowWindow, time, lastLogin, clockDrift, verifier, true);
+            return OathVerificationResult.success(offset, verifier.getStepsScanned());
+        } catch (OathVerificationException e) {
+            timer.endWindowScan(config.algorithm(), verifier.getStepsScanned(), null);
+            trace(settings, config, narrowWindow, time, lastLogin, clockDrift, verifier, false);
+            return OathVerificationResult.failure(e.getMessage(), verifier.getStepsScanned());
+        }
+    }
+
+    private void trace(OathDeviceSettings settings, OathVerifierNodeConfig config, boolean narrowWindow, long time,
+            long lastLogin, int clockDrift, AbstractOathVerifier verifier, boolean accepted) {
+        if (!traces.isEnabled()) {
+            return;
+        }
+        boolean totp = OathAlgorithm.TOTP.equals(config.algorithm());
+        int interval = totp ? config.totpTimeStepInterval() : 0;
+        traces.record(new VerificationTrace(time, traces.anonymise(settings), config.algorithm(), interval,
+                totp ? config.totpTimeStepInWindow() : config.hotpWindowSize(), narrowWindow,
+                totp ? config.totpMaxClockDrift() : 0, totp && lastLogin > 0 ? time - lastLogin : -1,
+                interval > 0 ? clockDrift / interval : 0, verifier.getMatchedOffset(), accepted,
+                verifier.getStepsScanned()));
+    }
+}
@@ -21,6 +21,11 @@ package com.forgerock.backstage.ssoextensions.auth.oath.verifier;
 
 import com.forgerock.backstage.ssoextensions.auth.oath.OathAlgorithm;
 import com.forgerock.backstage.ssoextensions.auth.oath.OathHelper;
+import com.forgerock.backstage.ssoextensions.auth.oath.ProfileStoreUnavailableException;
+import com.forgerock.backstage.ssoextensions.auth.oath.RecoveryCodeHasher;
+import com.forgerock.backstage.ssoextensions.auth.oath.audit.OathAuditEvent;
+import com.forgerock.backstage.ssoextensions.auth.oath.audit.OathAuditPipeline;
+import com.forgerock.backstage.ssoextensions.auth.oath.audit.RecentAttempts;
 import com.google.common.collect.ImmutableList;
 import com.google.inject.assistedinject.Assisted;
 import org.forgerock.json.JsonValue;
@@ -40,11 +45,17 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
 import java.util.ResourceBundle;
+import java.util.concurrent.TimeUnit;
 
 import static com.forgerock.backstage.ssoextensions.auth.oath.OathConstants.OATH_DEVICE_PROFILE_KEY;
+import static com.forgerock.backstage.ssoextensions.auth.oath.OathConstants.OATH_DEVICE_PROFILE_SNAPSHOT_KEY;
+import static com.forgerock.backstage.ssoextensions.auth.oath.OathConstants.OATH_PREFETCH_KEY;
 import static com.forgerock.backstage.ssoextensions.auth.oath.verifier.OathVerifierNodeOutcomeProvider.OATHOutcome.*;
+import static org.forgerock.openam.auth.node.api.SharedStateConstants.REALM;
+import static org.forgerock.openam.auth.node.api.SharedStateConstants.USERNAME;
 import static org.forgerock.openam.auth.nodes.RecoveryCodeDisplayNode.RECOVERY_CODE_DEVICE_NAME;
 import static org.forgerock.openam.auth.nodes.RecoveryCodeDisplayNode.RECOVERY_CODE_KEY;
+import static org.forgerock.openam.utils.Time.currentTimeMillis;
 
 
 @Node.Metadata(outcomeProvider = OathVerifierNodeOutcomeProvider.class,
@@ -54,6 +65,13 @@ public class OathVerifierNode extends AbstractDecisionNode {
     private final Logger logger = LoggerFactory.getLogger(OathVerifierNode.class);
     private final OathVerifierNodeConfig config;
     private final OathHelper helper;
+    private final AttemptThrottle attemptThrottle;
+    private final VerificationAdmissionController admissionController;
+    private final OathVerificationService verificationService;
+    private final PrecomputedWindowCache precomputedWindows;
+    private final OathAuditPipeline auditPipeline;
+    private final SlowVerificationRecorder slowVerifications;
+    private final RecentAttempts recentAttempts;
 
     protected final static String NODE_NAME = OathVerifierNode.class.getSimpleName();
     protected final static String BUNDLEPATH = OathVerifierNode.class.getName().replace(".", "/");
@@ -69,49 +87,356 @@ public class OathVerifierNode extends AbstractDecisionNode {
 
 
     @Inject
-    public OathVerifierNode(@Assisted OathVerifierNodeConfig config, OathHelper helper) {
+    public OathVerifierNode(@Assisted OathVerifierNodeConfig config, OathHelper helper, AttemptThrottle attemptThrottle,
+                            VerificationAdmissionController admissionController,
+                            OathVerificationService verificationService, PrecomputedWindowCache precomputedWindows, OathAuditPipeline auditPipeline,
+                            SlowVerificationRecorder slowVerifications, RecentAttempts recentAttempts) {
         this.config = config;
         this.helper = helper;
+        this.attemptThrottle = attemptThrottle;
+        this.admissionController = admissionController;
+        this.verificationService = verificationService;
+        this.precomputedWindows = precomputedWindows;
+        this.auditPipeline = auditPipeline;
+        this.slowVerifications = slowVerifications;
+        this.recentAttempts = recentAttempts;
     }
 
     @Override
     public Action process(TreeContext context) throws NodeProcessException {
-        OathDeviceSettings deviceSettings;
+        Optional<NameCallback> nameCallback = context.getCallback(NameCallback.class);
+        if (!nameCallback.isPresent()) {
+            return process(context, nameCallback, false, new Attempt());
+        }
 
+        // Only submitted codes are audited, sampled and kept; showing the callbacks is not an attempt
+        Attempt attempt = new Attempt();
+        String outcome = "ERROR";
         try {
-            deviceSettings = getDeviceProfileFromSharedState(context).orElse(this.helper.getOathDeviceSettings(context));
-        } catch (DevicePersistenceException e) {
-            throw new NodeProcessException(e);
+            Action action = processSubmission(context, nameCallback, attempt);
+            outcome = action.outcome;
+            return action;
+        } finally {
+            recordIfSelected(context, attempt, outcome);
+            if (auditPipeline.isEnabled() || recentAttempts.isEnabled()) {
+                OathAuditEvent event = new OathAuditEvent(currentTimeMillis(), attempt.type,
+                        context.sharedState.get(REALM).asString(), context.sharedState.get(USERNAME).asString(),
+                        outcome, attempt.failureReason, attempt.windowOffset, attempt.clockDriftSeconds);
+                auditPipeline.publish(event);
+                recentAttempts.record(event);
+            }
         }
+    }
 
-        if (null == deviceSettings) {
-            return Action.goTo(NOT_REGISTERED.name()).build();
+    /**
+     * Keeps the phase breakdown of a submission if it was slow or picked at random.
+     *
+     * @param context Treecontext of the current request
+     * @param attempt What was measured while processing the submission
+     * @param outcome The outcome of the submission
+     */
+    private void recordIfSelected(TreeContext context, Attempt attempt, String outcome) {
+        long elapsed = System.nanoTime() - attempt.started;
+        VerificationSample.Trigger trigger = slowVerifications.select(elapsed, config.slowVerificationThreshold(),
+                config.verificationSampleInterval());
+        if (trigger != null) {
+            slowVerifications.record(new VerificationSample(currentTimeMillis(), trigger,
+                    context.sharedState.get(REALM).asString(), outcome, attempt.profileSource, elapsed,
+                    attempt.storeNanos, attempt.cryptoNanos, attempt.hmacNanos, attempt.hmacs,
+                    attempt.verifications, attempt.narrowed, attempt.windowOffset));
         }
+    }
 
-        Optional<ConfirmationCallback> confirmationCallback = context.getCallback(ConfirmationCallback.class);
-        if (config.allowRecoveryCodeUsage() && confirmationCallback.isPresent() && confirmationCallback.get().getSelectedIndex() == RECOVERY_PRESSED) {
-            return Action.goTo(RECOVERY_CODE.name()).build();
+    private Action processSubmission(TreeContext context, Optional<NameCallback> nameCallback, Attempt attempt)
+            throws NodeProcessException {
+        if (isRecoveryPressed(context) && !isRecoveryCodeSubmitted(nameCallback)) {
+            // Choosing to use a recovery code verifies nothing, so it neither spends an attempt nor needs admission
+            return process(context, nameCallback, false, attempt);
+        }
+        if (!isAttemptAllowed(context)) {
+            logger.debug("Too many verification attempts, rejecting attempt without verification");
+            attempt.failureReason = "Too many attempts";
+            return Action.goTo(FAILURE.name()).build();
+        }
+
+        VerificationAdmissionController.Decision decision = admissionController.admit(
+                config.maxInFlightVerifications(), config.maxHmacsPerSecond(), getWindowHmacs(), 1);
+        if (decision == VerificationAdmissionController.Decision.SHED) {
+            logger.debug("Verification rejected by admission control");
+            attempt.failureReason = "Rejected by admission control";
+            return Action.goTo(FAILURE.name()).build();
+        }
+        try {
+            return process(context, nameCallback, decision == VerificationAdmissionController.Decision.NARROWED,
+                    attempt);
+        } finally {
+            admissionController.release();
+        }
+    }
+
+    private Action process(TreeContext context, Optional<NameCallback> nameCallback, boolean narrowWindow,
+                           Attempt attempt) throws NodeProcessException {
+        attempt.narrowed = narrowWindow;
+
+        long phaseStarted = System.nanoTime();
+        OathDeviceSettings deviceSettings = getDeviceProfileFromSharedState(context).orElse(null);
+        attempt.cryptoNanos += System.nanoTime() - phaseStarted;
+        boolean fromStore = deviceSettings == null;
+        boolean fromSnapshot = false;
+
+        if (fromStore) {
+            // The store is read only once the code matched the snapshot, so wrong codes never reach the store
+            phaseStarted = System.nanoTime();
+            deviceSettings = getDeviceProfileSnapshot(context).orElse(null);
+            attempt.cryptoNanos += System.nanoTime() - phaseStarted;
+            fromSnapshot = deviceSettings != null;
+        }
+        if (deviceSettings == null) {
+            phaseStarted = System.nanoTime();
+            try {
+                // A prefetched profile is only used to send the callbacks, the code is verified against the store
+                deviceSettings = !nameCallback.isPresent() && context.sharedState.isDefined(OATH_PREFETCH_KEY)
+                        ? helper.getOathDeviceSettings(context, context.sharedState.get(OATH_PREFETCH_KEY).asString())
+                        : helper.getOathDeviceSettings(context);
+                attempt.storeNanos += System.nanoTime() - phaseStarted;
+            } catch (ProfileStoreUnavailableException e) {
+                // A degraded store fails this login only, rather than the whole tree
+                logger.warn(e.getMessage());
+                attempt.failureReason = "Device profile store unavailable";
+                return Action.goTo(FAILURE.name()).build();
+            } catch (DevicePersistenceException e) {
+                throw new NodeProcessException(e);
+            }
+        }
+
+        if (null == deviceSettings) {
+            attempt.failureReason = "No device profile";
+            Action.ActionBuilder actionBuilder = Action.goTo(NOT_REGISTERED.name());
+            removeDeviceProfileSnapshot(context, actionBuilder);
+            return actionBuilder.build();
+        }
+        attempt.profileSource = !fromStore ? VerificationSample.ProfileSource.SHARED_STATE
+                : fromSnapshot ? VerificationSample.ProfileSource.SNAPSHOT : VerificationSample.ProfileSource.STORE;
+
+        if (isRecoveryPressed(context)) {
+            if (isRecoveryCodeSubmitted(nameCallback)) {
+                attempt.type = OathAuditEvent.Type.RECOVERY_CODE;
+                return verifyRecoveryCode(context, nameCallback.get().getName(), deviceSettings, fromStore,
+                        fromSnapshot, attempt);
+            }
+            Action.ActionBuilder actionBuilder = Action.goTo(RECOVERY_CODE.name());
+            removeDeviceProfileSnapshot(context, actionBuilder);
+            return actionBuilder.build();
         }
 
-        Optional<NameCallback> nameCallback = context.getCallback(NameCallback.class);
         if (!nameCallback.isPresent()) {
-            return Action.send(getCallbacks(context)).build();
+            Action.ActionBuilder actionBuilder = Action.send(getCallbacks(context));
+            if (fromStore && !fromSnapshot) {
+                keepDeviceProfileSnapshot(context, actionBuilder, deviceSettings, attempt);
+            }
+            if (config.precomputeWindow()) {
+                // The user now reads the code off their device, which leaves time to compute the window
+                precomputedWindows.start(OathHelper.getUserKey(context), deviceSettings, config);
+            }
+            return actionBuilder.build();
         }
 
+        String version = fromSnapshot ? OathHelper.getProfileVersion(deviceSettings) : null;
+        AbstractOathVerifier.GeneratorSource generators = config.precomputeWindow()
+                ? precomputedWindows.take(OathHelper.getUserKey(context)) : null;
         try {
-            verifyCode(nameCallback.get().getName(), deviceSettings);
+            verifyCode(nameCallback.get().getName(), deviceSettings, narrowWindow, generators, attempt);
+            if (fromSnapshot) {
+                OathDeviceSettings storedSettings = getStoredProfileIfChanged(context, version, attempt);
+                if (storedSettings != null) {
+                    deviceSettings = storedSettings;
+                    verifyCode(nameCallback.get().getName(), deviceSettings, narrowWindow, generators, attempt);
+                }
+            }
+        } catch (OathVerificationException e) {
+            logger.debug(e.getMessage(), e);
+            attempt.failureReason = e.getMessage();
+            Action.ActionBuilder actionBuilder = Action.goTo(FAILURE.name());
+            if (fromStore) {
+                keepDeviceProfileSnapshot(context, actionBuilder, deviceSettings, attempt);
+            }
+            return actionBuilder.build();
+        } catch (DevicePersistenceException e) {
+            logger.debug(e.getMessage(), e);
+            attempt.failureReason = "Cannot read device profile";
+            return Action.goTo(FAILURE.name()).build();
+        }
+
+        try {
+            phaseStarted = System.nanoTime();
             helper.saveOathDeviceSettings(context, deviceSettings);
+            attempt.storeNanos += System.nanoTime() - phaseStarted;
 
             Action.ActionBuilder actionBuilder = Action.goTo(SUCCESS.name()).addNodeType(context, OATH_AUTH_TYPE);
+            removeDeviceProfileSnapshot(context, actionBuilder);
             if (config.addRecoveryCodesToTransientState()) {
+                phaseStarted = System.nanoTime();
                 addRecoveryCodesToTransientState(context, actionBuilder);
+                attempt.cryptoNanos += System.nanoTime() - phaseStarted;
             }
-
             return actionBuilder.build();
+        } catch (DevicePersistenceException e) {
+            logger.debug(e.getMessage(), e);
+            attempt.failureReason = "Cannot save device profile";
+            return Action.goTo(FAILURE.name()).build();
+        }
+    }
+
+    /**
+     * @param context Treecontext of the current request
+     * @return whether the user chose to use a recovery code
+     */
+    private boolean isRecoveryPressed(TreeContext context) {
+        Optional<ConfirmationCallback> confirmationCallback = context.getCallback(ConfirmationCallback.class);
+        return config.allowRecoveryCodeUsage() && confirmationCallback.isPresent()
+                && confirmationCallback.get().getSelectedIndex() == RECOVERY_PRESSED;
+    }
+
+    /**
+     * @param nameCallback The callback holding the code entered by the user, if submitted
+     * @return whether a recovery code was entered for this node to verify, rather than left to the tree
+     */
+    private boolean isRecoveryCodeSubmitted(Optional<NameCallback> nameCallback) {
+        return config.verifyRecoveryCodes() && nameCallback.isPresent()
+                && StringUtils.isNotEmpty(nameCallback.get().getName());
+    }
+
+    /**
+     * Takes a token from the attempt throttle of the current user. Done before the device profile is loaded, so
+     * rejected attempts cost neither a profile read nor any OTP computation.
+     *
+     * @param context Treecontext containing realm and username
+     * @return false if the user has no attempts left, true otherwise or if throttling is disabled
+     */
+    private boolean isAttemptAllowed(TreeContext context) {
+        if (config.attemptThrottleCapacity() <= 0) {
+            return true;
+        }
+        return attemptThrottle.tryAcquire(OathHelper.getUserKey(context), config.attemptThrottleCapacity(),
+                TimeUnit.SECONDS.toMillis(config.attemptThrottleRefillInterval()));
+    }
+
+    /**
+     * Verifies a recovery code against the (hashed or plain text) codes of the device profile.
+     * A matching code is removed from the profile, so it can only be used once.
+     *
+     * @param context      Treecontext of the current request
+     * @param code         The recovery code entered by the user
+     * @param settings     The device profile of the user
+     * @param fromStore    Whether the profile is stored already, as opposed to one being registered in this tree
+     * @param fromSnapshot Whether the profile was taken from a snapshot in shared state
+     * @param attempt      Collects the details of this attempt for the audit event
+     * @return {@link Action} going to SUCCESS if the code was valid and consumed, FAILURE otherwise
+     */
+    private Action verifyRecoveryCode(TreeContext context, String code, OathDeviceSettings settings,
+                                      boolean fromStore, boolean fromSnapshot, Attempt attempt) {
+        int index = RecoveryCodeHasher.indexOf(settings.getRecoveryCodes(), code);
+        try {
+            if (index >= 0 && fromSnapshot) {
+                OathDeviceSettings storedSettings = getStoredProfileIfChanged(context,
+                        OathHelper.getProfileVersion(settings), attempt);
+                if (storedSettings != null) {
+                    settings = storedSettings;
+                    index = RecoveryCodeHasher.indexOf(settings.getRecoveryCodes(), code);
+                }
+            }
+            if (index < 0) {
+                logger.debug("Recovery code does not match any code of the device profile");
+                attempt.failureReason = "Invalid recovery code";
+                Action.ActionBuilder actionBuilder = Action.goTo(FAILURE.name());
+                if (fromStore) {
+                    keepDeviceProfileSnapshot(context, actionBuilder, settings, attempt);
+                }
+                return actionBuilder.build();
+            }
+
+            List<String> remainingCodes = new ArrayList<>(settings.getRecoveryCodes());
+            remainingCodes.remove(index);
+            settings.setRecoveryCodes(remainingCodes);
+
+            long saveStarted = System.nanoTime();
+            helper.saveOathDeviceSettings(context, settings);
+            attempt.storeNanos += System.nanoTime() - saveStarted;
         } catch (OathVerificationException | DevicePersistenceException e) {
             logger.debug(e.getMessage(), e);
+            attempt.failureReason = e.getMessage();
             return Action.goTo(FAILURE.name()).build();
         }
+
+        Action.ActionBuilder actionBuilder = Action.goTo(SUCCESS.name()).addNodeType(context, OATH_AUTH_TYPE);
+        removeDeviceProfileSnapshot(context, actionBuilder);
+        return actionBuilder.build();
+    }
+
+    /**
+     * Reads the device profile from the store again, to validate a profile taken from a snapshot before it is saved.
+     *
+     * @param context Treecontext of the current request
+     * @param version The version of the profile taken from the snapshot
+     * @param attempt Collects the time spent reading the store
+     * @return the stored profile if it differs from the snapshot, null if the snapshot is up to date
+     * @throws OathVerificationException if the profile no longer exists
+     * @throws DevicePersistenceException if the profile could not be read
+     */
+    private OathDeviceSettings getStoredProfileIfChanged(TreeContext context, String version, Attempt attempt)
+            throws OathVerificationException, DevicePersistenceException {
+        long readStarted = System.nanoTime();
+        OathDeviceSettings storedSettings = helper.getOathDeviceSettings(context);
+        attempt.storeNanos += System.nanoTime() - readStarted;
+        if (storedSettings == null) {
+            throw new OathVerificationException("Device profile no longer exists");
+        }
+        if (version.equals(OathHelper.getProfileVersion(storedSettings))) {
+            return null;
+        }
+        logger.debug("Device profile has changed since the snapshot was taken, verifying against the stored profile");
+        return storedSettings;
+    }
+
+    /**
+     * Puts an encrypted snapshot of a stored device profile into shared state, so the next pass through this node,
+     * e.g. after a failed attempt, does not need to read the store again.
+     *
+     * @param context       Treecontext of the current request
+     * @param actionBuilder {@link Action.ActionBuilder} used to build response action
+     * @param settings      The device profile as stored
+     * @param attempt       Collects the time spent encrypting the snapshot
+     */
+    private void keepDeviceProfileSnapshot(TreeContext context, Action.ActionBuilder actionBuilder,
+                                           OathDeviceSettings settings, Attempt attempt) {
+        if (!config.keepDeviceProfileAcrossRetries()) {
+            return;
+        }
+        long encryptStarted = System.nanoTime();
+        try {
+            actionBuilder.replaceSharedState(context.sharedState.copy()
+                    .put(OATH_DEVICE_PROFILE_SNAPSHOT_KEY, helper.encryptProfileSnapshot(context, settings,
+                            config.sharedStateEncryption())));
+        } catch (IOException e) {
+            logger.debug("Cannot serialize device profile snapshot", e);
+        } finally {
+            attempt.cryptoNanos += System.nanoTime() - encryptStarted;
+        }
+    }
+
+    /**
+     * Drops the snapshot from shared state when the node is left for good, i.e. on any outcome but a failure the
+     * tree may loop back on, so it does not travel through the rest of the tree.
+     *
+     * @param context       Treecontext of the current request
+     * @param actionBuilder {@link Action.ActionBuilder} used to build response action
+     */
+    private void removeDeviceProfileSnapshot(TreeContext context, Action.ActionBuilder actionBuilder) {
+        if (context.sharedState.isDefined(OATH_DEVICE_PROFILE_SNAPSHOT_KEY)) {
+            JsonValue sharedState = context.sharedState.copy();
+            sharedState.remove(OATH_DEVICE_PROFILE_SNAPSHOT_KEY);
+            actionBuilder.replaceSharedState(sharedState);
+        }
     }
 
     /**
@@ -134,6 +459,7 @@ public class OathVerifierNode extends AbstractDecisionNode {
 
         JsonValue transientState = context.transientState.copy();
         JsonValue sharedState = context.sharedState.copy();
+        sharedState.remove(OATH_DEVICE_PROFILE_SNAPSHOT_KEY);
 
         transientState
                 .put(RECOVERY_CODE_KEY, helper.decryptList(encryptedRecoveryCodes))
@@ -150,35 +476,39 @@ public class OathVerifierNode extends AbstractDecisionNode {
     /**
      * Verifies the input OTP.
      *
-     * @param otp      The OTP to verify.
-     * @param settings With which the OTP was configured.
+     * @param otp          The OTP to verify.
+     * @param settings     With which the OTP was configured.
+     * @param narrowWindow Whether only the current counter or time step should be checked.
+     * @param attempt      Collects the details of this attempt for the audit event
      * @throws OathVerificationException on any error
      */
-    private void verifyCode(String otp, OathDeviceSettings settings) throws OathVerificationException {
-        if (settings == null) {
-            throw new OathVerificationException("Invalid stored settings");
+    private void verifyCode(String otp, OathDeviceSettings settings, boolean narrowWindow,
+                            AbstractOathVerifier.GeneratorSource generators, Attempt attempt)
+            throws OathVerificationException {
+        long scanStarted = System.nanoTime();
+        OathVerificationResult result = generators != null
+                ? verificationService.verify(settings, otp, config, narrowWindow, generators)
+                : verificationService.verify(settings, otp, config, narrowWindow);
+        attempt.hmacNanos += System.nanoTime() - scanStarted;
+        attempt.hmacs += result.getStepsScanned();
+        attempt.verifications++;
+        if (!result.isValid()) {
+            throw new OathVerificationException(result.getFailureReason());
         }
-
-        if (config.minSharedSecretLength() <= 0) {
-            throw new OathVerificationException("Min Secret Key Length is not a valid value");
+        attempt.windowOffset = result.getOffset();
+        if (OathAlgorithm.TOTP.equals(config.algorithm())) {
+            attempt.clockDriftSeconds = settings.getClockDriftSeconds();
         }
+    }
 
-        // check password length MUST be 6 or higher according to RFC
-        if (config.passwordLength() < 6) {
-            throw new OathVerificationException("Password length is smaller than 6");
-        }
-
-        AbstractOathVerifier verifier;
-
+    /**
+     * @return the number of HMACs a scan of the configured window takes at most
+     */
+    private int getWindowHmacs() {
         if (OathAlgorithm.HOTP.equals(config.algorithm())) {
-            verifier = new HotpVerifier(config, settings);
-        } else if (OathAlgorithm.TOTP.equals(config.algorithm())) {
-            verifier = new TotpVerifier(config, settings);
-        } else {
-            throw new OathVerificationException("Invalid OTP algorithm");
+            return Math.max(0, config.hotpWindowSize()) + 1;
         }
-
-        verifier.verify(otp);
+        return 2 * Math.max(0, config.totpTimeStepInWindow()) + 1;
     }
 
     private List<Callback> getCallbacks(TreeContext context) {
@@ -217,4 +547,37 @@ public class OathVerifierNode extends AbstractDecisionNode {
 
         return Optional.of(oathDeviceProfile);
     }
+
+    private Optional<OathDeviceSettings> getDeviceProfileSnapshot(TreeContext context) {
+        String snapshot = context.sharedState.get(OATH_DEVICE_PROFILE_SNAPSHOT_KEY).asString();
+        if (!config.keepDeviceProfileAcrossRetries() || StringUtils.isEmpty(snapshot)) {
+            return Optional.empty();
+        }
+
+        try {
+            return Optional.ofNullable(helper.decryptProfileSnapshot(context, snapshot));
+        } catch (IOException | RuntimeException e) {
+            logger.debug("Cannot restore device profile snapshot from shared state", e);
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * What one pass through this node found out about a submitted code, for its audit event and its
+     * {@link VerificationSample}.
+     */
+    private static final class Attempt {
+        private final long started = System.nanoTime();
+        private OathAuditEvent.Type type = OathAuditEvent.Type.VERIFICATION;
+        private String failureReason;
+        private Integer windowOffset;
+        private Integer clockDriftSeconds;
+        private VerificationSample.ProfileSource profileSource;
+        private boolean narrowed;
+        private long storeNanos;
+        private long cryptoNanos;
+        private long hmacNanos;
+        private int hmacs;
+        private int verifications;
+    }
 }
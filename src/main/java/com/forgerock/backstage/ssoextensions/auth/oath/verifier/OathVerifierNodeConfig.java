@@ -20,6 +20,7 @@
 package com.forgerock.backstage.ssoextensions.auth.oath.verifier;
 
 import com.forgerock.backstage.ssoextensions.auth.oath.OathAlgorithm;
+import com.forgerock.backstage.ssoextensions.auth.oath.SharedStateEncryption;
 import org.forgerock.openam.annotations.sm.Attribute;
 
 public interface OathVerifierNodeConfig {
@@ -78,4 +79,55 @@ public interface OathVerifierNodeConfig {
     default boolean addRecoveryCodesToTransientState() {
         return false;
     }
+
+    @Attribute(order = 1200)
+    default boolean verifyRecoveryCodes() {
+        return false;
+    }
+
+    @Attribute(order = 1300)
+    default int attemptThrottleCapacity() {
+        return 0;
+    }
+
+    @Attribute(order = 1400)
+    default int attemptThrottleRefillInterval() {
+        return 0;
+    }
+
+    @Attribute(order = 1500)
+    default int maxInFlightVerifications() {
+        return 0;
+    }
+
+    @Attribute(order = 1600)
+    default int maxHmacsPerSecond() {
+        return 0;
+    }
+
+    @Attribute(order = 1700)
+    default boolean keepDeviceProfileAcrossRetries() {
+        return true;
+    }
+
+    @Attribute(order = 1900)
+    @SharedStateEncryptionAttribute
+    default SharedStateEncryption sharedStateEncryption() {
+        return SharedStateEncryption.A128CBC_HS256;
+    }
+
+    @Attribute(order = 2000)
+    default boolean precomputeWindow() {
+        return false;
+    }
+
+    @Attribute(order = 2100)
+    default int slowVerificationThreshold() {
+        return 0;
+    }
+
+    @Attribute(order = 2200)
+    default int verificationSampleInterval() {
+        return 0;
+    }
 }
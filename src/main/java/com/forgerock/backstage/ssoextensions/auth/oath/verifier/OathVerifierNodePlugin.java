@@ -38,6 +38,12 @@ public class OathVerifierNodePlugin extends AbstractNodeAmPlugin {
                 Collections.singletonList(OathVerifierNode.class));
     }
 
+    @Override
+    public void onStartup() throws PluginException {
+        super.onStartup();
+        OathWarmUp.start(OathVerifierNode.BUNDLEPATH, OathVerifierNode.class.getClassLoader());
+    }
+
     @Override
     public void upgrade(String fromVersion) throws PluginException {
         if (VersionComparison.compareVersionStrings(fromVersion, getPluginVersion()) > 0) {
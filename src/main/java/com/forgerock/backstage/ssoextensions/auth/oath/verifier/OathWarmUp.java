@@ -0,0 +1,181 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.verifier;
+
+import com.forgerock.backstage.ssoextensions.auth.oath.OathAlgorithm;
+import com.forgerock.backstage.ssoextensions.auth.oath.OathHelper;
+import com.forgerock.backstage.ssoextensions.auth.oath.OathSecret;
+import com.forgerock.backstage.ssoextensions.auth.oath.SharedStateEncryption;
+import org.forgerock.json.JsonValue;
+import org.forgerock.json.jose.builders.JwtBuilderFactory;
+import org.forgerock.openam.core.rest.devices.oath.OathDeviceSettings;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.security.Key;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.MissingResourceException;
+import java.util.ResourceBundle;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+import static org.forgerock.openam.utils.Time.currentTimeMillis;
+
+/**
+ * Warms up the code paths of the OATH nodes after AM starts, so the first logins do not pay for JCE provider
+ * lookups, class loading, resource bundle loading and interpreted verifier loops.
+ * The warm-up runs on a background thread and verifies synthetic HOTP and TOTP codes, encrypts and decrypts shared
+ * state JWEs with a throwaway key and loads the node's resource bundle for the configured locales. The crypto part
+ * runs once per JVM, however many plugins start it.
+ * It is tuned with the system properties {@value #ITERATIONS_PROPERTY} (default 2000, 0 disables the warm-up) and
+ * {@value #LOCALES_PROPERTY} (comma separated language tags, default {@code en,de}).
+ */
+public final class OathWarmUp {
+    static final String ITERATIONS_PROPERTY = "com.forgerock.backstage.oath.warmUpIterations";
+    static final String LOCALES_PROPERTY = "com.forgerock.backstage.oath.warmUpLocales";
+    private static final Logger logger = LoggerFactory.getLogger(OathWarmUp.class);
+    private static final AtomicBoolean cryptoWarmedUp = new AtomicBoolean();
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private OathWarmUp() {
+    }
+
+    /**
+     * Starts the warm-up in the background, unless it is disabled.
+     *
+     * @param bundlePath  the resource bundle of the node to preload
+     * @param classLoader the class loader the node loads its bundle with
+     */
+    public static void start(String bundlePath, ClassLoader classLoader) {
+        int iterations = Integer.getInteger(ITERATIONS_PROPERTY, 2000);
+        if (iterations <= 0) {
+            return;
+        }
+        List<Locale> locales = parseLocales(System.getProperty(LOCALES_PROPERTY, "en,de"));
+        Thread thread = new Thread(() -> run(bundlePath, classLoader, locales, iterations), "oath-warm-up");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * Runs the warm-up on the calling thread. Failures are logged and never thrown, as the nodes work without it.
+     *
+     * @param bundlePath  the resource bundle of the node to preload
+     * @param classLoader the class loader the node loads its bundle with
+     * @param locales     the locales to load the bundle for
+     * @param iterations  the number of synthetic verifications and JWE round trips
+     * @return the duration of the warm-up in milliseconds
+     */
+    static long run(String bundlePath, ClassLoader classLoader, List<Locale> locales, int iterations) {
+        long start = System.nanoTime();
+        for (Locale locale : locales) {
+            try {
+                ResourceBundle.getBundle(bundlePath, locale, classLoader);
+            } catch (MissingResourceException e) {
+                logger.debug("No bundle " + bundlePath + " for " + locale, e);
+            }
+        }
+        if (cryptoWarmedUp.compareAndSet(false, true)) {
+            try {
+                warmUpVerification(iterations);
+            } catch (RuntimeException e) {
+                logger.debug("Verification warm-up failed", e);
+            }
+            try {
+                warmUpEncryption(iterations);
+            } catch (RuntimeException e) {
+                logger.debug("Shared state encryption warm-up failed", e);
+            }
+        }
+        long duration = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        logger.info("OATH warm-up for " + bundlePath + " finished in " + duration + " ms");
+        return duration;
+    }
+
+    private static void warmUpVerification(int iterations) {
+        OathVerificationService service = new OathVerificationService();
+        OathVerifierNodeConfig hotp = new OathVerifierNodeConfig() {
+            @Override
+            public OathAlgorithm algorithm() {
+                return OathAlgorithm.HOTP;
+            }
+        };
+        OathVerifierNodeConfig totp = new OathVerifierNodeConfig() {
+        };
+        long step = currentTimeMillis() / 1000L / totp.totpTimeStepInterval();
+
+        byte[] secret = new byte[20];
+        for (int i = 0; i < iterations; i++) {
+            RANDOM.nextBytes(secret);
+            OathSecret oathSecret = OathSecret.fromBytes(secret);
+            // A wrong code scans the whole window, a generated one takes the success path
+            service.verify(settings(oathSecret), "000000", hotp);
+            try {
+                String code = new OathCodeGenerator(oathSecret).totp(step, totp.passwordLength());
+                service.verify(settings(oathSecret), code, totp);
+            } catch (OathVerificationException e) {
+                logger.debug("Cannot generate warm-up code", e);
+            }
+            oathSecret.toBase32();
+        }
+    }
+
+    private static void warmUpEncryption(int iterations) {
+        JwtBuilderFactory jwtBuilderFactory = new JwtBuilderFactory();
+        byte[] rawKey = new byte[32];
+        RANDOM.nextBytes(rawKey);
+        Key key = new SecretKeySpec(rawKey, "AES");
+        JsonValue payload = json(object(field(OathHelper.LIST_CLAIM_NAME,
+                Arrays.asList("abcdefghij", "klmnopqrst", "uvwxyz0123"))));
+
+        // Fewer rounds than verifications, as a login performs at most a few of them
+        for (int i = 0; i < Math.max(1, iterations / 10); i++) {
+            for (SharedStateEncryption encryption : SharedStateEncryption.values()) {
+                OathHelper.decrypt(jwtBuilderFactory, key, OathHelper.encrypt(jwtBuilderFactory, key, payload,
+                        encryption));
+            }
+        }
+    }
+
+    private static OathDeviceSettings settings(OathSecret secret) {
+        OathDeviceSettings settings = new OathDeviceSettings();
+        settings.setSharedSecret(secret.toHex());
+        return settings;
+    }
+
+    static List<Locale> parseLocales(String tags) {
+        List<Locale> locales = new ArrayList<>();
+        for (String tag : tags.split(",")) {
+            if (!tag.trim().isEmpty()) {
+                locales.add(Locale.forLanguageTag(tag.trim()));
+            }
+        }
+        return locales;
+    }
+}
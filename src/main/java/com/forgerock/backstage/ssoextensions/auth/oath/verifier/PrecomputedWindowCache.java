@@ -0,0 +1,140 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.verifier;
+
+import com.forgerock.backstage.ssoextensions.auth.oath.ExpiringCache;
+import com.forgerock.backstage.ssoextensions.auth.oath.OathAlgorithm;
+import com.forgerock.backstage.ssoextensions.auth.oath.OathIoExecutor;
+import com.forgerock.backstage.ssoextensions.auth.oath.OathSecret;
+import org.forgerock.openam.core.rest.devices.oath.OathDeviceSettings;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.forgerock.openam.utils.Time.currentTimeMillis;
+
+/**
+ * Computes the HMACs of a user's next verification window in the background while the user reads the code off
+ * their device, and keeps the resulting code generator until the code is submitted.
+ * <p>
+ * An HMAC depends on nothing but the shared secret and the moving factor, so a precomputed generator can never
+ * change the outcome of a verification: codes outside the precomputed range, e.g. after the counter moved on, are
+ * computed as usual, and a generator is only used for the secret it was built for. A generator is handed out once,
+ * as generators are not thread-safe; when it is missing, still computing or expired, e.g. because the submission
+ * reached another server, verification computes every code itself.
+ */
+@Singleton
+public class PrecomputedWindowCache {
+    static final long TTL_SECONDS = 120;
+    private static final int MAX_ENTRIES = 4096;
+
+    private final ExpiringCache<String, Entry> entries = new ExpiringCache<>(MAX_ENTRIES);
+    private final OathIoExecutor ioExecutor;
+
+    @Inject
+    public PrecomputedWindowCache(OathIoExecutor ioExecutor) {
+        this.ioExecutor = ioExecutor;
+    }
+
+    /**
+     * Starts computing the HMACs of the window the next verification of a device profile scans. Does nothing if the
+     * profile has no usable secret or no background thread is free.
+     *
+     * @param key      the realm and username of the user
+     * @param settings the device profile
+     * @param config   the verification settings
+     */
+    void start(String key, OathDeviceSettings settings, OathVerifierNodeConfig config) {
+        String sharedSecret = settings.getSharedSecret();
+        if (sharedSecret == null || sharedSecret.isEmpty()) {
+            return;
+        }
+        OathSecret secret;
+        try {
+            secret = OathSecret.fromHex(sharedSecret);
+        } catch (IllegalArgumentException e) {
+            return;
+        }
+
+        long from;
+        long to;
+        if (OathAlgorithm.HOTP.equals(config.algorithm())) {
+            from = settings.getCounter();
+            to = from + Math.max(0, config.hotpWindowSize());
+        } else {
+            int interval = config.totpTimeStepInterval();
+            if (interval <= 0) {
+                return;
+            }
+            long timeStep = currentTimeMillis() / 1000L / interval + settings.getClockDriftSeconds() / interval;
+            int stepsInWindow = Math.max(0, config.totpTimeStepInWindow());
+            // Covers the window of any submission within the time to live
+            from = timeStep - stepsInWindow;
+            to = timeStep + stepsInWindow + TTL_SECONDS / interval + 1;
+        }
+
+        Entry entry = new Entry(secret);
+        entries.put(key, entry, TimeUnit.SECONDS.toMillis(TTL_SECONDS));
+        if (!ioExecutor.tryExecute(() -> entry.compute(from, to))) {
+            entries.invalidate(key);
+        }
+    }
+
+    /**
+     * Takes the precomputed generator of a user, if it is ready.
+     *
+     * @param key the realm and username of the user
+     * @return a source handing out the precomputed generator for its secret and new generators for any other
+     * secret, or null if there is no precomputed generator
+     */
+    AbstractOathVerifier.GeneratorSource take(String key) {
+        Entry entry = entries.getIfPresent(key);
+        if (entry == null || !entry.generator.isDone() || entry.generator.isCompletedExceptionally()
+                || !entry.taken.compareAndSet(false, true)) {
+            return null;
+        }
+        entries.invalidate(key);
+        OathCodeGenerator generator = entry.generator.join();
+        return secret -> secret.equals(entry.secret) ? generator : new OathCodeGenerator(secret);
+    }
+
+    private static final class Entry {
+        private final OathSecret secret;
+        private final CompletableFuture<OathCodeGenerator> generator = new CompletableFuture<>();
+        private final AtomicBoolean taken = new AtomicBoolean();
+
+        private Entry(OathSecret secret) {
+            this.secret = secret;
+        }
+
+        private void compute(long from, long to) {
+            try {
+                OathCodeGenerator codeGenerator = new OathCodeGenerator(secret);
+                codeGenerator.precompute(from, to);
+                generator.complete(codeGenerator);
+            } catch (OathVerificationException | RuntimeException e) {
+                generator.completeExceptionally(e);
+            }
+        }
+    }
+}
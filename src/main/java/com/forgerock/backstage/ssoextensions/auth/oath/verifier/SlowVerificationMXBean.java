@@ -0,0 +1,48 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.verifier;
+
+import java.util.List;
+
+/**
+ * Metrics and samples of the {@link SlowVerificationRecorder}.
+ */
+public interface SlowVerificationMXBean {
+
+    /**
+     * @return the number of verifications recorded for taking longer than the threshold
+     */
+    long getSlowVerifications();
+
+    /**
+     * @return the number of verifications recorded at random
+     */
+    long getSampledVerifications();
+
+    /**
+     * @return the number of samples overwritten by newer ones before being dumped
+     */
+    long getOverwrittenSamples();
+
+    /**
+     * @return the samples currently held, oldest first, one JSON object each
+     */
+    List<String> dumpSamples();
+}
@@ -0,0 +1,125 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.verifier;
+
+import com.forgerock.backstage.ssoextensions.auth.oath.OathMBeans;
+import com.forgerock.backstage.ssoextensions.auth.oath.OverwritingRing;
+import org.forgerock.util.annotations.VisibleForTesting;
+
+import javax.inject.Singleton;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Server wide recorder of the phase breakdown of verifications that took longer than a latency threshold, plus a
+ * random sample of all others for comparison.
+ * <p>
+ * Samples are kept in an {@link OverwritingRing}, which is written without locks; once it is full, every sample
+ * overwrites the oldest one. The verifier nodes always measure their phases, which costs a few clock reads, but only build a
+ * sample for the verifications {@link #select(long, int, int) selected} for recording. Samples are read through
+ * {@link #dump()} or the {@link SlowVerificationMXBean}.
+ */
+@Singleton
+public class SlowVerificationRecorder implements SlowVerificationMXBean {
+    static final int CAPACITY = 1024;
+
+    private final OverwritingRing<VerificationSample> samples;
+    private final LongAdder slow = new LongAdder();
+    private final LongAdder sampled = new LongAdder();
+
+    public SlowVerificationRecorder() {
+        this(CAPACITY);
+        OathMBeans.register("SlowVerifications", this);
+    }
+
+    @VisibleForTesting
+    SlowVerificationRecorder(int capacity) {
+        this.samples = new OverwritingRing<>(capacity);
+    }
+
+    /**
+     * Decides whether a verification is recorded.
+     *
+     * @param elapsedNanos     how long the verification took
+     * @param thresholdMillis  the latency above which verifications are recorded, 0 to record none for latency
+     * @param sampleInterval   on average one in this many verifications is recorded regardless of its latency, 0 to
+     *                         sample none
+     * @return why the verification is recorded, or null if it is not
+     */
+    public VerificationSample.Trigger select(long elapsedNanos, int thresholdMillis, int sampleInterval) {
+        if (thresholdMillis > 0 && elapsedNanos > TimeUnit.MILLISECONDS.toNanos(thresholdMillis)) {
+            return VerificationSample.Trigger.SLOW;
+        }
+        if (sampleInterval > 0 && ThreadLocalRandom.current().nextInt(sampleInterval) == 0) {
+            return VerificationSample.Trigger.SAMPLED;
+        }
+        return null;
+    }
+
+    /**
+     * Records a sample, overwriting the oldest one if the ring is full.
+     *
+     * @param sample the sample
+     */
+    public void record(VerificationSample sample) {
+        if (sample.getTrigger() == VerificationSample.Trigger.SLOW) {
+            slow.increment();
+        } else {
+            sampled.increment();
+        }
+        samples.add(sample);
+    }
+
+    /**
+     * Reads the samples currently held. Samples recorded while dumping may or may not be included.
+     *
+     * @return the samples, oldest first
+     */
+    public List<VerificationSample> dump() {
+        return samples.snapshot();
+    }
+
+    @Override
+    public long getSlowVerifications() {
+        return slow.sum();
+    }
+
+    @Override
+    public long getSampledVerifications() {
+        return sampled.sum();
+    }
+
+    @Override
+    public long getOverwrittenSamples() {
+        return samples.getOverwritten();
+    }
+
+    @Override
+    public List<String> dumpSamples() {
+        List<String> dump = new ArrayList<>();
+        for (VerificationSample sample : dump()) {
+            dump.add(sample.toJsonValue().toString());
+        }
+        return dump;
+    }
+}
@@ -19,7 +19,6 @@
 
 package com.forgerock.backstage.ssoextensions.auth.oath.verifier;
 
-import org.forgerock.openam.authentication.modules.fr.oath.TOTPAlgorithm;
 import org.forgerock.openam.core.rest.devices.oath.OathDeviceSettings;
 import org.forgerock.util.annotations.VisibleForTesting;
 import org.slf4j.Logger;
@@ -44,8 +43,14 @@ public final class TotpVerifier extends AbstractOathVerifier {
         this.time = time;
     }
 
+    TotpVerifier(OathVerifierNodeConfig config, OathDeviceSettings settings, long time, GeneratorSource generators) {
+        super(config, settings, generators);
+
+        this.time = time;
+    }
+
     @Override
-    public void verify(String otp) throws OathVerificationException {
+    public int verify(String otp) throws OathVerificationException {
         //get Last login time
         long lastLoginTimeStep = settings.getLastLogin() / config.totpTimeStepInterval();
 
@@ -80,39 +85,47 @@ public final class TotpVerifier extends AbstractOathVerifier {
             sameWindow = true;
         }
 
-        String passLenStr = Integer.toString(config.passwordLength());
-        String otpGen = TOTPAlgorithm.generateTOTP(getSharedSecret(), Long.toHexString(localTime), passLenStr);
+        OathCodeGenerator generator = getGenerator();
+        String otpGen = generator.totp(localTime, config.passwordLength());
+        stepScanned();
 
         if (isEqual(otpGen, otp)) {
+            matched(0);
             checkDrift(localTime);
             updateDeviceSettings(localTime, settings);
-            return;
+            return 0;
         }
 
-        for (int i = 1; i <= config.totpTimeStepInWindow(); i++) {
+        int stepsInWindow = isNarrowed() ? 0 : config.totpTimeStepInWindow();
+        for (int i = 1; i <= stepsInWindow; i++) {
             long time1 = localTime + i;
             long time2 = localTime - i;
 
             //check time step after current time
-            otpGen = TOTPAlgorithm.generateTOTP(getSharedSecret(), Long.toHexString(time1), passLenStr);
+            otpGen = generator.totp(time1, config.passwordLength());
+            stepScanned();
 
             if (isEqual(otpGen, otp)) {
+                matched(i);
                 checkDrift(time1);
                 updateDeviceSettings(time1, settings);
-                return;
+                return i;
             }
 
             //check time step before current time
-            otpGen = TOTPAlgorithm.generateTOTP(getSharedSecret(), Long.toHexString(time2), passLenStr);
+            otpGen = generator.totp(time2, config.passwordLength());
+            stepScanned();
 
-            if (isEqual(otpGen, otp) && sameWindow) {
-                logger.error("Logging in in the same window with a OTP that is "
-                        + "older than the current times OTP");
-                throw new OathVerificationException();
-            } else if (isEqual(otpGen, otp) && !sameWindow) {
+            if (isEqual(otpGen, otp)) {
+                matched(-i);
+                if (sameWindow) {
+                    logger.error("Logging in in the same window with a OTP that is "
+                            + "older than the current times OTP");
+                    throw new OathVerificationException();
+                }
                 checkDrift(time2);
                 updateDeviceSettings(time2, settings);
-                return;
+                return -i;
             }
         }
 
@@ -0,0 +1,162 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.verifier;
+
+import com.forgerock.backstage.ssoextensions.auth.oath.OathMBeans;
+import org.forgerock.util.annotations.VisibleForTesting;
+
+import javax.inject.Singleton;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+import static org.forgerock.openam.utils.Time.currentTimeMillis;
+
+/**
+ * Server wide admission control for OTP verifications.
+ * <p>
+ * Tracks the number of verifications in flight and the number of HMACs computed in the current second across all
+ * OATH verifier nodes. When the HMAC budget cannot cover a full window scan, the verification is narrowed to the
+ * current counter or time step; when not even that fits, or too many verifications are in flight, it is shed.
+ * The limits are passed in by the calling node, so every node enforces its own configuration against the shared
+ * counters.
+ */
+@Singleton
+public class VerificationAdmissionController implements VerificationAdmissionMXBean {
+
+    /**
+     * Outcome of {@link #admit(int, int, int, int)}.
+     */
+    public enum Decision {
+        FULL, NARROWED, SHED
+    }
+
+    private static final int HMAC_BITS = 32;
+    private static final long HMAC_MASK = (1L << HMAC_BITS) - 1;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    /** The current second and the HMACs reserved in it, packed so that both change in one compare-and-set. */
+    private final AtomicLong hmacBudget = new AtomicLong();
+    private final AtomicLong admitted = new AtomicLong();
+    private final AtomicLong narrowed = new AtomicLong();
+    private final AtomicLong shed = new AtomicLong();
+    private final LongSupplier clock;
+
+    public VerificationAdmissionController() {
+        this(() -> currentTimeMillis());
+        OathMBeans.register("VerificationAdmission", this);
+    }
+
+    @VisibleForTesting
+    VerificationAdmissionController(LongSupplier clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * Admits a verification. Unless the decision is {@link Decision#SHED}, {@link #release()} must be called once
+     * the verification has finished.
+     *
+     * @param maxInFlight       the maximum number of concurrent verifications, 0 for no limit
+     * @param maxHmacsPerSecond the maximum number of HMACs per second, 0 for no limit
+     * @param fullHmacs         the number of HMACs a scan of the full window takes
+     * @param narrowedHmacs     the number of HMACs a narrowed scan takes
+     * @return how the verification may proceed
+     */
+    public Decision admit(int maxInFlight, int maxHmacsPerSecond, int fullHmacs, int narrowedHmacs) {
+        int current = inFlight.incrementAndGet();
+        if (maxInFlight > 0 && current > maxInFlight) {
+            inFlight.decrementAndGet();
+            shed.incrementAndGet();
+            return Decision.SHED;
+        }
+
+        if (maxHmacsPerSecond <= 0 || reserveHmacs(fullHmacs, maxHmacsPerSecond)) {
+            admitted.incrementAndGet();
+            return Decision.FULL;
+        }
+        if (reserveHmacs(narrowedHmacs, maxHmacsPerSecond)) {
+            narrowed.incrementAndGet();
+            return Decision.NARROWED;
+        }
+
+        inFlight.decrementAndGet();
+        shed.incrementAndGet();
+        return Decision.SHED;
+    }
+
+    /**
+     * Marks an admitted verification as finished.
+     */
+    public void release() {
+        inFlight.decrementAndGet();
+    }
+
+    private boolean reserveHmacs(int hmacs, int maxHmacsPerSecond) {
+        long second = clock.getAsLong() / 1000L;
+        while (true) {
+            long state = hmacBudget.get();
+            long reserved = second(state) == second ? hmacs(state) : 0;
+            if (reserved + hmacs > maxHmacsPerSecond) {
+                return false;
+            }
+            if (hmacBudget.compareAndSet(state, pack(second, reserved + hmacs))) {
+                return true;
+            }
+        }
+    }
+
+    private static long pack(long second, long hmacs) {
+        return (second << HMAC_BITS) | (hmacs & HMAC_MASK);
+    }
+
+    private static long second(long state) {
+        return state >>> HMAC_BITS;
+    }
+
+    private static long hmacs(long state) {
+        return state & HMAC_MASK;
+    }
+
+    @Override
+    public int getInFlightVerifications() {
+        return inFlight.get();
+    }
+
+    @Override
+    public long getHmacsInCurrentSecond() {
+        long state = hmacBudget.get();
+        return second(state) == clock.getAsLong() / 1000L ? hmacs(state) : 0;
+    }
+
+    @Override
+    public long getAdmittedVerifications() {
+        return admitted.get();
+    }
+
+    @Override
+    public long getNarrowedVerifications() {
+        return narrowed.get();
+    }
+
+    @Override
+    public long getShedVerifications() {
+        return shed.get();
+    }
+}
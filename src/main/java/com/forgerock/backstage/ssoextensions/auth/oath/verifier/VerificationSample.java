@@ -0,0 +1,181 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.verifier;
+
+import org.forgerock.json.JsonValue;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+
+/**
+ * The phase breakdown of one verification kept by the {@link SlowVerificationRecorder}. Holds neither the code nor
+ * the user, so samples can be shared for analysis.
+ */
+public final class VerificationSample {
+
+    /**
+     * Why a verification was recorded.
+     */
+    public enum Trigger {
+        /** It took longer than the latency threshold. */
+        SLOW,
+        /** It was picked at random. */
+        SAMPLED
+    }
+
+    /**
+     * Where the device profile verified against came from.
+     */
+    public enum ProfileSource {
+        /** A profile being registered in this tree, from shared state. */
+        SHARED_STATE,
+        /** The snapshot of the stored profile kept from an earlier pass. */
+        SNAPSHOT,
+        /** The profile store. */
+        STORE
+    }
+
+    private final long timestamp;
+    private final Trigger trigger;
+    private final String realm;
+    private final String outcome;
+    private final ProfileSource profileSource;
+    private final long totalNanos;
+    private final long storeNanos;
+    private final long cryptoNanos;
+    private final long hmacNanos;
+    private final int hmacs;
+    private final int verifications;
+    private final boolean narrowed;
+    private final Integer windowOffset;
+
+    /**
+     * @param timestamp     when the verification finished, in milliseconds since the epoch
+     * @param trigger       why the verification was recorded
+     * @param realm         the realm of the tree
+     * @param outcome       the outcome of the node
+     * @param profileSource where the device profile came from, or null if none was found
+     * @param totalNanos    how long the verification took
+     * @param storeNanos    how long was spent reading and saving the device profile
+     * @param cryptoNanos   how long was spent encrypting and decrypting shared state
+     * @param hmacNanos     how long was spent scanning the window
+     * @param hmacs         the number of counter values or time steps a code was computed for
+     * @param verifications the number of window scans, more than one if a snapshot turned out to be out of date
+     * @param narrowed      whether the window was narrowed by admission control
+     * @param windowOffset  the offset of the matching code, or null if no code matched
+     */
+    public VerificationSample(long timestamp, Trigger trigger, String realm, String outcome,
+                              ProfileSource profileSource, long totalNanos, long storeNanos, long cryptoNanos,
+                              long hmacNanos, int hmacs, int verifications, boolean narrowed, Integer windowOffset) {
+        this.timestamp = timestamp;
+        this.trigger = trigger;
+        this.realm = realm;
+        this.outcome = outcome;
+        this.profileSource = profileSource;
+        this.totalNanos = totalNanos;
+        this.storeNanos = storeNanos;
+        this.cryptoNanos = cryptoNanos;
+        this.hmacNanos = hmacNanos;
+        this.hmacs = hmacs;
+        this.verifications = verifications;
+        this.narrowed = narrowed;
+        this.windowOffset = windowOffset;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public Trigger getTrigger() {
+        return trigger;
+    }
+
+    public String getRealm() {
+        return realm;
+    }
+
+    public String getOutcome() {
+        return outcome;
+    }
+
+    public ProfileSource getProfileSource() {
+        return profileSource;
+    }
+
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    public long getStoreNanos() {
+        return storeNanos;
+    }
+
+    public long getCryptoNanos() {
+        return cryptoNanos;
+    }
+
+    public long getHmacNanos() {
+        return hmacNanos;
+    }
+
+    public int getHmacs() {
+        return hmacs;
+    }
+
+    public int getVerifications() {
+        return verifications;
+    }
+
+    public boolean isNarrowed() {
+        return narrowed;
+    }
+
+    public Integer getWindowOffset() {
+        return windowOffset;
+    }
+
+    /**
+     * @return the sample as JSON, with durations in microseconds; fields without a value are left out
+     */
+    public JsonValue toJsonValue() {
+        JsonValue json = json(object(
+                field("timestamp", timestamp),
+                field("trigger", trigger.name()),
+                field("realm", realm),
+                field("outcome", outcome),
+                field("totalMicros", TimeUnit.NANOSECONDS.toMicros(totalNanos)),
+                field("storeMicros", TimeUnit.NANOSECONDS.toMicros(storeNanos)),
+                field("cryptoMicros", TimeUnit.NANOSECONDS.toMicros(cryptoNanos)),
+                field("hmacMicros", TimeUnit.NANOSECONDS.toMicros(hmacNanos)),
+                field("hmacs", hmacs),
+                field("verifications", verifications),
+                field("narrowed", narrowed)));
+        if (profileSource != null) {
+            json.put("profileSource", profileSource.name());
+        }
+        if (windowOffset != null) {
+            json.put("windowOffset", windowOffset);
+        }
+        return json;
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.verifier;
+
+import com.forgerock.backstage.ssoextensions.auth.oath.OathAlgorithm;
+
+/**
+ * What one verification saw of a device: how far the code was from the expected counter value or time step, the
+ * clock drift known before it and the time since the previous login. Kept by the {@link VerificationTraceRecorder}
+ * to tune the window sizes and maximum clock drift on real data. Holds neither the code nor the secret, and the user
+ * only as an identifier that cannot be traced back to the device profile.
+ */
+public final class VerificationTrace {
+    /**
+     * The header line of {@link #toCsv()}.
+     */
+    public static final String CSV_HEADER = "time,user,algorithm,timeStepInterval,window,narrowed,maxClockDrift,"
+            + "sinceLastLogin,clockDriftSteps,matchedOffset,accepted,stepsScanned";
+
+    private final long time;
+    private final String user;
+    private final OathAlgorithm algorithm;
+    private final int timeStepInterval;
+    private final int window;
+    private final boolean narrowed;
+    private final int maxClockDrift;
+    private final long sinceLastLogin;
+    private final int clockDriftSteps;
+    private final Integer matchedOffset;
+    private final boolean accepted;
+    private final int stepsScanned;
+
+    /**
+     * @param time             when the code was verified, in seconds since the epoch
+     * @param user             the anonymised identifier of the device profile
+     * @param algorithm        the algorithm of the device
+     * @param timeStepInterval the TOTP time step in seconds, 0 for HOTP
+     * @param window           the configured window, in counter values or time steps either side
+     * @param narrowed         whether only the expected counter value or time step was checked
+     * @param maxClockDrift    the maximum TOTP clock drift in time steps, 0 for HOTP
+     * @param sinceLastLogin   the seconds since the time step of the previous TOTP login, -1 if unknown
+     * @param clockDriftSteps  the TOTP clock drift of the device before the verification, in time steps
+     * @param matchedOffset    the offset of the code that matched, also if it was then rejected, or null if none did
+     * @param accepted         whether the code was accepted
+     * @param stepsScanned     the number of counter values or time steps a code was computed for
+     */
+    public VerificationTrace(long time, String user, OathAlgorithm algorithm, int timeStepInterval, int window,
+            boolean narrowed, int maxClockDrift, long sinceLastLogin, int clockDriftSteps, Integer matchedOffset,
+            boolean accepted, int stepsScanned) {
+        this.time = time;
+        this.user = user;
+        this.algorithm = algorithm;
+        this.timeStepInterval = timeStepInterval;
+        this.window = window;
+        this.narrowed = narrowed;
+        this.maxClockDrift = maxClockDrift;
+        this.sinceLastLogin = sinceLastLogin;
+        this.clockDriftSteps = clockDriftSteps;
+        this.matchedOffset = matchedOffset;
+        this.accepted = accepted;
+        this.stepsScanned = stepsScanned;
+    }
+
+    public long getTime() {
+        return time;
+    }
+
+    public String getUser() {
+        return user;
+    }
+
+    public OathAlgorithm getAlgorithm() {
+        return algorithm;
+    }
+
+    public int getTimeStepInterval() {
+        return timeStepInterval;
+    }
+
+    public int getWindow() {
+        return window;
+    }
+
+    public boolean isNarrowed() {
+        return narrowed;
+    }
+
+    public int getMaxClockDrift() {
+        return maxClockDrift;
+    }
+
+    public long getSinceLastLogin() {
+        return sinceLastLogin;
+    }
+
+    public int getClockDriftSteps() {
+        return clockDriftSteps;
+    }
+
+    public Integer getMatchedOffset() {
+        return matchedOffset;
+    }
+
+    public boolean isAccepted() {
+        return accepted;
+    }
+
+    public int getStepsScanned() {
+        return stepsScanned;
+    }
+
+    /**
+     * @return the trace as a line of comma separated values, in the order of {@link #CSV_HEADER}; the matched offset
+     * is empty if no code matched
+     */
+    public String toCsv() {
+        return time + "," + user + "," + algorithm + "," + timeStepInterval + "," + window + "," + narrowed + ","
+                + maxClockDrift + "," + sinceLastLogin + "," + clockDriftSteps + ","
+                + (matchedOffset == null ? "" : matchedOffset) + "," + accepted + "," + stepsScanned;
+    }
+
+    /**
+     * Reads a trace written by {@link #toCsv()}.
+     *
+     * @param line the line
+     * @return the trace
+     * @throws IllegalArgumentException if the line is not a trace
+     */
+    public static VerificationTrace fromCsv(String line) {
+        String[] values = line.split(",", -1);
+        if (values.length != 12) {
+            throw new IllegalArgumentException("Expected 12 values but found " + values.length + ": " + line);
+        }
+        return new VerificationTrace(Long.parseLong(values[0]), values[1], OathAlgorithm.valueOf(values[2]),
+                Integer.parseInt(values[3]), Integer.parseInt(values[4]), Boolean.parseBoolean(values[5]),
+                Integer.parseInt(values[6]), Long.parseLong(values[7]), Integer.parseInt(values[8]),
+                values[9].isEmpty() ? null : Integer.valueOf(values[9]), Boolean.parseBoolean(values[10]),
+                Integer.parseInt(values[11]));
+    }
+}
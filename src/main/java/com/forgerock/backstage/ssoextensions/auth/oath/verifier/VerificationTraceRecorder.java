@@ -0,0 +1,142 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.verifier;
+
+import com.forgerock.backstage.ssoextensions.auth.oath.OathMBeans;
+import com.forgerock.backstage.ssoextensions.auth.oath.OverwritingRing;
+import org.forgerock.openam.core.rest.devices.oath.OathDeviceSettings;
+import org.forgerock.util.annotations.VisibleForTesting;
+
+import javax.inject.Singleton;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Server wide capture of {@link VerificationTrace}s, the input of the offline replay simulator used to tune the
+ * window sizes and maximum clock drift.
+ * <p>
+ * Capturing is off unless {@value #CAPACITY_PROPERTY} is set to the number of traces to hold; they are kept in an
+ * {@link OverwritingRing}, so once it is full every trace overwrites the oldest one. Device profiles are identified
+ * by a salted hash of their identifier, with a salt drawn at startup and never stored, so traces written by one
+ * server process can be related to each other but not to a user. Traces are exported as comma separated values
+ * through the {@link VerificationTraceMXBean}, for the operator to save to a file.
+ */
+@Singleton
+public class VerificationTraceRecorder implements VerificationTraceMXBean {
+    static final String CAPACITY_PROPERTY = "com.forgerock.backstage.oath.traceCapacity";
+    private static final int USER_ID_LENGTH = 8;
+
+    private final OverwritingRing<VerificationTrace> traces;
+    private final byte[] salt = new byte[16];
+    private final LongAdder captured = new LongAdder();
+
+    public VerificationTraceRecorder() {
+        this(Integer.getInteger(CAPACITY_PROPERTY, 0));
+        if (isEnabled()) {
+            OathMBeans.register("VerificationTraces", this);
+        }
+    }
+
+    @VisibleForTesting
+    VerificationTraceRecorder(int capacity) {
+        this.traces = capacity > 0 ? new OverwritingRing<>(capacity) : null;
+        new SecureRandom().nextBytes(salt);
+    }
+
+    /**
+     * @return whether traces are captured; callers may skip building traces otherwise
+     */
+    public boolean isEnabled() {
+        return traces != null;
+    }
+
+    /**
+     * Derives the identifier traces use for a device profile.
+     *
+     * @param settings the device profile
+     * @return the first bytes of the salted SHA-256 hash of the profile identifier, or of the secret of profiles
+     * without one, in hex
+     */
+    public String anonymise(OathDeviceSettings settings) {
+        String id = settings.getUUID() != null ? settings.getUUID() : settings.getSharedSecret();
+        try {
+            MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+            sha256.update(salt);
+            byte[] digest = sha256.digest(String.valueOf(id).getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(USER_ID_LENGTH * 2);
+            for (int i = 0; i < USER_ID_LENGTH; i++) {
+                hex.append(Character.forDigit((digest[i] >> 4) & 0xf, 16))
+                        .append(Character.forDigit(digest[i] & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * Keeps a trace, overwriting the oldest one if the ring is full. Does nothing if capturing is off.
+     *
+     * @param trace the trace
+     */
+    public void record(VerificationTrace trace) {
+        if (!isEnabled()) {
+            return;
+        }
+        captured.increment();
+        traces.add(trace);
+    }
+
+    /**
+     * Reads the traces currently held. Traces captured while reading may or may not be included.
+     *
+     * @return the traces, oldest first
+     */
+    public List<VerificationTrace> dump() {
+        return isEnabled() ? traces.snapshot() : Collections.emptyList();
+    }
+
+    @Override
+    public long getCapturedTraces() {
+        return captured.sum();
+    }
+
+    @Override
+    public long getOverwrittenTraces() {
+        return isEnabled() ? traces.getOverwritten() : 0;
+    }
+
+    @Override
+    public List<String> dumpTraces() {
+        List<VerificationTrace> dump = dump();
+        List<String> lines = new ArrayList<>(dump.size() + 1);
+        lines.add(VerificationTrace.CSV_HEADER);
+        for (VerificationTrace trace : dump) {
+            lines.add(trace.toCsv());
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath;
+
+import org.testng.annotations.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CircuitBreakerTest {
+
+    private final AtomicLong now = new AtomicLong();
+
+    @Test
+    public void tryAcquire_whenFailuresBelowThreshold_thenClosed() {
+        CircuitBreaker breaker = new CircuitBreaker(3, 1000, now::get);
+
+        breaker.onFailure();
+        breaker.onFailure();
+        breaker.onSuccess();
+        breaker.onFailure();
+
+        assertThat(breaker.tryAcquire()).isTrue();
+        assertThat(breaker.getState()).isEqualTo(CircuitBreaker.State.CLOSED);
+    }
+
+    @Test
+    public void tryAcquire_whenThresholdReached_thenRejectedUntilOpenDurationPassed() {
+        CircuitBreaker breaker = new CircuitBreaker(2, 1000, now::get);
+
+        breaker.onFailure();
+        breaker.onFailure();
+
+        assertThat(breaker.tryAcquire()).isFalse();
+        now.set(1000);
+        assertThat(breaker.tryAcquire()).isTrue();
+        assertThat(breaker.getState()).isEqualTo(CircuitBreaker.State.HALF_OPEN);
+    }
+
+    @Test
+    public void tryAcquire_whenHalfOpen_thenSingleTrialCall() {
+        CircuitBreaker breaker = new CircuitBreaker(1, 1000, now::get);
+        breaker.onFailure();
+        now.set(1000);
+
+        assertThat(breaker.tryAcquire()).isTrue();
+        assertThat(breaker.tryAcquire()).isFalse();
+    }
+
+    @Test
+    public void onSuccess_whenTrialCallSucceeds_thenClosed() {
+        CircuitBreaker breaker = new CircuitBreaker(1, 1000, now::get);
+        breaker.onFailure();
+        now.set(1000);
+        breaker.tryAcquire();
+
+        breaker.onSuccess();
+
+        assertThat(breaker.getState()).isEqualTo(CircuitBreaker.State.CLOSED);
+        assertThat(breaker.tryAcquire()).isTrue();
+    }
+
+    @Test
+    public void onFailure_whenTrialCallFails_thenOpenAgain() {
+        CircuitBreaker breaker = new CircuitBreaker(5, 1000, now::get);
+        for (int i = 0; i < 5; i++) {
+            breaker.onFailure();
+        }
+        now.set(1000);
+        breaker.tryAcquire();
+
+        breaker.onFailure();
+
+        assertThat(breaker.tryAcquire()).isFalse();
+        now.set(2000);
+        assertThat(breaker.tryAcquire()).isTrue();
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath;
+
+import com.google.common.collect.ImmutableList;
+import org.forgerock.json.JsonValue;
+import org.forgerock.openam.core.rest.devices.DeviceJsonUtils;
+import org.forgerock.openam.core.rest.devices.DevicePersistenceException;
+import org.forgerock.openam.core.rest.devices.oath.OathDeviceSettings;
+import org.mockito.Mock;
+import org.powermock.modules.testng.PowerMockTestCase;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.when;
+
+public class DeviceProfileLoadCoalescerTest extends PowerMockTestCase {
+
+    @Mock
+    DeviceJsonUtils<OathDeviceSettings> jsonUtils;
+
+    private final DeviceProfileLoadCoalescer coalescer = new DeviceProfileLoadCoalescer();
+    private final OathDeviceSettings profile = new OathDeviceSettings();
+
+    @BeforeMethod
+    public void init() throws IOException {
+        when(jsonUtils.toJsonValue(any())).thenReturn(JsonValue.json(JsonValue.object()));
+        when(jsonUtils.toDeviceSettingValue(any())).thenAnswer(invocation -> new OathDeviceSettings());
+    }
+
+    @Test
+    public void load_whenNoConcurrentLoad_thenReturnLoadedProfiles() throws DevicePersistenceException {
+        List<OathDeviceSettings> profiles = coalescer.load("/:demo", () -> ImmutableList.of(profile), jsonUtils);
+
+        assertThat(profiles).containsExactly(profile);
+    }
+
+    @Test
+    public void load_whenConcurrentLoadsForSameUser_thenSingleStoreRead() throws Exception {
+        AtomicInteger storeReads = new AtomicInteger();
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        DeviceProfileLoadCoalescer.ProfileSource source = () -> {
+            storeReads.incrementAndGet();
+            loading.countDown();
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return ImmutableList.of(profile);
+        };
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<List<OathDeviceSettings>> first = executor.submit(() -> coalescer.load("/:demo", source, jsonUtils));
+            loading.await(5, TimeUnit.SECONDS);
+            Future<List<OathDeviceSettings>> second = executor.submit(() -> coalescer.load("/:demo", source, jsonUtils));
+            Thread.sleep(200);
+            release.countDown();
+
+            assertThat(first.get(5, TimeUnit.SECONDS)).containsExactly(profile);
+            assertThat(second.get(5, TimeUnit.SECONDS)).hasSize(1);
+            assertThat(second.get().get(0)).isNotSameAs(profile);
+            assertThat(storeReads.get()).isEqualTo(1);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void load_whenSavedWhileLoadInFlight_thenLaterCallerReadsStoreItself() throws Exception {
+        AtomicInteger storeReads = new AtomicInteger();
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        DeviceProfileLoadCoalescer.ProfileSource slow = () -> {
+            storeReads.incrementAndGet();
+            loading.countDown();
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return ImmutableList.of(profile);
+        };
+        OathDeviceSettings saved = new OathDeviceSettings();
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<List<OathDeviceSettings>> first = executor.submit(() -> coalescer.load("/:demo", slow, jsonUtils));
+            loading.await(5, TimeUnit.SECONDS);
+
+            coalescer.invalidate("/:demo");
+            List<OathDeviceSettings> second = coalescer.load("/:demo", () -> {
+                storeReads.incrementAndGet();
+                return ImmutableList.of(saved);
+            }, jsonUtils);
+
+            assertThat(second).containsExactly(saved);
+            assertThat(storeReads.get()).isEqualTo(2);
+            release.countDown();
+            assertThat(first.get(5, TimeUnit.SECONDS)).containsExactly(profile);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void load_whenLoadInFlightTooLong_thenWaiterReadsStoreItself() throws Exception {
+        DeviceProfileLoadCoalescer impatient = new DeviceProfileLoadCoalescer(50);
+        AtomicInteger storeReads = new AtomicInteger();
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        DeviceProfileLoadCoalescer.ProfileSource slow = () -> {
+            storeReads.incrementAndGet();
+            loading.countDown();
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return ImmutableList.of(profile);
+        };
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<List<OathDeviceSettings>> first = executor.submit(() -> impatient.load("/:demo", slow, jsonUtils));
+            loading.await(5, TimeUnit.SECONDS);
+
+            List<OathDeviceSettings> second = impatient.load("/:demo", () -> {
+                storeReads.incrementAndGet();
+                return ImmutableList.of(profile);
+            }, jsonUtils);
+
+            assertThat(second).containsExactly(profile);
+            assertThat(storeReads.get()).isEqualTo(2);
+            release.countDown();
+            assertThat(first.get(5, TimeUnit.SECONDS)).containsExactly(profile);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void load_whenSequentialLoads_thenEachReadsStore() throws DevicePersistenceException {
+        AtomicInteger storeReads = new AtomicInteger();
+        DeviceProfileLoadCoalescer.ProfileSource source = () -> {
+            storeReads.incrementAndGet();
+            return ImmutableList.of(profile);
+        };
+
+        coalescer.load("/:demo", source, jsonUtils);
+        coalescer.load("/:demo", source, jsonUtils);
+
+        assertThat(storeReads.get()).isEqualTo(2);
+    }
+
+    @Test
+    public void load_whenStoreFails_thenPropagateAndAllowRetry() throws DevicePersistenceException {
+        assertThatThrownBy(() -> coalescer.load("/:demo", () -> {
+            throw new DevicePersistenceException("unavailable");
+        }, jsonUtils)).isInstanceOf(DevicePersistenceException.class);
+
+        assertThat(coalescer.load("/:demo", () -> ImmutableList.of(profile), jsonUtils)).containsExactly(profile);
+    }
+
+    @Test
+    public void takePrefetched_whenSameNonce_thenCopyWithoutStoreRead() throws DevicePersistenceException {
+        AtomicInteger storeReads = new AtomicInteger();
+        DeviceProfileLoadCoalescer.ProfileSource source = () -> {
+            storeReads.incrementAndGet();
+            return ImmutableList.of(profile);
+        };
+
+        coalescer.prefetch("/:demo", "nonce", source, jsonUtils, 60000);
+        List<OathDeviceSettings> profiles = coalescer.takePrefetched("/:demo", "nonce", jsonUtils);
+
+        assertThat(profiles).hasSize(1);
+        assertThat(profiles.get(0)).isNotSameAs(profile);
+        assertThat(storeReads.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void takePrefetched_whenOtherNonce_thenNothing() throws DevicePersistenceException {
+        coalescer.prefetch("/:demo", "nonce", () -> ImmutableList.of(profile), jsonUtils, 60000);
+
+        assertThat(coalescer.takePrefetched("/:demo", "other", jsonUtils)).isNull();
+        assertThat(coalescer.takePrefetched("/:demo", "nonce", jsonUtils)).hasSize(1);
+    }
+
+    @Test
+    public void takePrefetched_whenTakenAlready_thenNothing() throws DevicePersistenceException {
+        coalescer.prefetch("/:demo", "nonce", () -> ImmutableList.of(profile), jsonUtils, 60000);
+        coalescer.takePrefetched("/:demo", "nonce", jsonUtils);
+
+        assertThat(coalescer.takePrefetched("/:demo", "nonce", jsonUtils)).isNull();
+    }
+
+    @Test
+    public void load_whenPrefetched_thenReadsStore() throws DevicePersistenceException {
+        AtomicInteger storeReads = new AtomicInteger();
+        DeviceProfileLoadCoalescer.ProfileSource source = () -> {
+            storeReads.incrementAndGet();
+            return ImmutableList.of(profile);
+        };
+
+        coalescer.prefetch("/:demo", "nonce", source, jsonUtils, 60000);
+        coalescer.load("/:demo", source, jsonUtils);
+
+        assertThat(storeReads.get()).isEqualTo(2);
+        assertThat(coalescer.takePrefetched("/:demo", "nonce", jsonUtils)).hasSize(1);
+    }
+
+    @Test
+    public void takePrefetched_whenInvalidated_thenNothing() throws DevicePersistenceException {
+        coalescer.prefetch("/:demo", "nonce", () -> ImmutableList.of(profile), jsonUtils, 60000);
+        coalescer.invalidate("/:demo");
+
+        assertThat(coalescer.takePrefetched("/:demo", "nonce", jsonUtils)).isNull();
+    }
+
+    @Test
+    public void prefetch_whenSavedDuringRead_thenNotKept() throws DevicePersistenceException {
+        AtomicInteger storeReads = new AtomicInteger();
+        DeviceProfileLoadCoalescer.ProfileSource source = () -> {
+            if (storeReads.incrementAndGet() == 1) {
+                coalescer.invalidate("/:demo");
+            }
+            return ImmutableList.of(profile);
+        };
+
+        coalescer.prefetch("/:demo", "nonce", source, jsonUtils, 60000);
+
+        assertThat(coalescer.takePrefetched("/:demo", "nonce", jsonUtils)).isNull();
+    }
+}
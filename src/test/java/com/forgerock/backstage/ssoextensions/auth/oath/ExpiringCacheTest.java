@@ -0,0 +1,92 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath;
+
+import org.testng.annotations.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ExpiringCacheTest {
+
+    private final AtomicLong clock = new AtomicLong(1_000);
+    private final AtomicInteger loads = new AtomicInteger();
+
+    @Test
+    public void get_whenNotExpired_thenCachedValue() {
+        ExpiringCache<String, String> cache = new ExpiringCache<>(10, clock::get);
+
+        cache.get("key", 100, this::load);
+        clock.addAndGet(99);
+
+        assertThat(cache.get("key", 100, this::load)).isEqualTo("value1");
+        assertThat(loads.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void get_whenExpired_thenLoadedAgain() {
+        ExpiringCache<String, String> cache = new ExpiringCache<>(10, clock::get);
+
+        cache.get("key", 100, this::load);
+        clock.addAndGet(100);
+
+        assertThat(cache.get("key", 100, this::load)).isEqualTo("value2");
+    }
+
+    @Test
+    public void get_whenTtlZero_thenNotCached() {
+        ExpiringCache<String, String> cache = new ExpiringCache<>(10, clock::get);
+
+        cache.get("key", 0, this::load);
+
+        assertThat(cache.size()).isEqualTo(0);
+    }
+
+    @Test
+    public void getIfPresent_whenPutAndNotExpired_thenValueWithoutLoading() {
+        ExpiringCache<String, String> cache = new ExpiringCache<>(10, clock::get);
+
+        cache.put("key", "put", 100);
+        clock.addAndGet(99);
+
+        assertThat(cache.getIfPresent("key")).isEqualTo("put");
+        assertThat(cache.get("key", 100, this::load)).isEqualTo("put");
+        clock.addAndGet(1);
+        assertThat(cache.getIfPresent("key")).isNull();
+        assertThat(loads.get()).isEqualTo(0);
+    }
+
+    @Test
+    public void get_whenFull_thenEvicted() {
+        ExpiringCache<Integer, String> cache = new ExpiringCache<>(10, clock::get);
+
+        for (int i = 0; i < 25; i++) {
+            cache.get(i, 100, this::load);
+        }
+
+        assertThat(cache.size()).isLessThanOrEqualTo(10);
+    }
+
+    private String load() {
+        return "value" + loads.incrementAndGet();
+    }
+}
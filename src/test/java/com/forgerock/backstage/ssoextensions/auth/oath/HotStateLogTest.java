@@ -0,0 +1,109 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class HotStateLogTest {
+
+    private Path file;
+
+    @BeforeMethod
+    public void setup() throws IOException {
+        file = Files.createTempFile("hot-state", ".log");
+        Files.delete(file);
+    }
+
+    @AfterMethod
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Test
+    public void open_whenReopened_thenLatestRecordOfEveryUser() throws IOException {
+        try (HotStateLog log = HotStateLog.open(file, 16)) {
+            log.put(new HotStateLog.Record(1, 10, 1000, 1, 0));
+            log.put(new HotStateLog.Record(2, 20, 1000, 5, 0));
+            log.put(new HotStateLog.Record(1, 10, 2000, 2, 30));
+        }
+
+        try (HotStateLog log = HotStateLog.open(file, 16)) {
+            assertThat(log.size()).isEqualTo(2);
+            assertThat(log.get(1).counter).isEqualTo(2);
+            assertThat(log.get(1).clockDriftSeconds).isEqualTo(30);
+            assertThat(log.get(2).counter).isEqualTo(5);
+            assertThat(log.get(3)).isNull();
+        }
+    }
+
+    @Test
+    public void open_whenLastRecordTorn_thenIgnoredAndOverwritten() throws IOException {
+        try (HotStateLog log = HotStateLog.open(file, 16)) {
+            log.put(new HotStateLog.Record(1, 10, 1000, 1, 0));
+            log.put(new HotStateLog.Record(1, 10, 2000, 2, 0));
+        }
+        try (RandomAccessFile raw = new RandomAccessFile(file.toFile(), "rw")) {
+            // Counter of the second record, as if the process died while writing it
+            raw.seek(16 + HotStateLog.RECORD_SIZE + 32);
+            raw.writeInt(99);
+        }
+
+        try (HotStateLog log = HotStateLog.open(file, 16)) {
+            assertThat(log.get(1).counter).isEqualTo(1);
+            log.put(new HotStateLog.Record(1, 10, 3000, 3, 0));
+        }
+        try (HotStateLog log = HotStateLog.open(file, 16)) {
+            assertThat(log.get(1).counter).isEqualTo(3);
+        }
+    }
+
+    @Test
+    public void put_whenFull_thenCompacted() throws IOException {
+        try (HotStateLog log = HotStateLog.open(file, 4)) {
+            for (int i = 0; i < 20; i++) {
+                log.put(new HotStateLog.Record(i % 3, 0, i, i, 0));
+            }
+            assertThat(log.size()).isEqualTo(3);
+        }
+
+        try (HotStateLog log = HotStateLog.open(file, 4)) {
+            assertThat(log.size()).isEqualTo(3);
+            assertThat(log.get(0).counter).isEqualTo(18);
+            assertThat(log.get(1).counter).isEqualTo(19);
+            assertThat(log.get(2).counter).isEqualTo(17);
+        }
+        assertThat(Files.size(file)).isEqualTo(16 + 8L * HotStateLog.RECORD_SIZE);
+    }
+
+    @Test
+    public void key_whenSameValues_thenSameKey() {
+        assertThat(HotStateLog.key("/", "alice")).isEqualTo(HotStateLog.key("/", "alice"));
+        assertThat(HotStateLog.key("/", "alice")).isNotEqualTo(HotStateLog.key("/a", "lice"));
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath;
+
+import com.google.common.collect.ImmutableList;
+import org.forgerock.openam.core.rest.devices.DevicePersistenceException;
+import org.forgerock.openam.core.rest.devices.oath.OathDeviceSettings;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class HotStateOathDeviceProfileStoreTest {
+
+    private static final String USER = "alice";
+    private static final String REALM = "/";
+
+    private Path file;
+    private InMemoryOathDeviceProfileStore delegate;
+
+    @BeforeMethod
+    public void setup() throws IOException, DevicePersistenceException {
+        file = Files.createTempFile("hot-state", ".log");
+        Files.delete(file);
+        delegate = new InMemoryOathDeviceProfileStore();
+        delegate.saveDeviceProfile(USER, REALM, profile(0, 0));
+    }
+
+    @AfterMethod
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Test
+    public void saveDeviceProfile_whenOnlyHotFieldsChanged_thenWrittenOnReconcile() throws Exception {
+        try (HotStateOathDeviceProfileStore store = new HotStateOathDeviceProfileStore(delegate, file, 16, 0)) {
+            OathDeviceSettings settings = store.getDeviceProfiles(USER, REALM).get(0);
+            settings.setCounter(1);
+            settings.setLastLogin(1000, TimeUnit.SECONDS);
+
+            store.saveDeviceProfile(USER, REALM, settings);
+
+            assertThat(delegate.getSaveCount()).isEqualTo(1);
+            assertThat(store.getPendingCount()).isEqualTo(1);
+
+            store.reconcile();
+
+            assertThat(delegate.getSaveCount()).isEqualTo(2);
+            assertThat(store.getPendingCount()).isEqualTo(0);
+        }
+    }
+
+    @Test
+    public void saveDeviceProfile_whenOtherFieldChanged_thenWrittenThrough() throws Exception {
+        try (HotStateOathDeviceProfileStore store = new HotStateOathDeviceProfileStore(delegate, file, 16, 0)) {
+            OathDeviceSettings settings = store.getDeviceProfiles(USER, REALM).get(0);
+            settings.setCounter(1);
+            settings.setRecoveryCodes(ImmutableList.of("klmnopqrst"));
+
+            store.saveDeviceProfile(USER, REALM, settings);
+
+            assertThat(delegate.getSaveCount()).isEqualTo(2);
+            assertThat(store.getPendingCount()).isEqualTo(0);
+        }
+    }
+
+    @Test
+    public void getDeviceProfiles_whenReopenedBeforeReconcile_thenHotStateApplied() throws Exception {
+        try (HotStateOathDeviceProfileStore store = new HotStateOathDeviceProfileStore(delegate, file, 16, 0)) {
+            OathDeviceSettings settings = profile(7, 5000);
+            settings.setClockDriftSeconds(30);
+            store.getDeviceProfiles(USER, REALM);
+            store.saveDeviceProfile(USER, REALM, settings);
+        }
+        // As if the process had died before reconciling
+        delegate.saveDeviceProfile(USER, REALM, profile(0, 0));
+
+        try (HotStateOathDeviceProfileStore store = new HotStateOathDeviceProfileStore(delegate, file, 16, 0)) {
+            OathDeviceSettings settings = store.getDeviceProfiles(USER, REALM).get(0);
+
+            assertThat(settings.getCounter()).isEqualTo(7);
+            assertThat(settings.getLastLogin()).isEqualTo(5000);
+            assertThat(settings.getClockDriftSeconds()).isEqualTo(30);
+        }
+    }
+
+    @Test
+    public void getDeviceProfiles_whenDeviceReplaced_thenHotStateIgnored() throws Exception {
+        try (HotStateOathDeviceProfileStore store = new HotStateOathDeviceProfileStore(delegate, file, 16, 0)) {
+            store.getDeviceProfiles(USER, REALM);
+            store.saveDeviceProfile(USER, REALM, profile(7, 5000));
+
+            OathDeviceSettings replacement = profile(0, 0);
+            replacement.setUUID("another-device");
+            delegate.saveDeviceProfile(USER, REALM, replacement);
+
+            assertThat(store.getDeviceProfiles(USER, REALM).get(0).getCounter()).isEqualTo(0);
+        }
+    }
+
+    @Test
+    public void getDeviceProfiles_whenStoredCounterAhead_thenCounterNotMovedBack() throws Exception {
+        try (HotStateOathDeviceProfileStore store = new HotStateOathDeviceProfileStore(delegate, file, 16, 0)) {
+            store.getDeviceProfiles(USER, REALM);
+            store.saveDeviceProfile(USER, REALM, profile(3, 0));
+
+            // Another server verified a later HOTP code
+            delegate.saveDeviceProfile(USER, REALM, profile(5, 0));
+
+            assertThat(store.getDeviceProfiles(USER, REALM).get(0).getCounter()).isEqualTo(5);
+        }
+    }
+
+    @Test
+    public void reconcile_whenOtherFieldChangedElsewhere_thenOnlyHotStateWritten() throws Exception {
+        try (HotStateOathDeviceProfileStore store = new HotStateOathDeviceProfileStore(delegate, file, 16, 0)) {
+            store.getDeviceProfiles(USER, REALM);
+            OathDeviceSettings settings = profile(1, 1000);
+            settings.setClockDriftSeconds(30);
+            store.saveDeviceProfile(USER, REALM, settings);
+
+            OathDeviceSettings changed = profile(0, 0);
+            changed.setRecoveryCodes(ImmutableList.of("klmnopqrst"));
+            delegate.saveDeviceProfile(USER, REALM, changed);
+
+            store.reconcile();
+
+            OathDeviceSettings stored = delegate.getDeviceProfiles(USER, REALM).get(0);
+            assertThat(stored.getRecoveryCodes()).containsExactly("klmnopqrst");
+            assertThat(stored.getCounter()).isEqualTo(1);
+            assertThat(stored.getLastLogin()).isEqualTo(1000);
+            assertThat(stored.getClockDriftSeconds()).isEqualTo(30);
+        }
+    }
+
+    @Test
+    public void reconcile_whenDeviceRemoved_thenHotStateDropped() throws Exception {
+        try (HotStateOathDeviceProfileStore store = new HotStateOathDeviceProfileStore(delegate, file, 16, 0)) {
+            store.getDeviceProfiles(USER, REALM);
+            store.saveDeviceProfile(USER, REALM, profile(7, 5000));
+
+            OathDeviceSettings replacement = profile(0, 0);
+            replacement.setUUID("another-device");
+            delegate.saveDeviceProfile(USER, REALM, replacement);
+            int saves = delegate.getSaveCount();
+
+            store.reconcile();
+
+            assertThat(store.getPendingCount()).isEqualTo(0);
+            assertThat(delegate.getSaveCount()).isEqualTo(saves);
+            assertThat(delegate.getDeviceProfiles(USER, REALM).get(0).getCounter()).isEqualTo(0);
+        }
+    }
+
+    private static OathDeviceSettings profile(int counter, long lastLogin) {
+        OathDeviceSettings settings = new OathDeviceSettings();
+        settings.setUUID("device");
+        settings.setSharedSecret("abcd");
+        settings.setCounter(counter);
+        settings.setLastLogin(lastLogin, TimeUnit.SECONDS);
+        return settings;
+    }
+}
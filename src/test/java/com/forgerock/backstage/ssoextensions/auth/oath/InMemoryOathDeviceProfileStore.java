@@ -0,0 +1,63 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath;
+
+import org.forgerock.openam.core.rest.devices.DevicePersistenceException;
+import org.forgerock.openam.core.rest.devices.oath.OathDeviceSettings;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link OathDeviceProfileStore} keeping the profiles in memory, for tests.
+ */
+public class InMemoryOathDeviceProfileStore implements OathDeviceProfileStore {
+    private final Map<String, OathDeviceSettings> profiles = new ConcurrentHashMap<>();
+    private final AtomicInteger saves = new AtomicInteger();
+
+    @Override
+    public List<OathDeviceSettings> getDeviceProfiles(String username, String realm)
+            throws DevicePersistenceException {
+        OathDeviceSettings settings = profiles.get(key(username, realm));
+        return settings == null ? Collections.emptyList() : Collections.singletonList(settings);
+    }
+
+    @Override
+    public void saveDeviceProfile(String username, String realm, OathDeviceSettings settings)
+            throws DevicePersistenceException {
+        profiles.put(key(username, realm), settings);
+        saves.incrementAndGet();
+    }
+
+    public int size() {
+        return profiles.size();
+    }
+
+    public int getSaveCount() {
+        return saves.get();
+    }
+
+    private static String key(String username, String realm) {
+        return realm + ":" + username;
+    }
+}
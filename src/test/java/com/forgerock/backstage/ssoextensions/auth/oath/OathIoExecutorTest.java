@@ -0,0 +1,92 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath;
+
+import org.testng.annotations.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class OathIoExecutorTest {
+
+    @Test
+    public void submit_whenTaskCompletes_thenResult() throws Exception {
+        OathIoExecutor executor = new OathIoExecutor(2);
+
+        assertThat(executor.submit(() -> "result").get()).isEqualTo("result");
+    }
+
+    @Test
+    public void submit_whenTaskFails_thenCompletedExceptionally() {
+        OathIoExecutor executor = new OathIoExecutor(2);
+
+        CompletableFuture<Object> future = executor.submit(() -> {
+            throw new IllegalStateException("failure");
+        });
+
+        assertThatThrownBy(future::get)
+                .isInstanceOf(ExecutionException.class)
+                .hasCauseInstanceOf(IllegalStateException.class);
+    }
+
+    @Test
+    public void submit_whenSaturated_thenRunsOnCallingThread() throws Exception {
+        OathIoExecutor executor = new OathIoExecutor(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(1);
+        CompletableFuture<Object> blocking = executor.submit(() -> {
+            started.countDown();
+            release.await();
+            return null;
+        });
+        started.await();
+
+        Thread caller = Thread.currentThread();
+        CompletableFuture<Boolean> inline = executor.submit(() -> Thread.currentThread() == caller);
+
+        assertThat(inline.isDone()).isTrue();
+        assertThat(inline.get()).isTrue();
+        release.countDown();
+        blocking.get();
+    }
+
+    @Test
+    public void tryExecute_whenSaturated_thenNotStarted() throws Exception {
+        OathIoExecutor executor = new OathIoExecutor(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(1);
+        assertThat(executor.tryExecute(() -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        })).isTrue();
+        started.await();
+
+        assertThat(executor.tryExecute(() -> { })).isFalse();
+        release.countDown();
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath;
+
+import org.testng.annotations.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class OathSecretTest {
+
+    @Test
+    public void fromHex_whenWhiteSpaceAndUpperCase_thenNormalisedHex() {
+        assertThat(OathSecret.fromHex("AB cd\n12").toHex()).isEqualTo("abcd12");
+    }
+
+    @Test
+    public void fromHex_whenOddLength_thenLeadingZero() {
+        OathSecret secret = OathSecret.fromHex("abc");
+
+        assertThat(secret.length()).isEqualTo(2);
+        assertThat(secret.toHex()).isEqualTo("0abc");
+    }
+
+    @Test
+    public void fromHex_whenNotHex_thenException() {
+        assertThatThrownBy(() -> OathSecret.fromHex("zz"))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    public void toBase32_whenRfcTestVectors_thenPadded() {
+        assertThat(base32("")).isEqualTo("");
+        assertThat(base32("f")).isEqualTo("MY======");
+        assertThat(base32("fo")).isEqualTo("MZXQ====");
+        assertThat(base32("foo")).isEqualTo("MZXW6===");
+        assertThat(base32("foob")).isEqualTo("MZXW6YQ=");
+        assertThat(base32("fooba")).isEqualTo("MZXW6YTB");
+        assertThat(base32("foobar")).isEqualTo("MZXW6YTBOI======");
+    }
+
+    @Test
+    public void fromBase32_whenPaddedLowerCase_thenBytes() {
+        assertThat(new String(OathSecret.fromBase32("mzxw6ytboi======").getBytes(), StandardCharsets.US_ASCII))
+                .isEqualTo("foobar");
+    }
+
+    @Test
+    public void fromBase32_whenInvalidCharacter_thenException() {
+        assertThatThrownBy(() -> OathSecret.fromBase32("MZXW1"))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    public void toString_whenCalled_thenSecretNotExposed() {
+        assertThat(OathSecret.fromHex("abcd").toString()).doesNotContain("abcd");
+    }
+
+    private static String base32(String text) {
+        return OathSecret.fromBytes(text.getBytes(StandardCharsets.US_ASCII)).toBase32();
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath;
+
+import org.testng.annotations.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class OverwritingRingTest {
+
+    @Test
+    public void snapshot_whenNotFull_thenAllElementsInOrder() {
+        OverwritingRing<Integer> ring = new OverwritingRing<>(4);
+        ring.add(1);
+        ring.add(2);
+
+        assertThat(ring.snapshot()).containsExactly(1, 2);
+        assertThat(ring.getOverwritten()).isZero();
+    }
+
+    @Test
+    public void snapshot_whenWrapped_thenNewestElementsOldestFirst() {
+        OverwritingRing<Integer> ring = new OverwritingRing<>(3);
+        for (int i = 0; i < 10; i++) {
+            ring.add(i);
+        }
+
+        assertThat(ring.snapshot()).containsExactly(6, 7, 8, 9);
+        assertThat(ring.getOverwritten()).isEqualTo(6);
+    }
+}
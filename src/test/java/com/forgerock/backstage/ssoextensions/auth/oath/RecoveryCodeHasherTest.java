@@ -0,0 +1,69 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath;
+
+import com.google.common.collect.ImmutableList;
+import org.testng.annotations.Test;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class RecoveryCodeHasherTest {
+
+    private static final List<String> CODES = ImmutableList.of("abcdefghij", "klmnopqrst", "uvwxyz0123");
+
+    @Test
+    public void hash_whenCodes_thenNoPlainTextStored() {
+        List<String> hashed = RecoveryCodeHasher.hash(CODES);
+
+        assertThat(hashed).hasSize(CODES.size());
+        assertThat(hashed).doesNotContain(CODES.toArray());
+        assertThat(hashed.get(0)).startsWith(RecoveryCodeHasher.PREFIX);
+    }
+
+    @Test
+    public void indexOf_whenHashedCodeMatches_thenIndex() {
+        List<String> hashed = RecoveryCodeHasher.hash(CODES);
+
+        assertThat(RecoveryCodeHasher.indexOf(hashed, "klmnopqrst")).isEqualTo(1);
+        assertThat(RecoveryCodeHasher.indexOf(hashed, "uvwxyz0123")).isEqualTo(2);
+    }
+
+    @Test
+    public void indexOf_whenNoMatch_thenMinusOne() {
+        List<String> hashed = RecoveryCodeHasher.hash(CODES);
+
+        assertThat(RecoveryCodeHasher.indexOf(hashed, "0000000000")).isEqualTo(-1);
+        assertThat(RecoveryCodeHasher.indexOf(hashed, "")).isEqualTo(-1);
+        assertThat(RecoveryCodeHasher.indexOf(null, "abcdefghij")).isEqualTo(-1);
+    }
+
+    @Test
+    public void indexOf_whenLegacyPlainTextCodes_thenIndex() {
+        assertThat(RecoveryCodeHasher.indexOf(CODES, "klmnopqrst")).isEqualTo(1);
+        assertThat(RecoveryCodeHasher.indexOf(CODES, "klmnopqrsx")).isEqualTo(-1);
+    }
+
+    @Test
+    public void hash_whenHashedTwice_thenDifferentSalt() {
+        assertThat(RecoveryCodeHasher.hash(CODES).get(0)).isNotEqualTo(RecoveryCodeHasher.hash(CODES).get(0));
+    }
+}
@@ -0,0 +1,284 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath;
+
+import org.forgerock.openam.core.rest.devices.DeviceJsonUtils;
+import org.forgerock.openam.core.rest.devices.DevicePersistenceException;
+import org.forgerock.openam.core.rest.devices.oath.OathDeviceSettings;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.forgerock.backstage.ssoextensions.auth.oath.ResilientOathDeviceProfileStore.DegradedPolicy.FAIL_FAST;
+import static com.forgerock.backstage.ssoextensions.auth.oath.ResilientOathDeviceProfileStore.DegradedPolicy.SERVE_CACHED;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class ResilientOathDeviceProfileStoreTest {
+
+    private final DeviceJsonUtils<OathDeviceSettings> jsonUtils = new DeviceJsonUtils<>(OathDeviceSettings.class);
+    private final List<ResilientOathDeviceProfileStore> stores = new ArrayList<>();
+
+    @AfterMethod
+    public void tearDown() {
+        stores.forEach(ResilientOathDeviceProfileStore::close);
+        stores.clear();
+    }
+
+    @Test
+    public void getDeviceProfiles_whenSlowerThanDeadline_thenUnavailable() {
+        SimulatedOathDeviceProfileStore delegate = new SimulatedOathDeviceProfileStore()
+                .withReadLatency(SimulatedOathDeviceProfileStore.Latency.fixed(500));
+        ResilientOathDeviceProfileStore store = store(delegate, 50, 4, 5, FAIL_FAST);
+
+        long start = System.nanoTime();
+        assertThatThrownBy(() -> store.getDeviceProfiles("alice", "/"))
+                .isInstanceOf(ProfileStoreUnavailableException.class);
+        assertThat(System.nanoTime() - start).isLessThan(TimeUnit.MILLISECONDS.toNanos(400));
+    }
+
+    @Test
+    public void getDeviceProfiles_whenFailuresReachThreshold_thenFailsWithoutCallingStore() {
+        SimulatedOathDeviceProfileStore delegate = new SimulatedOathDeviceProfileStore().withErrorRates(1, 1);
+        ResilientOathDeviceProfileStore store = store(delegate, 1000, 4, 2, FAIL_FAST);
+
+        for (int i = 0; i < 2; i++) {
+            assertThatThrownBy(() -> store.getDeviceProfiles("alice", "/"))
+                    .isInstanceOf(DevicePersistenceException.class);
+        }
+        assertThatThrownBy(() -> store.getDeviceProfiles("alice", "/"))
+                .isInstanceOf(ProfileStoreUnavailableException.class);
+
+        assertThat(delegate.getReads()).isEqualTo(2L);
+        assertThat(store.getBreakerState("/")).isEqualTo(CircuitBreaker.State.OPEN);
+        assertThat(store.getBreakerState("/other")).isEqualTo(CircuitBreaker.State.CLOSED);
+    }
+
+    @Test
+    public void getDeviceProfiles_whenBreakerOpenDurationPassed_thenTrialCallCloses() throws Exception {
+        SimulatedOathDeviceProfileStore delegate = new SimulatedOathDeviceProfileStore().withErrorRates(1, 1);
+        ResilientOathDeviceProfileStore store = store(delegate, 1000, 4, 1, FAIL_FAST);
+        assertThatThrownBy(() -> store.getDeviceProfiles("alice", "/"))
+                .isInstanceOf(DevicePersistenceException.class);
+
+        delegate.withErrorRates(0, 0);
+        Thread.sleep(150);
+
+        assertThat(store.getDeviceProfiles("alice", "/")).isEmpty();
+        assertThat(store.getBreakerState("/")).isEqualTo(CircuitBreaker.State.CLOSED);
+    }
+
+    @Test
+    public void getDeviceProfiles_whenBulkheadOfRealmFull_thenRejectedAndOtherRealmsServed() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        OathDeviceProfileStore delegate = new InMemoryOathDeviceProfileStore() {
+            @Override
+            public List<OathDeviceSettings> getDeviceProfiles(String username, String realm)
+                    throws DevicePersistenceException {
+                if ("/slow".equals(realm)) {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return super.getDeviceProfiles(username, realm);
+            }
+        };
+        ResilientOathDeviceProfileStore store = store(delegate, 5000, 1, 100, FAIL_FAST);
+        ExecutorService callers = Executors.newFixedThreadPool(30);
+        AtomicInteger rejected = new AtomicInteger();
+        List<CompletableFuture<?>> calls = new ArrayList<>();
+        try {
+            for (int i = 0; i < 30; i++) {
+                calls.add(CompletableFuture.runAsync(() -> {
+                    try {
+                        store.getDeviceProfiles("alice", "/slow");
+                    } catch (ProfileStoreUnavailableException e) {
+                        rejected.incrementAndGet();
+                    } catch (DevicePersistenceException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }, callers));
+            }
+            long deadline = System.currentTimeMillis() + 5000;
+            while (rejected.get() < 13 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+
+            assertThat(rejected.get()).isEqualTo(13);
+            assertThat(store.getDeviceProfiles("bob", "/other")).isEmpty();
+        } finally {
+            release.countDown();
+            CompletableFuture.allOf(calls.toArray(new CompletableFuture<?>[0])).get(5, TimeUnit.SECONDS);
+            callers.shutdown();
+        }
+        assertThat(store.getBreakerState("/slow")).isEqualTo(CircuitBreaker.State.CLOSED);
+    }
+
+    @Test
+    public void getDeviceProfiles_whenServeCachedAndStoreFails_thenCachedProfile() throws Exception {
+        SimulatedOathDeviceProfileStore delegate = new SimulatedOathDeviceProfileStore();
+        delegate.saveDeviceProfile("alice", "/", profile(7));
+        ResilientOathDeviceProfileStore store = store(delegate, 1000, 4, 5, SERVE_CACHED);
+        store.getDeviceProfiles("alice", "/");
+
+        delegate.withErrorRates(1, 1);
+
+        List<OathDeviceSettings> profiles = store.getDeviceProfiles("alice", "/");
+        assertThat(profiles).hasSize(1);
+        assertThat(profiles.get(0).getCounter()).isEqualTo(7);
+    }
+
+    @Test
+    public void getDeviceProfiles_whenFailFastAndStoreFails_thenNotCached() throws Exception {
+        SimulatedOathDeviceProfileStore delegate = new SimulatedOathDeviceProfileStore();
+        delegate.saveDeviceProfile("alice", "/", profile(7));
+        ResilientOathDeviceProfileStore store = store(delegate, 1000, 4, 5, FAIL_FAST);
+        store.getDeviceProfiles("alice", "/");
+
+        delegate.withErrorRates(1, 1);
+
+        assertThatThrownBy(() -> store.getDeviceProfiles("alice", "/"))
+                .isInstanceOf(DevicePersistenceException.class);
+    }
+
+    @Test
+    public void saveDeviceProfile_whenServeCachedAndStoreFails_thenQueuedAndWrittenLater() throws Exception {
+        SimulatedOathDeviceProfileStore delegate = new SimulatedOathDeviceProfileStore();
+        delegate.saveDeviceProfile("alice", "/", profile(7));
+        ResilientOathDeviceProfileStore store = store(delegate, 1000, 4, 5, SERVE_CACHED);
+        delegate.withErrorRates(0, 1);
+
+        store.saveDeviceProfile("alice", "/", profile(8));
+
+        assertThat(store.getPendingCount()).isEqualTo(1);
+        delegate.withErrorRates(1, 1);
+        assertThat(store.getDeviceProfiles("alice", "/").get(0).getCounter()).isEqualTo(8);
+
+        delegate.withErrorRates(0, 0);
+        store.retryPendingSaves();
+
+        assertThat(store.getPendingCount()).isEqualTo(0);
+        assertThat(delegate.getDeviceProfiles("alice", "/").get(0).getCounter()).isEqualTo(8);
+    }
+
+    @Test
+    public void getDeviceProfiles_whenSaveQueuedAndReadSucceeds_thenStoredProfile() throws Exception {
+        SimulatedOathDeviceProfileStore delegate = new SimulatedOathDeviceProfileStore();
+        delegate.saveDeviceProfile("alice", "/", profile(7));
+        ResilientOathDeviceProfileStore store = store(delegate, 1000, 4, 5, SERVE_CACHED);
+        delegate.withErrorRates(0, 1);
+
+        store.saveDeviceProfile("alice", "/", profile(8));
+
+        assertThat(store.getPendingCount()).isEqualTo(1);
+        assertThat(store.getDeviceProfiles("alice", "/").get(0).getCounter()).isEqualTo(7);
+    }
+
+    @Test
+    public void retryPendingSaves_whenDeviceReplaced_thenSaveDropped() throws Exception {
+        SimulatedOathDeviceProfileStore delegate = new SimulatedOathDeviceProfileStore();
+        delegate.saveDeviceProfile("alice", "/", profile(7));
+        ResilientOathDeviceProfileStore store = store(delegate, 1000, 4, 5, SERVE_CACHED);
+        delegate.withErrorRates(0, 1);
+        store.saveDeviceProfile("alice", "/", profile(8));
+
+        delegate.withErrorRates(0, 0);
+        OathDeviceSettings replacement = profile(0);
+        replacement.setUUID("another-device");
+        delegate.saveDeviceProfile("alice", "/", replacement);
+        store.retryPendingSaves();
+
+        assertThat(store.getPendingCount()).isEqualTo(0);
+        assertThat(delegate.getDeviceProfiles("alice", "/").get(0).getUUID()).isEqualTo("another-device");
+        assertThat(delegate.getDeviceProfiles("alice", "/").get(0).getCounter()).isEqualTo(0);
+    }
+
+    @Test
+    public void retryPendingSaves_whenStoredCounterAhead_thenSaveDropped() throws Exception {
+        SimulatedOathDeviceProfileStore delegate = new SimulatedOathDeviceProfileStore();
+        delegate.saveDeviceProfile("alice", "/", profile(4));
+        ResilientOathDeviceProfileStore store = store(delegate, 1000, 4, 5, SERVE_CACHED);
+        delegate.withErrorRates(0, 1);
+        store.saveDeviceProfile("alice", "/", profile(5));
+
+        // Another server verified later codes meanwhile
+        delegate.withErrorRates(0, 0);
+        delegate.saveDeviceProfile("alice", "/", profile(7));
+        store.retryPendingSaves();
+
+        assertThat(store.getPendingCount()).isEqualTo(0);
+        assertThat(delegate.getDeviceProfiles("alice", "/").get(0).getCounter()).isEqualTo(7);
+    }
+
+    @Test
+    public void retryPendingSaves_whenStoredLastLoginAhead_thenSaveDropped() throws Exception {
+        SimulatedOathDeviceProfileStore delegate = new SimulatedOathDeviceProfileStore();
+        delegate.saveDeviceProfile("alice", "/", profile(0));
+        ResilientOathDeviceProfileStore store = store(delegate, 1000, 4, 5, SERVE_CACHED);
+        delegate.withErrorRates(0, 1);
+        OathDeviceSettings queued = profile(0);
+        queued.setLastLogin(1000, TimeUnit.SECONDS);
+        store.saveDeviceProfile("alice", "/", queued);
+
+        delegate.withErrorRates(0, 0);
+        OathDeviceSettings later = profile(0);
+        later.setLastLogin(1030, TimeUnit.SECONDS);
+        delegate.saveDeviceProfile("alice", "/", later);
+        store.retryPendingSaves();
+
+        assertThat(store.getPendingCount()).isEqualTo(0);
+        assertThat(delegate.getDeviceProfiles("alice", "/").get(0).getLastLogin()).isEqualTo(1030);
+    }
+
+    @Test
+    public void saveDeviceProfile_whenFailFastAndStoreFails_thenThrows() {
+        SimulatedOathDeviceProfileStore delegate = new SimulatedOathDeviceProfileStore().withErrorRates(0, 1);
+        ResilientOathDeviceProfileStore store = store(delegate, 1000, 4, 5, FAIL_FAST);
+
+        assertThatThrownBy(() -> store.saveDeviceProfile("alice", "/", profile(1)))
+                .isInstanceOf(DevicePersistenceException.class);
+        assertThat(store.getPendingCount()).isEqualTo(0);
+    }
+
+    private ResilientOathDeviceProfileStore store(OathDeviceProfileStore delegate, long deadlineMillis,
+            int concurrency, int failureThreshold, ResilientOathDeviceProfileStore.DegradedPolicy policy) {
+        ResilientOathDeviceProfileStore store = new ResilientOathDeviceProfileStore(delegate, jsonUtils,
+                deadlineMillis, concurrency, failureThreshold, 100, policy, TimeUnit.MINUTES.toMillis(5));
+        stores.add(store);
+        return store;
+    }
+
+    private static OathDeviceSettings profile(int counter) {
+        OathDeviceSettings settings = new OathDeviceSettings();
+        settings.setSharedSecret("abcd");
+        settings.setCounter(counter);
+        return settings;
+    }
+}
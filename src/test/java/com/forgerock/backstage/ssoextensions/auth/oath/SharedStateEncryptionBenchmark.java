@@ -0,0 +1,106 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath;
+
+import static com.forgerock.backstage.ssoextensions.auth.oath.OathHelper.LIST_CLAIM_NAME;
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+
+import org.forgerock.json.JsonValue;
+import org.forgerock.json.jose.builders.JwtBuilderFactory;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares the content encryptions of {@link SharedStateEncryption} on payloads of the size the nodes put into
+ * shared state: a serialized device profile and a list of ten recovery codes. Each round encrypts and decrypts the
+ * payload through {@link OathHelper#encrypt(JwtBuilderFactory, java.security.Key, JsonValue, SharedStateEncryption)}
+ * and {@link OathHelper#decrypt(JwtBuilderFactory, java.security.Key, String)}, as a registration followed by a
+ * verification does, so the JWE library and the key derivation are part of the measurement. Like the exported
+ * stateless token key, the key is a new instance in every round.
+ * Not part of the test suite; run the main method with the test classpath, optionally passing the number of
+ * rounds.
+ */
+public final class SharedStateEncryptionBenchmark {
+    private static final int PROFILE_SIZE = 1024;
+    private static final int RECOVERY_CODES_SIZE = 300;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private SharedStateEncryptionBenchmark() {
+    }
+
+    public static void main(String[] args) {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 50_000;
+        JwtBuilderFactory jwtBuilderFactory = new JwtBuilderFactory();
+        byte[] key = new byte[32];
+        RANDOM.nextBytes(key);
+
+        for (int size : new int[]{PROFILE_SIZE, RECOVERY_CODES_SIZE}) {
+            JsonValue payload = payload(size);
+            for (SharedStateEncryption encryption : SharedStateEncryption.values()) {
+                // First pass warms up the JIT and is not reported
+                run(jwtBuilderFactory, encryption, key, payload, rounds / 2);
+                long start = System.nanoTime();
+                int jweLength = run(jwtBuilderFactory, encryption, key, payload, rounds);
+                long elapsed = System.nanoTime() - start;
+                System.out.printf("%-14s %5d bytes  %5d bytes JWE  %8.0f ns/round%n", encryption, size, jweLength,
+                        (double) elapsed / rounds);
+            }
+        }
+    }
+
+    private static int run(JwtBuilderFactory jwtBuilderFactory, SharedStateEncryption encryption, byte[] key,
+                           JsonValue payload, int rounds) {
+        int jweLength = 0;
+        int expectedSize = payload.get(LIST_CLAIM_NAME).size();
+        for (int i = 0; i < rounds; i++) {
+            String jwe = OathHelper.encrypt(jwtBuilderFactory, new SecretKeySpec(key, "AES"), payload, encryption);
+            JsonValue decrypted = OathHelper.decrypt(jwtBuilderFactory, new SecretKeySpec(key, "AES"), jwe);
+            if (decrypted.get(LIST_CLAIM_NAME).size() != expectedSize) {
+                throw new IllegalStateException("Round trip changed the payload");
+            }
+            jweLength = jwe.length();
+        }
+        return jweLength;
+    }
+
+    /**
+     * A list claim, as {@link OathHelper#encryptList(List, SharedStateEncryption)} writes, holding random hex strings
+     * until the serialized claims reach the given size.
+     */
+    private static JsonValue payload(int size) {
+        List<Object> entries = new ArrayList<>();
+        JsonValue payload = json(object(field(LIST_CLAIM_NAME, entries)));
+        while (payload.toString().length() < size) {
+            byte[] entry = new byte[8];
+            RANDOM.nextBytes(entry);
+            StringBuilder hex = new StringBuilder();
+            for (byte b : entry) {
+                hex.append(String.format("%02x", b));
+            }
+            entries.add(hex.toString());
+        }
+        return payload;
+    }
+}
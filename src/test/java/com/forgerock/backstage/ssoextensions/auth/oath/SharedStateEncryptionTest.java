@@ -0,0 +1,81 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath;
+
+import org.forgerock.json.jose.jwe.EncryptionMethod;
+import org.testng.annotations.Test;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.security.Key;
+import java.util.Arrays;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SharedStateEncryptionTest {
+
+    private static final Key KEY = new SecretKeySpec(new byte[32], "AES");
+
+    @Test
+    public void forMethod_whenKnownMethod_thenMatchingEncryption() {
+        assertThat(SharedStateEncryption.forMethod(EncryptionMethod.A128GCM)).isEqualTo(SharedStateEncryption.A128GCM);
+        assertThat(SharedStateEncryption.forMethod(EncryptionMethod.A256GCM)).isEqualTo(SharedStateEncryption.A256GCM);
+    }
+
+    @Test
+    public void forMethod_whenUnknownMethod_thenCbc() {
+        assertThat(SharedStateEncryption.forMethod(null)).isEqualTo(SharedStateEncryption.A128CBC_HS256);
+        assertThat(SharedStateEncryption.forMethod(EncryptionMethod.A256CBC_HS512))
+                .isEqualTo(SharedStateEncryption.A128CBC_HS256);
+    }
+
+    @Test
+    public void getKey_whenCbc_thenStatelessTokenKey() {
+        assertThat(SharedStateEncryption.A128CBC_HS256.getKey(KEY)).isSameAs(KEY);
+    }
+
+    @Test
+    public void getKey_whenGcm_thenDerivedKeyOfModeSize() {
+        Key a128 = SharedStateEncryption.A128GCM.getKey(KEY);
+        Key a256 = SharedStateEncryption.A256GCM.getKey(KEY);
+
+        assertThat(a128.getEncoded()).hasSize(16);
+        assertThat(a256.getEncoded()).hasSize(32);
+        assertThat(Arrays.copyOf(a256.getEncoded(), 16)).isNotEqualTo(a128.getEncoded());
+        assertThat(a256.getEncoded()).isNotEqualTo(KEY.getEncoded());
+        assertThat(SharedStateEncryption.A128GCM.getKey(KEY).getEncoded()).isEqualTo(a128.getEncoded());
+    }
+
+    @Test
+    public void getKey_whenSameKeyAgain_thenCachedDerivedKey() {
+        Key derived = SharedStateEncryption.A128GCM.getKey(KEY);
+
+        assertThat(SharedStateEncryption.A128GCM.getKey(new SecretKeySpec(new byte[32], "AES"))).isSameAs(derived);
+    }
+
+    @Test
+    public void getKey_whenKeyChanged_thenDerivedAgain() {
+        Key derived = SharedStateEncryption.A128GCM.getKey(KEY);
+        byte[] otherKey = new byte[32];
+        otherKey[0] = 1;
+
+        Key rotated = SharedStateEncryption.A128GCM.getKey(new SecretKeySpec(otherKey, "AES"));
+        assertThat(rotated.getEncoded()).isNotEqualTo(derived.getEncoded());
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath;
+
+import org.forgerock.openam.core.rest.devices.DevicePersistenceException;
+import org.forgerock.openam.core.rest.devices.oath.OathDeviceSettings;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * {@link OathDeviceProfileStore} behaving like a remote directory, for performance tests: every call waits for a
+ * latency drawn from a configurable distribution, fails at a configurable rate, and may have to wait for one of a
+ * limited number of connections first. Calls that get through are passed to a delegate, by default an
+ * {@link InMemoryOathDeviceProfileStore}.
+ */
+public class SimulatedOathDeviceProfileStore implements OathDeviceProfileStore {
+
+    /**
+     * Distribution of the latency of a store call.
+     */
+    public interface Latency {
+        Latency NONE = random -> 0;
+
+        /**
+         * @param random the source of randomness
+         * @return a latency in nanoseconds
+         */
+        long sampleNanos(Random random);
+
+        /**
+         * @param millis the latency of every call
+         * @return a constant latency
+         */
+        static Latency fixed(double millis) {
+            long nanos = toNanos(millis);
+            return random -> nanos;
+        }
+
+        /**
+         * @param minMillis the lowest latency
+         * @param maxMillis the highest latency
+         * @return latencies spread evenly between the bounds
+         */
+        static Latency uniform(double minMillis, double maxMillis) {
+            long min = toNanos(minMillis);
+            long range = toNanos(maxMillis) - min;
+            return random -> min + (long) (random.nextDouble() * range);
+        }
+
+        /**
+         * A log-normal distribution, which describes directory latencies well: most calls are fast and a few are
+         * much slower.
+         *
+         * @param p50Millis the median latency
+         * @param p99Millis the 99th percentile latency, at least the median
+         * @return latencies with the given median and 99th percentile
+         */
+        static Latency logNormal(double p50Millis, double p99Millis) {
+            double mu = Math.log(p50Millis);
+            // 2.326 is the 99th percentile of the standard normal distribution
+            double sigma = (Math.log(p99Millis) - mu) / 2.326;
+            return random -> toNanos(Math.exp(mu + sigma * random.nextGaussian()));
+        }
+
+        static long toNanos(double millis) {
+            return (long) (millis * TimeUnit.MILLISECONDS.toNanos(1));
+        }
+    }
+
+    private final OathDeviceProfileStore delegate;
+    private final Random random;
+    private Latency readLatency = Latency.NONE;
+    private Latency writeLatency = Latency.NONE;
+    private double readErrorRate;
+    private double writeErrorRate;
+    private Semaphore connections;
+
+    private final LongAdder reads = new LongAdder();
+    private final LongAdder writes = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder connectionWaitNanos = new LongAdder();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger maxInFlight = new AtomicInteger();
+
+    public SimulatedOathDeviceProfileStore() {
+        this(new InMemoryOathDeviceProfileStore(), null);
+    }
+
+    /**
+     * @param delegate the store holding the profiles
+     * @param random   the source of randomness for latencies and errors, null for a thread local one
+     */
+    public SimulatedOathDeviceProfileStore(OathDeviceProfileStore delegate, Random random) {
+        this.delegate = delegate;
+        this.random = random;
+    }
+
+    public SimulatedOathDeviceProfileStore withReadLatency(Latency latency) {
+        this.readLatency = latency;
+        return this;
+    }
+
+    public SimulatedOathDeviceProfileStore withWriteLatency(Latency latency) {
+        this.writeLatency = latency;
+        return this;
+    }
+
+    /**
+     * @param readErrorRate  the fraction of reads failing with a {@link DevicePersistenceException}
+     * @param writeErrorRate the fraction of writes failing with a {@link DevicePersistenceException}
+     * @return this store
+     */
+    public SimulatedOathDeviceProfileStore withErrorRates(double readErrorRate, double writeErrorRate) {
+        this.readErrorRate = readErrorRate;
+        this.writeErrorRate = writeErrorRate;
+        return this;
+    }
+
+    /**
+     * Limits the number of calls in progress, like the connection pool to a directory. Calls beyond the limit wait
+     * for a connection before their latency starts.
+     *
+     * @param connections the number of connections, 0 for no limit
+     * @return this store
+     */
+    public SimulatedOathDeviceProfileStore withConnections(int connections) {
+        this.connections = connections > 0 ? new Semaphore(connections, true) : null;
+        return this;
+    }
+
+    @Override
+    public List<OathDeviceSettings> getDeviceProfiles(String username, String realm)
+            throws DevicePersistenceException {
+        reads.increment();
+        simulateCall(readLatency, readErrorRate, "read");
+        return delegate.getDeviceProfiles(username, realm);
+    }
+
+    @Override
+    public void saveDeviceProfile(String username, String realm, OathDeviceSettings settings)
+            throws DevicePersistenceException {
+        writes.increment();
+        simulateCall(writeLatency, writeErrorRate, "write");
+        delegate.saveDeviceProfile(username, realm, settings);
+    }
+
+    public long getReads() {
+        return reads.sum();
+    }
+
+    public long getWrites() {
+        return writes.sum();
+    }
+
+    public long getFailures() {
+        return failures.sum();
+    }
+
+    /**
+     * @return the total time calls have waited for a connection, in nanoseconds
+     */
+    public long getConnectionWaitNanos() {
+        return connectionWaitNanos.sum();
+    }
+
+    /**
+     * @return the highest number of calls that were in progress at the same time
+     */
+    public int getMaxInFlight() {
+        return maxInFlight.get();
+    }
+
+    private void simulateCall(Latency latency, double errorRate, String operation)
+            throws DevicePersistenceException {
+        Random random = this.random != null ? this.random : ThreadLocalRandom.current();
+        Semaphore pool = connections;
+        if (pool != null) {
+            long start = System.nanoTime();
+            pool.acquireUninterruptibly();
+            connectionWaitNanos.add(System.nanoTime() - start);
+        }
+        int current = inFlight.incrementAndGet();
+        maxInFlight.accumulateAndGet(current, Math::max);
+        try {
+            long nanos = latency.sampleNanos(random);
+            if (nanos > 0) {
+                TimeUnit.NANOSECONDS.sleep(nanos);
+            }
+            if (errorRate > 0 && random.nextDouble() < errorRate) {
+                failures.increment();
+                throw new DevicePersistenceException("Simulated " + operation + " failure");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DevicePersistenceException("Interrupted during simulated " + operation, e);
+        } finally {
+            inFlight.decrementAndGet();
+            if (pool != null) {
+                pool.release();
+            }
+        }
+    }
+}
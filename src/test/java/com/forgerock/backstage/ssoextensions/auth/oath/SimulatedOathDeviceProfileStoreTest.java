@@ -0,0 +1,106 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath;
+
+import org.forgerock.openam.core.rest.devices.DevicePersistenceException;
+import org.forgerock.openam.core.rest.devices.oath.OathDeviceSettings;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class SimulatedOathDeviceProfileStoreTest {
+
+    @Test
+    public void saveDeviceProfile_whenNoFaults_thenStoredAndCounted() throws DevicePersistenceException {
+        SimulatedOathDeviceProfileStore store = new SimulatedOathDeviceProfileStore();
+
+        store.saveDeviceProfile("alice", "/", new OathDeviceSettings());
+
+        assertThat(store.getDeviceProfiles("alice", "/")).hasSize(1);
+        assertThat(store.getReads()).isEqualTo(1L);
+        assertThat(store.getWrites()).isEqualTo(1L);
+        assertThat(store.getFailures()).isEqualTo(0L);
+    }
+
+    @Test
+    public void saveDeviceProfile_whenErrorRateOne_thenFailsWithoutStoring() {
+        SimulatedOathDeviceProfileStore store = new SimulatedOathDeviceProfileStore()
+                .withErrorRates(0, 1);
+
+        assertThatThrownBy(() -> store.saveDeviceProfile("alice", "/", new OathDeviceSettings()))
+                .isInstanceOf(DevicePersistenceException.class);
+        assertThat(store.getFailures()).isEqualTo(1L);
+    }
+
+    @Test
+    public void getDeviceProfiles_whenFixedLatency_thenDelayed() throws DevicePersistenceException {
+        SimulatedOathDeviceProfileStore store = new SimulatedOathDeviceProfileStore()
+                .withReadLatency(SimulatedOathDeviceProfileStore.Latency.fixed(20));
+
+        long start = System.nanoTime();
+        store.getDeviceProfiles("alice", "/");
+
+        assertThat(System.nanoTime() - start).isGreaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(20));
+    }
+
+    @Test
+    public void getDeviceProfiles_whenOneConnection_thenCallsSerialized() {
+        SimulatedOathDeviceProfileStore store = new SimulatedOathDeviceProfileStore()
+                .withReadLatency(SimulatedOathDeviceProfileStore.Latency.fixed(20))
+                .withConnections(1);
+
+        CompletableFuture<?>[] calls = new CompletableFuture<?>[4];
+        for (int i = 0; i < calls.length; i++) {
+            calls[i] = CompletableFuture.runAsync(() -> {
+                try {
+                    store.getDeviceProfiles("alice", "/");
+                } catch (DevicePersistenceException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+        }
+        CompletableFuture.allOf(calls).join();
+
+        assertThat(store.getMaxInFlight()).isEqualTo(1);
+        assertThat(store.getConnectionWaitNanos()).isGreaterThan(0L);
+    }
+
+    @Test
+    public void logNormal_whenSampled_thenMatchesPercentiles() {
+        SimulatedOathDeviceProfileStore.Latency latency = SimulatedOathDeviceProfileStore.Latency.logNormal(5, 50);
+        Random random = new Random(42);
+        long[] samples = new long[100_000];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = latency.sampleNanos(random);
+        }
+        Arrays.sort(samples);
+
+        double p50 = samples[samples.length / 2] / 1e6;
+        double p99 = samples[samples.length * 99 / 100] / 1e6;
+        assertThat(p50).isBetween(4.5, 5.5);
+        assertThat(p99).isBetween(45.0, 55.0);
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.audit;
+
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class OathAuditPipelineTest {
+
+    @Test
+    public void publish_whenEventsPublished_thenWrittenInOrder() throws IOException {
+        RecordingSink sink = new RecordingSink();
+        OathAuditPipeline pipeline = new OathAuditPipeline(sink, 8, 3, OathAuditPipeline.OverflowPolicy.DROP);
+
+        for (int i = 0; i < 5; i++) {
+            assertThat(pipeline.publish(event("user" + i))).isTrue();
+        }
+        pipeline.close();
+
+        assertThat(sink.users()).containsExactly("user0", "user1", "user2", "user3", "user4");
+        assertThat(sink.closed).isTrue();
+        assertThat(pipeline.getPublishedEvents()).isEqualTo(5);
+        assertThat(pipeline.getWrittenEvents()).isEqualTo(5);
+        assertThat(pipeline.getPendingEvents()).isZero();
+    }
+
+    @Test
+    public void publish_whenBufferFullAndDropPolicy_thenDropped() throws Exception {
+        RecordingSink sink = new RecordingSink();
+        sink.block();
+        OathAuditPipeline pipeline = new OathAuditPipeline(sink, 2, 1, OathAuditPipeline.OverflowPolicy.DROP);
+
+        pipeline.publish(event("user0"));
+        sink.awaitWriting();
+        assertThat(pipeline.publish(event("user1"))).isTrue();
+        assertThat(pipeline.publish(event("user2"))).isTrue();
+        assertThat(pipeline.publish(event("user3"))).isFalse();
+        sink.unblock();
+        pipeline.close();
+
+        assertThat(pipeline.getDroppedEvents()).isEqualTo(1);
+        assertThat(sink.users()).containsExactly("user0", "user1", "user2");
+    }
+
+    @Test
+    public void publish_whenBufferFullAndBlockPolicy_thenWaitsBeforeDropping() throws Exception {
+        RecordingSink sink = new RecordingSink();
+        sink.block();
+        OathAuditPipeline pipeline = new OathAuditPipeline(sink, 2, 1, OathAuditPipeline.OverflowPolicy.BLOCK);
+
+        pipeline.publish(event("user0"));
+        sink.awaitWriting();
+        pipeline.publish(event("user1"));
+        pipeline.publish(event("user2"));
+        long start = System.nanoTime();
+        boolean accepted = pipeline.publish(event("user3"));
+        long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        sink.unblock();
+        pipeline.close();
+
+        assertThat(accepted).isFalse();
+        assertThat(waited).isGreaterThanOrEqualTo(OathAuditPipeline.BLOCK_TIMEOUT_MILLIS);
+        assertThat(pipeline.getDroppedEvents()).isEqualTo(1);
+    }
+
+    @Test
+    public void publish_whenSinkFails_thenCountedAsFailed() throws IOException {
+        OathAuditPipeline pipeline = new OathAuditPipeline(new OathAuditSink() {
+            @Override
+            public void write(List<OathAuditEvent> events) throws IOException {
+                throw new IOException("disk full");
+            }
+
+            @Override
+            public void close() {
+            }
+        }, 8, 8, OathAuditPipeline.OverflowPolicy.DROP);
+
+        pipeline.publish(event("user0"));
+        pipeline.publish(event("user1"));
+        pipeline.close();
+
+        assertThat(pipeline.getFailedEvents()).isEqualTo(2);
+        assertThat(pipeline.getWrittenEvents()).isZero();
+    }
+
+    @Test
+    public void publish_whenConcurrentPublishers_thenEveryAcceptedEventWritten() throws Exception {
+        RecordingSink sink = new RecordingSink();
+        OathAuditPipeline pipeline = new OathAuditPipeline(sink, 64, 16, OathAuditPipeline.OverflowPolicy.BLOCK);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        for (int thread = 0; thread < 4; thread++) {
+            executor.execute(() -> {
+                for (int i = 0; i < 1000; i++) {
+                    pipeline.publish(event("user" + i));
+                }
+            });
+        }
+        executor.shutdown();
+        assertThat(executor.awaitTermination(30, TimeUnit.SECONDS)).isTrue();
+        pipeline.close();
+
+        assertThat(pipeline.getPublishedEvents() + pipeline.getDroppedEvents()).isEqualTo(4000);
+        assertThat(sink.events).hasSize((int) pipeline.getPublishedEvents());
+    }
+
+    @Test
+    public void publish_whenDisabled_thenNotAccepted() throws IOException {
+        OathAuditPipeline pipeline = OathAuditPipeline.disabled();
+
+        assertThat(pipeline.isEnabled()).isFalse();
+        assertThat(pipeline.publish(event("user0"))).isFalse();
+        assertThat(pipeline.getDroppedEvents()).isZero();
+        pipeline.close();
+    }
+
+    @Test
+    public void publish_whenClosed_thenDropped() throws IOException {
+        OathAuditPipeline pipeline = new OathAuditPipeline(new RecordingSink(), 8, 8,
+                OathAuditPipeline.OverflowPolicy.BLOCK);
+        pipeline.close();
+
+        assertThat(pipeline.publish(event("user0"))).isFalse();
+        assertThat(pipeline.getDroppedEvents()).isEqualTo(1);
+    }
+
+    private static OathAuditEvent event(String user) {
+        return new OathAuditEvent(0, OathAuditEvent.Type.VERIFICATION, "/", user, "SUCCESS", null, 0, null);
+    }
+
+    private static final class RecordingSink implements OathAuditSink {
+        private final List<OathAuditEvent> events = new CopyOnWriteArrayList<>();
+        private final CountDownLatch writing = new CountDownLatch(1);
+        private volatile CountDownLatch release = new CountDownLatch(0);
+        private volatile boolean closed;
+
+        void block() {
+            release = new CountDownLatch(1);
+        }
+
+        void unblock() {
+            release.countDown();
+        }
+
+        List<String> users() {
+            return events.stream().map(OathAuditEvent::getUser).collect(Collectors.toList());
+        }
+
+        void awaitWriting() throws InterruptedException {
+            assertThat(writing.await(10, TimeUnit.SECONDS)).isTrue();
+        }
+
+        @Override
+        public void write(List<OathAuditEvent> batch) throws IOException {
+            writing.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            events.addAll(batch);
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.audit;
+
+import org.testng.annotations.Test;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class RecentAttemptsTest {
+
+    @Test
+    public void record_whenMoreAttemptsThanRingSize_thenLatestKeptOldestFirst() {
+        RecentAttempts recentAttempts = new RecentAttempts(4, 100, 60000);
+
+        for (int i = 0; i < 6; i++) {
+            recentAttempts.record(attempt("bob", i));
+        }
+
+        List<OathAuditEvent> attempts = recentAttempts.get("/", "bob");
+        assertThat(attempts).hasSize(4);
+        assertThat(attempts.get(0).getTimestamp()).isEqualTo(2);
+        assertThat(attempts.get(3).getTimestamp()).isEqualTo(5);
+    }
+
+    @Test
+    public void get_whenOtherUser_thenTheirAttemptsOnly() {
+        RecentAttempts recentAttempts = new RecentAttempts(4, 100, 60000);
+        recentAttempts.record(attempt("bob", 1));
+        recentAttempts.record(attempt("alice", 2));
+
+        assertThat(recentAttempts.get("/", "alice")).hasSize(1);
+        assertThat(recentAttempts.get("/", "carol")).isEmpty();
+        assertThat(recentAttempts.getTrackedUsers()).isEqualTo(2);
+    }
+
+    @Test
+    public void record_whenMaxUsersReached_thenUsersEvicted() {
+        RecentAttempts recentAttempts = new RecentAttempts(4, 10, 60000);
+
+        for (int i = 0; i < 25; i++) {
+            recentAttempts.record(attempt("user" + i, i));
+        }
+
+        assertThat(recentAttempts.getTrackedUsers()).isLessThanOrEqualTo(10);
+        assertThat(recentAttempts.get("/", "user24")).hasSize(1);
+    }
+
+    @Test
+    public void record_whenMaxUsersReachedWithinSample_thenLeastRecentlyUsedEvicted() {
+        RecentAttempts recentAttempts = new RecentAttempts(4, 3, 60000);
+        recentAttempts.record(attempt("alice", 1));
+        recentAttempts.record(attempt("bob", 2));
+        recentAttempts.record(attempt("carol", 3));
+        recentAttempts.record(attempt("alice", 4));
+
+        recentAttempts.record(attempt("dave", 5));
+
+        assertThat(recentAttempts.getTrackedUsers()).isEqualTo(3);
+        assertThat(recentAttempts.get("/", "bob")).isEmpty();
+        assertThat(recentAttempts.get("/", "alice")).hasSize(2);
+        assertThat(recentAttempts.get("/", "carol")).hasSize(1);
+    }
+
+    @Test
+    public void record_whenManyMoreUsersThanMax_thenRecentlyQueriedUserKept() {
+        RecentAttempts recentAttempts = new RecentAttempts(4, 2 * RecentAttempts.EVICTION_SAMPLE, 60000);
+        recentAttempts.record(attempt("bob", 0));
+
+        for (int i = 1; i < 200; i++) {
+            recentAttempts.record(attempt("user" + i, i));
+            assertThat(recentAttempts.get("/", "bob")).hasSize(1);
+        }
+
+        assertThat(recentAttempts.getTrackedUsers()).isEqualTo(2 * RecentAttempts.EVICTION_SAMPLE);
+    }
+
+    @Test
+    public void constructor_whenDefaults_thenDisabled() {
+        assertThat(new RecentAttempts().isEnabled()).isFalse();
+    }
+
+    @Test
+    public void get_whenTtlPassed_thenDropped() throws InterruptedException {
+        RecentAttempts recentAttempts = new RecentAttempts(4, 100, 20);
+        recentAttempts.record(attempt("bob", 1));
+
+        Thread.sleep(50);
+
+        assertThat(recentAttempts.get("/", "bob")).isEmpty();
+        assertThat(recentAttempts.getTrackedUsers()).isEqualTo(0);
+    }
+
+    @Test
+    public void record_whenDisabled_thenNothingKept() {
+        RecentAttempts recentAttempts = new RecentAttempts(0, 100, 60000);
+        recentAttempts.record(attempt("bob", 1));
+
+        assertThat(recentAttempts.isEnabled()).isFalse();
+        assertThat(recentAttempts.get("/", "bob")).isEmpty();
+    }
+
+    @Test
+    public void recentAttempts_whenRecorded_thenJson() {
+        RecentAttempts recentAttempts = new RecentAttempts(4, 100, 60000);
+        recentAttempts.record(new OathAuditEvent(1, OathAuditEvent.Type.VERIFICATION, "/", "bob", "FAILURE",
+                "OTP is out of sync", null, null));
+
+        assertThat(recentAttempts.recentAttempts("/", "bob")).hasSize(1);
+        assertThat(recentAttempts.recentAttempts("/", "bob").get(0)).contains("\"failureReason\":\"OTP is out of sync\"");
+    }
+
+    private static OathAuditEvent attempt(String user, long timestamp) {
+        return new OathAuditEvent(timestamp, OathAuditEvent.Type.VERIFICATION, "/", user, "SUCCESS", null, 0, 0);
+    }
+}
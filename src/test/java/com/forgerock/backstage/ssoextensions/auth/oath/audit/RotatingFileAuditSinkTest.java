@@ -0,0 +1,103 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.audit;
+
+import com.google.common.collect.ImmutableList;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class RotatingFileAuditSinkTest {
+
+    private Path directory;
+    private Path file;
+
+    @BeforeMethod
+    public void beforeMethod() throws IOException {
+        directory = Files.createTempDirectory("oath-audit");
+        file = directory.resolve("audit.log");
+    }
+
+    @AfterMethod
+    public void afterMethod() throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    public void write_whenEvents_thenOneJsonLineEach() throws IOException {
+        RotatingFileAuditSink sink = new RotatingFileAuditSink(file, 1024 * 1024, 2);
+
+        sink.write(ImmutableList.of(event("user0", 1), event("user1", null)));
+        sink.close();
+
+        List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        assertThat(lines).hasSize(2);
+        assertThat(lines.get(0)).contains("\"user0\"").contains("windowOffset");
+        assertThat(lines.get(1)).contains("\"user1\"").doesNotContain("windowOffset");
+    }
+
+    @Test
+    public void write_whenFileReopened_thenAppended() throws IOException {
+        RotatingFileAuditSink sink = new RotatingFileAuditSink(file, 1024 * 1024, 2);
+        sink.write(ImmutableList.of(event("user0", 0)));
+        sink.close();
+
+        sink = new RotatingFileAuditSink(file, 1024 * 1024, 2);
+        sink.write(ImmutableList.of(event("user1", 0)));
+        sink.close();
+
+        assertThat(Files.readAllLines(file, StandardCharsets.UTF_8)).hasSize(2);
+    }
+
+    @Test
+    public void write_whenMaxFileSizeReached_thenRotatedKeepingMaxFiles() throws IOException {
+        int lineLength = (event("user0", 0).toJsonValue().toString() + "\n").length();
+        RotatingFileAuditSink sink = new RotatingFileAuditSink(file, lineLength, 2);
+
+        for (int i = 0; i < 5; i++) {
+            sink.write(ImmutableList.of(event("user" + i, 0)));
+        }
+        sink.close();
+
+        assertThat(Files.readAllLines(file, StandardCharsets.UTF_8).get(0)).contains("\"user4\"");
+        assertThat(Files.readAllLines(directory.resolve("audit.log.1"), StandardCharsets.UTF_8).get(0))
+                .contains("\"user3\"");
+        assertThat(Files.readAllLines(directory.resolve("audit.log.2"), StandardCharsets.UTF_8).get(0))
+                .contains("\"user2\"");
+        assertThat(Files.exists(directory.resolve("audit.log.3"))).isFalse();
+    }
+
+    private static OathAuditEvent event(String user, Integer windowOffset) {
+        return new OathAuditEvent(0, OathAuditEvent.Type.VERIFICATION, "/", user, "SUCCESS", null, windowOffset,
+                null);
+    }
+}
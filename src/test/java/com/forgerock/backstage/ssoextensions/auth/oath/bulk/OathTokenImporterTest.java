@@ -0,0 +1,120 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.bulk;
+
+import com.forgerock.backstage.ssoextensions.auth.oath.InMemoryOathDeviceProfileStore;
+import com.forgerock.backstage.ssoextensions.auth.oath.OathAlgorithm;
+import org.forgerock.openam.core.rest.devices.DevicePersistenceException;
+import org.forgerock.openam.core.rest.devices.oath.OathDeviceSettings;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class OathTokenImporterTest {
+
+    private static final String CSV = "username,secret,counter\n"
+            + "alice,3132333435363738393031323334353637383930,5\n"
+            + "\n"
+            + "# comment\n"
+            + "bob,3132 3334 3536 3738 3930 3132 3334 3536 3738 3930\n"
+            + "carol,1234\n"
+            + "dave,zz32333435363738393031323334353637383930,0\n"
+            + ",3132333435363738393031323334353637383930,0\n"
+            + "erin,3132333435363738393031323334353637383930,-1\n";
+
+    @Test
+    public void importTokens_whenCsv_thenValidTokensStoredAndInvalidRejected()
+            throws IOException, InterruptedException, DevicePersistenceException {
+        InMemoryOathDeviceProfileStore store = new InMemoryOathDeviceProfileStore();
+        OathTokenImporter importer = new OathTokenImporter(store, "/", 32, OathAlgorithm.HOTP, 6, true, 2, 1);
+
+        ImportResult result = importer.importTokens(new CsvTokenReader(new StringReader(CSV)));
+
+        assertThat(result.getImported()).isEqualTo(2);
+        assertThat(result.getRejected()).isEqualTo(5);
+        assertThat(result.getFailed()).isEqualTo(0);
+        assertThat(store.size()).isEqualTo(2);
+        OathDeviceSettings alice = store.getDeviceProfiles("alice", "/").get(0);
+        assertThat(alice.getSharedSecret()).isEqualTo("3132333435363738393031323334353637383930");
+        assertThat(alice.getCounter()).isEqualTo(5);
+        assertThat(alice.isChecksumDigit()).isTrue();
+        assertThat(store.getDeviceProfiles("bob", "/").get(0).getCounter()).isEqualTo(0);
+    }
+
+    @Test
+    public void importTokens_whenStoreFails_thenCountedAsFailed() throws IOException, InterruptedException {
+        InMemoryOathDeviceProfileStore store = new InMemoryOathDeviceProfileStore() {
+            @Override
+            public void saveDeviceProfile(String username, String realm, OathDeviceSettings settings)
+                    throws DevicePersistenceException {
+                if ("alice".equals(username)) {
+                    throw new DevicePersistenceException("unavailable");
+                }
+                super.saveDeviceProfile(username, realm, settings);
+            }
+        };
+        OathTokenImporter importer = new OathTokenImporter(store, "/", 32, OathAlgorithm.HOTP, 6, false, 4, 10);
+
+        ImportResult result = importer.importTokens(new CsvTokenReader(new StringReader(CSV)));
+
+        assertThat(result.getImported()).isEqualTo(1);
+        assertThat(result.getFailed()).isEqualTo(1);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void constructor_whenMinSharedSecretLengthNotPositive_thenException() {
+        new OathTokenImporter(new InMemoryOathDeviceProfileStore(), "/", 0, OathAlgorithm.HOTP, 6, false, 1, 1);
+    }
+
+    @Test
+    public void toDeviceSettings_whenAlgorithmAndDigitsMatch_thenProfile() {
+        assertThat(importer(OathAlgorithm.TOTP, 8).toDeviceSettings(token("TOTP", "8"))).isNotNull();
+    }
+
+    @Test
+    public void toDeviceSettings_whenOtherAlgorithm_thenRejected() {
+        OathTokenImporter importer = importer(OathAlgorithm.HOTP, 6);
+
+        assertThat(importer.toDeviceSettings(token("TOTP", "6"))).isNull();
+        assertThat(importer.toDeviceSettings(token("urn:ietf:params:xml:ns:keyprov:pskc:ocra-1", "6"))).isNull();
+    }
+
+    @Test
+    public void toDeviceSettings_whenOtherDigits_thenRejected() {
+        assertThat(importer(OathAlgorithm.HOTP, 6).toDeviceSettings(token("HOTP", "8"))).isNull();
+    }
+
+    @Test
+    public void toDeviceSettings_whenAlgorithmAndDigitsAbsent_thenProfile() {
+        assertThat(importer(OathAlgorithm.TOTP, 8).toDeviceSettings(token(null, null))).isNotNull();
+    }
+
+    private static OathTokenImporter importer(OathAlgorithm algorithm, int passwordLength) {
+        return new OathTokenImporter(new InMemoryOathDeviceProfileStore(), "/", 32, algorithm, passwordLength, false,
+                1, 1);
+    }
+
+    private static ImportedToken token(String algorithm, String digits) {
+        return new ImportedToken(1, "alice", "3132333435363738393031323334353637383930", "0", algorithm, digits);
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.bulk;
+
+import com.forgerock.backstage.ssoextensions.auth.oath.InMemoryOathDeviceProfileStore;
+import com.google.common.collect.ImmutableList;
+import org.forgerock.openam.core.rest.devices.DevicePersistenceException;
+import org.forgerock.openam.core.rest.devices.oath.OathDeviceSettings;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ProfileMigrationJobTest {
+
+    private static final String USERS = "alice\nbob\n\ncarol\ndave\n";
+
+    private InMemoryOathDeviceProfileStore store;
+    private Path checkpointFile;
+
+    @BeforeMethod
+    public void setup() throws IOException, DevicePersistenceException {
+        store = new InMemoryOathDeviceProfileStore();
+        store.saveDeviceProfile("alice", "/", new OathDeviceSettings());
+        store.saveDeviceProfile("bob", "/", new OathDeviceSettings());
+        store.saveDeviceProfile("dave", "/", new OathDeviceSettings());
+        checkpointFile = Files.createTempFile("migration", ".checkpoint");
+        Files.delete(checkpointFile);
+    }
+
+    @AfterMethod
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(checkpointFile);
+        Files.deleteIfExists(checkpointFile.resolveSibling(checkpointFile.getFileName() + ".failed"));
+    }
+
+    @Test
+    public void run_whenRewriteAll_thenEveryProfileStoredAndCheckpointAtEnd() throws Exception {
+        ProfileMigrationJob job = job(Collections.emptyList(), true);
+
+        job.run(new LineUserSource(new StringReader(USERS)));
+
+        assertThat(job.getProcessedUsers()).isEqualTo(4);
+        assertThat(job.getUpdatedProfiles()).isEqualTo(3);
+        assertThat(job.getUsersWithoutProfile()).isEqualTo(1);
+        assertThat(job.getFailedUsers()).isEqualTo(0);
+        assertThat(new MigrationCheckpoint(checkpointFile).load()).isEqualTo(4);
+    }
+
+    @Test
+    public void run_whenCheckpointExists_thenResumesAfterIt() throws Exception {
+        new MigrationCheckpoint(checkpointFile).save(2);
+        List<String> seen = Collections.synchronizedList(new ArrayList<>());
+        ProfileTransform recorder = (username, settings) -> {
+            seen.add(username);
+            return false;
+        };
+
+        ProfileMigrationJob job = job(ImmutableList.of(recorder), false);
+        job.run(new LineUserSource(new StringReader(USERS)));
+
+        assertThat(seen).containsOnly("dave");
+        assertThat(job.getProcessedUsers()).isEqualTo(2);
+        assertThat(job.getUpdatedProfiles()).isEqualTo(0);
+        assertThat(job.getCheckpoint()).isEqualTo(4);
+    }
+
+    @Test
+    public void run_whenTransformFails_thenUserCountedAsFailed() throws Exception {
+        ProfileTransform failing = (username, settings) -> {
+            if ("bob".equals(username)) {
+                throw new IOException("failure");
+            }
+            return true;
+        };
+
+        ProfileMigrationJob job = job(ImmutableList.of(failing), false);
+        job.run(new LineUserSource(new StringReader(USERS)));
+
+        assertThat(job.getUpdatedProfiles()).isEqualTo(2);
+        assertThat(job.getFailedUsers()).isEqualTo(1);
+        assertThat(job.getCheckpoint()).isEqualTo(4);
+    }
+
+    @Test
+    public void run_whenUserFailedInPreviousRun_thenRetriedOnResume() throws Exception {
+        ProfileTransform failing = (username, settings) -> {
+            if ("bob".equals(username)) {
+                throw new IOException("failure");
+            }
+            return false;
+        };
+        job(ImmutableList.of(failing), false).run(new LineUserSource(new StringReader(USERS)));
+        assertThat(new MigrationCheckpoint(checkpointFile).loadFailed()).containsExactly("bob");
+
+        List<String> seen = Collections.synchronizedList(new ArrayList<>());
+        ProfileTransform recorder = (username, settings) -> {
+            seen.add(username);
+            return true;
+        };
+        ProfileMigrationJob job = job(ImmutableList.of(recorder), false);
+        job.run(new LineUserSource(new StringReader(USERS)));
+
+        assertThat(seen).containsOnly("bob");
+        assertThat(job.getUpdatedProfiles()).isEqualTo(1);
+        assertThat(new MigrationCheckpoint(checkpointFile).loadFailed()).isEmpty();
+        assertThat(new MigrationCheckpoint(checkpointFile).load()).isEqualTo(4);
+    }
+
+    private ProfileMigrationJob job(List<ProfileTransform> transforms, boolean rewriteAll) {
+        return new ProfileMigrationJob(store, "/", transforms, rewriteAll, 2, new MigrationCheckpoint(checkpointFile),
+                1);
+    }
+}
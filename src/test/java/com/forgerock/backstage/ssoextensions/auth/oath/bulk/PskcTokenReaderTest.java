@@ -0,0 +1,113 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.bulk;
+
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class PskcTokenReaderTest {
+
+    private static final String PSKC = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+            + "<KeyContainer Version=\"1.0\" xmlns=\"urn:ietf:params:xml:ns:keyprov:pskc\">"
+            + "<KeyPackage>"
+            + "<DeviceInfo><SerialNo>987654321</SerialNo><UserId>device-user</UserId></DeviceInfo>"
+            + "<Key Id=\"1\" Algorithm=\"urn:ietf:params:xml:ns:keyprov:pskc:hotp\">"
+            + "<Data><Secret><PlainValue>MTIzNDU2Nzg5MDEyMzQ1Njc4OTA=</PlainValue></Secret>"
+            + "<Counter><PlainValue>42</PlainValue></Counter></Data>"
+            + "<UserId>demo</UserId>"
+            + "</Key>"
+            + "</KeyPackage>"
+            + "<KeyPackage>"
+            + "<DeviceInfo><UserId>other</UserId></DeviceInfo>"
+            + "<Key Id=\"2\" Algorithm=\"urn:ietf:params:xml:ns:keyprov:pskc:hotp\">"
+            + "<Data><Secret><EncryptedValue><CipherData><CipherValue>AAAA</CipherValue></CipherData>"
+            + "</EncryptedValue></Secret></Data>"
+            + "</Key>"
+            + "</KeyPackage>"
+            + "</KeyContainer>";
+
+    private static final String PSKC_ALGORITHMS = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+            + "<KeyContainer Version=\"1.0\" xmlns=\"urn:ietf:params:xml:ns:keyprov:pskc\">"
+            + "<KeyPackage>"
+            + "<Key Id=\"1\" Algorithm=\"urn:ietf:params:xml:ns:keyprov:pskc#totp\">"
+            + "<AlgorithmParameters><ResponseFormat Length=\"8\" Encoding=\"DECIMAL\"/></AlgorithmParameters>"
+            + "<Data><Secret><PlainValue>MTIzNDU2Nzg5MDEyMzQ1Njc4OTA=</PlainValue></Secret></Data>"
+            + "<UserId>alice</UserId>"
+            + "</Key>"
+            + "</KeyPackage>"
+            + "<KeyPackage>"
+            + "<Key Id=\"2\" Algorithm=\"urn:ietf:params:xml:ns:keyprov:pskc:ocra-1:HOTP-SHA1-6:QN08\">"
+            + "<Data><Secret><PlainValue>MTIzNDU2Nzg5MDEyMzQ1Njc4OTA=</PlainValue></Secret></Data>"
+            + "<UserId>bob</UserId>"
+            + "</Key>"
+            + "</KeyPackage>"
+            + "</KeyContainer>";
+
+    @Test
+    public void next_whenPlainValues_thenHexSecretCounterAndKeyUser() throws IOException {
+        try (PskcTokenReader reader = reader()) {
+            ImportedToken token = reader.next();
+
+            assertThat(token.getRecordNumber()).isEqualTo(1);
+            assertThat(token.getUsername()).isEqualTo("demo");
+            assertThat(token.getSharedSecret()).isEqualTo("3132333435363738393031323334353637383930");
+            assertThat(token.getCounter()).isEqualTo("42");
+            assertThat(token.getAlgorithm()).isEqualTo("HOTP");
+            assertThat(token.getDigits()).isNull();
+        }
+    }
+
+    @Test
+    public void next_whenAlgorithmAndResponseFormat_thenAlgorithmAndDigits() throws IOException {
+        try (PskcTokenReader reader = new PskcTokenReader(
+                new ByteArrayInputStream(PSKC_ALGORITHMS.getBytes(StandardCharsets.UTF_8)))) {
+            ImportedToken totp = reader.next();
+            ImportedToken ocra = reader.next();
+
+            assertThat(totp.getAlgorithm()).isEqualTo("TOTP");
+            assertThat(totp.getDigits()).isEqualTo("8");
+            assertThat(ocra.getAlgorithm()).isEqualTo("urn:ietf:params:xml:ns:keyprov:pskc:ocra-1:HOTP-SHA1-6:QN08");
+            assertThat(ocra.getDigits()).isNull();
+        }
+    }
+
+    @Test
+    public void next_whenEncryptedSecret_thenNoSecretAndDeviceUser() throws IOException {
+        try (PskcTokenReader reader = reader()) {
+            reader.next();
+            ImportedToken token = reader.next();
+
+            assertThat(token.getRecordNumber()).isEqualTo(2);
+            assertThat(token.getUsername()).isEqualTo("other");
+            assertThat(token.getSharedSecret()).isNull();
+            assertThat(token.getCounter()).isNull();
+            assertThat(reader.next()).isNull();
+        }
+    }
+
+    private static PskcTokenReader reader() throws IOException {
+        return new PskcTokenReader(new ByteArrayInputStream(PSKC.getBytes(StandardCharsets.UTF_8)));
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.jfr;
+
+import com.forgerock.backstage.ssoextensions.auth.oath.OathAlgorithm;
+import com.forgerock.backstage.ssoextensions.auth.oath.verifier.OathVerificationService;
+import com.forgerock.backstage.ssoextensions.auth.oath.verifier.OathVerifierNodeConfig;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.forgerock.openam.core.rest.devices.oath.OathDeviceSettings;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static com.forgerock.backstage.ssoextensions.auth.oath.TestConstants.SHARED_SECRET;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class OathPhaseTimerTest {
+
+    private final OathVerifierNodeConfig config = new OathVerifierNodeConfig() {
+        @Override
+        public int minSharedSecretLength() {
+            return 1;
+        }
+
+        @Override
+        public OathAlgorithm algorithm() {
+            return OathAlgorithm.HOTP;
+        }
+
+        @Override
+        public int hotpWindowSize() {
+            return 100;
+        }
+    };
+
+    @Test
+    public void start_whenNoRecording_thenSharedDisabledTimer() {
+        OathPhaseTimer timer = OathPhaseTimer.start(OathPhase.PROFILE_LOAD);
+        timer.end();
+
+        assertThat(OathPhaseTimer.start(OathPhase.WINDOW_SCAN)).isSameAs(timer);
+    }
+
+    @Test
+    public void end_whenOnlyPhaseEnabled_thenOnlyItsEventRecorded() throws IOException {
+        List<RecordedEvent> events = record(OathPhase.PROFILE_SAVE, () -> {
+            OathPhaseTimer.start(OathPhase.PROFILE_SAVE).end();
+            OathPhaseTimer.start(OathPhase.PROFILE_LOAD).end();
+        });
+
+        assertThat(events).hasSize(1);
+        assertThat(events.get(0).getEventType().getName()).isEqualTo("com.forgerock.backstage.oath.ProfileSave");
+    }
+
+    @Test
+    public void endWindowScan_whenCodeMatches_thenStepsAndOffsetRecorded() throws IOException {
+        OathDeviceSettings settings = new OathDeviceSettings();
+        settings.setSharedSecret(SHARED_SECRET);
+        settings.setCounter(0);
+
+        List<RecordedEvent> events = record(OathPhase.WINDOW_SCAN,
+                () -> new OathVerificationService().verify(settings, "853971", config));
+
+        assertThat(events).hasSize(1);
+        assertThat(events.get(0).getString("algorithm")).isEqualTo("HOTP");
+        assertThat(events.get(0).getInt("stepsScanned")).isEqualTo(2);
+        assertThat(events.get(0).getBoolean("matched")).isTrue();
+        assertThat(events.get(0).getInt("matchedOffset")).isEqualTo(1);
+    }
+
+    @Test
+    public void endWindowScan_whenNoCodeMatches_thenWholeWindowRecorded() throws IOException {
+        OathDeviceSettings settings = new OathDeviceSettings();
+        settings.setSharedSecret(SHARED_SECRET);
+        settings.setCounter(0);
+
+        List<RecordedEvent> events = record(OathPhase.WINDOW_SCAN,
+                () -> new OathVerificationService().verify(settings, "000000", config));
+
+        assertThat(events).hasSize(1);
+        assertThat(events.get(0).getInt("stepsScanned")).isEqualTo(101);
+        assertThat(events.get(0).getBoolean("matched")).isFalse();
+    }
+
+    private static List<RecordedEvent> record(OathPhase phase, Runnable action) throws IOException {
+        Path file = Files.createTempFile("oath-phases", ".jfr");
+        try (Recording recording = new Recording()) {
+            for (OathPhase other : OathPhase.values()) {
+                if (other != phase) {
+                    recording.disable(other.getEventName());
+                }
+            }
+            recording.enable(phase.getEventName()).withoutThreshold();
+            recording.start();
+            action.run();
+            recording.stop();
+            recording.dump(file);
+            return RecordingFile.readAllEvents(file).stream()
+                    .filter(event -> event.getEventType().getName().startsWith(OathPhase.EVENT_NAME_PREFIX))
+                    .collect(Collectors.toList());
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.loadtest;
+
+import com.forgerock.backstage.ssoextensions.auth.oath.OathSecret;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Synthetic authenticator app: registers from the otpauth URI shown by the registration node and computes codes
+ * like an app on the user's phone would, independently of the verifier's code generator.
+ */
+final class AuthenticatorClient {
+    private final byte[] secret;
+    private final boolean totp;
+    private final int digits;
+    private final int period;
+    private long counter;
+
+    private AuthenticatorClient(byte[] secret, boolean totp, int digits, int period, long counter) {
+        this.secret = secret;
+        this.totp = totp;
+        this.digits = digits;
+        this.period = period;
+        this.counter = counter;
+    }
+
+    /**
+     * @param otpAuthUri the registration URI, e.g. {@code otpauth://totp/issuer:account?secret=...&period=30}
+     * @return the client
+     */
+    static AuthenticatorClient register(String otpAuthUri) {
+        URI uri = URI.create(otpAuthUri);
+        Map<String, String> parameters = new HashMap<>();
+        for (String parameter : uri.getRawQuery().split("&")) {
+            int separator = parameter.indexOf('=');
+            parameters.put(parameter.substring(0, separator), parameter.substring(separator + 1));
+        }
+        boolean totp = "totp".equals(uri.getHost());
+        return new AuthenticatorClient(OathSecret.fromBase32(parameters.get("secret")).getBytes(), totp,
+                Integer.parseInt(parameters.getOrDefault("digits", "6")),
+                Integer.parseInt(parameters.getOrDefault("period", "30")),
+                Long.parseLong(parameters.getOrDefault("counter", "0")));
+    }
+
+    /**
+     * @return the next code: the one for the current time step, or the one for the next counter value
+     */
+    String nextCode() {
+        return code(totp ? System.currentTimeMillis() / 1000L / period : counter++);
+    }
+
+    /**
+     * @param code a code
+     * @return a code of the same length which differs from it in the last digit
+     */
+    static String wrongCode(String code) {
+        char last = code.charAt(code.length() - 1);
+        return code.substring(0, code.length() - 1) + (char) ('0' + (last - '0' + 1) % 10);
+    }
+
+    private String code(long movingFactor) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA1");
+            mac.init(new SecretKeySpec(secret, "RAW"));
+            byte[] hash = mac.doFinal(ByteBuffer.allocate(8).putLong(movingFactor).array());
+            int offset = hash[hash.length - 1] & 0xf;
+            int binary = ((hash[offset] & 0x7f) << 24) | ((hash[offset + 1] & 0xff) << 16)
+                    | ((hash[offset + 2] & 0xff) << 8) | (hash[offset + 3] & 0xff);
+            StringBuilder code = new StringBuilder(Integer.toString(binary % (int) Math.pow(10, digits)));
+            while (code.length() < digits) {
+                code.insert(0, '0');
+            }
+            return code.toString();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.loadtest;
+
+import com.forgerock.backstage.ssoextensions.auth.oath.DeviceProfileLoadCoalescer;
+import com.forgerock.backstage.ssoextensions.auth.oath.OathDeviceProfileStore;
+import com.forgerock.backstage.ssoextensions.auth.oath.OathHelper;
+import com.forgerock.backstage.ssoextensions.auth.oath.OathSecret;
+import com.forgerock.backstage.ssoextensions.auth.oath.SharedStateEncryption;
+import com.sun.identity.idm.AMIdentity;
+import org.forgerock.json.JsonValue;
+import org.forgerock.json.jose.builders.JwtBuilderFactory;
+import org.forgerock.openam.auth.node.api.TreeContext;
+import org.forgerock.openam.core.rest.devices.DeviceJsonUtils;
+import org.forgerock.openam.core.rest.devices.oath.OathDeviceSettings;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.security.Key;
+import java.security.SecureRandom;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link OathHelper} working without an AM instance: shared state is encrypted with a key generated per instance
+ * instead of the realm's secret, device profiles are created like AM's profile manager does, and there is no
+ * directory to look identities up in.
+ */
+class LoadTestOathHelper extends OathHelper {
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final JwtBuilderFactory jwtBuilderFactory;
+    private final Key key;
+
+    LoadTestOathHelper(OathDeviceProfileStore store, JwtBuilderFactory jwtBuilderFactory) {
+        super(null, null, store, null, jwtBuilderFactory, null,
+                new DeviceJsonUtils<>(OathDeviceSettings.class), new DeviceProfileLoadCoalescer());
+        this.jwtBuilderFactory = jwtBuilderFactory;
+        byte[] rawKey = new byte[32];
+        RANDOM.nextBytes(rawKey);
+        this.key = new SecretKeySpec(rawKey, "AES");
+    }
+
+    @Override
+    public String encrypt(JsonValue payload, SharedStateEncryption encryption) {
+        return encrypt(jwtBuilderFactory, key, payload, encryption);
+    }
+
+    @Override
+    public JsonValue decrypt(String payload) {
+        return decrypt(jwtBuilderFactory, key, payload);
+    }
+
+    @Override
+    public OathDeviceSettings createDeviceProfile(int minSharedSecretLength) {
+        byte[] secret = new byte[Math.max(20, (minSharedSecretLength + 1) / 2)];
+        RANDOM.nextBytes(secret);
+        OathDeviceSettings settings = new OathDeviceSettings();
+        settings.setUUID(UUID.randomUUID().toString());
+        settings.setDeviceName("OATH Device");
+        settings.setSharedSecret(OathSecret.fromBytes(secret).toHex());
+        settings.setCounter(0);
+        settings.setLastLogin(0, TimeUnit.SECONDS);
+        return settings;
+    }
+
+    @Override
+    public AMIdentity getIdentity(TreeContext context) {
+        return null;
+    }
+}
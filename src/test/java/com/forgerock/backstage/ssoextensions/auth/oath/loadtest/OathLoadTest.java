@@ -0,0 +1,392 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.loadtest;
+
+import com.forgerock.backstage.ssoextensions.auth.oath.InMemoryOathDeviceProfileStore;
+import com.forgerock.backstage.ssoextensions.auth.oath.OathAlgorithm;
+import com.forgerock.backstage.ssoextensions.auth.oath.OathHelper;
+import com.forgerock.backstage.ssoextensions.auth.oath.OathIdentityCache;
+import com.forgerock.backstage.ssoextensions.auth.oath.OathIoExecutor;
+import com.forgerock.backstage.ssoextensions.auth.oath.SimulatedOathDeviceProfileStore;
+import com.forgerock.backstage.ssoextensions.auth.oath.audit.OathAuditPipeline;
+import com.forgerock.backstage.ssoextensions.auth.oath.audit.RecentAttempts;
+import com.forgerock.backstage.ssoextensions.auth.oath.registration.OathRegistrationNode;
+import com.forgerock.backstage.ssoextensions.auth.oath.registration.OathRegistrationNodeConfig;
+import com.forgerock.backstage.ssoextensions.auth.oath.verifier.InMemoryAttemptThrottle;
+import com.forgerock.backstage.ssoextensions.auth.oath.verifier.OathVerificationService;
+import com.forgerock.backstage.ssoextensions.auth.oath.verifier.OathVerifierNode;
+import com.forgerock.backstage.ssoextensions.auth.oath.verifier.OathVerifierNodeConfig;
+import com.forgerock.backstage.ssoextensions.auth.oath.verifier.OathVerifierNodeOutcomeProvider.OATHOutcome;
+import com.forgerock.backstage.ssoextensions.auth.oath.verifier.PrecomputedWindowCache;
+import com.forgerock.backstage.ssoextensions.auth.oath.verifier.SlowVerificationRecorder;
+import com.forgerock.backstage.ssoextensions.auth.oath.verifier.VerificationAdmissionController;
+import com.sun.identity.authentication.callbacks.HiddenValueCallback;
+import org.forgerock.json.JsonValue;
+import org.forgerock.json.jose.builders.JwtBuilderFactory;
+import org.forgerock.openam.auth.node.api.Action;
+import org.forgerock.openam.auth.node.api.ExternalRequestContext;
+import org.forgerock.openam.auth.node.api.Node;
+import org.forgerock.openam.auth.node.api.NodeProcessException;
+import org.forgerock.openam.auth.node.api.TreeContext;
+import org.forgerock.openam.core.rest.devices.DevicePersistenceException;
+import org.forgerock.openam.core.rest.devices.oath.OathDeviceSettings;
+import org.forgerock.openam.utils.RecoveryCodeGenerator;
+import org.forgerock.util.i18n.PreferredLocales;
+
+import javax.security.auth.callback.Callback;
+import javax.security.auth.callback.ConfirmationCallback;
+import javax.security.auth.callback.NameCallback;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+import static org.forgerock.openam.auth.node.api.SharedStateConstants.REALM;
+import static org.forgerock.openam.auth.node.api.SharedStateConstants.USERNAME;
+import static org.forgerock.openam.auth.nodes.RecoveryCodeDisplayNode.RECOVERY_CODE_KEY;
+
+/**
+ * Offline load test of the OATH nodes. Every virtual user runs a registration tree (registration node, then the
+ * verifier node checking the first code) and then logs in as its {@link Scenario} prescribes, with a synthetic
+ * {@link AuthenticatorClient} computing the codes. The nodes run unchanged; only the store, shared state encryption
+ * key and identity lookup are replaced by in-memory versions.
+ * <p>
+ * A TOTP profile is aged by one time step after registration, as if the user logged in later, since the verifier
+ * rejects a second login in the same time step.
+ * <p>
+ * Run the main method with the test classpath: {@code OathLoadTest [users] [concurrency] [scenario...]}. Each
+ * scenario is warmed up with a shorter run before it is measured. The store behaves like a slow directory when
+ * system properties describe one, e.g. {@code -Doath.loadtest.writeLatency=5,50} for 5 ms median and 50 ms p99
+ * writes; see {@link SimulatedOathDeviceProfileStore} and the property names below.
+ */
+public final class OathLoadTest {
+    static final String READ_LATENCY_PROPERTY = "oath.loadtest.readLatency";
+    static final String WRITE_LATENCY_PROPERTY = "oath.loadtest.writeLatency";
+    static final String READ_ERROR_RATE_PROPERTY = "oath.loadtest.readErrorRate";
+    static final String WRITE_ERROR_RATE_PROPERTY = "oath.loadtest.writeErrorRate";
+    static final String CONNECTIONS_PROPERTY = "oath.loadtest.connections";
+    private static final String REALM_NAME = "/";
+    private static final String SUCCESS = OATHOutcome.SUCCESS.name();
+    private static final String FAILURE = OATHOutcome.FAILURE.name();
+
+    private final Scenario scenario;
+    private final int users;
+    private final int concurrency;
+    private final InMemoryOathDeviceProfileStore profiles = new InMemoryOathDeviceProfileStore();
+    private final SimulatedOathDeviceProfileStore store;
+    private final OathHelper helper;
+    private final OathVerifierNodeConfig verifierConfig;
+    private final OathRegistrationNode registrationNode;
+    private final OathVerifierNode verifierNode;
+    private final ExternalRequestContext request = new ExternalRequestContext.Builder()
+            .parameters(Collections.emptyMap())
+            .locales(new PreferredLocales())
+            .build();
+
+    private final LatencyRecorder registrationLatency = new LatencyRecorder();
+    private final LatencyRecorder promptLatency = new LatencyRecorder();
+    private final LatencyRecorder verificationLatency = new LatencyRecorder();
+    private final LongAdder unexpectedOutcomes = new LongAdder();
+    private final LongAdder acceptedReplays = new LongAdder();
+    private final LongAdder allocatedBytes = new LongAdder();
+
+    OathLoadTest(Scenario scenario, int users, int concurrency) {
+        this(scenario, users, concurrency, Function.identity());
+    }
+
+    /**
+     * @param scenario    what every user does
+     * @param users       the number of users
+     * @param concurrency the number of users running at the same time
+     * @param directory   configures the latencies, errors and connections of the simulated directory
+     */
+    OathLoadTest(Scenario scenario, int users, int concurrency,
+                 Function<SimulatedOathDeviceProfileStore, SimulatedOathDeviceProfileStore> directory) {
+        this.scenario = scenario;
+        this.users = users;
+        this.concurrency = concurrency;
+        this.store = directory.apply(new SimulatedOathDeviceProfileStore(profiles, null));
+        this.helper = new LoadTestOathHelper(store, new JwtBuilderFactory());
+        OathAlgorithm algorithm = scenario.getAlgorithm();
+        boolean recoveryCodes = scenario == Scenario.RECOVERY_CODES;
+        OathRegistrationNodeConfig registrationConfig = new OathRegistrationNodeConfig() {
+            @Override
+            public OathAlgorithm algorithm() {
+                return algorithm;
+            }
+
+            @Override
+            public boolean generateRecoveryCodes() {
+                return recoveryCodes;
+            }
+        };
+        this.verifierConfig = new OathVerifierNodeConfig() {
+            @Override
+            public OathAlgorithm algorithm() {
+                return algorithm;
+            }
+
+            @Override
+            public boolean verifyRecoveryCodes() {
+                return recoveryCodes;
+            }
+        };
+        OathIoExecutor ioExecutor = new OathIoExecutor();
+        this.registrationNode = new OathRegistrationNode(registrationConfig, helper,
+                new RecoveryCodeGenerator(new SecureRandom()), ioExecutor, new OathIdentityCache(),
+                OathAuditPipeline.disabled());
+        this.verifierNode = new OathVerifierNode(verifierConfig, helper, new InMemoryAttemptThrottle(),
+                new VerificationAdmissionController(), new OathVerificationService(),
+                new PrecomputedWindowCache(ioExecutor), OathAuditPipeline.disabled(), new SlowVerificationRecorder(),
+                new RecentAttempts());
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int users = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int concurrency = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        List<Scenario> scenarios = new ArrayList<>();
+        for (int i = 2; i < args.length; i++) {
+            scenarios.add(Scenario.valueOf(args[i]));
+        }
+        if (scenarios.isEmpty()) {
+            scenarios.addAll(Arrays.asList(Scenario.values()));
+        }
+
+        Function<SimulatedOathDeviceProfileStore, SimulatedOathDeviceProfileStore> directory = store -> store
+                .withReadLatency(latency(System.getProperty(READ_LATENCY_PROPERTY)))
+                .withWriteLatency(latency(System.getProperty(WRITE_LATENCY_PROPERTY)))
+                .withErrorRates(Double.parseDouble(System.getProperty(READ_ERROR_RATE_PROPERTY, "0")),
+                        Double.parseDouble(System.getProperty(WRITE_ERROR_RATE_PROPERTY, "0")))
+                .withConnections(Integer.getInteger(CONNECTIONS_PROPERTY, 0));
+
+        System.out.println("Latencies of single node passes in microseconds, store calls per user");
+        System.out.println(Report.HEADER);
+        for (Scenario scenario : scenarios) {
+            new OathLoadTest(scenario, Math.max(1, users / 10), concurrency, directory).run();
+            System.out.println(new OathLoadTest(scenario, users, concurrency, directory).run());
+        }
+    }
+
+    /**
+     * @param p50AndP99 the median and 99th percentile in milliseconds, separated by a comma, or null
+     * @return a log-normal latency with these percentiles, or no latency
+     */
+    private static SimulatedOathDeviceProfileStore.Latency latency(String p50AndP99) {
+        if (p50AndP99 == null || p50AndP99.trim().isEmpty()) {
+            return SimulatedOathDeviceProfileStore.Latency.NONE;
+        }
+        String[] percentiles = p50AndP99.split(",");
+        return SimulatedOathDeviceProfileStore.Latency.logNormal(Double.parseDouble(percentiles[0].trim()),
+                Double.parseDouble(percentiles[1].trim()));
+    }
+
+    /**
+     * Runs the sessions of all users, {@code concurrency} at a time.
+     *
+     * @return the results
+     * @throws InterruptedException if interrupted while waiting for the sessions
+     */
+    Report run() throws InterruptedException {
+        ExecutorService workers = Executors.newFixedThreadPool(concurrency);
+        AtomicInteger nextUser = new AtomicInteger();
+        long start = System.nanoTime();
+        for (int i = 0; i < concurrency; i++) {
+            workers.execute(() -> {
+                long allocated = allocatedBytes();
+                int user;
+                while ((user = nextUser.getAndIncrement()) < users) {
+                    try {
+                        runSession("user" + user);
+                    } catch (NodeProcessException | DevicePersistenceException | RuntimeException e) {
+                        unexpectedOutcomes.increment();
+                    }
+                }
+                allocatedBytes.add(allocatedBytes() - allocated);
+            });
+        }
+        workers.shutdown();
+        workers.awaitTermination(1, TimeUnit.HOURS);
+        return new Report(this, System.nanoTime() - start);
+    }
+
+    private void runSession(String username) throws NodeProcessException, DevicePersistenceException {
+        JsonValue initialState = json(object(field(USERNAME, username), field(REALM, REALM_NAME)));
+
+        Action shown = process(registrationNode, registrationLatency, initialState, Collections.emptyList());
+        AuthenticatorClient client = AuthenticatorClient.register(find(shown.callbacks, HiddenValueCallback.class)
+                .getValue());
+        JsonValue state = shown.sharedState;
+        List<String> recoveryCodes = scenario == Scenario.RECOVERY_CODES
+                ? helper.decryptList(state.get(RECOVERY_CODE_KEY).asString()) : Collections.emptyList();
+        Action confirmed = process(registrationNode, registrationLatency, state, shown.callbacks);
+        state = confirmed.sharedState != null ? confirmed.sharedState : state;
+        expect(SUCCESS, login(state, client.nextCode(), false).outcome);
+        if (scenario.getAlgorithm() == OathAlgorithm.TOTP) {
+            ageLastLogin(username);
+        }
+
+        switch (scenario) {
+        case RETRIES:
+            String code = client.nextCode();
+            Action failed = login(initialState, AuthenticatorClient.wrongCode(code), false);
+            expect(FAILURE, failed.outcome);
+            expect(SUCCESS, login(failed.sharedState != null ? failed.sharedState : initialState, code, false)
+                    .outcome);
+            break;
+        case RECOVERY_CODES:
+            expect(SUCCESS, login(initialState, recoveryCodes.get(0), true).outcome);
+            expect(FAILURE, login(initialState, recoveryCodes.get(0), true).outcome);
+            break;
+        case HOTP_REPLAY:
+        case TOTP_REPLAY:
+            String replayed = client.nextCode();
+            expect(SUCCESS, login(initialState, replayed, false).outcome);
+            if (SUCCESS.equals(login(initialState, replayed, false).outcome)) {
+                acceptedReplays.increment();
+            }
+            break;
+        default:
+            expect(SUCCESS, login(initialState, client.nextCode(), false).outcome);
+        }
+    }
+
+    /**
+     * Passes through the verifier node twice, as a tree does: once to show the callbacks, once to submit them.
+     */
+    private Action login(JsonValue state, String code, boolean recoveryCode) throws NodeProcessException {
+        Action prompt = process(verifierNode, promptLatency, state, Collections.emptyList());
+        if (prompt.callbacks == null || prompt.callbacks.isEmpty()) {
+            return prompt;
+        }
+        find(prompt.callbacks, NameCallback.class).setName(code);
+        find(prompt.callbacks, ConfirmationCallback.class).setSelectedIndex(recoveryCode ? 1 : 0);
+        return process(verifierNode, verificationLatency,
+                prompt.sharedState != null ? prompt.sharedState : state, prompt.callbacks);
+    }
+
+    private Action process(Node node, LatencyRecorder latency, JsonValue state, List<? extends Callback> callbacks)
+            throws NodeProcessException {
+        TreeContext context = new TreeContext(state, json(object()), request, callbacks);
+        long start = System.nanoTime();
+        Action action = node.process(context);
+        latency.record(System.nanoTime() - start);
+        return action;
+    }
+
+    private void ageLastLogin(String username) throws DevicePersistenceException {
+        OathDeviceSettings settings = profiles.getDeviceProfiles(username, REALM_NAME).get(0);
+        settings.setLastLogin(settings.getLastLogin() - verifierConfig.totpTimeStepInterval(), TimeUnit.SECONDS);
+        profiles.saveDeviceProfile(username, REALM_NAME, settings);
+    }
+
+    private void expect(String expected, String outcome) {
+        if (!expected.equals(outcome)) {
+            unexpectedOutcomes.increment();
+        }
+    }
+
+    private static <T extends Callback> T find(List<? extends Callback> callbacks, Class<T> type) {
+        for (Callback callback : callbacks) {
+            if (type.isInstance(callback)) {
+                return type.cast(callback);
+            }
+        }
+        throw new IllegalStateException("No " + type.getSimpleName() + " sent");
+    }
+
+    private static long allocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+
+    /**
+     * Results of one run. Latencies are of single node passes, allocation is that of the request threads.
+     */
+    static final class Report {
+        static final String HEADER = String.format("%-15s %7s %10s %8s %8s %8s %8s %8s %10s %10s %8s %8s %7s",
+                "scenario", "users", "sessions/s", "reg p50", "reg p99", "ver p50", "ver p99", "ver p999",
+                "prompt p99", "alloc MB/s", "reads/u", "writes/u", "errors");
+
+        private final Scenario scenario;
+        private final int users;
+        private final double seconds;
+        private final LatencyRecorder registrationLatency;
+        private final LatencyRecorder promptLatency;
+        private final LatencyRecorder verificationLatency;
+        private final long allocatedBytes;
+        private final long reads;
+        private final long writes;
+        private final long unexpectedOutcomes;
+        private final long acceptedReplays;
+
+        private Report(OathLoadTest test, long nanos) {
+            this.scenario = test.scenario;
+            this.users = test.users;
+            this.seconds = nanos / 1e9;
+            this.registrationLatency = test.registrationLatency;
+            this.promptLatency = test.promptLatency;
+            this.verificationLatency = test.verificationLatency;
+            this.allocatedBytes = test.allocatedBytes.sum();
+            this.reads = test.store.getReads();
+            this.writes = test.store.getWrites();
+            this.unexpectedOutcomes = test.unexpectedOutcomes.sum();
+            this.acceptedReplays = test.acceptedReplays.sum();
+        }
+
+        long getUnexpectedOutcomes() {
+            return unexpectedOutcomes;
+        }
+
+        long getAcceptedReplays() {
+            return acceptedReplays;
+        }
+
+        int getVerifications() {
+            return verificationLatency.getCount();
+        }
+
+        @Override
+        public String toString() {
+            String line = String.format("%-15s %7d %10.0f %8d %8d %8d %8d %8d %10d %10.1f %8.2f %8.2f %7d",
+                    scenario, users, users / seconds,
+                    registrationLatency.getPercentileMicros(50), registrationLatency.getPercentileMicros(99),
+                    verificationLatency.getPercentileMicros(50), verificationLatency.getPercentileMicros(99),
+                    verificationLatency.getPercentileMicros(99.9), promptLatency.getPercentileMicros(99),
+                    allocatedBytes / seconds / (1024 * 1024), (double) reads / users, (double) writes / users,
+                    unexpectedOutcomes);
+            return acceptedReplays > 0 ? line + "  (" + acceptedReplays + " replays accepted)" : line;
+        }
+    }
+}
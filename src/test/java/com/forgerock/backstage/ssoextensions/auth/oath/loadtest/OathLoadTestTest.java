@@ -0,0 +1,50 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.loadtest;
+
+import org.testng.annotations.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class OathLoadTestTest {
+
+    @Test
+    public void run_whenEveryScenario_thenExpectedOutcomes() throws InterruptedException {
+        for (Scenario scenario : Scenario.values()) {
+            OathLoadTest.Report report = new OathLoadTest(scenario, 4, 2).run();
+
+            assertThat(report.getUnexpectedOutcomes()).as(scenario.name()).isEqualTo(0L);
+            assertThat(report.getVerifications()).as(scenario.name()).isGreaterThanOrEqualTo(8);
+        }
+    }
+
+    @Test
+    public void run_whenTotpReplayed_thenReplayRejected() throws InterruptedException {
+        OathLoadTest.Report report = new OathLoadTest(Scenario.TOTP_REPLAY, 4, 2).run();
+
+        assertThat(report.getAcceptedReplays()).isEqualTo(0L);
+    }
+
+    @Test
+    public void wrongCode_whenCode_thenDiffersInLastDigit() {
+        assertThat(AuthenticatorClient.wrongCode("123459")).isEqualTo("123450");
+        assertThat(AuthenticatorClient.wrongCode("000001")).isEqualTo("000002");
+    }
+}
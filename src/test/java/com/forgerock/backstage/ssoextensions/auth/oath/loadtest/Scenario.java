@@ -0,0 +1,50 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.loadtest;
+
+import com.forgerock.backstage.ssoextensions.auth.oath.OathAlgorithm;
+
+/**
+ * What a virtual user of the load test does after registering a device and verifying its first code.
+ */
+enum Scenario {
+    /** Logs in with the next HOTP code. */
+    HOTP(OathAlgorithm.HOTP),
+    /** Logs in with the current TOTP code. */
+    TOTP(OathAlgorithm.TOTP),
+    /** Enters a wrong TOTP code, then the right one. */
+    RETRIES(OathAlgorithm.TOTP),
+    /** Logs in with a recovery code, then tries to use the same recovery code again. */
+    RECOVERY_CODES(OathAlgorithm.TOTP),
+    /** Logs in with a HOTP code, then submits the same code again. */
+    HOTP_REPLAY(OathAlgorithm.HOTP),
+    /** Logs in with a TOTP code, then submits the same code again. */
+    TOTP_REPLAY(OathAlgorithm.TOTP);
+
+    private final OathAlgorithm algorithm;
+
+    Scenario(OathAlgorithm algorithm) {
+        this.algorithm = algorithm;
+    }
+
+    OathAlgorithm getAlgorithm() {
+        return algorithm;
+    }
+}
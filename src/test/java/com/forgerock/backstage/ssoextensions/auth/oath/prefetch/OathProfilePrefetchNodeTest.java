@@ -0,0 +1,94 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.prefetch;
+
+import com.forgerock.backstage.ssoextensions.auth.oath.OathHelper;
+import com.forgerock.backstage.ssoextensions.auth.oath.OathIoExecutor;
+import com.google.common.collect.ImmutableList;
+import org.forgerock.json.JsonValue;
+import org.forgerock.openam.auth.node.api.Action;
+import org.forgerock.openam.auth.node.api.ExternalRequestContext;
+import org.forgerock.openam.auth.node.api.TreeContext;
+import org.forgerock.openam.core.rest.devices.DevicePersistenceException;
+import org.mockito.Mock;
+import org.powermock.modules.testng.PowerMockTestCase;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.HashMap;
+
+import static com.forgerock.backstage.ssoextensions.auth.oath.OathConstants.OATH_PREFETCH_KEY;
+import static java.util.Collections.emptyMap;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.forgerock.openam.auth.node.api.SharedStateConstants.REALM;
+import static org.forgerock.openam.auth.node.api.SharedStateConstants.USERNAME;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class OathProfilePrefetchNodeTest extends PowerMockTestCase {
+
+    @Mock
+    OathProfilePrefetchNodeConfig config;
+
+    @Mock
+    OathHelper helper;
+
+    private OathProfilePrefetchNode prefetchNode;
+
+    private final ExternalRequestContext request = new ExternalRequestContext.Builder().parameters(emptyMap()).build();
+
+    @BeforeMethod
+    public void init() {
+        when(config.prefetchTtl()).thenReturn(60);
+
+        prefetchNode = new OathProfilePrefetchNode(config, helper, new OathIoExecutor());
+    }
+
+    @Test
+    public void process_whenUsernameKnown_thenPrefetchAndOutcome() throws DevicePersistenceException {
+        JsonValue sharedState = new JsonValue(new HashMap<>());
+        sharedState.put(REALM, "/");
+        sharedState.put(USERNAME, "demo");
+        TreeContext context = new TreeContext(sharedState, request, ImmutableList.of());
+
+        Action action = prefetchNode.process(context);
+
+        assertThat(action.outcome).isEqualTo("outcome");
+        String nonce = action.sharedState.get(OATH_PREFETCH_KEY).asString();
+        assertThat(nonce).isNotEmpty();
+        verify(helper, timeout(5000)).prefetchOathDeviceSettings(any(), eq(nonce), eq(60000L));
+    }
+
+    @Test
+    public void process_whenUsernameUnknown_thenOutcomeWithoutPrefetch() throws DevicePersistenceException {
+        TreeContext context = new TreeContext(new JsonValue(new HashMap<>()), request, ImmutableList.of());
+
+        Action action = prefetchNode.process(context);
+
+        assertThat(action.outcome).isEqualTo("outcome");
+        verify(helper, never()).prefetchOathDeviceSettings(any(), anyString(), anyLong());
+    }
+}
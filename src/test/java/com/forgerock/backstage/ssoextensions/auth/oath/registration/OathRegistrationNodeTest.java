@@ -21,7 +21,12 @@ package com.forgerock.backstage.ssoextensions.auth.oath.registration;
 
 import com.forgerock.backstage.ssoextensions.auth.oath.OathAlgorithm;
 import com.forgerock.backstage.ssoextensions.auth.oath.OathHelper;
+import com.forgerock.backstage.ssoextensions.auth.oath.OathIdentityCache;
+import com.forgerock.backstage.ssoextensions.auth.oath.OathIoExecutor;
+import com.forgerock.backstage.ssoextensions.auth.oath.RecoveryCodeHasher;
+import com.forgerock.backstage.ssoextensions.auth.oath.audit.OathAuditPipeline;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.sun.identity.authentication.callbacks.HiddenValueCallback;
 import com.sun.identity.authentication.callbacks.ScriptTextOutputCallback;
 import com.sun.identity.idm.AMIdentity;
@@ -43,12 +48,17 @@ import java.io.IOException;
 import java.util.HashMap;
 import java.util.List;
 
+import static com.forgerock.backstage.ssoextensions.auth.oath.OathConstants.OATH_PENDING_ENROLLMENT_KEY;
 import static com.forgerock.backstage.ssoextensions.auth.oath.TestConstants.DEVICE_NAME;
 import static com.forgerock.backstage.ssoextensions.auth.oath.TestConstants.SHARED_SECRET;
 import static java.util.Collections.emptyMap;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.forgerock.openam.auth.node.api.SharedStateConstants.REALM;
+import static org.forgerock.openam.auth.node.api.SharedStateConstants.USERNAME;
 import static org.mockito.ArgumentMatchers.*;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 public class OathRegistrationNodeTest extends PowerMockTestCase {
@@ -79,7 +89,8 @@ public class OathRegistrationNodeTest extends PowerMockTestCase {
         when(config.generateRecoveryCodes()).thenReturn(true);
         when(config.passwordLength()).thenReturn(6);
 
-        oathRegistrationNode = new OathRegistrationNode(config, helper, recoveryCodeGenerator);
+        oathRegistrationNode = new OathRegistrationNode(config, helper, recoveryCodeGenerator, new OathIoExecutor(),
+                new OathIdentityCache(), OathAuditPipeline.disabled());
 
         deviceSettings = new OathDeviceSettings();
         deviceSettings.setSharedSecret(SHARED_SECRET);
@@ -104,8 +115,8 @@ public class OathRegistrationNodeTest extends PowerMockTestCase {
 
         when(config.generateRecoveryCodes()).thenReturn(false);
         when(helper.createDeviceProfile(anyInt())).thenReturn(deviceSettings);
-        when(helper.encryptOathDeviceSettings(any())).thenReturn("device_settings");
-        when(helper.encryptList(recoveryCodes)).thenReturn("encrypted_recovery_codes");
+        when(helper.encryptOathDeviceSettings(any(), any())).thenReturn("device_settings");
+        when(helper.encryptList(eq(recoveryCodes), any())).thenReturn("encrypted_recovery_codes");
         when(helper.getIdentity(any())).thenReturn(mock(AMIdentity.class));
 
         Action action = oathRegistrationNode.process(context);
@@ -128,8 +139,8 @@ public class OathRegistrationNodeTest extends PowerMockTestCase {
         when(config.generateRecoveryCodes()).thenReturn(true);
         when(recoveryCodeGenerator.generateCodes(anyInt(), any(), anyBoolean())).thenReturn(recoveryCodes);
         when(helper.createDeviceProfile(anyInt())).thenReturn(deviceSettings);
-        when(helper.encryptOathDeviceSettings(any())).thenReturn("device_settings");
-        when(helper.encryptList(recoveryCodes)).thenReturn("encrypted_recovery_codes");
+        when(helper.encryptOathDeviceSettings(any(), any())).thenReturn("device_settings");
+        when(helper.encryptList(eq(recoveryCodes), any())).thenReturn("encrypted_recovery_codes");
         when(helper.getIdentity(any())).thenReturn(mock(AMIdentity.class));
 
         Action action = oathRegistrationNode.process(context);
@@ -143,4 +154,101 @@ public class OathRegistrationNodeTest extends PowerMockTestCase {
 
     }
 
+    @Test
+    public void process_whenOverlapIo_thenSameCallbacksAndSharedState() throws NodeProcessException, CodeException, IOException {
+
+        TreeContext context = new TreeContext(emptySharedState, request, ImmutableList.of());
+        List<String> recoveryCodes = ImmutableList.of("123456");
+
+        when(config.overlapIo()).thenReturn(true);
+        when(config.generateRecoveryCodes()).thenReturn(true);
+        when(recoveryCodeGenerator.generateCodes(anyInt(), any(), anyBoolean())).thenReturn(recoveryCodes);
+        when(helper.createDeviceProfile(anyInt())).thenReturn(deviceSettings);
+        when(helper.encryptOathDeviceSettings(any(), any())).thenReturn("device_settings");
+        when(helper.encryptList(eq(recoveryCodes), any())).thenReturn("encrypted_recovery_codes");
+        when(helper.getIdentity(any())).thenReturn(mock(AMIdentity.class));
+
+        Action action = oathRegistrationNode.process(context);
+
+        assertThat(action.callbacks).hasSize(3);
+        assertThat(action.sharedState.get("oathDeviceProfile").asString()).isEqualTo("device_settings");
+        assertThat(action.sharedState.get("recoveryCodes").asString()).isEqualTo("encrypted_recovery_codes");
+    }
+
+    @Test
+    public void process_whenHashRecoveryCodes_thenProfileContainsHashedCodes() throws NodeProcessException, CodeException, IOException {
+
+        TreeContext context = new TreeContext(emptySharedState, request, ImmutableList.of());
+        List<String> recoveryCodes = ImmutableList.of("123456");
+
+        when(config.generateRecoveryCodes()).thenReturn(true);
+        when(config.hashRecoveryCodes()).thenReturn(true);
+        when(recoveryCodeGenerator.generateCodes(anyInt(), any(), anyBoolean())).thenReturn(recoveryCodes);
+        when(helper.createDeviceProfile(anyInt())).thenReturn(deviceSettings);
+        when(helper.encryptOathDeviceSettings(any(), any())).thenReturn("device_settings");
+        when(helper.encryptList(eq(recoveryCodes), any())).thenReturn("encrypted_recovery_codes");
+        when(helper.getIdentity(any())).thenReturn(mock(AMIdentity.class));
+
+        Action action = oathRegistrationNode.process(context);
+
+        assertThat(deviceSettings.getRecoveryCodes()).hasSize(1);
+        assertThat(deviceSettings.getRecoveryCodes()).doesNotContain("123456");
+        assertThat(RecoveryCodeHasher.indexOf(deviceSettings.getRecoveryCodes(), "123456")).isEqualTo(0);
+        assertThat(action.sharedState.get("recoveryCodes").asString()).isEqualTo("encrypted_recovery_codes");
+    }
+
+    @Test
+    public void process_whenPendingEnrollmentNotExpired_thenSameProfileSentAgain() throws NodeProcessException, IOException {
+
+        when(config.pendingEnrollmentExpiry()).thenReturn(300);
+        when(helper.decryptOathDeviceSettings("device_settings")).thenReturn(deviceSettings);
+        when(helper.getIdentity(any())).thenReturn(mock(AMIdentity.class));
+
+        TreeContext context = new TreeContext(pendingEnrollmentSharedState(System.currentTimeMillis()), request,
+                ImmutableList.of());
+        Action action = oathRegistrationNode.process(context);
+
+        assertThat(action.callbacks).hasSize(3);
+        assertThat(action.sharedState.get("oathDeviceProfile").asString()).isEqualTo("device_settings");
+        verify(helper, never()).createDeviceProfile(anyInt());
+        verify(helper, never()).encryptOathDeviceSettings(any());
+    }
+
+    @Test
+    public void process_whenPendingEnrollmentExpired_thenNewProfile() throws NodeProcessException, IOException {
+
+        when(config.generateRecoveryCodes()).thenReturn(false);
+        when(config.pendingEnrollmentExpiry()).thenReturn(300);
+        when(helper.createDeviceProfile(anyInt())).thenReturn(deviceSettings);
+        when(helper.encryptOathDeviceSettings(any(), any())).thenReturn("new_device_settings");
+        when(helper.getIdentity(any())).thenReturn(mock(AMIdentity.class));
+
+        TreeContext context = new TreeContext(pendingEnrollmentSharedState(System.currentTimeMillis() - 301_000L),
+                request, ImmutableList.of());
+        Action action = oathRegistrationNode.process(context);
+
+        assertThat(action.sharedState.get("oathDeviceProfile").asString()).isEqualTo("new_device_settings");
+        verify(helper, never()).decryptOathDeviceSettings(anyString());
+    }
+
+    @Test
+    public void process_whenConfirmationWithPendingEnrollment_thenPendingEnrollmentRemoved() throws NodeProcessException {
+        TreeContext context = new TreeContext(pendingEnrollmentSharedState(System.currentTimeMillis()), request,
+                ImmutableList.of(confirmationCallback));
+
+        Action action = oathRegistrationNode.process(context);
+
+        assertThat(action.outcome).isEqualTo("outcome");
+        assertThat(action.sharedState.isDefined(OATH_PENDING_ENROLLMENT_KEY)).isFalse();
+        assertThat(action.sharedState.get("oathDeviceProfile").asString()).isEqualTo("device_settings");
+    }
+
+    private static JsonValue pendingEnrollmentSharedState(long created) {
+        JsonValue sharedState = new JsonValue(new HashMap<>());
+        sharedState.put(REALM, "/");
+        sharedState.put(USERNAME, "demo");
+        sharedState.put("oathDeviceProfile", "device_settings");
+        sharedState.put(OATH_PENDING_ENROLLMENT_KEY, ImmutableMap.of("user", "/:demo", "created", created));
+        return sharedState;
+    }
 }
@@ -0,0 +1,70 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.registration;
+
+import com.forgerock.backstage.ssoextensions.auth.oath.OathSecret;
+import com.sun.identity.idm.AMIdentity;
+import org.apache.commons.codec.DecoderException;
+import org.forgerock.openam.authentication.modules.fr.oath.AuthenticatorAppRegistrationURIBuilder;
+import org.testng.annotations.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class OtpAuthUriTest {
+
+    private static final OathSecret SECRET = OathSecret.fromHex("3132333435363738393031323334353637383930");
+    // 16 bytes, which base32 encode to 26 characters and six padding characters
+    private static final OathSecret PADDED_SECRET = OathSecret.fromHex("0102030405060708090a0b0c0d0e0f10");
+
+    @Test
+    public void hotp_whenCalled_thenCounterParameter() {
+        assertThat(OtpAuthUri.hotp(SECRET, "demo", "ForgeRock", 6, 0)).isEqualTo(
+                "otpauth://hotp/ForgeRock:demo?secret=GEZDGNBVGY3TQOJQGEZDGNBVGY3TQOJQ&issuer=ForgeRock&digits=6&counter=0");
+    }
+
+    @Test
+    public void totp_whenIssuerWithSpace_thenPercentEncoded() {
+        assertThat(OtpAuthUri.totp(SECRET, "demo user", "Forge Rock", 8, 30)).isEqualTo(
+                "otpauth://totp/Forge%20Rock:demo%20user?secret=GEZDGNBVGY3TQOJQGEZDGNBVGY3TQOJQ&issuer=Forge%20Rock"
+                        + "&digits=8&period=30");
+    }
+
+    @Test
+    public void hotp_whenSecretNeedsPadding_thenSameAsAm() throws DecoderException {
+        String uri = OtpAuthUri.hotp(PADDED_SECRET, "demo", "ForgeRock", 6, 0);
+
+        assertThat(uri).contains("secret=AEBAGBAFAYDQQCIKBMGA2DQPCA======&");
+        assertThat(uri).isEqualTo(amBuilder(PADDED_SECRET, 6).getAuthenticatorAppRegistrationUriForHOTP(0));
+    }
+
+    @Test
+    public void totp_whenSecretNeedsPadding_thenSameAsAm() throws DecoderException {
+        assertThat(OtpAuthUri.totp(PADDED_SECRET, "demo", "ForgeRock", 8, 30))
+                .isEqualTo(amBuilder(PADDED_SECRET, 8).getAuthenticatorAppRegistrationUriForTOTP(30));
+    }
+
+    private static AuthenticatorAppRegistrationURIBuilder amBuilder(OathSecret secret, int digits) {
+        AMIdentity id = mock(AMIdentity.class);
+        when(id.getName()).thenReturn("demo");
+        return new AuthenticatorAppRegistrationURIBuilder(id, secret.toHex(), digits, "ForgeRock");
+    }
+}
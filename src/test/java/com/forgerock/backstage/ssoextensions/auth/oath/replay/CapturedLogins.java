@@ -0,0 +1,151 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.replay;
+
+import com.forgerock.backstage.ssoextensions.auth.oath.OathAlgorithm;
+import com.forgerock.backstage.ssoextensions.auth.oath.verifier.VerificationTrace;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Logins rebuilt from the {@link VerificationTrace}s a server captured, so policies can be compared on how real
+ * devices and users behaved.
+ * <p>
+ * A trace tells where the code was relative to the expected time step or counter value only when some code in the
+ * window matched, including codes then rejected for being out of sync or older than the previous login. Such logins
+ * become genuine codes of that time step or counter value, or replays if they repeat the user's previous code; all
+ * other rejected traces become wrong codes, as the code they carried cannot be placed. A TOTP code is placed in the
+ * middle of its time step, so policies with a different time step interval see it only approximately.
+ */
+final class CapturedLogins implements LoginSource {
+    private final List<Login> logins;
+    private final int users;
+
+    private CapturedLogins(List<Login> logins, int users) {
+        this.logins = logins;
+        this.users = users;
+    }
+
+    /**
+     * Reads the traces of one algorithm from a file written by the verification trace MBean.
+     *
+     * @param file      the file
+     * @param algorithm the algorithm whose traces are read; the others are skipped
+     * @return the logins, in the order of their time
+     * @throws IOException if the file cannot be read
+     */
+    static CapturedLogins read(Path file, OathAlgorithm algorithm) throws IOException {
+        List<VerificationTrace> traces = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty() || line.equals(VerificationTrace.CSV_HEADER)) {
+                    continue;
+                }
+                VerificationTrace trace = VerificationTrace.fromCsv(line);
+                if (trace.getAlgorithm() == algorithm) {
+                    traces.add(trace);
+                }
+            }
+        }
+        return of(traces);
+    }
+
+    /**
+     * @param traces the traces, all of one algorithm
+     * @return the logins, in the order of their time
+     */
+    static CapturedLogins of(List<VerificationTrace> traces) {
+        List<VerificationTrace> sorted = new ArrayList<>(traces);
+        sorted.sort(Comparator.comparingLong(VerificationTrace::getTime));
+        Map<String, Integer> users = new HashMap<>();
+        List<Login> logins = new ArrayList<>(sorted.size());
+        for (VerificationTrace trace : sorted) {
+            Integer user = users.get(trace.getUser());
+            boolean seen = user != null;
+            if (!seen) {
+                user = users.size();
+                users.put(trace.getUser(), user);
+            }
+            logins.add(trace.getAlgorithm() == OathAlgorithm.TOTP ? totp(user, trace) : hotp(user, trace, seen));
+        }
+        return new CapturedLogins(logins, users.size());
+    }
+
+    private static Login totp(int user, VerificationTrace trace) {
+        int interval = trace.getTimeStepInterval();
+        long localTime = trace.getTime() / interval + trace.getClockDriftSteps();
+        Long lastLoginStep = trace.getSinceLastLogin() >= 0
+                ? (trace.getTime() - trace.getSinceLastLogin()) / interval : null;
+        if (trace.getMatchedOffset() != null) {
+            long step = localTime + trace.getMatchedOffset();
+            Login.Kind kind = !trace.isAccepted() && lastLoginStep != null && step == lastLoginStep
+                    ? Login.Kind.REPLAY : Login.Kind.GENUINE;
+            return new Login(user, trace.getTime(), kind, step * interval + interval / 2, 0);
+        }
+        if (lastLoginStep != null && lastLoginStep == localTime) {
+            return new Login(user, trace.getTime(), Login.Kind.REPLAY, 0, 0);
+        }
+        return new Login(user, trace.getTime(), Login.Kind.WRONG, 0, 0);
+    }
+
+    private static Login hotp(int user, VerificationTrace trace, boolean seen) {
+        Integer offset = trace.getMatchedOffset();
+        if (offset == null) {
+            return new Login(user, trace.getTime(), Login.Kind.WRONG, 0, 0);
+        }
+        // the verifier stores the counter value that matched, so after a login of the user the next code is at
+        // offset 1 and offset 0 repeats the previous code; before it, the device starts at the stored counter
+        if (!seen) {
+            return new Login(user, trace.getTime(), Login.Kind.GENUINE, 0, offset + 1);
+        }
+        if (offset == 0) {
+            return new Login(user, trace.getTime(), Login.Kind.REPLAY, 0, 0);
+        }
+        return new Login(user, trace.getTime(), Login.Kind.GENUINE, 0, offset);
+    }
+
+    @Override
+    public int getUsers() {
+        return users;
+    }
+
+    @Override
+    public void forEach(Consumer<Login> consumer) {
+        logins.forEach(consumer);
+    }
+
+    /**
+     * @return the number of logins
+     */
+    int size() {
+        return logins.size();
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.replay;
+
+/**
+ * One login replayed by the {@link ReplaySimulator}: a user submitting a code at some point in simulated time.
+ * Codes are not computed; a code is identified by the TOTP time step or HOTP counter value it was generated for.
+ */
+final class Login {
+
+    /**
+     * What was submitted.
+     */
+    enum Kind {
+        /** The code the device shows. */
+        GENUINE,
+        /** The code submitted by the user's previous genuine login, again. */
+        REPLAY,
+        /** A code that matches no time step or counter value. */
+        WRONG
+    }
+
+    private final int user;
+    private final long time;
+    private final Kind kind;
+    private final long codeTime;
+    private final int presses;
+
+    /**
+     * @param user     the index of the user, from 0
+     * @param time     when the code is submitted, in seconds of server time
+     * @param kind     what is submitted
+     * @param codeTime for a genuine TOTP code, the time of the device clock when the code was read, in seconds
+     * @param presses  for a genuine HOTP code, how many times the button was pressed since the previous login, so
+     *                 more than one if codes were generated and not used
+     */
+    Login(int user, long time, Kind kind, long codeTime, int presses) {
+        this.user = user;
+        this.time = time;
+        this.kind = kind;
+        this.codeTime = codeTime;
+        this.presses = presses;
+    }
+
+    int getUser() {
+        return user;
+    }
+
+    long getTime() {
+        return time;
+    }
+
+    Kind getKind() {
+        return kind;
+    }
+
+    long getCodeTime() {
+        return codeTime;
+    }
+
+    int getPresses() {
+        return presses;
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.replay;
+
+import java.util.function.Consumer;
+
+/**
+ * The logins replayed by the {@link ReplaySimulator}. A source can be replayed any number of times and yields the
+ * same logins every time, so policies are compared on the same input.
+ */
+interface LoginSource {
+
+    /**
+     * @return the number of users; logins refer to users by an index below this number
+     */
+    int getUsers();
+
+    /**
+     * Yields every login. Logins of a user are yielded in the order of their time.
+     *
+     * @param consumer receives the logins
+     */
+    void forEach(Consumer<Login> consumer);
+}
@@ -0,0 +1,138 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.replay;
+
+import com.forgerock.backstage.ssoextensions.auth.oath.OathAlgorithm;
+
+import java.util.Locale;
+
+/**
+ * The window settings and search order a {@link ReplaySimulator} run verifies with.
+ */
+final class ReplayPolicy {
+
+    /**
+     * The order in which the time steps of a TOTP window are checked. HOTP windows are always checked from the
+     * stored counter forward.
+     */
+    enum SearchOrder {
+        /** The expected time step, then alternately one step later and one earlier, as the verifier node does. */
+        CENTER_OUT(1),
+        /** The expected time step, then alternately one step earlier and one later, favouring slow typists. */
+        BEHIND_FIRST(-1);
+
+        private final int first;
+
+        SearchOrder(int first) {
+            this.first = first;
+        }
+
+        /**
+         * @param i the distance from the expected time step, from 1
+         * @return the offset checked first at that distance
+         */
+        int firstOffset(int i) {
+            return first * i;
+        }
+    }
+
+    private final OathAlgorithm algorithm;
+    private final int timeStepInterval;
+    private final int window;
+    private final int maxClockDrift;
+    private final SearchOrder order;
+
+    private ReplayPolicy(OathAlgorithm algorithm, int timeStepInterval, int window, int maxClockDrift,
+            SearchOrder order) {
+        this.algorithm = algorithm;
+        this.timeStepInterval = timeStepInterval;
+        this.window = window;
+        this.maxClockDrift = maxClockDrift;
+        this.order = order;
+    }
+
+    /**
+     * @param timeStepInterval the time step in seconds, as {@code totpTimeStepInterval}
+     * @param window           the time steps checked either side, as {@code totpTimeStepInWindow}
+     * @param maxClockDrift    the maximum clock drift in time steps, as {@code totpMaxClockDrift}
+     * @param order            the order in which the window is checked
+     * @return a TOTP policy
+     */
+    static ReplayPolicy totp(int timeStepInterval, int window, int maxClockDrift, SearchOrder order) {
+        return new ReplayPolicy(OathAlgorithm.TOTP, timeStepInterval, window, maxClockDrift, order);
+    }
+
+    /**
+     * @param window the counter values checked ahead of the stored one, as {@code hotpWindowSize}
+     * @return a HOTP policy
+     */
+    static ReplayPolicy hotp(int window) {
+        return new ReplayPolicy(OathAlgorithm.HOTP, 0, window, 0, SearchOrder.CENTER_OUT);
+    }
+
+    /**
+     * Reads a policy written as by {@link #toString()}: {@code TOTP:interval:window:maxClockDrift[:order]} or
+     * {@code HOTP:window}.
+     *
+     * @param policy the policy
+     * @return the policy
+     * @throws IllegalArgumentException if the policy cannot be read
+     */
+    static ReplayPolicy parse(String policy) {
+        String[] parts = policy.split(":");
+        OathAlgorithm algorithm = OathAlgorithm.valueOf(parts[0].toUpperCase(Locale.ROOT));
+        if (algorithm == OathAlgorithm.HOTP && parts.length == 2) {
+            return hotp(Integer.parseInt(parts[1]));
+        }
+        if (algorithm == OathAlgorithm.TOTP && (parts.length == 4 || parts.length == 5)) {
+            return totp(Integer.parseInt(parts[1]), Integer.parseInt(parts[2]), Integer.parseInt(parts[3]),
+                    parts.length == 5 ? SearchOrder.valueOf(parts[4].toUpperCase(Locale.ROOT))
+                            : SearchOrder.CENTER_OUT);
+        }
+        throw new IllegalArgumentException("Expected TOTP:interval:window:maxClockDrift[:order] or HOTP:window "
+                + "but found " + policy);
+    }
+
+    OathAlgorithm getAlgorithm() {
+        return algorithm;
+    }
+
+    int getTimeStepInterval() {
+        return timeStepInterval;
+    }
+
+    int getWindow() {
+        return window;
+    }
+
+    int getMaxClockDrift() {
+        return maxClockDrift;
+    }
+
+    SearchOrder getOrder() {
+        return order;
+    }
+
+    @Override
+    public String toString() {
+        return algorithm == OathAlgorithm.HOTP ? "HOTP:" + window
+                : "TOTP:" + timeStepInterval + ":" + window + ":" + maxClockDrift + ":" + order;
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.replay;
+
+import com.forgerock.backstage.ssoextensions.auth.oath.OathAlgorithm;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Offline replay of logins against alternative window sizes, maximum clock drifts and search orders, to tune
+ * {@code hotpWindowSize}, {@code totpTimeStepInWindow} and {@code totpMaxClockDrift} on data. Logins are decided by
+ * a {@link VerifierModel} on a simulated clock, so millions of them replay in seconds; the HMACs reported are the
+ * codes the verifier node would have computed.
+ * <p>
+ * A false lockout is a genuine code rejected, whether the user logged in again within the same time step, was
+ * taken for replaying an older code or has a device clock beyond the maximum drift. A replay rejection is a
+ * previous code submitted again and rejected; replays accepted are reported separately.
+ * <p>
+ * Run the main method with the test classpath: {@code ReplaySimulator [users] [loginsPerUser] [policy...]} replays
+ * {@link SyntheticLogins}, whose clocks and users are described by the system properties below, e.g.
+ * {@code -Doath.replay.clock=30,50} for device clocks off by 30 seconds and drifting by 50 ppm (standard
+ * deviations). {@code ReplaySimulator --traces file [policy...]} replays the lines dumped by the
+ * {@code VerificationTraces} MBean, saved to a file, instead. Policies are written as {@code TOTP:interval:window:maxClockDrift[:order]}
+ * or {@code HOTP:window}, see {@link ReplayPolicy}.
+ */
+public final class ReplaySimulator {
+    static final String SEED_PROPERTY = "oath.replay.seed";
+    static final String GAPS_PROPERTY = "oath.replay.gaps";
+    static final String CLOCK_PROPERTY = "oath.replay.clock";
+    static final String TYPING_PROPERTY = "oath.replay.typing";
+    static final String ERRORS_PROPERTY = "oath.replay.errors";
+    private static final List<String> DEFAULT_POLICIES = Arrays.asList("TOTP:30:2:5:CENTER_OUT",
+            "TOTP:30:2:5:BEHIND_FIRST", "TOTP:30:1:5:CENTER_OUT", "TOTP:30:1:2:BEHIND_FIRST", "HOTP:100", "HOTP:10");
+
+    private ReplaySimulator() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        boolean traces = args.length > 1 && args[0].equals("--traces");
+        List<ReplayPolicy> policies = new ArrayList<>();
+        for (int i = 2; i < args.length; i++) {
+            policies.add(ReplayPolicy.parse(args[i]));
+        }
+        if (policies.isEmpty()) {
+            DEFAULT_POLICIES.forEach(policy -> policies.add(ReplayPolicy.parse(policy)));
+        }
+
+        Map<OathAlgorithm, LoginSource> sources = new EnumMap<>(OathAlgorithm.class);
+        if (traces) {
+            Path file = Paths.get(args[1]);
+            for (OathAlgorithm algorithm : OathAlgorithm.values()) {
+                sources.put(algorithm, CapturedLogins.read(file, algorithm));
+            }
+        } else {
+            LoginSource synthetic = synthetic(args.length > 0 ? Integer.parseInt(args[0]) : 100_000,
+                    args.length > 1 ? Integer.parseInt(args[1]) : 20);
+            sources.put(OathAlgorithm.HOTP, synthetic);
+            sources.put(OathAlgorithm.TOTP, synthetic);
+        }
+
+        System.out.println(Report.HEADER);
+        for (ReplayPolicy policy : policies) {
+            System.out.println(run(sources.get(policy.getAlgorithm()), policy));
+        }
+    }
+
+    private static SyntheticLogins synthetic(int users, int loginsPerUser) {
+        SyntheticLogins logins = new SyntheticLogins(users, loginsPerUser, Long.getLong(SEED_PROPERTY, 1));
+        double[] gaps = values(GAPS_PROPERTY, 2);
+        if (gaps != null) {
+            logins.withGaps(gaps[0], gaps[1]);
+        }
+        double[] clock = values(CLOCK_PROPERTY, 2);
+        if (clock != null) {
+            logins.withClocks(clock[0], clock[1]);
+        }
+        double[] typing = values(TYPING_PROPERTY, 1);
+        if (typing != null) {
+            logins.withTyping((int) typing[0]);
+        }
+        double[] errors = values(ERRORS_PROPERTY, 3);
+        if (errors != null) {
+            logins.withErrors(errors[0], errors[1], errors[2]);
+        }
+        return logins;
+    }
+
+    /**
+     * @param property the name of a system property holding comma separated numbers
+     * @param count    the number of numbers expected
+     * @return the numbers, or null if the property is not set
+     */
+    private static double[] values(String property, int count) {
+        String value = System.getProperty(property);
+        if (value == null || value.trim().isEmpty()) {
+            return null;
+        }
+        String[] parts = value.split(",");
+        if (parts.length != count) {
+            throw new IllegalArgumentException(property + " needs " + count + " comma separated values");
+        }
+        double[] values = new double[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = Double.parseDouble(parts[i].trim());
+        }
+        return values;
+    }
+
+    /**
+     * Replays every login of a source against a policy, starting from fresh device profiles.
+     *
+     * @param logins the logins
+     * @param policy the policy
+     * @return the results
+     */
+    static Report run(LoginSource logins, ReplayPolicy policy) {
+        VerifierModel model = new VerifierModel(policy, logins.getUsers());
+        Report report = new Report(policy);
+        long start = System.nanoTime();
+        logins.forEach(login -> report.add(login.getKind(), model.verify(login), model.getHmacs()));
+        report.seconds = (System.nanoTime() - start) / 1e9;
+        return report;
+    }
+
+    /**
+     * Results of replaying one source against one policy.
+     */
+    static final class Report {
+        static final String HEADER = String.format("%-26s %10s %9s %6s %12s %10s %10s %10s %9s %10s",
+                "policy", "logins", "hmacs/lgn", "max", "false lckout", "out sync", "same step", "replays",
+                "rejected", "logins/s");
+
+        private final ReplayPolicy policy;
+        private long logins;
+        private long genuine;
+        private long hmacs;
+        private int maxHmacs;
+        private long falseLockouts;
+        private long outOfSync;
+        private long sameStep;
+        private long replays;
+        private long replayRejections;
+        private double seconds;
+
+        private Report(ReplayPolicy policy) {
+            this.policy = policy;
+        }
+
+        private void add(Login.Kind kind, VerifierModel.Outcome outcome, int loginHmacs) {
+            logins++;
+            hmacs += loginHmacs;
+            maxHmacs = Math.max(maxHmacs, loginHmacs);
+            boolean accepted = outcome == VerifierModel.Outcome.ACCEPTED;
+            if (kind == Login.Kind.GENUINE) {
+                genuine++;
+                if (!accepted) {
+                    falseLockouts++;
+                    if (outcome == VerifierModel.Outcome.OUT_OF_SYNC) {
+                        outOfSync++;
+                    } else if (outcome == VerifierModel.Outcome.SAME_STEP) {
+                        sameStep++;
+                    }
+                }
+            } else if (kind == Login.Kind.REPLAY) {
+                replays++;
+                if (!accepted) {
+                    replayRejections++;
+                }
+            }
+        }
+
+        long getLogins() {
+            return logins;
+        }
+
+        long getGenuine() {
+            return genuine;
+        }
+
+        double getHmacsPerLogin() {
+            return logins == 0 ? 0 : (double) hmacs / logins;
+        }
+
+        int getMaxHmacs() {
+            return maxHmacs;
+        }
+
+        long getFalseLockouts() {
+            return falseLockouts;
+        }
+
+        long getOutOfSync() {
+            return outOfSync;
+        }
+
+        long getSameStep() {
+            return sameStep;
+        }
+
+        long getReplays() {
+            return replays;
+        }
+
+        long getReplayRejections() {
+            return replayRejections;
+        }
+
+        long getAcceptedReplays() {
+            return replays - replayRejections;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-26s %10d %9.2f %6d %11.3f%% %10d %10d %10d %9d %10.0f", policy, logins,
+                    getHmacsPerLogin(), maxHmacs, genuine == 0 ? 0 : 100.0 * falseLockouts / genuine, outOfSync,
+                    sameStep, replays, replayRejections, seconds > 0 ? logins / seconds : 0);
+        }
+    }
+}
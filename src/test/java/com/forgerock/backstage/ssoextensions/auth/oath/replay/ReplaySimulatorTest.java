@@ -0,0 +1,160 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.replay;
+
+import com.forgerock.backstage.ssoextensions.auth.oath.OathAlgorithm;
+import com.forgerock.backstage.ssoextensions.auth.oath.verifier.VerificationTrace;
+import com.google.common.collect.ImmutableList;
+import org.testng.annotations.Test;
+
+import static com.forgerock.backstage.ssoextensions.auth.oath.replay.ReplayPolicy.SearchOrder.BEHIND_FIRST;
+import static com.forgerock.backstage.ssoextensions.auth.oath.replay.ReplayPolicy.SearchOrder.CENTER_OUT;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ReplaySimulatorTest {
+    private static final int STEP = 30;
+    private static final long NOW = 1000 * STEP + 10;
+
+    @Test
+    public void verify_whenTotpCodeAroundExpectedStep_thenHmacsAsVerifierScans() {
+        VerifierModel model = new VerifierModel(ReplayPolicy.totp(STEP, 2, 5, CENTER_OUT), 3);
+
+        assertThat(model.verify(totp(0, NOW, NOW + STEP))).isEqualTo(VerifierModel.Outcome.ACCEPTED);
+        assertThat(model.getHmacs()).isEqualTo(2);
+        assertThat(model.verify(totp(1, NOW, NOW - STEP))).isEqualTo(VerifierModel.Outcome.ACCEPTED);
+        assertThat(model.getHmacs()).isEqualTo(3);
+        assertThat(model.getMatchedOffset()).isEqualTo(-1);
+        assertThat(model.verify(totp(2, NOW, NOW + 3 * STEP))).isEqualTo(VerifierModel.Outcome.NO_MATCH);
+        assertThat(model.getHmacs()).isEqualTo(5);
+    }
+
+    @Test
+    public void verify_whenBehindFirst_thenEarlierStepCheckedFirst() {
+        VerifierModel model = new VerifierModel(ReplayPolicy.totp(STEP, 2, 5, BEHIND_FIRST), 1);
+
+        assertThat(model.verify(totp(0, NOW, NOW - STEP))).isEqualTo(VerifierModel.Outcome.ACCEPTED);
+        assertThat(model.getHmacs()).isEqualTo(2);
+    }
+
+    @Test
+    public void verify_whenDriftCarriedOver_thenNextLoginCentredOnDevice() {
+        VerifierModel model = new VerifierModel(ReplayPolicy.totp(STEP, 1, 5, CENTER_OUT), 1);
+
+        model.verify(totp(0, NOW, NOW + STEP));
+        model.verify(totp(0, NOW + 3600, NOW + 3600 + 2 * STEP));
+
+        assertThat(model.getMatchedOffset()).isEqualTo(1);
+    }
+
+    @Test
+    public void verify_whenSecondLoginInSameStepOrOlderCode_thenRejected() {
+        VerifierModel model = new VerifierModel(ReplayPolicy.totp(STEP, 2, 5, CENTER_OUT), 1);
+
+        model.verify(totp(0, NOW, NOW));
+
+        assertThat(model.verify(replay(0, NOW + 5))).isEqualTo(VerifierModel.Outcome.SAME_STEP);
+        assertThat(model.getHmacs()).isEqualTo(0);
+        assertThat(model.verify(replay(0, NOW + STEP))).isEqualTo(VerifierModel.Outcome.OLDER_IN_WINDOW);
+    }
+
+    @Test
+    public void verify_whenDeviceClockBeyondMaxDrift_thenOutOfSync() {
+        VerifierModel model = new VerifierModel(ReplayPolicy.totp(STEP, 3, 2, CENTER_OUT), 1);
+
+        assertThat(model.verify(totp(0, NOW, NOW + 3 * STEP))).isEqualTo(VerifierModel.Outcome.OUT_OF_SYNC);
+    }
+
+    @Test
+    public void verify_whenHotpCodeReplayed_thenAcceptedAsVerifierDoes() {
+        VerifierModel model = new VerifierModel(ReplayPolicy.hotp(10), 1);
+
+        assertThat(model.verify(hotp(0, 1))).isEqualTo(VerifierModel.Outcome.ACCEPTED);
+        assertThat(model.verify(hotp(0, 3))).isEqualTo(VerifierModel.Outcome.ACCEPTED);
+        assertThat(model.getMatchedOffset()).isEqualTo(3);
+        assertThat(model.getHmacs()).isEqualTo(4);
+        assertThat(model.verify(replay(0, NOW))).isEqualTo(VerifierModel.Outcome.ACCEPTED);
+        assertThat(model.verify(hotp(0, 12))).isEqualTo(VerifierModel.Outcome.NO_MATCH);
+    }
+
+    @Test
+    public void run_whenSyntheticLoginsReplayedTwice_thenSameReport() {
+        SyntheticLogins logins = new SyntheticLogins(200, 20, 7);
+        ReplayPolicy policy = ReplayPolicy.totp(STEP, 1, 5, CENTER_OUT);
+
+        ReplaySimulator.Report first = ReplaySimulator.run(logins, policy);
+        ReplaySimulator.Report second = ReplaySimulator.run(logins, policy);
+
+        assertThat(first.getLogins()).isEqualTo(4000L);
+        assertThat(second.getFalseLockouts()).isEqualTo(first.getFalseLockouts());
+        assertThat(second.getHmacsPerLogin()).isEqualTo(first.getHmacsPerLogin());
+        assertThat(first.getReplays()).isGreaterThan(0L);
+        assertThat(first.getAcceptedReplays()).isEqualTo(0L);
+    }
+
+    @Test
+    public void run_whenWindowNarrowedOnDriftingClocks_thenMoreFalseLockoutsFewerHmacs() {
+        SyntheticLogins logins = new SyntheticLogins(500, 20, 7).withClocks(40, 100);
+
+        ReplaySimulator.Report wide = ReplaySimulator.run(logins, ReplayPolicy.totp(STEP, 3, 10, CENTER_OUT));
+        ReplaySimulator.Report narrow = ReplaySimulator.run(logins, ReplayPolicy.totp(STEP, 0, 10, CENTER_OUT));
+
+        assertThat(narrow.getFalseLockouts()).isGreaterThan(wide.getFalseLockouts());
+        assertThat(narrow.getHmacsPerLogin()).isLessThan(wide.getHmacsPerLogin());
+    }
+
+    @Test
+    public void run_whenCapturedTracesReplayedWithCapturingPolicy_thenSameDecisions() {
+        long second = NOW + 3600;
+        CapturedLogins logins = CapturedLogins.of(ImmutableList.of(
+                new VerificationTrace(NOW, "a", OathAlgorithm.TOTP, STEP, 2, false, 5, -1, 0, -1, true, 3),
+                new VerificationTrace(second, "a", OathAlgorithm.TOTP, STEP, 2, false, 5,
+                        second - (NOW / STEP - 1) * STEP, -1, 1, true, 2),
+                new VerificationTrace(second + 5, "a", OathAlgorithm.TOTP, STEP, 2, false, 5, 15, 0, null,
+                        false, 0),
+                new VerificationTrace(second, "b", OathAlgorithm.TOTP, STEP, 2, false, 5, -1, 0, null, false, 5)));
+
+        ReplaySimulator.Report report = ReplaySimulator.run(logins, ReplayPolicy.totp(STEP, 2, 5, CENTER_OUT));
+
+        assertThat(logins.getUsers()).isEqualTo(2);
+        assertThat(report.getLogins()).isEqualTo(4L);
+        assertThat(report.getGenuine()).isEqualTo(2L);
+        assertThat(report.getFalseLockouts()).isEqualTo(0L);
+        assertThat(report.getReplayRejections()).isEqualTo(1L);
+    }
+
+    @Test
+    public void parse_whenPolicyWritten_thenSamePolicy() {
+        assertThat(ReplayPolicy.parse("totp:30:2:5:behind_first").toString()).isEqualTo("TOTP:30:2:5:BEHIND_FIRST");
+        assertThat(ReplayPolicy.parse("TOTP:60:1:3").getOrder()).isEqualTo(CENTER_OUT);
+        assertThat(ReplayPolicy.parse("HOTP:50").getWindow()).isEqualTo(50);
+    }
+
+    private static Login totp(int user, long time, long codeTime) {
+        return new Login(user, time, Login.Kind.GENUINE, codeTime, 0);
+    }
+
+    private static Login hotp(int user, int presses) {
+        return new Login(user, NOW, Login.Kind.GENUINE, 0, presses);
+    }
+
+    private static Login replay(int user, long time) {
+        return new Login(user, time, Login.Kind.REPLAY, 0, 0);
+    }
+}
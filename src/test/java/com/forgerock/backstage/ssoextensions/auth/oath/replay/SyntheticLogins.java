@@ -0,0 +1,140 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.replay;
+
+import java.util.Random;
+import java.util.function.Consumer;
+
+/**
+ * Logins of users whose devices keep imperfect time. Every device clock starts off by a normally distributed
+ * offset and runs fast or slow at a normally distributed rate; users read a code up to a few seconds before
+ * submitting it, come back after exponentially distributed gaps, now and then log in again within a minute, mistype
+ * a code, submit their previous code again or press the button of a HOTP device without using the code.
+ * <p>
+ * The logins are drawn from a seeded generator, so every {@link #forEach(Consumer)} yields the same logins; they are
+ * generated as they are replayed rather than kept.
+ */
+final class SyntheticLogins implements LoginSource {
+    private static final long START = 1_600_000_000L;
+    private static final int DAY = 86_400;
+
+    private final int users;
+    private final int loginsPerUser;
+    private final long seed;
+    private double meanGapSeconds = 8 * 3600;
+    private double quickReloginRate = 0.02;
+    private double clockOffsetSeconds = 15;
+    private double clockDriftPpm = 20;
+    private int maxTypingSeconds = 20;
+    private double replayRate = 0.01;
+    private double wrongCodeRate = 0.03;
+    private double unusedPressRate = 0.05;
+
+    /**
+     * @param users         the number of users
+     * @param loginsPerUser the number of logins of every user
+     * @param seed          the seed of the generator
+     */
+    SyntheticLogins(int users, int loginsPerUser, long seed) {
+        this.users = users;
+        this.loginsPerUser = loginsPerUser;
+        this.seed = seed;
+    }
+
+    /**
+     * @param meanGapSeconds   the mean time between logins of a user
+     * @param quickReloginRate the fraction of logins within a minute of the previous one
+     */
+    SyntheticLogins withGaps(double meanGapSeconds, double quickReloginRate) {
+        this.meanGapSeconds = meanGapSeconds;
+        this.quickReloginRate = quickReloginRate;
+        return this;
+    }
+
+    /**
+     * @param clockOffsetSeconds the standard deviation of the initial offset of device clocks
+     * @param clockDriftPpm      the standard deviation of the rate at which device clocks gain or lose time, in
+     *                           parts per million
+     */
+    SyntheticLogins withClocks(double clockOffsetSeconds, double clockDriftPpm) {
+        this.clockOffsetSeconds = clockOffsetSeconds;
+        this.clockDriftPpm = clockDriftPpm;
+        return this;
+    }
+
+    /**
+     * @param maxTypingSeconds the longest time between reading a code and submitting it
+     */
+    SyntheticLogins withTyping(int maxTypingSeconds) {
+        this.maxTypingSeconds = maxTypingSeconds;
+        return this;
+    }
+
+    /**
+     * @param replayRate      the fraction of logins submitting the previous code again, within two minutes
+     * @param wrongCodeRate   the fraction of logins submitting a mistyped code
+     * @param unusedPressRate the fraction of HOTP logins preceded by codes generated and not used
+     */
+    SyntheticLogins withErrors(double replayRate, double wrongCodeRate, double unusedPressRate) {
+        this.replayRate = replayRate;
+        this.wrongCodeRate = wrongCodeRate;
+        this.unusedPressRate = unusedPressRate;
+        return this;
+    }
+
+    @Override
+    public int getUsers() {
+        return users;
+    }
+
+    @Override
+    public void forEach(Consumer<Login> consumer) {
+        Random random = new Random(seed);
+        for (int user = 0; user < users; user++) {
+            double clockOffset = random.nextGaussian() * clockOffsetSeconds;
+            double clockRate = random.nextGaussian() * clockDriftPpm / 1e6;
+            long start = START + random.nextInt(DAY);
+            long time = start;
+            for (int i = 0; i < loginsPerUser; i++) {
+                double kind = random.nextDouble();
+                if (i > 0 && kind < replayRate) {
+                    time += 1 + random.nextInt(120);
+                    consumer.accept(new Login(user, time, Login.Kind.REPLAY, 0, 0));
+                    continue;
+                }
+                if (i > 0) {
+                    time += random.nextDouble() < quickReloginRate ? 1 + random.nextInt(60)
+                            : 1 + (long) (-Math.log(1 - random.nextDouble()) * meanGapSeconds);
+                }
+                if (kind < replayRate + wrongCodeRate) {
+                    consumer.accept(new Login(user, time, Login.Kind.WRONG, 0, 0));
+                    continue;
+                }
+                long codeTime = Math.round(time - random.nextInt(maxTypingSeconds + 1) + clockOffset
+                        + clockRate * (time - start));
+                int presses = 1;
+                while (random.nextDouble() < unusedPressRate) {
+                    presses++;
+                }
+                consumer.accept(new Login(user, time, Login.Kind.GENUINE, codeTime, presses));
+            }
+        }
+    }
+}
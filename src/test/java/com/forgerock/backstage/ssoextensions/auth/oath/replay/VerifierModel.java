@@ -0,0 +1,183 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.replay;
+
+import com.forgerock.backstage.ssoextensions.auth.oath.OathAlgorithm;
+
+import java.util.Arrays;
+
+/**
+ * Decides logins as {@code TotpVerifier} and {@code HotpVerifier} would, without computing any code: a code is the
+ * time step or counter value it was generated for, and checking a time step or counter value counts as one HMAC.
+ * Holds the stored device profile of every user (last login, clock drift and counter) and the device of every user
+ * (the next HOTP counter value and the last code submitted), so it is cheap enough to replay millions of logins.
+ */
+final class VerifierModel {
+    private static final long NONE = Long.MIN_VALUE;
+
+    /**
+     * How a login was decided.
+     */
+    enum Outcome {
+        /** The code matched and was accepted. */
+        ACCEPTED,
+        /** A TOTP login in the same time step as the previous one, rejected before checking any code. */
+        SAME_STEP,
+        /** The code of a time step before the expected one, in the same window as the previous login. */
+        OLDER_IN_WINDOW,
+        /** The code matched a time step further from the server clock than the maximum clock drift. */
+        OUT_OF_SYNC,
+        /** The code matched nothing in the window. */
+        NO_MATCH
+    }
+
+    private final ReplayPolicy policy;
+    private final long[] lastLogin;
+    private final int[] clockDrift;
+    private final long[] counter;
+    private final long[] nextCounter;
+    private final long[] lastCode;
+    private int hmacs;
+    private int matchedOffset;
+
+    /**
+     * @param policy the policy to verify with
+     * @param users  the number of users
+     */
+    VerifierModel(ReplayPolicy policy, int users) {
+        this.policy = policy;
+        if (policy.getAlgorithm() == OathAlgorithm.TOTP) {
+            this.lastLogin = new long[users];
+            this.clockDrift = new int[users];
+            this.counter = null;
+            this.nextCounter = null;
+        } else {
+            this.lastLogin = null;
+            this.clockDrift = null;
+            this.counter = new long[users];
+            this.nextCounter = new long[users];
+        }
+        this.lastCode = new long[users];
+        Arrays.fill(lastCode, NONE);
+    }
+
+    /**
+     * Decides a login and updates the profile and device of its user.
+     *
+     * @param login the login
+     * @return how it was decided
+     */
+    Outcome verify(Login login) {
+        hmacs = 0;
+        matchedOffset = 0;
+        long code = code(login);
+        return policy.getAlgorithm() == OathAlgorithm.TOTP ? verifyTotp(login, code) : verifyHotp(login, code);
+    }
+
+    /**
+     * @return the number of time steps or counter values the last {@link #verify(Login)} checked
+     */
+    int getHmacs() {
+        return hmacs;
+    }
+
+    /**
+     * @return the offset of the code accepted by the last {@link #verify(Login)}
+     */
+    int getMatchedOffset() {
+        return matchedOffset;
+    }
+
+    private long code(Login login) {
+        int user = login.getUser();
+        switch (login.getKind()) {
+        case GENUINE:
+            long code;
+            if (policy.getAlgorithm() == OathAlgorithm.TOTP) {
+                code = Math.floorDiv(login.getCodeTime(), policy.getTimeStepInterval());
+            } else {
+                code = nextCounter[user] + Math.max(1, login.getPresses()) - 1;
+                nextCounter[user] = code + 1;
+            }
+            lastCode[user] = code;
+            return code;
+        case REPLAY:
+            return lastCode[user];
+        default:
+            return NONE;
+        }
+    }
+
+    private Outcome verifyTotp(Login login, long code) {
+        int user = login.getUser();
+        int interval = policy.getTimeStepInterval();
+        long serverStep = Math.floorDiv(login.getTime(), interval);
+        long lastLoginStep = lastLogin[user] / interval;
+        long localTime = serverStep + clockDrift[user] / interval;
+        if (lastLoginStep == localTime) {
+            return Outcome.SAME_STEP;
+        }
+        boolean sameWindow = Math.abs(lastLoginStep - localTime) <= policy.getWindow();
+
+        hmacs++;
+        if (code == localTime) {
+            return acceptTotp(user, serverStep, localTime, 0);
+        }
+        for (int i = 1; i <= policy.getWindow(); i++) {
+            int offset = policy.getOrder().firstOffset(i);
+            for (int side = 0; side < 2; side++, offset = -offset) {
+                hmacs++;
+                if (code == localTime + offset) {
+                    if (offset < 0 && sameWindow) {
+                        return Outcome.OLDER_IN_WINDOW;
+                    }
+                    return acceptTotp(user, serverStep, localTime, offset);
+                }
+            }
+        }
+        return Outcome.NO_MATCH;
+    }
+
+    private Outcome acceptTotp(int user, long serverStep, long localTime, int offset) {
+        long step = localTime + offset;
+        if (Math.abs(step - serverStep) > policy.getMaxClockDrift()) {
+            return Outcome.OUT_OF_SYNC;
+        }
+        int interval = policy.getTimeStepInterval();
+        lastLogin[user] = step * interval;
+        clockDrift[user] = (int) (step - serverStep) * interval;
+        matchedOffset = offset;
+        return Outcome.ACCEPTED;
+    }
+
+    private Outcome verifyHotp(Login login, long code) {
+        int user = login.getUser();
+        for (int i = 0; i <= policy.getWindow(); i++) {
+            hmacs++;
+            if (code == counter[user] + i) {
+                // the verifier stores the counter value that matched, not the next one
+                counter[user] = code;
+                matchedOffset = i;
+                return Outcome.ACCEPTED;
+            }
+        }
+        return Outcome.NO_MATCH;
+    }
+}
@@ -82,4 +82,13 @@ public class HotpVerifierTest extends PowerMockTestCase {
         hotpVerifier.verify("853971");
         assertThat(settings.getCounter()).isEqualTo(counter + 1);
     }
+
+    @Test
+    public void verify_whenNarrowedAndCodeAheadOfCounter_thenFail() {
+        settings.setCounter(0);
+        hotpVerifier.narrowWindow();
+
+        assertThatThrownBy(() -> hotpVerifier.verify("853971"))
+                .isInstanceOf(OathVerificationException.class);
+    }
 }
@@ -0,0 +1,111 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.verifier;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class InMemoryAttemptThrottleTest {
+
+    private static final long REFILL = 30_000L;
+
+    private final AtomicLong now = new AtomicLong(1_000_000L);
+    private InMemoryAttemptThrottle throttle;
+
+    @BeforeMethod
+    public void init() {
+        throttle = new InMemoryAttemptThrottle(3, now::get);
+    }
+
+    @Test
+    public void tryAcquire_whenCapacityExhausted_thenReject() {
+        assertThat(throttle.tryAcquire("/:demo", 2, REFILL)).isTrue();
+        assertThat(throttle.tryAcquire("/:demo", 2, REFILL)).isTrue();
+        assertThat(throttle.tryAcquire("/:demo", 2, REFILL)).isFalse();
+    }
+
+    @Test
+    public void tryAcquire_whenOtherUserExhausted_thenAllow() {
+        throttle.tryAcquire("/:demo", 1, REFILL);
+
+        assertThat(throttle.tryAcquire("/:demo", 1, REFILL)).isFalse();
+        assertThat(throttle.tryAcquire("/:other", 1, REFILL)).isTrue();
+    }
+
+    @Test
+    public void tryAcquire_whenRefillIntervalPassed_thenAllowOneMore() {
+        throttle.tryAcquire("/:demo", 2, REFILL);
+        throttle.tryAcquire("/:demo", 2, REFILL);
+
+        now.addAndGet(REFILL);
+
+        assertThat(throttle.tryAcquire("/:demo", 2, REFILL)).isTrue();
+        assertThat(throttle.tryAcquire("/:demo", 2, REFILL)).isFalse();
+    }
+
+    @Test
+    public void tryAcquire_whenDisabled_thenAlwaysAllow() {
+        for (int i = 0; i < 10; i++) {
+            assertThat(throttle.tryAcquire("/:demo", 0, REFILL)).isTrue();
+        }
+    }
+
+    @Test
+    public void tryAcquire_whenMaxEntriesReached_thenFullBucketsEvicted() {
+        for (int i = 0; i < 10; i++) {
+            throttle.tryAcquire("/:user" + i, 5, REFILL);
+            now.addAndGet(REFILL);
+        }
+
+        assertThat(throttle.size()).isLessThanOrEqualTo(3);
+    }
+
+    @Test
+    public void tryAcquire_whenMapFullOfThrottledUsers_thenNewUserRejectedAndThrottleKept() {
+        throttle.tryAcquire("/:victim", 1, REFILL);
+        throttle.tryAcquire("/:user1", 1, REFILL);
+        throttle.tryAcquire("/:user2", 1, REFILL);
+
+        for (int i = 0; i < 10; i++) {
+            assertThat(throttle.tryAcquire("/:sprayed" + i, 1, REFILL)).isFalse();
+        }
+        assertThat(throttle.tryAcquire("/:victim", 1, REFILL)).isFalse();
+        assertThat(throttle.size()).isEqualTo(3);
+
+        now.addAndGet(REFILL);
+
+        assertThat(throttle.tryAcquire("/:sprayed0", 1, REFILL)).isTrue();
+    }
+
+    @Test
+    public void tryAcquire_whenBucketsIdle_thenEvictedOnSweep() {
+        throttle.tryAcquire("/:demo", 2, REFILL);
+        throttle.tryAcquire("/:other", 2, REFILL);
+
+        now.addAndGet(10 * 60_000L);
+        throttle.tryAcquire("/:third", 2, REFILL);
+
+        assertThat(throttle.size()).isEqualTo(1);
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.verifier;
+
+import com.forgerock.backstage.ssoextensions.auth.oath.OathSecret;
+import org.testng.annotations.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class OathCodeGeneratorTest {
+
+    // RFC 4226 appendix D and RFC 6238 appendix B
+    private static final String RFC_SECRET = "3132333435363738393031323334353637383930";
+
+    @Test
+    public void hotp_whenRfcTestVectors_thenMatch() throws OathVerificationException {
+        OathCodeGenerator generator = new OathCodeGenerator(OathSecret.fromHex(RFC_SECRET));
+
+        assertThat(generator.hotp(0, 6, false, -1)).isEqualTo("755224");
+        assertThat(generator.hotp(1, 6, false, -1)).isEqualTo("287082");
+        assertThat(generator.hotp(9, 6, false, -1)).isEqualTo("520489");
+    }
+
+    @Test
+    public void hotp_whenChecksum_thenLuhnDigitAppended() throws OathVerificationException {
+        OathCodeGenerator generator = new OathCodeGenerator(OathSecret.fromHex("abcd"));
+
+        assertThat(generator.hotp(0, 6, true, -1)).isEqualTo("5644919");
+    }
+
+    @Test
+    public void totp_whenRfcTestVectors_thenMatch() throws OathVerificationException {
+        OathCodeGenerator generator = new OathCodeGenerator(OathSecret.fromHex(RFC_SECRET));
+
+        assertThat(generator.totp(59 / 30, 8)).isEqualTo("94287082");
+        assertThat(generator.totp(1111111109L / 30, 8)).isEqualTo("07081804");
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.verifier;
+
+import com.forgerock.backstage.ssoextensions.auth.oath.OathAlgorithm;
+import com.google.common.collect.ImmutableList;
+import org.forgerock.openam.core.rest.devices.oath.OathDeviceSettings;
+import org.testng.annotations.Test;
+
+import java.util.List;
+
+import static com.forgerock.backstage.ssoextensions.auth.oath.TestConstants.SHARED_SECRET;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class OathVerificationServiceTest {
+
+    private final OathVerifierNodeConfig config = new OathVerifierNodeConfig() {
+        @Override
+        public int minSharedSecretLength() {
+            return 1;
+        }
+
+        @Override
+        public OathAlgorithm algorithm() {
+            return OathAlgorithm.HOTP;
+        }
+
+        @Override
+        public int hotpWindowSize() {
+            return 100;
+        }
+    };
+
+    private final OathVerificationService service = new OathVerificationService();
+
+    @Test
+    public void verify_whenValidHotp_thenValidWithOffsetAndCounterUpdated() {
+        OathDeviceSettings settings = settings(SHARED_SECRET, 0);
+
+        OathVerificationResult result = service.verify(settings, "853971", config);
+
+        assertThat(result.isValid()).isTrue();
+        assertThat(result.getOffset()).isEqualTo(1);
+        assertThat(settings.getCounter()).isEqualTo(1);
+    }
+
+    @Test
+    public void verify_whenNarrowedAndCodeAhead_thenInvalid() {
+        OathVerificationResult result = service.verify(settings(SHARED_SECRET, 0), "853971", config, true);
+
+        assertThat(result.isValid()).isFalse();
+    }
+
+    @Test
+    public void verify_whenNoSettings_thenInvalidWithReason() {
+        OathVerificationResult result = service.verify(null, "853971", config);
+
+        assertThat(result.isValid()).isFalse();
+        assertThat(result.getFailureReason()).isEqualTo("Invalid stored settings");
+    }
+
+    @Test
+    public void verifyAll_whenMixedSecrets_thenResultsInRequestOrder() {
+        OathDeviceSettings first = settings(SHARED_SECRET, 0);
+        OathDeviceSettings other = settings("3132333435363738393031323334353637383930", 0);
+        OathDeviceSettings second = settings(SHARED_SECRET, 0);
+
+        List<OathVerificationResult> results = service.verifyAll(ImmutableList.of(
+                new OathVerificationRequest(first, "564491"),
+                new OathVerificationRequest(other, "287082"),
+                new OathVerificationRequest(second, "000000"),
+                new OathVerificationRequest(first, "853971")), config);
+
+        assertThat(results).hasSize(4);
+        assertThat(results.get(0).isValid()).isTrue();
+        assertThat(results.get(1).isValid()).isTrue();
+        assertThat(results.get(1).getOffset()).isEqualTo(1);
+        assertThat(results.get(2).isValid()).isFalse();
+        assertThat(results.get(3).isValid()).isTrue();
+        assertThat(first.getCounter()).isEqualTo(1);
+    }
+
+    @Test
+    public void verify_whenTracesCaptured_thenTraceOfMatchWithoutSecret() {
+        VerificationTraceRecorder traces = new VerificationTraceRecorder(4);
+        OathVerificationService tracing = new OathVerificationService(traces);
+
+        tracing.verify(settings(SHARED_SECRET, 0), "853971", config);
+        tracing.verify(settings(SHARED_SECRET, 0), "000000", config);
+
+        List<VerificationTrace> captured = traces.dump();
+        assertThat(captured).hasSize(2);
+        assertThat(captured.get(0).isAccepted()).isTrue();
+        assertThat(captured.get(0).getMatchedOffset()).isEqualTo(1);
+        assertThat(captured.get(0).getStepsScanned()).isEqualTo(2);
+        assertThat(captured.get(0).getWindow()).isEqualTo(100);
+        assertThat(captured.get(0).getSinceLastLogin()).isEqualTo(-1L);
+        assertThat(captured.get(0).toCsv()).doesNotContain(SHARED_SECRET);
+        assertThat(captured.get(1).isAccepted()).isFalse();
+        assertThat(captured.get(1).getMatchedOffset()).isNull();
+        assertThat(captured.get(1).getStepsScanned()).isEqualTo(101);
+        assertThat(captured.get(1).getUser()).isEqualTo(captured.get(0).getUser());
+    }
+
+    private static OathDeviceSettings settings(String secret, int counter) {
+        OathDeviceSettings settings = new OathDeviceSettings();
+        settings.setSharedSecret(secret);
+        settings.setCounter(counter);
+        return settings;
+    }
+}
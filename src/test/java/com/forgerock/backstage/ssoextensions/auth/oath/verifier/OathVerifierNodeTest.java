@@ -21,6 +21,13 @@ package com.forgerock.backstage.ssoextensions.auth.oath.verifier;
 
 import com.forgerock.backstage.ssoextensions.auth.oath.OathAlgorithm;
 import com.forgerock.backstage.ssoextensions.auth.oath.OathHelper;
+import com.forgerock.backstage.ssoextensions.auth.oath.OathIoExecutor;
+import com.forgerock.backstage.ssoextensions.auth.oath.ProfileStoreUnavailableException;
+import com.forgerock.backstage.ssoextensions.auth.oath.RecoveryCodeHasher;
+import com.forgerock.backstage.ssoextensions.auth.oath.audit.OathAuditEvent;
+import com.forgerock.backstage.ssoextensions.auth.oath.audit.OathAuditPipeline;
+import com.forgerock.backstage.ssoextensions.auth.oath.audit.OathAuditSink;
+import com.forgerock.backstage.ssoextensions.auth.oath.audit.RecentAttempts;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.inject.Injector;
@@ -42,16 +49,28 @@ import java.io.IOException;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import static com.forgerock.backstage.ssoextensions.auth.oath.OathConstants.OATH_DEVICE_PROFILE_KEY;
+import static com.forgerock.backstage.ssoextensions.auth.oath.OathConstants.OATH_DEVICE_PROFILE_SNAPSHOT_KEY;
+import static com.forgerock.backstage.ssoextensions.auth.oath.OathConstants.OATH_PREFETCH_KEY;
 import static com.forgerock.backstage.ssoextensions.auth.oath.TestConstants.*;
 import static com.forgerock.backstage.ssoextensions.auth.oath.verifier.OathVerifierNode.RECOVERY_PRESSED;
 import static java.util.Collections.emptyMap;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.forgerock.openam.auth.node.api.SharedStateConstants.REALM;
+import static org.forgerock.openam.auth.node.api.SharedStateConstants.USERNAME;
 import static org.forgerock.openam.auth.nodes.RecoveryCodeDisplayNode.RECOVERY_CODE_DEVICE_NAME;
 import static org.forgerock.openam.auth.nodes.RecoveryCodeDisplayNode.RECOVERY_CODE_KEY;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 public class OathVerifierNodeTest extends PowerMockTestCase {
@@ -71,7 +90,15 @@ public class OathVerifierNodeTest extends PowerMockTestCase {
     @Mock
     Injector injector;
 
+    @Mock
+    AttemptThrottle attemptThrottle;
+
+    @Mock
+    VerificationAdmissionController admissionController;
+
     private OathVerifierNode verifierNode;
+    private SlowVerificationRecorder slowVerifications;
+    private RecentAttempts recentAttempts;
     private OathDeviceSettings deviceSettings;
 
     private final JsonValue emptySharedState = new JsonValue(new HashMap<>());
@@ -93,7 +120,12 @@ public class OathVerifierNodeTest extends PowerMockTestCase {
         when(configMock.allowRecoveryCodeUsage()).thenReturn(true);
         when(configMock.addRecoveryCodesToTransientState()).thenReturn(false);
 
-        verifierNode = new OathVerifierNode(configMock, helper);
+        OathIoExecutor ioExecutor = new OathIoExecutor();
+        slowVerifications = new SlowVerificationRecorder(16);
+        recentAttempts = new RecentAttempts(8, 100, 60000);
+        verifierNode = new OathVerifierNode(configMock, helper, attemptThrottle, admissionController,
+                new OathVerificationService(), new PrecomputedWindowCache(ioExecutor),
+                OathAuditPipeline.disabled(), slowVerifications, recentAttempts);
 
         deviceSettings = new OathDeviceSettings();
         deviceSettings.setSharedSecret(SHARED_SECRET);
@@ -115,6 +147,17 @@ public class OathVerifierNodeTest extends PowerMockTestCase {
         assertThat(action.outcome).isEqualTo("NOT_REGISTERED");
     }
 
+    @Test
+    public void process_whenProfileStoreUnavailable_thenFailure()
+            throws NodeProcessException, DevicePersistenceException {
+
+        when(helper.getOathDeviceSettings(any())).thenThrow(new ProfileStoreUnavailableException("unavailable"));
+
+        TreeContext context = new TreeContext(emptySharedState, request, ImmutableList.of());
+        Action action = verifierNode.process(context);
+        assertThat(action.outcome).isEqualTo("FAILURE");
+    }
+
     @Test
     public void process_whenRecoveryPressed_thenRecoveryCode()
             throws NodeProcessException, DevicePersistenceException {
@@ -159,6 +202,35 @@ public class OathVerifierNodeTest extends PowerMockTestCase {
         assertThat(((ConfirmationCallback) action.callbacks.get(1)).getOptions().length).isEqualTo(2);
     }
 
+    @Test
+    public void process_whenPrefetchedAndInitialSetup_thenPrefetchedProfileUsed()
+            throws DevicePersistenceException, NodeProcessException {
+
+        when(helper.getOathDeviceSettings(any(), eq("nonce"))).thenReturn(deviceSettings);
+
+        JsonValue sharedState = new JsonValue(new HashMap<>(ImmutableMap.of(OATH_PREFETCH_KEY, "nonce")));
+        TreeContext context = new TreeContext(sharedState, request, ImmutableList.of());
+
+        Action action = verifierNode.process(context);
+        assertThat(action.callbacks).hasSize(2);
+        verify(helper, never()).getOathDeviceSettings(any());
+    }
+
+    @Test
+    public void process_whenPrefetchedAndOtpSubmitted_thenProfileReadFromStore()
+            throws DevicePersistenceException, NodeProcessException {
+
+        when(confirmationCallback.getSelectedIndex()).thenReturn(0);
+        when(nameCallback.getName()).thenReturn("5644919");
+
+        JsonValue sharedState = new JsonValue(new HashMap<>(ImmutableMap.of(OATH_PREFETCH_KEY, "nonce")));
+        TreeContext context = new TreeContext(sharedState, JsonValue.json(JsonValue.object(new Map.Entry[0])), request, ImmutableList.of(confirmationCallback, nameCallback));
+
+        Action action = verifierNode.process(context);
+        assertThat(action.outcome).isEqualTo("SUCCESS");
+        verify(helper, never()).getOathDeviceSettings(any(), anyString());
+    }
+
     @Test
     public void process_whenValidOtpProvidedFromContext_thenSuccess()
             throws DevicePersistenceException, NodeProcessException {
@@ -174,6 +246,22 @@ public class OathVerifierNodeTest extends PowerMockTestCase {
 
     }
 
+    @Test
+    public void process_whenPrecomputeWindow_thenSuccessAfterCallbacks()
+            throws DevicePersistenceException, NodeProcessException {
+
+        when(configMock.precomputeWindow()).thenReturn(true);
+        when(confirmationCallback.getSelectedIndex()).thenReturn(0);
+        when(nameCallback.getName()).thenReturn("5644919");
+
+        Action callbacks = verifierNode.process(new TreeContext(emptySharedState, request, ImmutableList.of()));
+        assertThat(callbacks.callbacks).hasSize(2);
+
+        TreeContext context = new TreeContext(emptySharedState, JsonValue.json(JsonValue.object(new Map.Entry[0])), request, ImmutableList.of(confirmationCallback, nameCallback));
+        Action action = verifierNode.process(context);
+        assertThat(action.outcome).isEqualTo("SUCCESS");
+    }
+
     @Test
     public void process_whenValidOtpProvidedFromContextAndAddRecoveryCodesToTransientStateTrueNoSharedStateProperty_thenSuccessAndTransientStateNull()
             throws DevicePersistenceException, NodeProcessException {
@@ -241,4 +329,346 @@ public class OathVerifierNodeTest extends PowerMockTestCase {
         assertThat(action.outcome).isEqualTo("FAILURE");
     }
 
+    @Test
+    public void process_whenAuditEnabled_thenSubmittedCodesAudited()
+            throws DevicePersistenceException, NodeProcessException, IOException {
+        List<OathAuditEvent> events = new CopyOnWriteArrayList<>();
+        OathAuditPipeline auditPipeline = new OathAuditPipeline(new OathAuditSink() {
+            @Override
+            public void write(List<OathAuditEvent> batch) {
+                events.addAll(batch);
+            }
+
+            @Override
+            public void close() {
+            }
+        }, 16, 16, OathAuditPipeline.OverflowPolicy.DROP);
+        OathIoExecutor ioExecutor = new OathIoExecutor();
+        verifierNode = new OathVerifierNode(configMock, helper, attemptThrottle, admissionController,
+                new OathVerificationService(), new PrecomputedWindowCache(ioExecutor), auditPipeline,
+                slowVerifications, recentAttempts);
+        when(confirmationCallback.getSelectedIndex()).thenReturn(0);
+
+        verifierNode.process(new TreeContext(emptySharedState, request, ImmutableList.of()));
+        when(nameCallback.getName()).thenReturn("invalid_otp");
+        verifierNode.process(new TreeContext(emptySharedState, request,
+                ImmutableList.of(confirmationCallback, nameCallback)));
+        when(nameCallback.getName()).thenReturn("5644919");
+        verifierNode.process(new TreeContext(emptySharedState, request,
+                ImmutableList.of(confirmationCallback, nameCallback)));
+        auditPipeline.close();
+
+        assertThat(events).hasSize(2);
+        assertThat(events.get(0).getType()).isEqualTo(OathAuditEvent.Type.VERIFICATION);
+        assertThat(events.get(0).getOutcome()).isEqualTo("FAILURE");
+        assertThat(events.get(0).getFailureReason()).isNotNull();
+        assertThat(events.get(1).getOutcome()).isEqualTo("SUCCESS");
+        assertThat(events.get(1).getWindowOffset()).isNotNull();
+        assertThat(events.get(1).getFailureReason()).isNull();
+    }
+
+    @Test
+    public void process_whenCodesSubmitted_thenRecentAttemptsKeptWithoutCode()
+            throws DevicePersistenceException, NodeProcessException {
+        Map<String, Object> state = new HashMap<>();
+        state.put(USERNAME, "bob");
+        state.put(REALM, "/");
+        JsonValue sharedState = new JsonValue(state);
+        when(confirmationCallback.getSelectedIndex()).thenReturn(0);
+
+        when(nameCallback.getName()).thenReturn("invalid_otp");
+        verifierNode.process(new TreeContext(sharedState, request, ImmutableList.of(confirmationCallback, nameCallback)));
+        when(nameCallback.getName()).thenReturn("5644919");
+        verifierNode.process(new TreeContext(sharedState, request, ImmutableList.of(confirmationCallback, nameCallback)));
+
+        List<OathAuditEvent> attempts = recentAttempts.get("/", "bob");
+        assertThat(attempts).hasSize(2);
+        assertThat(attempts.get(0).getOutcome()).isEqualTo("FAILURE");
+        assertThat(attempts.get(1).getOutcome()).isEqualTo("SUCCESS");
+        assertThat(attempts.get(1).getWindowOffset()).isEqualTo(0);
+        assertThat(recentAttempts.recentAttempts("/", "bob").toString()).doesNotContain("5644919");
+    }
+
+    @Test
+    public void process_whenEverySubmissionSampled_thenPhaseBreakdownRecorded()
+            throws DevicePersistenceException, NodeProcessException {
+        when(configMock.verificationSampleInterval()).thenReturn(1);
+        when(confirmationCallback.getSelectedIndex()).thenReturn(0);
+        when(nameCallback.getName()).thenReturn("5644919");
+
+        verifierNode.process(new TreeContext(emptySharedState, request, ImmutableList.of()));
+        assertThat(slowVerifications.dump()).isEmpty();
+
+        Action action = verifierNode.process(new TreeContext(emptySharedState, request,
+                ImmutableList.of(confirmationCallback, nameCallback)));
+
+        assertThat(action.outcome).isEqualTo("SUCCESS");
+        List<VerificationSample> samples = slowVerifications.dump();
+        assertThat(samples).hasSize(1);
+        assertThat(samples.get(0).getTrigger()).isEqualTo(VerificationSample.Trigger.SAMPLED);
+        assertThat(samples.get(0).getProfileSource()).isEqualTo(VerificationSample.ProfileSource.STORE);
+        assertThat(samples.get(0).getHmacs()).isEqualTo(1);
+        assertThat(samples.get(0).getVerifications()).isEqualTo(1);
+        assertThat(samples.get(0).getWindowOffset()).isEqualTo(0);
+        assertThat(samples.get(0).getTotalNanos()).isGreaterThanOrEqualTo(samples.get(0).getHmacNanos());
+    }
+
+    @Test
+    public void process_whenValidRecoveryCodeEntered_thenSuccessAndCodeConsumed()
+            throws NodeProcessException, DevicePersistenceException {
+
+        when(configMock.verifyRecoveryCodes()).thenReturn(true);
+        deviceSettings.setRecoveryCodes(RecoveryCodeHasher.hash(RECOVERY_CODES_LIST));
+
+        when(confirmationCallback.getSelectedIndex()).thenReturn(RECOVERY_PRESSED);
+        when(nameCallback.getName()).thenReturn("def");
+
+        TreeContext context = new TreeContext(emptySharedState, request, ImmutableList.of(confirmationCallback, nameCallback));
+
+        Action action = verifierNode.process(context);
+        assertThat(action.outcome).isEqualTo("SUCCESS");
+        assertThat(deviceSettings.getRecoveryCodes()).hasSize(1);
+        assertThat(RecoveryCodeHasher.indexOf(deviceSettings.getRecoveryCodes(), "def")).isEqualTo(-1);
+        assertThat(RecoveryCodeHasher.indexOf(deviceSettings.getRecoveryCodes(), "abc")).isEqualTo(0);
+        verify(helper).saveOathDeviceSettings(context, deviceSettings);
+    }
+
+    @Test
+    public void process_whenInvalidRecoveryCodeEntered_thenFail()
+            throws NodeProcessException, DevicePersistenceException {
+
+        when(configMock.verifyRecoveryCodes()).thenReturn(true);
+        deviceSettings.setRecoveryCodes(RecoveryCodeHasher.hash(RECOVERY_CODES_LIST));
+
+        when(confirmationCallback.getSelectedIndex()).thenReturn(RECOVERY_PRESSED);
+        when(nameCallback.getName()).thenReturn("xyz");
+
+        TreeContext context = new TreeContext(emptySharedState, request, ImmutableList.of(confirmationCallback, nameCallback));
+
+        Action action = verifierNode.process(context);
+        assertThat(action.outcome).isEqualTo("FAILURE");
+        assertThat(deviceSettings.getRecoveryCodes()).hasSize(2);
+        verify(helper, never()).saveOathDeviceSettings(any(), any());
+    }
+
+    @Test
+    public void process_whenRecoveryPressedWithoutCode_thenRecoveryCode()
+            throws NodeProcessException, DevicePersistenceException {
+
+        when(configMock.verifyRecoveryCodes()).thenReturn(true);
+
+        when(confirmationCallback.getSelectedIndex()).thenReturn(RECOVERY_PRESSED);
+        when(nameCallback.getName()).thenReturn("");
+
+        TreeContext context = new TreeContext(emptySharedState, request, ImmutableList.of(confirmationCallback, nameCallback));
+
+        Action action = verifierNode.process(context);
+        assertThat(action.outcome).isEqualTo("RECOVERY_CODE");
+    }
+
+    @Test
+    public void process_whenAttemptThrottled_thenFailWithoutLoadingProfile()
+            throws NodeProcessException, DevicePersistenceException {
+
+        when(configMock.attemptThrottleCapacity()).thenReturn(5);
+        when(configMock.attemptThrottleRefillInterval()).thenReturn(30);
+        when(attemptThrottle.tryAcquire(anyString(), anyInt(), anyLong())).thenReturn(false);
+
+        when(confirmationCallback.getSelectedIndex()).thenReturn(0);
+        when(nameCallback.getName()).thenReturn("5644919");
+
+        TreeContext context = new TreeContext(emptySharedState, request, ImmutableList.of(confirmationCallback, nameCallback));
+
+        Action action = verifierNode.process(context);
+        assertThat(action.outcome).isEqualTo("FAILURE");
+        verify(helper, never()).getOathDeviceSettings(any());
+    }
+
+    @Test
+    public void process_whenThrottledUserChoosesRecoveryCode_thenRecoveryCodeWithoutSpendingAttempt()
+            throws NodeProcessException {
+
+        when(configMock.attemptThrottleCapacity()).thenReturn(5);
+        when(configMock.attemptThrottleRefillInterval()).thenReturn(30);
+        when(attemptThrottle.tryAcquire(anyString(), anyInt(), anyLong())).thenReturn(false);
+
+        when(confirmationCallback.getSelectedIndex()).thenReturn(RECOVERY_PRESSED);
+        when(nameCallback.getName()).thenReturn("");
+
+        TreeContext context = new TreeContext(emptySharedState, request, ImmutableList.of(confirmationCallback, nameCallback));
+
+        Action action = verifierNode.process(context);
+        assertThat(action.outcome).isEqualTo("RECOVERY_CODE");
+        verify(attemptThrottle, never()).tryAcquire(anyString(), anyInt(), anyLong());
+    }
+
+    @Test
+    public void process_whenAttemptAllowed_thenVerify() throws NodeProcessException, DevicePersistenceException {
+
+        when(configMock.attemptThrottleCapacity()).thenReturn(5);
+        when(configMock.attemptThrottleRefillInterval()).thenReturn(30);
+        when(attemptThrottle.tryAcquire(anyString(), anyInt(), anyLong())).thenReturn(true);
+
+        when(confirmationCallback.getSelectedIndex()).thenReturn(0);
+        when(nameCallback.getName()).thenReturn("5644919");
+
+        TreeContext context = new TreeContext(emptySharedState, request, ImmutableList.of(confirmationCallback, nameCallback));
+
+        Action action = verifierNode.process(context);
+        assertThat(action.outcome).isEqualTo("SUCCESS");
+        verify(attemptThrottle).tryAcquire("null:null", 5, 30_000L);
+    }
+
+    @Test
+    public void process_whenShedByAdmissionControl_thenFailWithoutLoadingProfile()
+            throws NodeProcessException, DevicePersistenceException {
+
+        when(admissionController.admit(anyInt(), anyInt(), anyInt(), anyInt()))
+                .thenReturn(VerificationAdmissionController.Decision.SHED);
+
+        when(confirmationCallback.getSelectedIndex()).thenReturn(0);
+        when(nameCallback.getName()).thenReturn("5644919");
+
+        TreeContext context = new TreeContext(emptySharedState, request, ImmutableList.of(confirmationCallback, nameCallback));
+
+        Action action = verifierNode.process(context);
+        assertThat(action.outcome).isEqualTo("FAILURE");
+        verify(helper, never()).getOathDeviceSettings(any());
+        verify(admissionController, never()).release();
+    }
+
+    @Test
+    public void process_whenNarrowedByAdmissionControl_thenVerifyCurrentCounterAndRelease()
+            throws NodeProcessException, DevicePersistenceException {
+
+        when(admissionController.admit(anyInt(), anyInt(), anyInt(), anyInt()))
+                .thenReturn(VerificationAdmissionController.Decision.NARROWED);
+
+        when(confirmationCallback.getSelectedIndex()).thenReturn(0);
+        when(nameCallback.getName()).thenReturn("5644919");
+
+        TreeContext context = new TreeContext(emptySharedState, request, ImmutableList.of(confirmationCallback, nameCallback));
+
+        Action action = verifierNode.process(context);
+        assertThat(action.outcome).isEqualTo("SUCCESS");
+        verify(admissionController).admit(0, 0, 101, 1);
+        verify(admissionController).release();
+    }
+
+    @Test
+    public void process_whenInitialSetupAndKeepProfile_thenSnapshotInSharedState()
+            throws NodeProcessException, IOException {
+
+        when(configMock.keepDeviceProfileAcrossRetries()).thenReturn(true);
+        when(helper.encryptProfileSnapshot(any(), any(), any())).thenReturn("snapshot");
+
+        TreeContext context = new TreeContext(emptySharedState, request, ImmutableList.of());
+
+        Action action = verifierNode.process(context);
+        assertThat(action.callbacks).hasSize(2);
+        assertThat(action.sharedState.get(OATH_DEVICE_PROFILE_SNAPSHOT_KEY).asString()).isEqualTo("snapshot");
+    }
+
+    @Test
+    public void process_whenInvalidOtpWithSnapshot_thenFailWithoutReadingStore()
+            throws NodeProcessException, IOException, DevicePersistenceException {
+
+        when(configMock.keepDeviceProfileAcrossRetries()).thenReturn(true);
+        when(helper.decryptProfileSnapshot(any(), anyString())).thenReturn(deviceSettings);
+        when(helper.encryptProfileSnapshot(any(), any(), any())).thenReturn("snapshot");
+
+        when(confirmationCallback.getSelectedIndex()).thenReturn(0);
+        when(nameCallback.getName()).thenReturn("invalid_otp");
+
+        JsonValue sharedState = new JsonValue(new HashMap<>(ImmutableMap.of(OATH_DEVICE_PROFILE_SNAPSHOT_KEY, "snapshot")));
+        TreeContext context = new TreeContext(sharedState, request, ImmutableList.of(confirmationCallback, nameCallback));
+
+        Action action = verifierNode.process(context);
+        assertThat(action.outcome).isEqualTo("FAILURE");
+        assertThat(action.sharedState.get(OATH_DEVICE_PROFILE_SNAPSHOT_KEY).asString()).isEqualTo("snapshot");
+        verify(helper, never()).getOathDeviceSettings(any());
+    }
+
+    @Test
+    public void process_whenValidOtpWithUpToDateSnapshot_thenSuccessAndSnapshotRemoved()
+            throws NodeProcessException, IOException, DevicePersistenceException {
+
+        OathDeviceSettings storedSettings = new OathDeviceSettings();
+        storedSettings.setSharedSecret(SHARED_SECRET);
+        storedSettings.setDeviceName(DEVICE_NAME);
+        storedSettings.setCounter(0);
+
+        when(configMock.keepDeviceProfileAcrossRetries()).thenReturn(true);
+        when(helper.decryptProfileSnapshot(any(), anyString())).thenReturn(deviceSettings);
+        when(helper.getOathDeviceSettings(any())).thenReturn(storedSettings);
+
+        when(confirmationCallback.getSelectedIndex()).thenReturn(0);
+        when(nameCallback.getName()).thenReturn("5644919");
+
+        JsonValue sharedState = new JsonValue(new HashMap<>(ImmutableMap.of(OATH_DEVICE_PROFILE_SNAPSHOT_KEY, "snapshot")));
+        TreeContext context = new TreeContext(sharedState, request, ImmutableList.of(confirmationCallback, nameCallback));
+
+        Action action = verifierNode.process(context);
+        assertThat(action.outcome).isEqualTo("SUCCESS");
+        assertThat(action.sharedState.isDefined(OATH_DEVICE_PROFILE_SNAPSHOT_KEY)).isFalse();
+        verify(helper, times(1)).getOathDeviceSettings(any());
+        verify(helper).saveOathDeviceSettings(context, deviceSettings);
+    }
+
+    @Test
+    public void process_whenRecoveryCodeChosenWithSnapshot_thenSnapshotRemoved()
+            throws NodeProcessException, IOException {
+
+        when(configMock.keepDeviceProfileAcrossRetries()).thenReturn(true);
+        when(helper.decryptProfileSnapshot(any(), anyString())).thenReturn(deviceSettings);
+
+        when(confirmationCallback.getSelectedIndex()).thenReturn(RECOVERY_PRESSED);
+        when(nameCallback.getName()).thenReturn("");
+
+        JsonValue sharedState = new JsonValue(new HashMap<>(ImmutableMap.of(OATH_DEVICE_PROFILE_SNAPSHOT_KEY, "snapshot")));
+        TreeContext context = new TreeContext(sharedState, request, ImmutableList.of(confirmationCallback, nameCallback));
+
+        Action action = verifierNode.process(context);
+        assertThat(action.outcome).isEqualTo("RECOVERY_CODE");
+        assertThat(action.sharedState.isDefined(OATH_DEVICE_PROFILE_SNAPSHOT_KEY)).isFalse();
+    }
+
+    @Test
+    public void process_whenValidOtpWithStaleSnapshot_thenVerifyAgainstStoredProfile()
+            throws NodeProcessException, IOException, DevicePersistenceException {
+
+        OathDeviceSettings storedSettings = new OathDeviceSettings();
+        storedSettings.setSharedSecret(SHARED_SECRET);
+        storedSettings.setDeviceName(DEVICE_NAME);
+        // The code has been used elsewhere since the snapshot was taken
+        storedSettings.setCounter(1);
+
+        when(configMock.keepDeviceProfileAcrossRetries()).thenReturn(true);
+        when(helper.decryptProfileSnapshot(any(), anyString())).thenReturn(deviceSettings);
+        when(helper.getOathDeviceSettings(any())).thenReturn(storedSettings);
+
+        when(confirmationCallback.getSelectedIndex()).thenReturn(0);
+        when(nameCallback.getName()).thenReturn("5644919");
+
+        JsonValue sharedState = new JsonValue(new HashMap<>(ImmutableMap.of(OATH_DEVICE_PROFILE_SNAPSHOT_KEY, "snapshot")));
+        TreeContext context = new TreeContext(sharedState, request, ImmutableList.of(confirmationCallback, nameCallback));
+
+        Action action = verifierNode.process(context);
+        assertThat(action.outcome).isEqualTo("FAILURE");
+        verify(helper, never()).saveOathDeviceSettings(any(), any());
+    }
+
+    @Test
+    public void process_whenSaveFails_thenFailure()
+            throws NodeProcessException, DevicePersistenceException {
+
+        when(confirmationCallback.getSelectedIndex()).thenReturn(0);
+        when(nameCallback.getName()).thenReturn("5644919");
+        doThrow(new DevicePersistenceException("unavailable")).when(helper).saveOathDeviceSettings(any(), any());
+
+        TreeContext context = new TreeContext(emptySharedState, JsonValue.json(JsonValue.object(new Map.Entry[0])), request, ImmutableList.of(confirmationCallback, nameCallback));
+
+        Action action = verifierNode.process(context);
+        assertThat(action.outcome).isEqualTo("FAILURE");
+    }
 }
@@ -0,0 +1,46 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.verifier;
+
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Locale;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class OathWarmUpTest {
+
+    @Test
+    public void parseLocales_whenTags_thenLocales() {
+        assertThat(OathWarmUp.parseLocales("en, de,,fr-CA"))
+                .isEqualTo(Arrays.asList(Locale.ENGLISH, Locale.GERMAN, Locale.CANADA_FRENCH));
+        assertThat(OathWarmUp.parseLocales("")).isEqualTo(Collections.emptyList());
+    }
+
+    @Test
+    public void run_whenBundleMissing_thenCompletes() {
+        long duration = OathWarmUp.run("does/not/Exist", getClass().getClassLoader(),
+                Collections.singletonList(Locale.ENGLISH), 10);
+
+        assertThat(duration).isGreaterThanOrEqualTo(0L);
+    }
+}
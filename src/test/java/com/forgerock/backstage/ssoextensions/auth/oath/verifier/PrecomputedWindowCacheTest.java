@@ -0,0 +1,138 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.verifier;
+
+import com.forgerock.backstage.ssoextensions.auth.oath.OathAlgorithm;
+import com.forgerock.backstage.ssoextensions.auth.oath.OathIoExecutor;
+import com.forgerock.backstage.ssoextensions.auth.oath.OathSecret;
+import org.forgerock.openam.core.rest.devices.oath.OathDeviceSettings;
+import org.testng.annotations.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class PrecomputedWindowCacheTest {
+
+    private static final String SECRET = "3132333435363738393031323334353637383930";
+
+    private final PrecomputedWindowCache cache = new PrecomputedWindowCache(new OathIoExecutor());
+
+    @Test
+    public void take_whenHotpWindowPrecomputed_thenSameCodes() throws Exception {
+        cache.start("/:demo", profile(5), config(OathAlgorithm.HOTP));
+
+        AbstractOathVerifier.GeneratorSource generators = awaitTake("/:demo");
+
+        OathCodeGenerator precomputed = generators.get(OathSecret.fromHex(SECRET));
+        OathCodeGenerator computed = new OathCodeGenerator(OathSecret.fromHex(SECRET));
+        for (int counter = 0; counter < 20; counter++) {
+            assertThat(precomputed.hotp(counter, 6, false, -1)).isEqualTo(computed.hotp(counter, 6, false, -1));
+        }
+    }
+
+    @Test
+    public void take_whenTotpWindowPrecomputed_thenVerifiesLikeComputedWindow() throws Exception {
+        OathVerifierNodeConfig config = config(OathAlgorithm.TOTP);
+        OathDeviceSettings precomputedProfile = profile(0);
+        OathDeviceSettings computedProfile = profile(0);
+        String otp = new OathCodeGenerator(OathSecret.fromHex(SECRET))
+                .totp(System.currentTimeMillis() / 1000L / 30, 6);
+        cache.start("/:demo", precomputedProfile, config);
+
+        OathVerificationService service = new OathVerificationService();
+        OathVerificationResult precomputed = service.verify(precomputedProfile, otp, config, false,
+                awaitTake("/:demo"));
+        OathVerificationResult computed = service.verify(computedProfile, otp, config);
+
+        assertThat(precomputed.isValid()).isEqualTo(computed.isValid());
+        assertThat(precomputedProfile.getLastLogin()).isEqualTo(computedProfile.getLastLogin());
+    }
+
+    @Test
+    public void take_whenTakenAlready_thenNull() throws Exception {
+        cache.start("/:demo", profile(0), config(OathAlgorithm.HOTP));
+        awaitTake("/:demo");
+
+        assertThat(cache.take("/:demo")).isNull();
+    }
+
+    @Test
+    public void take_whenNotStarted_thenNull() {
+        assertThat(cache.take("/:demo")).isNull();
+    }
+
+    @Test
+    public void take_whenOtherSecret_thenNewGenerator() throws Exception {
+        cache.start("/:demo", profile(0), config(OathAlgorithm.HOTP));
+        AbstractOathVerifier.GeneratorSource generators = awaitTake("/:demo");
+
+        OathSecret other = OathSecret.fromHex("abcdef");
+
+        assertThat(generators.get(other)).isNotSameAs(generators.get(OathSecret.fromHex(SECRET)));
+        assertThat(generators.get(other).hotp(0, 6, false, -1))
+                .isEqualTo(new OathCodeGenerator(other).hotp(0, 6, false, -1));
+    }
+
+    @Test
+    public void start_whenSecretInvalid_thenNothingPrecomputed() {
+        OathDeviceSettings settings = profile(0);
+        settings.setSharedSecret("not hex");
+
+        cache.start("/:demo", settings, config(OathAlgorithm.HOTP));
+
+        assertThat(cache.take("/:demo")).isNull();
+    }
+
+    private AbstractOathVerifier.GeneratorSource awaitTake(String key) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        AbstractOathVerifier.GeneratorSource generators = cache.take(key);
+        while (generators == null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+            generators = cache.take(key);
+        }
+        assertThat(generators).isNotNull();
+        return generators;
+    }
+
+    private static OathDeviceSettings profile(int counter) {
+        OathDeviceSettings settings = new OathDeviceSettings();
+        settings.setSharedSecret(SECRET);
+        settings.setCounter(counter);
+        return settings;
+    }
+
+    private static OathVerifierNodeConfig config(OathAlgorithm algorithm) {
+        return new OathVerifierNodeConfig() {
+            @Override
+            public OathAlgorithm algorithm() {
+                return algorithm;
+            }
+
+            @Override
+            public int minSharedSecretLength() {
+                return 1;
+            }
+
+            @Override
+            public int hotpWindowSize() {
+                return 10;
+            }
+        };
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.verifier;
+
+import org.testng.annotations.Test;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SlowVerificationRecorderTest {
+
+    private final SlowVerificationRecorder recorder = new SlowVerificationRecorder(4);
+
+    @Test
+    public void select_whenSlowerThanThreshold_thenSlow() {
+        assertThat(recorder.select(TimeUnit.MILLISECONDS.toNanos(101), 100, 0))
+                .isEqualTo(VerificationSample.Trigger.SLOW);
+        assertThat(recorder.select(TimeUnit.MILLISECONDS.toNanos(99), 100, 0)).isNull();
+    }
+
+    @Test
+    public void select_whenThresholdAndSamplingDisabled_thenNotSelected() {
+        assertThat(recorder.select(TimeUnit.SECONDS.toNanos(10), 0, 0)).isNull();
+    }
+
+    @Test
+    public void select_whenEveryVerificationSampled_thenSampled() {
+        assertThat(recorder.select(0, 100, 1)).isEqualTo(VerificationSample.Trigger.SAMPLED);
+    }
+
+    @Test
+    public void dump_whenRingWrapped_thenNewestSamplesOldestFirst() {
+        for (int i = 0; i < 6; i++) {
+            recorder.record(sample(i, i % 2 == 0 ? VerificationSample.Trigger.SLOW
+                    : VerificationSample.Trigger.SAMPLED));
+        }
+
+        List<VerificationSample> samples = recorder.dump();
+
+        assertThat(samples).hasSize(4);
+        assertThat(samples.get(0).getTimestamp()).isEqualTo(2);
+        assertThat(samples.get(3).getTimestamp()).isEqualTo(5);
+        assertThat(recorder.getSlowVerifications()).isEqualTo(3);
+        assertThat(recorder.getSampledVerifications()).isEqualTo(3);
+        assertThat(recorder.getOverwrittenSamples()).isEqualTo(2);
+    }
+
+    @Test
+    public void dumpSamples_whenRecorded_thenJsonWithMicroseconds() {
+        recorder.record(sample(1, VerificationSample.Trigger.SLOW));
+
+        List<String> samples = recorder.dumpSamples();
+
+        assertThat(samples).hasSize(1);
+        assertThat(samples.get(0)).contains("\"trigger\":\"SLOW\"").contains("\"storeMicros\":2000")
+                .contains("\"windowOffset\":3").contains("\"profileSource\":\"STORE\"");
+    }
+
+    private static VerificationSample sample(long timestamp, VerificationSample.Trigger trigger) {
+        return new VerificationSample(timestamp, trigger, "/", "SUCCESS", VerificationSample.ProfileSource.STORE,
+                TimeUnit.MILLISECONDS.toNanos(5), TimeUnit.MILLISECONDS.toNanos(2), 0, 0, 4, 1, false, 3);
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.verifier;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.forgerock.backstage.ssoextensions.auth.oath.verifier.VerificationAdmissionController.Decision.*;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class VerificationAdmissionControllerTest {
+
+    private final AtomicLong now = new AtomicLong(1_000_000L);
+    private VerificationAdmissionController controller;
+
+    @BeforeMethod
+    public void init() {
+        controller = new VerificationAdmissionController(now::get);
+    }
+
+    @Test
+    public void admit_whenNoLimits_thenFull() {
+        assertThat(controller.admit(0, 0, 101, 1)).isEqualTo(FULL);
+        assertThat(controller.getInFlightVerifications()).isEqualTo(1);
+
+        controller.release();
+        assertThat(controller.getInFlightVerifications()).isEqualTo(0);
+    }
+
+    @Test
+    public void admit_whenTooManyInFlight_thenShed() {
+        assertThat(controller.admit(2, 0, 5, 1)).isEqualTo(FULL);
+        assertThat(controller.admit(2, 0, 5, 1)).isEqualTo(FULL);
+        assertThat(controller.admit(2, 0, 5, 1)).isEqualTo(SHED);
+
+        assertThat(controller.getInFlightVerifications()).isEqualTo(2);
+        assertThat(controller.getShedVerifications()).isEqualTo(1);
+    }
+
+    @Test
+    public void admit_whenHmacBudgetExhausted_thenNarrowThenShed() {
+        assertThat(controller.admit(0, 12, 5, 1)).isEqualTo(FULL);
+        assertThat(controller.admit(0, 12, 5, 1)).isEqualTo(FULL);
+        assertThat(controller.admit(0, 12, 5, 1)).isEqualTo(NARROWED);
+        assertThat(controller.admit(0, 12, 5, 1)).isEqualTo(NARROWED);
+        assertThat(controller.admit(0, 12, 5, 1)).isEqualTo(SHED);
+
+        assertThat(controller.getHmacsInCurrentSecond()).isEqualTo(12L);
+        assertThat(controller.getAdmittedVerifications()).isEqualTo(2L);
+        assertThat(controller.getNarrowedVerifications()).isEqualTo(2L);
+        assertThat(controller.getInFlightVerifications()).isEqualTo(4);
+    }
+
+    @Test
+    public void admit_whenNextSecond_thenBudgetRenewed() {
+        controller.admit(0, 5, 5, 1);
+        assertThat(controller.admit(0, 5, 5, 1)).isEqualTo(SHED);
+
+        now.addAndGet(1000L);
+
+        assertThat(controller.admit(0, 5, 5, 1)).isEqualTo(FULL);
+    }
+
+    @Test
+    public void admit_whenConcurrentAtStartOfSecond_thenBudgetNeverExceeded() throws InterruptedException {
+        int threads = 8;
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicInteger full = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        for (int i = 0; i < threads; i++) {
+            executor.execute(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                for (int j = 0; j < 1000; j++) {
+                    if (controller.admit(0, 100, 1, 1) == FULL) {
+                        full.incrementAndGet();
+                    }
+                }
+            });
+        }
+        start.countDown();
+        executor.shutdown();
+        assertThat(executor.awaitTermination(10, TimeUnit.SECONDS)).isTrue();
+
+        assertThat(full.get()).isEqualTo(100);
+        assertThat(controller.getHmacsInCurrentSecond()).isEqualTo(100L);
+    }
+}
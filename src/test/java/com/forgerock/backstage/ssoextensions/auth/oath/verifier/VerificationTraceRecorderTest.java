@@ -0,0 +1,82 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2019 ForgeRock AS.
+ * Portions copyright 2019 Zoltan Tarcsay
+ * Portions copyright 2019 Josh Cross
+ * Portions copyright 2019 Chris Clifton
+ */
+
+package com.forgerock.backstage.ssoextensions.auth.oath.verifier;
+
+import com.forgerock.backstage.ssoextensions.auth.oath.OathAlgorithm;
+import org.forgerock.openam.core.rest.devices.oath.OathDeviceSettings;
+import org.testng.annotations.Test;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class VerificationTraceRecorderTest {
+
+    private final VerificationTraceRecorder recorder = new VerificationTraceRecorder(4);
+
+    @Test
+    public void record_whenCapacityZero_thenNothingCaptured() {
+        VerificationTraceRecorder disabled = new VerificationTraceRecorder(0);
+
+        disabled.record(trace(1, 2));
+
+        assertThat(disabled.isEnabled()).isFalse();
+        assertThat(disabled.dump()).isEmpty();
+        assertThat(disabled.getCapturedTraces()).isEqualTo(0L);
+    }
+
+    @Test
+    public void anonymise_whenSameProfile_thenSameIdOnlyWithinRecorder() {
+        OathDeviceSettings settings = new OathDeviceSettings();
+        settings.setUUID("4a7c1e3f-device");
+
+        String id = recorder.anonymise(settings);
+
+        assertThat(id).hasSize(16).doesNotContain("device");
+        assertThat(recorder.anonymise(settings)).isEqualTo(id);
+        assertThat(new VerificationTraceRecorder(4).anonymise(settings)).isNotEqualTo(id);
+    }
+
+    @Test
+    public void dumpTraces_whenRingWrapped_thenNewestTracesReadBack() {
+        for (int i = 0; i < 6; i++) {
+            recorder.record(trace(i, i % 2 == 0 ? null : -1));
+        }
+
+        List<String> lines = recorder.dumpTraces();
+
+        assertThat(lines).hasSize(5);
+        assertThat(lines.get(0)).isEqualTo(VerificationTrace.CSV_HEADER);
+        VerificationTrace first = VerificationTrace.fromCsv(lines.get(1));
+        assertThat(first.getTime()).isEqualTo(2L);
+        assertThat(first.getMatchedOffset()).isNull();
+        VerificationTrace last = VerificationTrace.fromCsv(lines.get(4));
+        assertThat(last.getMatchedOffset()).isEqualTo(-1);
+        assertThat(last.getSinceLastLogin()).isEqualTo(95L);
+        assertThat(last.getAlgorithm()).isEqualTo(OathAlgorithm.TOTP);
+        assertThat(recorder.getCapturedTraces()).isEqualTo(6L);
+        assertThat(recorder.getOverwrittenTraces()).isEqualTo(2L);
+    }
+
+    private static VerificationTrace trace(long time, Integer matchedOffset) {
+        return new VerificationTrace(time, "00112233aabbccdd", OathAlgorithm.TOTP, 30, 2, false, 5, 95, 1,
+                matchedOffset, matchedOffset != null, 3);
+    }
+}